@@ -0,0 +1,148 @@
+package swordriver.com.googledrivemodule;
+
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.drive.DriveId;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Deletes a set of items with at most parallelism delete calls in flight.
+ * When the backend supports DriveBackend.BatchDelete and batchSize is above 1, each call
+ * deletes up to batchSize items.  A failed item does not stop the others; the result lists
+ * both, and the callback runs exactly once.
+ */
+class BatchDeleter {
+
+    interface Callback {
+        void onDeleted(DeleteResult result);
+    }
+
+    private final DriveBackend mBackend;
+    private final int mParallelism;
+    private final int mBatchSize;
+    private final Callback mCallback;
+    private final DeleteResult mResult = new DeleteResult();
+
+    // items not handed to the backend yet, guarded by this
+    private final Deque<DriveId> mPending;
+    private int mInFlight = 0;
+    private final AtomicInteger mDrainRequests = new AtomicInteger(0);
+    private final AtomicBoolean mCompleted = new AtomicBoolean(false);
+
+    BatchDeleter(DriveBackend backend, Collection<DriveId> items, int parallelism, int batchSize, Callback callback){
+        mBackend = backend;
+        mPending = new ArrayDeque<>(items);
+        mParallelism = Math.max(parallelism, 1);
+        mBatchSize = backend instanceof DriveBackend.BatchDelete ? Math.max(batchSize, 1) : 1;
+        mCallback = callback;
+    }
+
+    void start(){
+        boolean empty;
+        synchronized (this){
+            empty = mPending.isEmpty();
+        }
+        if (empty){
+            complete();
+        }else{
+            drain();
+        }
+    }
+
+    // DriveBackend.BatchDelete for decorators whose wrapped backend has no batch call: a
+    // delete per item, all in flight at once, reported together
+    static void deleteEach(DriveBackend backend, List<DriveId> assetIDs, final DriveBackend.Callback<Map<DriveId, Status>> callback){
+        final Map<DriveId, Status> statuses = new HashMap<>();
+        if (assetIDs.isEmpty()){
+            callback.onResult(new Status(CommonStatusCodes.SUCCESS), statuses);
+            return;
+        }
+        final AtomicInteger remaining = new AtomicInteger(assetIDs.size());
+        for (final DriveId assetID : assetIDs){
+            backend.delete(assetID, new DriveBackend.Callback<Void>() {
+                @Override
+                public void onResult(Status status, Void nothing) {
+                    synchronized (statuses){
+                        statuses.put(assetID, status);
+                    }
+                    if (remaining.decrementAndGet()==0){
+                        callback.onResult(new Status(CommonStatusCodes.SUCCESS), statuses);
+                    }
+                }
+            });
+        }
+    }
+
+    //////////////////// private helper ////////////////////////
+
+    private void drain(){
+        if (mDrainRequests.getAndIncrement()!=0) return;
+        do {
+            List<DriveId> next;
+            while ((next = nextBatch())!=null){
+                delete(next);
+            }
+        } while (mDrainRequests.decrementAndGet()!=0);
+    }
+
+    private synchronized List<DriveId> nextBatch(){
+        if (mInFlight>=mParallelism || mPending.isEmpty()) return null;
+        mInFlight++;
+        List<DriveId> batch = new ArrayList<>(Math.min(mBatchSize, mPending.size()));
+        while (batch.size()<mBatchSize && !mPending.isEmpty()){
+            batch.add(mPending.poll());
+        }
+        return batch;
+    }
+
+    private void delete(final List<DriveId> batch){
+        if (batch.size()==1){
+            final DriveId assetID = batch.get(0);
+            mBackend.delete(assetID, new DriveBackend.Callback<Void>() {
+                @Override
+                public void onResult(Status status, Void nothing) {
+                    mResult.add(assetID, status);
+                    onBatchDone();
+                }
+            });
+        }else{
+            ((DriveBackend.BatchDelete) mBackend).deleteAll(batch, new DriveBackend.Callback<Map<DriveId, Status>>() {
+                @Override
+                public void onResult(Status status, Map<DriveId, Status> statuses) {
+                    for (DriveId assetID : batch){
+                        Status itemStatus = statuses==null ? null : statuses.get(assetID);
+                        // without a per item status the whole batch shares the call's status
+                        mResult.add(assetID, itemStatus==null ? status : itemStatus);
+                    }
+                    onBatchDone();
+                }
+            });
+        }
+    }
+
+    private void onBatchDone(){
+        boolean finished;
+        synchronized (this){
+            mInFlight--;
+            finished = mInFlight==0 && mPending.isEmpty();
+        }
+        if (finished){
+            complete();
+        }else{
+            drain();
+        }
+    }
+
+    private void complete(){
+        if (mCompleted.compareAndSet(false, true)) mCallback.onDeleted(mResult);
+    }
+}
@@ -0,0 +1,64 @@
+package swordriver.com.googledrivemodule;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Direct buffers of one size, reused across transfers so copying a file allocates nothing.
+ */
+class ByteBufferPool {
+
+    static final int DEFAULT_BUFFER_SIZE = 64*1024;
+    private static final int DEFAULT_MAX_POOLED = 8;
+
+    static final ByteBufferPool SHARED = new ByteBufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED);
+
+    private final int mBufferSize;
+    private final int mMaxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> mBuffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mPooled = new AtomicInteger(0);
+
+    ByteBufferPool(int bufferSize, int maxPooled){
+        mBufferSize = bufferSize;
+        mMaxPooled = maxPooled;
+    }
+
+    ByteBuffer acquire(){
+        ByteBuffer buffer = mBuffers.poll();
+        if (buffer==null) return ByteBuffer.allocateDirect(mBufferSize);
+        mPooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    void release(ByteBuffer buffer){
+        if (buffer.capacity()!=mBufferSize || !buffer.isDirect()) return;
+        if (mPooled.incrementAndGet()>mMaxPooled){
+            mPooled.decrementAndGet();
+            return;
+        }
+        mBuffers.offer(buffer);
+    }
+
+    // copies source to its end into sink, returns the number of bytes copied
+    long copy(ReadableByteChannel source, WritableByteChannel sink) throws IOException {
+        ByteBuffer buffer = acquire();
+        long copied = 0;
+        try {
+            while (source.read(buffer)!=-1){
+                buffer.flip();
+                while (buffer.hasRemaining()){
+                    copied += sink.write(buffer);
+                }
+                buffer.clear();
+            }
+        } finally {
+            release(buffer);
+        }
+        return copied;
+    }
+}
@@ -0,0 +1,86 @@
+package swordriver.com.googledrivemodule;
+
+import android.support.annotation.VisibleForTesting;
+
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKeyFactory;
+
+/**
+ * Per thread Cipher, KeyGenerator, SecretKeyFactory and Mac instances, so the provider lookup
+ * behind getInstance() runs once per thread instead of once per title, name or key.
+ *
+ * Instances are for immediate use: callers init() them before every use, which also resets
+ * whatever a failed earlier use left behind (GCM needs a fresh IV per encryption anyway), and
+ * must not keep one across a call that may take the same instance on the same thread.
+ */
+class CryptoPool {
+
+    static final String GCM = "AES/GCM/NoPadding";
+    static final String PBKDF2 = "PBKDF2WithHmacSHA1";
+    static final String HMAC_SHA256 = "HmacSHA256";
+
+    private static final ThreadLocal<Cipher> sGcmCiphers = new ThreadLocal<>();
+    private static final ThreadLocal<KeyGenerator> sAesKeyGenerators = new ThreadLocal<>();
+    private static final ThreadLocal<Integer> sAesKeyLengths = new ThreadLocal<>();
+    private static final ThreadLocal<SecretKeyFactory> sKeyFactories = new ThreadLocal<>();
+    private static final ThreadLocal<Mac> sMacs = new ThreadLocal<>();
+    private static volatile boolean sEnabled = true;
+
+    private CryptoPool(){
+    }
+
+    // off makes every call look the instance up again, for measuring what pooling saves
+    @VisibleForTesting
+    static void setEnabled(boolean enabled){
+        sEnabled = enabled;
+    }
+
+    static Cipher gcmCipher() throws NoSuchAlgorithmException, NoSuchPaddingException {
+        Cipher cipher = sEnabled ? sGcmCiphers.get() : null;
+        if (cipher==null){
+            cipher = Cipher.getInstance(GCM);
+            if (sEnabled) sGcmCiphers.set(cipher);
+        }
+        return cipher;
+    }
+
+    // already initialized for keyLength bit keys
+    static KeyGenerator aesKeyGenerator(int keyLength) throws NoSuchAlgorithmException {
+        KeyGenerator keyGen = sEnabled ? sAesKeyGenerators.get() : null;
+        if (keyGen==null){
+            keyGen = KeyGenerator.getInstance("AES");
+            keyGen.init(keyLength);
+            if (sEnabled){
+                sAesKeyGenerators.set(keyGen);
+                sAesKeyLengths.set(keyLength);
+            }
+        }else if (sAesKeyLengths.get()!=keyLength){
+            keyGen.init(keyLength);
+            sAesKeyLengths.set(keyLength);
+        }
+        return keyGen;
+    }
+
+    static SecretKeyFactory pbkdf2KeyFactory() throws NoSuchAlgorithmException {
+        SecretKeyFactory keyFactory = sEnabled ? sKeyFactories.get() : null;
+        if (keyFactory==null){
+            keyFactory = SecretKeyFactory.getInstance(PBKDF2);
+            if (sEnabled) sKeyFactories.set(keyFactory);
+        }
+        return keyFactory;
+    }
+
+    static Mac hmacSha256() throws NoSuchAlgorithmException {
+        Mac mac = sEnabled ? sMacs.get() : null;
+        if (mac==null){
+            mac = Mac.getInstance(HMAC_SHA256);
+            if (sEnabled) sMacs.set(mac);
+        }
+        return mac;
+    }
+}
@@ -0,0 +1,45 @@
+package swordriver.com.googledrivemodule;
+
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.drive.DriveId;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Outcome of deleting several items: the ones deleted, and the failure status of the rest.
+ */
+public class DeleteResult {
+
+    private final List<DriveId> mDeleted = new ArrayList<>();
+    private final Map<DriveId, Status> mFailed = new LinkedHashMap<>();
+
+    synchronized void add(DriveId assetID, Status status){
+        if (status.isSuccess()){
+            mDeleted.add(assetID);
+        }else{
+            mFailed.put(assetID, status);
+        }
+    }
+
+    public synchronized List<DriveId> getDeleted(){
+        return Collections.unmodifiableList(new ArrayList<>(mDeleted));
+    }
+
+    public synchronized Map<DriveId, Status> getFailed(){
+        return Collections.unmodifiableMap(new LinkedHashMap<>(mFailed));
+    }
+
+    public synchronized boolean isSuccess(){
+        return mFailed.isEmpty();
+    }
+
+    // SUCCESS, or the status of the first failed item
+    public synchronized Status getStatus(){
+        if (mFailed.isEmpty()) return new Status(0);
+        return mFailed.values().iterator().next();
+    }
+}
@@ -0,0 +1,87 @@
+package swordriver.com.googledrivemodule;
+
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.drive.DriveFile;
+import com.google.android.gms.drive.DriveFolder;
+import com.google.android.gms.drive.DriveId;
+import com.google.android.gms.drive.Metadata;
+import com.google.android.gms.drive.MetadataChangeSet;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The Drive calls GoogleApiModel depends on.
+ * GoogleDriveBackend talks to Google Play services, InMemoryDriveBackend keeps everything
+ * in memory so the model can be exercised and measured without a Google account.
+ *
+ * Every call reports through a Callback exactly once.  Metadata handed to callbacks is
+ * always frozen, so it stays valid after the call returns.
+ */
+public interface DriveBackend {
+
+    enum Operation {
+        LIST_PARENTS,
+        LIST_CHILDREN,
+        CREATE_FOLDER,
+        CREATE_FILE,
+        OPEN,
+        COMMIT,
+        DELETE,
+        UPDATE_METADATA,
+        GET_METADATA,
+        DELETE_BATCH
+    }
+
+    interface Callback<T> {
+        // result is only meaningful when status.isSuccess()
+        void onResult(Status status, T result);
+    }
+
+    // opened file contents, valid until commit() or discard()
+    interface Contents {
+        DriveId getDriveId();
+        int getMode();
+        InputStream getInputStream();
+        OutputStream getOutputStream();
+        // the file behind the contents, positioned at its start, or null when there is none.
+        // read only contents give a readable channel, write only ones a writable channel
+        // that replaces the whole file.
+        FileChannel getChannel();
+    }
+
+    // optional, implemented by backends that can delete several items in one round trip
+    interface BatchDelete {
+        // reports the status of every item; a failed call may leave statuses null
+        void deleteAll(List<DriveId> assetIDs, Callback<Map<DriveId, Status>> callback);
+    }
+
+    boolean isConnected();
+
+    DriveFolder getRootFolder();
+
+    void listParents(DriveId assetID, Callback<List<Metadata>> callback);
+
+    void listChildren(DriveFolder folder, Callback<List<Metadata>> callback);
+
+    void createFolder(DriveFolder parent, MetadataChangeSet changeSet, Callback<DriveFolder> callback);
+
+    void createFile(DriveFolder parent, MetadataChangeSet changeSet, Callback<DriveFile> callback);
+
+    void open(DriveFile file, int mode, Callback<Contents> callback);
+
+    // reports the committed item's metadata, so writers need not read it back.  The result may
+    // be null when the commit succeeded but the metadata could not be had.
+    void commit(Contents contents, MetadataChangeSet changeSet, Callback<Metadata> callback);
+
+    void discard(Contents contents);
+
+    void delete(DriveId assetID, Callback<Void> callback);
+
+    void updateMetadata(DriveId assetID, MetadataChangeSet changeSet, Callback<Metadata> callback);
+
+    void getMetadata(DriveId assetID, Callback<Metadata> callback);
+}
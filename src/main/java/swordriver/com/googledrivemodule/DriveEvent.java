@@ -0,0 +1,103 @@
+package swordriver.com.googledrivemodule;
+
+import com.google.android.gms.drive.DriveId;
+import com.google.android.gms.drive.Metadata;
+
+/**
+ * Events a GoogleApiModel publishes on its DriveEventBus.
+ *
+ * Events with a coalesce key replace an undelivered event with the same key for subscribers
+ * dispatched on an executor, so a subscriber that falls behind sees the latest state once
+ * instead of every step on the way.
+ */
+public abstract class DriveEvent {
+
+    // null delivers every event of the type
+    protected Object coalesceKey(){
+        return null;
+    }
+
+    // the model's status changed, only the latest one is of interest
+    public static final class StatusChanged extends DriveEvent {
+        public final GoogleApiModel.GoogleApiStatus status;
+
+        public StatusChanged(GoogleApiModel.GoogleApiStatus status){
+            this.status = status;
+        }
+
+        @Override
+        protected Object coalesceKey() {
+            return StatusChanged.class;
+        }
+    }
+
+    // the model created an item in folderID
+    public static final class FolderChanged extends DriveEvent {
+        public final DriveId folderID;
+
+        public FolderChanged(DriveId folderID){
+            this.folderID = folderID;
+        }
+
+        @Override
+        protected Object coalesceKey() {
+            return folderID;
+        }
+    }
+
+    // the model changed or deleted itemID; newMeta is null when the new metadata is not known
+    public static final class ItemChanged extends DriveEvent {
+        public final DriveId itemID;
+        public final Metadata newMeta;
+
+        public ItemChanged(DriveId itemID, Metadata newMeta){
+            this.itemID = itemID;
+            this.newMeta = newMeta;
+        }
+
+        @Override
+        protected Object coalesceKey() {
+            return itemID;
+        }
+    }
+
+    // a write of assetID's contents finished; every write is delivered
+    public static final class WriteCompleted extends DriveEvent {
+        public final DriveId assetID;
+        public final boolean success;
+        // the number of bytes written, -1 when the file could not be opened
+        public final long bytes;
+        public final Metadata newMeta;
+
+        public WriteCompleted(DriveId assetID, boolean success, long bytes, Metadata newMeta){
+            this.assetID = assetID;
+            this.success = success;
+            this.bytes = bytes;
+            this.newMeta = newMeta;
+        }
+    }
+
+    // progress of re-keying after a password change; result is set on the last one
+    public static final class RekeyProgress extends DriveEvent {
+        public final int done;
+        public final int failed;
+        public final int found;
+        public final RekeyResult result;
+
+        public RekeyProgress(int done, int failed, int found, RekeyResult result){
+            this.done = done;
+            this.failed = failed;
+            this.found = found;
+            this.result = result;
+        }
+
+        public boolean isComplete(){
+            return result!=null;
+        }
+
+        @Override
+        protected Object coalesceKey() {
+            return RekeyProgress.class;
+        }
+    }
+}
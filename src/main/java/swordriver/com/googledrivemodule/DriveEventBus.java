@@ -0,0 +1,134 @@
+package swordriver.com.googledrivemodule;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+import timber.log.Timber;
+
+/**
+ * Typed publish/subscribe for DriveEvents.
+ *
+ * Publishing reads a copy-on-write subscriber list without locking, and only reaches the
+ * subscribers of the event's exact class.  A subscriber without an executor runs on the
+ * publishing thread and must be quick; one with an executor gets its events there, in order,
+ * with events sharing a coalesce key merged while it is behind.  A failing subscriber is logged
+ * and does not keep the event from the others.
+ */
+public class DriveEventBus {
+
+    public interface Subscriber<E extends DriveEvent> {
+        void onEvent(E event);
+    }
+
+    private static final String TAG = "DriveEventBus";
+
+    private final ConcurrentMap<Class<?>, List<Subscription>> mSubscriptions = new ConcurrentHashMap<>();
+
+    public final class Subscription {
+        private final Class<?> mType;
+        private final Subscriber<DriveEvent> mSubscriber;
+        private final Executor mExecutor;
+        private volatile boolean mCancelled = false;
+        // guarded by this; undelivered events, by coalesce key or a key of their own
+        private final Map<Object, DriveEvent> mQueued = new LinkedHashMap<>();
+        private boolean mScheduled = false;
+
+        private final Runnable mDrain = new Runnable() {
+            @Override
+            public void run() {
+                while (true){
+                    DriveEvent[] events;
+                    synchronized (Subscription.this){
+                        if (mQueued.isEmpty()){
+                            mScheduled = false;
+                            return;
+                        }
+                        events = mQueued.values().toArray(new DriveEvent[mQueued.size()]);
+                        mQueued.clear();
+                    }
+                    for (DriveEvent event : events){
+                        deliver(event);
+                    }
+                }
+            }
+        };
+
+        private Subscription(Class<?> type, Subscriber<DriveEvent> subscriber, Executor executor){
+            mType = type;
+            mSubscriber = subscriber;
+            mExecutor = executor;
+        }
+
+        // no events are delivered after this returns, except one being delivered right now
+        public void cancel(){
+            mCancelled = true;
+            List<Subscription> subscriptions = mSubscriptions.get(mType);
+            if (subscriptions!=null) subscriptions.remove(this);
+            synchronized (this){
+                mQueued.clear();
+            }
+        }
+
+        private void post(DriveEvent event){
+            if (mExecutor==null){
+                deliver(event);
+                return;
+            }
+            boolean schedule;
+            synchronized (this){
+                Object key = event.coalesceKey();
+                // a key of its own when the event must not be merged
+                mQueued.put(key==null ? new Object() : key, event);
+                schedule = !mScheduled;
+                mScheduled = true;
+            }
+            if (schedule) mExecutor.execute(mDrain);
+        }
+
+        private void deliver(DriveEvent event){
+            if (mCancelled) return;
+            try {
+                mSubscriber.onEvent(event);
+            } catch (RuntimeException e) {
+                Timber.tag(TAG).e(e, "exception!");
+            }
+        }
+    }
+
+    // subscriber runs on the publishing thread
+    public <E extends DriveEvent> Subscription subscribe(Class<E> type, Subscriber<? super E> subscriber){
+        return subscribe(type, subscriber, null);
+    }
+
+    // subscriber runs on executor, with events coalesced while it is behind
+    @SuppressWarnings("unchecked")
+    public <E extends DriveEvent> Subscription subscribe(Class<E> type, Subscriber<? super E> subscriber, Executor executor){
+        Subscription subscription = new Subscription(type, (Subscriber<DriveEvent>) subscriber, executor);
+        List<Subscription> subscriptions = mSubscriptions.get(type);
+        if (subscriptions==null){
+            mSubscriptions.putIfAbsent(type, new CopyOnWriteArrayList<Subscription>());
+            subscriptions = mSubscriptions.get(type);
+        }
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    // lets publishers skip building events nobody listens to
+    public boolean hasSubscribers(Class<? extends DriveEvent> type){
+        List<Subscription> subscriptions = mSubscriptions.get(type);
+        return subscriptions!=null && !subscriptions.isEmpty();
+    }
+
+    public void publish(DriveEvent event){
+        List<Subscription> subscriptions = mSubscriptions.get(event.getClass());
+        if (subscriptions==null) return;
+        for (Subscription subscription : subscriptions){
+            subscription.post(event);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package swordriver.com.googledrivemodule;
+
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.drive.DriveId;
+
+/**
+ * Failure of a Drive call made through GoogleApiFutures, carrying the status Drive reported.
+ */
+public class DriveException extends Exception {
+
+    private final Status mStatus;
+    private final DriveId mExistingID;
+
+    public DriveException(Status status){
+        this(status, null);
+    }
+
+    // a create that failed because existingID already uses the name
+    public DriveException(Status status, DriveId existingID){
+        super(status.getStatusMessage()!=null ? status.getStatusMessage() : "status " + status.getStatusCode());
+        mStatus = status;
+        mExistingID = existingID;
+    }
+
+    public Status getStatus(){
+        return mStatus;
+    }
+
+    // the item already using the name, null unless this is a naming conflict
+    public DriveId getExistingID(){
+        return mExistingID;
+    }
+}
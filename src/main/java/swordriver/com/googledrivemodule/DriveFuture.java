@@ -0,0 +1,277 @@
+package swordriver.com.googledrivemodule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Result of an asynchronous Drive call, completed once with a value or a failure.
+ *
+ * Listeners and continuations run on the future's executor unless given one, so a slow one
+ * never holds up the Drive callback thread when that executor is a pool.  Cancelling or timing
+ * out only stops waiting: the Drive call itself still runs to its end.
+ */
+public class DriveFuture<T> implements Future<T> {
+
+    public interface Transform<T, R> {
+        R apply(T value) throws Exception;
+    }
+
+    public interface AsyncTransform<T, R> {
+        DriveFuture<R> apply(T value) throws Exception;
+    }
+
+    // runs listeners on whatever thread completes the future
+    public static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static ScheduledExecutorService sTimeoutScheduler;
+
+    private final Executor mExecutor;
+    // guarded by this
+    private boolean mDone = false;
+    private T mValue;
+    private Throwable mFailure;
+    private List<Runnable> mListeners = new ArrayList<>();
+
+    public DriveFuture(Executor executor){
+        mExecutor = executor==null ? DIRECT : executor;
+    }
+
+    public static <T> DriveFuture<T> completed(T value, Executor executor){
+        DriveFuture<T> future = new DriveFuture<>(executor);
+        future.set(value);
+        return future;
+    }
+
+    public static <T> DriveFuture<T> failed(Throwable failure, Executor executor){
+        DriveFuture<T> future = new DriveFuture<>(executor);
+        future.setException(failure);
+        return future;
+    }
+
+    // false when the future was completed already
+    public boolean set(T value){
+        return complete(value, null);
+    }
+
+    public boolean setException(Throwable failure){
+        return complete(null, failure);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return complete(null, new CancellationException());
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mFailure instanceof CancellationException;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (!mDone){
+            wait();
+        }
+        return result();
+    }
+
+    @Override
+    public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime()+unit.toNanos(timeout);
+        while (!mDone){
+            long remaining = deadline-System.nanoTime();
+            if (remaining<=0) throw new TimeoutException();
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return result();
+    }
+
+    // the failure, null while running or after success
+    public synchronized Throwable getFailure(){
+        return mFailure;
+    }
+
+    public void addListener(Runnable listener){
+        addListener(listener, mExecutor);
+    }
+
+    public void addListener(final Runnable listener, final Executor executor){
+        Runnable dispatch = new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(listener);
+            }
+        };
+        synchronized (this){
+            if (!mDone){
+                mListeners.add(dispatch);
+                return;
+            }
+        }
+        dispatch.run();
+    }
+
+    // the value passed through transform, or this future's failure
+    public <R> DriveFuture<R> then(final Transform<? super T, ? extends R> transform){
+        final DriveFuture<R> next = new DriveFuture<>(mExecutor);
+        addListener(new Runnable() {
+            @Override
+            public void run() {
+                Throwable failure = getFailure();
+                if (failure!=null){
+                    next.setException(failure);
+                    return;
+                }
+                try {
+                    next.set(transform.apply(mValue));
+                } catch (Exception e) {
+                    next.setException(e);
+                }
+            }
+        });
+        return next;
+    }
+
+    // chains a further asynchronous call on the value
+    public <R> DriveFuture<R> thenAsync(final AsyncTransform<? super T, R> transform){
+        final DriveFuture<R> next = new DriveFuture<>(mExecutor);
+        addListener(new Runnable() {
+            @Override
+            public void run() {
+                Throwable failure = getFailure();
+                if (failure!=null){
+                    next.setException(failure);
+                    return;
+                }
+                try {
+                    forward(transform.apply(mValue), next);
+                } catch (Exception e) {
+                    next.setException(e);
+                }
+            }
+        });
+        return next;
+    }
+
+    // fails with a TimeoutException unless completed within timeout
+    public DriveFuture<T> withTimeout(long timeout, TimeUnit unit){
+        final DriveFuture<T> next = new DriveFuture<>(mExecutor);
+        forward(this, next);
+        timeoutScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                next.setException(new TimeoutException());
+            }
+        }, timeout, unit);
+        return next;
+    }
+
+    // every value in order, or the first failure
+    public static <T> DriveFuture<List<T>> allOf(Collection<? extends DriveFuture<? extends T>> futures, Executor executor){
+        final DriveFuture<List<T>> all = new DriveFuture<>(executor);
+        final List<DriveFuture<? extends T>> inputs = new ArrayList<>(futures);
+        if (inputs.isEmpty()){
+            all.set(new ArrayList<T>());
+            return all;
+        }
+        final AtomicInteger remaining = new AtomicInteger(inputs.size());
+        for (final DriveFuture<? extends T> future : inputs){
+            future.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    Throwable failure = future.getFailure();
+                    if (failure!=null){
+                        all.setException(failure);
+                    }else if (remaining.decrementAndGet()==0){
+                        List<T> values = new ArrayList<>(inputs.size());
+                        for (DriveFuture<? extends T> input : inputs){
+                            values.add(input.mValue);
+                        }
+                        all.set(values);
+                    }
+                }
+            }, DIRECT);
+        }
+        return all;
+    }
+
+    @SafeVarargs
+    public static <T> DriveFuture<List<T>> allOf(Executor executor, DriveFuture<? extends T>... futures){
+        return allOf(Arrays.asList(futures), executor);
+    }
+
+    //////////////////// private helper ////////////////////////
+
+    private boolean complete(T value, Throwable failure){
+        List<Runnable> listeners;
+        synchronized (this){
+            if (mDone) return false;
+            mDone = true;
+            mValue = value;
+            mFailure = failure;
+            listeners = mListeners;
+            mListeners = null;
+            notifyAll();
+        }
+        for (Runnable listener : listeners){
+            listener.run();
+        }
+        return true;
+    }
+
+    private T result() throws ExecutionException {
+        if (mFailure instanceof CancellationException) throw (CancellationException) mFailure;
+        if (mFailure!=null) throw new ExecutionException(mFailure);
+        return mValue;
+    }
+
+    private static <R> void forward(final DriveFuture<R> from, final DriveFuture<R> to){
+        from.addListener(new Runnable() {
+            @Override
+            public void run() {
+                Throwable failure = from.getFailure();
+                if (failure!=null){
+                    to.setException(failure);
+                }else{
+                    to.set(from.mValue);
+                }
+            }
+        }, DIRECT);
+    }
+
+    private static synchronized ScheduledExecutorService timeoutScheduler(){
+        if (sTimeoutScheduler==null){
+            sTimeoutScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "DriveFuture timeout");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sTimeoutScheduler;
+    }
+}
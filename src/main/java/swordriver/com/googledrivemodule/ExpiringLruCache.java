@@ -0,0 +1,67 @@
+package swordriver.com.googledrivemodule;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Small thread safe LRU map whose entries also expire a fixed time after they were put.
+ */
+class ExpiringLruCache<K, V> {
+
+    private final int mMaxEntries;
+    private volatile long mTimeoutNanos;
+    private final LinkedHashMap<K, Entry<V>> mEntries;
+
+    private static class Entry<V> {
+        final V value;
+        final long expiresAt;
+
+        Entry(V value, long expiresAt){
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    ExpiringLruCache(int maxEntries, long timeoutMillis){
+        mMaxEntries = maxEntries;
+        mTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        mEntries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                return size()>mMaxEntries;
+            }
+        };
+    }
+
+    void setTimeout(long timeoutMillis){
+        mTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    synchronized V get(K key){
+        Entry<V> entry = mEntries.get(key);
+        if (entry==null) return null;
+        if (System.nanoTime()-entry.expiresAt>0){
+            mEntries.remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    synchronized void put(K key, V value){
+        if (mTimeoutNanos<=0) return;
+        mEntries.put(key, new Entry<>(value, System.nanoTime()+mTimeoutNanos));
+    }
+
+    synchronized void remove(K key){
+        mEntries.remove(key);
+    }
+
+    synchronized void clear(){
+        mEntries.clear();
+    }
+
+    synchronized int size(){
+        return mEntries.size();
+    }
+}
@@ -0,0 +1,63 @@
+package swordriver.com.googledrivemodule;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Channel to channel copies that let the kernel move the bytes when one side is a file:
+ * FileChannel.transferTo, or a read only mapping of the source.  Anything else goes through
+ * the shared ByteBufferPool.
+ */
+class FileTransfer {
+
+    // a mapping is made and written a window at a time, keeping address space use bounded
+    static final long MAP_WINDOW = 16*1024*1024;
+
+    private FileTransfer(){
+    }
+
+    // copies source from its position to its end into sink, returns the number of bytes copied
+    static long copy(ReadableByteChannel source, WritableByteChannel sink) throws IOException {
+        if (source instanceof FileChannel) return transfer((FileChannel) source, sink);
+        return ByteBufferPool.SHARED.copy(source, sink);
+    }
+
+    // like copy(), but the source file is mapped instead of transferred
+    static long copyMapped(FileChannel source, WritableByteChannel sink) throws IOException {
+        long start = source.position();
+        long end = source.size();
+        long position = start;
+        while (position<end){
+            long window = Math.min(MAP_WINDOW, end-position);
+            MappedByteBuffer mapped = source.map(FileChannel.MapMode.READ_ONLY, position, window);
+            while (mapped.hasRemaining()){
+                sink.write(mapped);
+            }
+            position += window;
+        }
+        source.position(position);
+        return position-start;
+    }
+
+    //////////////////// private helper ////////////////////////
+
+    private static long transfer(FileChannel source, WritableByteChannel sink) throws IOException {
+        long start = source.position();
+        long end = source.size();
+        long position = start;
+        while (position<end){
+            long transferred = source.transferTo(position, end-position, sink);
+            if (transferred<=0){
+                // the sink takes nothing right now, finish through a buffer
+                source.position(position);
+                return position-start+ByteBufferPool.SHARED.copy(source, sink);
+            }
+            position += transferred;
+        }
+        source.position(position);
+        return position-start;
+    }
+}
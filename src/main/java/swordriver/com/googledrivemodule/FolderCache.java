@@ -0,0 +1,398 @@
+package swordriver.com.googledrivemodule;
+
+import com.google.android.gms.drive.DriveId;
+import com.google.android.gms.drive.Metadata;
+import com.google.android.gms.drive.metadata.CustomPropertyKey;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import timber.log.Timber;
+
+/**
+ * Folder listings (parent and frozen child metadata) kept in memory and optionally on disk,
+ * so GoogleApiModel.listFolder can answer repeat listings without calling Drive.
+ *
+ * Entries are patched or dropped when the model itself changes a folder.  Changes made elsewhere
+ * (another device, another app) can be fed in through onItemChanged()/invalidate(), e.g. from Drive
+ * change events, and are caught anyway once a listing is older than setRevalidateAfter(): it is
+ * then listed again, so changed, renamed, moved or re-keyed children show up as well as changes to
+ * the folder itself.  Listings loaded from disk that an earlier run of the app wrote are always
+ * listed again before use, since no change feed watched them while the app was not running.
+ */
+public class FolderCache {
+
+    // never revalidate listings of this run, trust the change feed
+    public static final long NEVER = -1;
+    public static final long DEFAULT_REVALIDATE_AFTER_MILLIS = 60*1000;
+
+    private static final String TAG = "FolderCache";
+    private static final int FORMAT_VERSION = 4;
+
+    static class Entry {
+        // false when listed without the parent lookup; parentId is null then
+        final boolean parentKnown;
+        final DriveId parentId;
+        final List<Metadata> children;
+        final long listedAt;
+        // loaded from a file an earlier run of the app wrote
+        final boolean fromEarlierRun;
+
+        Entry(boolean parentKnown, DriveId parentId, List<Metadata> children, long listedAt, boolean fromEarlierRun){
+            this.parentKnown = parentKnown;
+            this.parentId = parentId;
+            this.children = children;
+            this.listedAt = listedAt;
+            this.fromEarlierRun = fromEarlierRun;
+        }
+    }
+
+    private final int mMaxFolders;
+    private final File mDirectory;
+    private final Executor mDiskExecutor;
+    private final LinkedHashMap<DriveId, Entry> mFolders;
+    // child -> folder listing it, to find the listings an item change makes stale
+    private final Map<DriveId, DriveId> mFolderOf = new HashMap<>();
+    // files older than this were written by an earlier run
+    private final long mCreatedAt = System.currentTimeMillis();
+    // folder -> disk operations queued for its file, which is not read until they are done
+    private final Map<DriveId, Integer> mPendingDisk = new HashMap<>();
+    // queued clear() runs, no file is read until they are done
+    private int mPendingClears = 0;
+    // counts queued disk operations, so a read that raced one is thrown away
+    private long mDiskChanges = 0;
+    private volatile long mRevalidateAfterMillis = DEFAULT_REVALIDATE_AFTER_MILLIS;
+
+    // memory only
+    public FolderCache(int maxFolders){
+        this(maxFolders, null);
+    }
+
+    // memory backed by one file per folder in directory, e.g. Context.getCacheDir()
+    public FolderCache(int maxFolders, File directory){
+        this(maxFolders, directory, Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        }));
+    }
+
+    // diskExecutor must run its tasks one at a time, in order
+    FolderCache(int maxFolders, File directory, Executor diskExecutor){
+        mMaxFolders = maxFolders;
+        mDirectory = directory;
+        if (mDirectory!=null && !mDirectory.isDirectory() && !mDirectory.mkdirs()){
+            Timber.tag(TAG).w("can not create %s, disk cache disabled", mDirectory);
+        }
+        mDiskExecutor = diskExecutor;
+        mFolders = new LinkedHashMap<DriveId, Entry>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<DriveId, Entry> eldest) {
+                if (size()<=mMaxFolders) return false;
+                forgetChildren(eldest.getKey(), eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    // listings older than this are listed again before use, DEFAULT_REVALIDATE_AFTER_MILLIS unless set.
+    // 0 lists every time, NEVER relies on invalidation for listings made by this run.
+    public void setRevalidateAfter(long millis){
+        mRevalidateAfterMillis = millis;
+    }
+
+    // an item was created, changed or deleted: drop the listing that contains it, and its own
+    public synchronized void onItemChanged(DriveId itemID){
+        DriveId folderID = mFolderOf.get(itemID);
+        if (folderID!=null) invalidate(folderID);
+        // the item may be a folder with a listing of its own
+        invalidate(itemID);
+    }
+
+    public synchronized void invalidate(DriveId folderID){
+        Entry entry = mFolders.remove(folderID);
+        if (entry!=null) forgetChildren(folderID, entry);
+        final File file = diskFile(folderID);
+        if (file!=null){
+            onDisk(folderID, new Runnable() {
+                @Override
+                public void run() {
+                    file.delete();
+                }
+            });
+        }
+    }
+
+    public synchronized void clear(){
+        for (DriveId folderID : new ArrayList<>(mFolders.keySet())){
+            invalidate(folderID);
+        }
+        if (mDirectory!=null){
+            onDisk(null, new Runnable() {
+                @Override
+                public void run() {
+                    File[] files = mDirectory.listFiles();
+                    if (files==null) return;
+                    for (File file : files) file.delete();
+                }
+            });
+        }
+    }
+
+    //////////////////// used by GoogleApiModel ////////////////////////
+
+    // the model created child in folderID: add it to the cached listing instead of dropping it.
+    // The listing keeps its age, so it is still listed again once it is due.
+    synchronized void onChildAdded(DriveId folderID, Metadata child){
+        Entry entry = mFolders.get(folderID);
+        if (entry==null){
+            // only on disk, too old to patch
+            invalidate(folderID);
+            return;
+        }
+        List<Metadata> children = new ArrayList<>(entry.children.size()+1);
+        children.addAll(entry.children);
+        children.add(child);
+        replace(folderID, entry, children);
+    }
+
+    // the model changed an item: replace it in the cached listing that contains it
+    synchronized void onItemUpdated(Metadata item){
+        DriveId folderID = mFolderOf.get(item.getDriveId());
+        Entry entry = folderID==null ? null : mFolders.get(folderID);
+        if (entry==null) return;
+        List<Metadata> children = new ArrayList<>(entry.children);
+        for (int i=0; i<children.size(); i++){
+            if (children.get(i).getDriveId().equals(item.getDriveId())) children.set(i, item);
+        }
+        replace(folderID, entry, children);
+    }
+
+    // a folder only on disk is read on the calling thread, without holding the cache
+    Entry get(DriveId folderID){
+        long diskChanges;
+        synchronized (this){
+            Entry entry = mFolders.get(folderID);
+            if (entry!=null) return entry;
+            // a file about to be deleted or rewritten may be stale
+            if (mDirectory==null || mPendingClears>0 || mPendingDisk.containsKey(folderID)) return null;
+            diskChanges = mDiskChanges;
+        }
+        Entry entry = readFromDisk(folderID);
+        if (entry==null) return null;
+        synchronized (this){
+            Entry current = mFolders.get(folderID);
+            if (current!=null) return current;
+            // the folder's file may have changed while it was read
+            if (mDiskChanges!=diskChanges) return null;
+            remember(folderID, entry);
+            return entry;
+        }
+    }
+
+    boolean needsRevalidation(Entry entry){
+        if (entry.fromEarlierRun) return true;
+        long after = mRevalidateAfterMillis;
+        if (after==NEVER) return false;
+        return System.currentTimeMillis()-entry.listedAt>=after;
+    }
+
+    synchronized void put(final DriveId folderID, boolean parentKnown, DriveId parentID, List<Metadata> children){
+        put(folderID, parentKnown, parentID, children, System.currentTimeMillis());
+    }
+
+    // listedAt is when children were listed from Drive
+    synchronized void put(final DriveId folderID, boolean parentKnown, DriveId parentID, List<Metadata> children, long listedAt){
+        final Entry entry = new Entry(parentKnown, parentID, Collections.unmodifiableList(new ArrayList<>(children)),
+                listedAt, false);
+        Entry previous = mFolders.remove(folderID);
+        if (previous!=null) forgetChildren(folderID, previous);
+        remember(folderID, entry);
+        if (diskFile(folderID)!=null){
+            onDisk(folderID, new Runnable() {
+                @Override
+                public void run() {
+                    writeToDisk(folderID, entry);
+                }
+            });
+        }
+    }
+
+    //////////////////// private helper ////////////////////////
+
+    private void replace(final DriveId folderID, Entry entry, List<Metadata> children){
+        final Entry patched = new Entry(entry.parentKnown, entry.parentId, Collections.unmodifiableList(children),
+                entry.listedAt, entry.fromEarlierRun);
+        mFolders.remove(folderID);
+        forgetChildren(folderID, entry);
+        remember(folderID, patched);
+        if (diskFile(folderID)!=null){
+            onDisk(folderID, new Runnable() {
+                @Override
+                public void run() {
+                    writeToDisk(folderID, patched);
+                }
+            });
+        }
+    }
+
+    // queues a disk operation on folderID's file, or on every file when folderID is null
+    private void onDisk(final DriveId folderID, final Runnable operation){
+        mDiskChanges++;
+        if (folderID==null){
+            mPendingClears++;
+        }else{
+            Integer pending = mPendingDisk.get(folderID);
+            mPendingDisk.put(folderID, pending==null ? 1 : pending+1);
+        }
+        mDiskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    operation.run();
+                } finally {
+                    diskDone(folderID);
+                }
+            }
+        });
+    }
+
+    private synchronized void diskDone(DriveId folderID){
+        if (folderID==null){
+            mPendingClears--;
+            return;
+        }
+        int pending = mPendingDisk.get(folderID);
+        if (pending==1){
+            mPendingDisk.remove(folderID);
+        }else{
+            mPendingDisk.put(folderID, pending-1);
+        }
+    }
+
+    private void remember(DriveId folderID, Entry entry){
+        mFolders.put(folderID, entry);
+        for (Metadata child : entry.children){
+            mFolderOf.put(child.getDriveId(), folderID);
+        }
+    }
+
+    private void forgetChildren(DriveId folderID, Entry entry){
+        for (Metadata child : entry.children){
+            if (folderID.equals(mFolderOf.get(child.getDriveId()))){
+                mFolderOf.remove(child.getDriveId());
+            }
+        }
+    }
+
+    private File diskFile(DriveId folderID){
+        if (mDirectory==null) return null;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(folderID.encodeToString().getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(hash.length*2);
+            for (byte b : hash){
+                name.append(Character.forDigit((b>>4)&0xf, 16)).append(Character.forDigit(b&0xf, 16));
+            }
+            return new File(mDirectory, name.toString());
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            Timber.tag(TAG).e(e, "exception!");
+            return null;
+        }
+    }
+
+    // format: version, folder id, parent known flag, parent id, listed at, child count, then every
+    // child's metadata as SnapshotMetadata.write() puts it
+    private void writeToDisk(DriveId folderID, Entry entry){
+        File file = diskFile(folderID);
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(FORMAT_VERSION);
+                out.writeUTF(folderID.encodeToString());
+                out.writeBoolean(entry.parentKnown);
+                writeNullableUTF(out, entry.parentId==null ? null : entry.parentId.encodeToString());
+                out.writeLong(entry.listedAt);
+                out.writeInt(entry.children.size());
+                for (Metadata child : entry.children){
+                    SnapshotMetadata.write(out, child);
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) temp.delete();
+        } catch (IOException e) {
+            Timber.tag(TAG).e(e, "exception!");
+            temp.delete();
+        }
+    }
+
+    private Entry readFromDisk(DriveId folderID){
+        File file = diskFile(folderID);
+        if (file==null || !file.isFile()) return null;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt()!=FORMAT_VERSION) return null;
+                if (!folderID.encodeToString().equals(in.readUTF())) return null;
+                boolean parentKnown = in.readBoolean();
+                String parentID = readNullableUTF(in);
+                long listedAt = in.readLong();
+                int count = in.readInt();
+                List<Metadata> children = new ArrayList<>(count);
+                for (int i=0; i<count; i++){
+                    children.add(SnapshotMetadata.read(in));
+                }
+                return new Entry(parentKnown, parentID==null ? null : DriveId.decodeFromString(parentID),
+                        Collections.unmodifiableList(children), listedAt, file.lastModified()<mCreatedAt);
+            } finally {
+                in.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            Timber.tag(TAG).w(e, "dropping unreadable cache file %s", file);
+            dropUnreadable(folderID, file);
+            return null;
+        }
+    }
+
+    // deleted in turn with the folder's other disk operations, a newer file may be lost with it
+    private synchronized void dropUnreadable(DriveId folderID, final File file){
+        onDisk(folderID, new Runnable() {
+            @Override
+            public void run() {
+                file.delete();
+            }
+        });
+    }
+
+    private static void writeNullableUTF(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value!=null);
+        if (value!=null) out.writeUTF(value);
+    }
+
+    private static String readNullableUTF(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,152 @@
+package swordriver.com.googledrivemodule;
+
+import com.google.android.gms.drive.DriveId;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Readable names of the items in recently listed folders, so a create can check for a
+ * naming conflict without listing (and, in GoogleApiModelSecure, decrypting) the folder again.
+ *
+ * Filled from listings and kept up to date by the model's own creates and deletes.  Changes
+ * made elsewhere are only picked up once a folder's names expire, see setTimeout().
+ */
+class FolderNameIndex {
+
+    // the names in one folder; a name may be used by more than one item
+    static class Names {
+        private final Map<String, List<DriveId>> mItems = new HashMap<>();
+        private final Map<DriveId, String> mKeyOf = new HashMap<>();
+        private final long mExpiresAt;
+
+        private Names(long expiresAt){
+            mExpiresAt = expiresAt;
+        }
+
+        // an item with this name and kind, or null
+        synchronized DriveId find(String name, boolean folder){
+            List<DriveId> items = mItems.get(key(name, folder));
+            return items==null ? null : items.get(0);
+        }
+
+        private synchronized void add(String name, DriveId itemID, boolean folder){
+            if (name==null || mKeyOf.containsKey(itemID)) return;
+            String key = key(name, folder);
+            List<DriveId> items = mItems.get(key);
+            if (items==null){
+                items = new ArrayList<>(1);
+                mItems.put(key, items);
+            }
+            items.add(itemID);
+            mKeyOf.put(itemID, key);
+        }
+
+        private synchronized boolean remove(DriveId itemID){
+            String key = mKeyOf.remove(itemID);
+            if (key==null) return false;
+            List<DriveId> items = mItems.get(key);
+            items.remove(itemID);
+            if (items.isEmpty()) mItems.remove(key);
+            return true;
+        }
+
+        private static String key(String name, boolean folder){
+            return (folder ? "d:" : "f:") + name;
+        }
+    }
+
+    private final int mMaxFolders;
+    private volatile long mTimeoutNanos;
+    private final LinkedHashMap<DriveId, Names> mFolders;
+    // item -> folder whose names contain it, for deletes
+    private final Map<DriveId, DriveId> mFolderOf = new HashMap<>();
+
+    FolderNameIndex(int maxFolders, long timeoutMillis){
+        mMaxFolders = maxFolders;
+        mTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        mFolders = new LinkedHashMap<DriveId, Names>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<DriveId, Names> eldest) {
+                if (size()<=mMaxFolders) return false;
+                forget(eldest.getKey(), eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    // 0 keeps nothing, every create lists its folder
+    void setTimeout(long timeoutMillis){
+        mTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        if (timeoutMillis<=0) clear();
+    }
+
+    // names of a listed folder's items
+    Names namesOf(GoogleApiModel.ItemInfo[] items){
+        Names names = new Names(System.nanoTime()+mTimeoutNanos);
+        if (items!=null){
+            for (GoogleApiModel.ItemInfo item : items){
+                names.add(item.getReadableTitle(), item.meta.getDriveId(), item.meta.isFolder());
+            }
+        }
+        return names;
+    }
+
+    // keeps a folder's names, unless the index is disabled
+    synchronized void put(DriveId folderID, Names names){
+        if (mTimeoutNanos<=0) return;
+        Names previous = mFolders.remove(folderID);
+        if (previous!=null) forget(folderID, previous);
+        mFolders.put(folderID, names);
+        for (DriveId itemID : names.mKeyOf.keySet()){
+            mFolderOf.put(itemID, folderID);
+        }
+    }
+
+    // null when the folder's names are not known
+    synchronized Names get(DriveId folderID){
+        Names names = mFolders.get(folderID);
+        if (names==null) return null;
+        if (System.nanoTime()-names.mExpiresAt>0){
+            mFolders.remove(folderID);
+            forget(folderID, names);
+            return null;
+        }
+        return names;
+    }
+
+    synchronized void added(DriveId folderID, String name, DriveId itemID, boolean folder){
+        Names names = mFolders.get(folderID);
+        if (names==null) return;
+        names.add(name, itemID, folder);
+        mFolderOf.put(itemID, folderID);
+    }
+
+    synchronized void removed(DriveId itemID){
+        DriveId folderID = mFolderOf.remove(itemID);
+        if (folderID!=null){
+            Names names = mFolders.get(folderID);
+            if (names!=null) names.remove(itemID);
+        }
+        // the item may be an indexed folder itself
+        Names own = mFolders.remove(itemID);
+        if (own!=null) forget(itemID, own);
+    }
+
+    synchronized void clear(){
+        mFolders.clear();
+        mFolderOf.clear();
+    }
+
+    //////////////////// private helper ////////////////////////
+
+    private void forget(DriveId folderID, Names names){
+        for (DriveId itemID : names.mKeyOf.keySet()){
+            if (folderID.equals(mFolderOf.get(itemID))) mFolderOf.remove(itemID);
+        }
+    }
+}
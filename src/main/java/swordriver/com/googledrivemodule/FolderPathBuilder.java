@@ -0,0 +1,126 @@
+package swordriver.com.googledrivemodule;
+
+import com.google.android.gms.drive.DriveFolder;
+import com.google.android.gms.drive.DriveId;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Makes sure a set of folder paths exists below a root folder.
+ *
+ * The paths are merged into a tree, so a shared prefix is resolved once.  Every folder of
+ * the tree is resolved through GoogleApiModel.createFolder, which finds an existing folder in
+ * the name index (listing its parent at most once) and only creates the missing ones.  A
+ * folder's children are resolved as soon as the folder itself is, so sibling paths proceed
+ * concurrently.
+ */
+class FolderPathBuilder {
+
+    private static class Node {
+        final String name;
+        final Map<String, Node> children = new LinkedHashMap<>();
+        // paths ending at this node
+        final List<List<String>> paths = new ArrayList<>(1);
+
+        Node(String name){
+            this.name = name;
+        }
+    }
+
+    private final GoogleApiModel mModel;
+    private final GoogleApiModel.FolderPathsCallback mCallback;
+    private final Node mRoot = new Node(null);
+    // folder of every path, null when it could not be created; guarded by itself
+    private final Map<List<String>, DriveFolder> mFolders = new LinkedHashMap<>();
+    private final AtomicInteger mUnresolved = new AtomicInteger(0);
+
+    FolderPathBuilder(GoogleApiModel model, Collection<List<String>> paths, GoogleApiModel.FolderPathsCallback callback){
+        mModel = model;
+        mCallback = callback;
+        for (List<String> path : paths){
+            List<String> key = Collections.unmodifiableList(new ArrayList<>(path));
+            Node node = mRoot;
+            for (String name : key){
+                Node child = node.children.get(name);
+                if (child==null){
+                    child = new Node(name);
+                    node.children.put(name, child);
+                    mUnresolved.incrementAndGet();
+                }
+                node = child;
+            }
+            node.paths.add(key);
+            mFolders.put(key, null);
+        }
+    }
+
+    void start(DriveFolder root){
+        // the root itself exists
+        mUnresolved.incrementAndGet();
+        resolved(mRoot, root);
+    }
+
+    //////////////////// private helper ////////////////////////
+
+    private void resolve(final Node node, DriveFolder parent){
+        // a refused call may still call back later, whichever comes first counts
+        final AtomicBoolean settled = new AtomicBoolean(false);
+        GoogleApiModel.GoogleApiStatus status = mModel.createFolder(node.name, parent, null, new GoogleApiModel.CreateItemCallback() {
+            @Override
+            public void callback(boolean success, GoogleApiModel.ItemInfo newItem, DriveId existingID) {
+                if (!settled.compareAndSet(false, true)) return;
+                if (success){
+                    resolved(node, newItem.meta.getDriveId().asDriveFolder());
+                }else if (existingID!=null){
+                    resolved(node, existingID.asDriveFolder());
+                }else{
+                    failed(node);
+                }
+            }
+        });
+        if (status!=GoogleApiModel.GoogleApiStatus.INITIALIZED && settled.compareAndSet(false, true)){
+            failed(node);
+        }
+    }
+
+    private void resolved(Node node, DriveFolder folder){
+        synchronized (mFolders){
+            for (List<String> path : node.paths){
+                mFolders.put(path, folder);
+            }
+        }
+        for (Node child : node.children.values()){
+            resolve(child, folder);
+        }
+        done(1);
+    }
+
+    // node could not be created, so neither can anything below it
+    private void failed(Node node){
+        done(1 + countBelow(node));
+    }
+
+    private int countBelow(Node node){
+        int count = 0;
+        for (Node child : node.children.values()){
+            count += 1 + countBelow(child);
+        }
+        return count;
+    }
+
+    private void done(int nodes){
+        if (mUnresolved.addAndGet(-nodes)!=0) return;
+        Map<List<String>, DriveFolder> folders;
+        synchronized (mFolders){
+            folders = Collections.unmodifiableMap(new LinkedHashMap<>(mFolders));
+        }
+        mCallback.callback(folders);
+    }
+}
@@ -0,0 +1,138 @@
+package swordriver.com.googledrivemodule;
+
+import com.google.android.gms.drive.DriveFolder;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Breadth first walk of a folder tree through GoogleApiModel.listFolder, with at most
+ * maxInFlight listings outstanding at a time.
+ *
+ * Every folder is handed to the visitor once, as soon as it is listed, from whatever thread
+ * delivered its listing, so visitors must be thread safe.  onComplete() is called exactly once,
+ * after the last onFolder(), also when the walk was cancelled.
+ *
+ * Backpressure: a folder's subfolders are only queued after onFolder() returns, so a slow
+ * visitor slows the walk down.  A visitor handing work off elsewhere can pause() the walk
+ * and resume() it once caught up; listings already in flight are still delivered meanwhile.
+ */
+public class FolderTreeWalker {
+
+    public interface Visitor {
+        void onFolder(FolderTreeWalker walk, GoogleApiModel.FolderInfo info);
+        void onComplete(FolderTreeWalker walk);
+    }
+
+    private final GoogleApiModel mModel;
+    private final int mMaxInFlight;
+    private final Visitor mVisitor;
+
+    // folders waiting to be listed, guarded by this
+    private final Deque<DriveFolder> mPending = new ArrayDeque<>();
+    private int mInFlight = 0;
+    // drain loop guard, keeps synchronous backends from recursing per folder
+    private final AtomicInteger mDrainRequests = new AtomicInteger(0);
+    private final AtomicBoolean mCompleted = new AtomicBoolean(false);
+    private volatile boolean mPaused = false;
+    private volatile boolean mCancelled = false;
+
+    FolderTreeWalker(GoogleApiModel model, int maxInFlight, Visitor visitor){
+        mModel = model;
+        mMaxInFlight = Math.max(maxInFlight, 1);
+        mVisitor = visitor;
+    }
+
+    void start(DriveFolder root){
+        synchronized (this){
+            mPending.add(root);
+        }
+        drain();
+    }
+
+    // stop starting new listings until resume()
+    public void pause(){
+        mPaused = true;
+    }
+
+    public void resume(){
+        mPaused = false;
+        drain();
+    }
+
+    // drop the remaining folders; onComplete() follows once listings in flight have returned
+    public void cancel(){
+        mCancelled = true;
+        boolean finished;
+        synchronized (this){
+            mPending.clear();
+            finished = mInFlight==0;
+        }
+        if (finished) complete();
+    }
+
+    public boolean isCancelled(){
+        return mCancelled;
+    }
+
+    public boolean isPaused(){
+        return mPaused;
+    }
+
+    //////////////////// private helper ////////////////////////
+
+    private void drain(){
+        if (mDrainRequests.getAndIncrement()!=0) return;
+        do {
+            DriveFolder next;
+            while ((next = nextFolder())!=null){
+                list(next);
+            }
+        } while (mDrainRequests.decrementAndGet()!=0);
+    }
+
+    private synchronized DriveFolder nextFolder(){
+        if (mPaused || mCancelled || mInFlight>=mMaxInFlight || mPending.isEmpty()) return null;
+        mInFlight++;
+        return mPending.poll();
+    }
+
+    private void list(DriveFolder folder){
+        final AtomicBoolean listed = new AtomicBoolean(false);
+        GoogleApiModel.GoogleApiStatus status = mModel.listFolder(folder, false, new GoogleApiModel.ListFolderCallback() {
+            @Override
+            public void callback(GoogleApiModel.FolderInfo info) {
+                if (listed.compareAndSet(false, true)) onListed(info);
+            }
+        });
+        if (status==GoogleApiModel.GoogleApiStatus.DISCONNECTED && listed.compareAndSet(false, true)){
+            // no callback will come, count the folder as empty
+            onListed(null);
+        }
+    }
+
+    private void onListed(GoogleApiModel.FolderInfo info){
+        if (info!=null && !mCancelled) mVisitor.onFolder(this, info);
+        boolean finished;
+        synchronized (this){
+            if (info!=null && info.items!=null && !mCancelled){
+                for (GoogleApiModel.ItemInfo item : info.items){
+                    if (item.meta.isFolder()) mPending.add(item.meta.getDriveId().asDriveFolder());
+                }
+            }
+            mInFlight--;
+            finished = mInFlight==0 && mPending.isEmpty();
+        }
+        if (finished){
+            complete();
+        }else{
+            drain();
+        }
+    }
+
+    private void complete(){
+        if (mCompleted.compareAndSet(false, true)) mVisitor.onComplete(this);
+    }
+}
@@ -0,0 +1,245 @@
+package swordriver.com.googledrivemodule;
+
+import android.support.annotation.NonNull;
+
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.drive.DriveFolder;
+import com.google.android.gms.drive.DriveId;
+import com.google.android.gms.drive.DriveResource;
+import com.google.android.gms.drive.Metadata;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * The list, create, read, write, delete and metadata calls of a GoogleApiModel, returning a
+ * DriveFuture instead of taking a callback, so calls can be chained, fanned out and joined
+ * (DriveFuture.allOf), or given a timeout without nesting callbacks or blocking a thread.
+ *
+ * Every call goes through the model, so a GoogleApiModelSecure encrypts and decrypts as usual.
+ * A call the model refuses while disconnected, and every failed call, fails its future with a
+ * DriveException.  Listeners and continuations run on the executor given here.
+ */
+public class GoogleApiFutures {
+
+    private final GoogleApiModel mModel;
+    private final Executor mExecutor;
+
+    // executor null runs listeners on the thread delivering the Drive result
+    public GoogleApiFutures(GoogleApiModel model, Executor executor){
+        mModel = model;
+        mExecutor = executor==null ? DriveFuture.DIRECT : executor;
+    }
+
+    public GoogleApiModel getModel(){
+        return mModel;
+    }
+
+    public Executor getExecutor(){
+        return mExecutor;
+    }
+
+    public DriveFuture<GoogleApiModel.FolderInfo> listFolder(DriveFolder assetID){
+        return listFolder(assetID, true);
+    }
+
+    public DriveFuture<GoogleApiModel.FolderInfo> listFolder(DriveFolder assetID, boolean withParent){
+        final DriveFuture<GoogleApiModel.FolderInfo> future = new DriveFuture<>(mExecutor);
+        return submit(future, mModel.listFolder(assetID, withParent, folderCallback(future)));
+    }
+
+    // completes once the whole tree is listed, with the root folder's listing
+    public DriveFuture<GoogleApiModel.FolderInfo> listAllFolder(DriveFolder assetID){
+        final DriveFuture<GoogleApiModel.FolderInfo> future = new DriveFuture<>(mExecutor);
+        return submit(future, mModel.listAllFolder(assetID, folderCallback(future)));
+    }
+
+    // a naming conflict fails with a DriveException whose getExistingID() is the existing item
+    public DriveFuture<GoogleApiModel.ItemInfo> createFolder(String name, DriveFolder assetID, Map<String, String> metaInfo){
+        final DriveFuture<GoogleApiModel.ItemInfo> future = new DriveFuture<>(mExecutor);
+        return submit(future, mModel.createFolder(name, assetID, metaInfo, createCallback(future)));
+    }
+
+    public DriveFuture<GoogleApiModel.ItemInfo> createTxtFile(String fileName, DriveFolder assetID, Map<String, String> metaInfo){
+        final DriveFuture<GoogleApiModel.ItemInfo> future = new DriveFuture<>(mExecutor);
+        return submit(future, mModel.createTxtFile(fileName, assetID, metaInfo, createCallback(future)));
+    }
+
+    public DriveFuture<String> readTxtFile(GoogleApiModel.ItemInfo assetInfo){
+        return readTxtFile(assetInfo, GoogleApiModel.TEXT_CHARSET);
+    }
+
+    // read through readFile, which unlike the text callback also reports a file that can't be opened
+    public DriveFuture<String> readTxtFile(GoogleApiModel.ItemInfo assetInfo, final Charset charset){
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        final DriveFuture<String> future = new DriveFuture<>(mExecutor);
+        return submit(future, mModel.readFile(assetInfo, content, new GoogleApiModel.TransferCallback() {
+            @Override
+            public void callback(boolean success, long bytes) {
+                if (success){
+                    future.set(new String(content.toByteArray(), charset));
+                }else{
+                    future.setException(transferFailed(bytes));
+                }
+            }
+        }));
+    }
+
+    // the number of bytes written to sink, which is not closed
+    public DriveFuture<Long> readFile(GoogleApiModel.ItemInfo assetInfo, WritableByteChannel sink){
+        final DriveFuture<Long> future = new DriveFuture<>(mExecutor);
+        return submit(future, mModel.readFile(assetInfo, sink, transferCallback(future)));
+    }
+
+    public DriveFuture<Long> readFile(GoogleApiModel.ItemInfo assetInfo, File target){
+        final DriveFuture<Long> future = new DriveFuture<>(mExecutor);
+        return submit(future, mModel.readFile(assetInfo, target, transferCallback(future)));
+    }
+
+    // the file's metadata after the write
+    public DriveFuture<Metadata> writeTxtFile(GoogleApiModel.ItemInfo assetInfo, String contentStr, Map<String, String> metaInfo){
+        return writeTxtFile(assetInfo, contentStr, GoogleApiModel.TEXT_CHARSET, metaInfo);
+    }
+
+    public DriveFuture<Metadata> writeTxtFile(GoogleApiModel.ItemInfo assetInfo, String contentStr, Charset charset,
+                                              Map<String, String> metaInfo){
+        final DriveFuture<Metadata> future = new DriveFuture<>(mExecutor);
+        return submit(future, mModel.writeTxtFile(assetInfo, contentStr, charset, writeCallback(future), metaInfo));
+    }
+
+    // source is not closed
+    public DriveFuture<Metadata> writeFile(GoogleApiModel.ItemInfo assetInfo, ReadableByteChannel source, Map<String, String> metaInfo){
+        final DriveFuture<Metadata> future = new DriveFuture<>(mExecutor);
+        return submit(future, mModel.writeFile(assetInfo, source, metaInfo, writeCallback(future)));
+    }
+
+    public DriveFuture<Metadata> writeFile(GoogleApiModel.ItemInfo assetInfo, File source, boolean mapped, Map<String, String> metaInfo){
+        final DriveFuture<Metadata> future = new DriveFuture<>(mExecutor);
+        return submit(future, mModel.writeFile(assetInfo, source, mapped, metaInfo, writeCallback(future)));
+    }
+
+    public DriveFuture<Void> deleteItem(DriveId assetID){
+        final DriveFuture<Void> future = new DriveFuture<>(mExecutor);
+        return submit(future, mModel.deleteItem(assetID, new ResultCallback<Status>() {
+            @Override
+            public void onResult(@NonNull Status status) {
+                if (status.isSuccess()){
+                    future.set(null);
+                }else{
+                    future.setException(new DriveException(status));
+                }
+            }
+        }));
+    }
+
+    // completes with the result even when some items failed, see DeleteResult.isSuccess()
+    public DriveFuture<DeleteResult> deleteItems(Collection<DriveId> items){
+        final DriveFuture<DeleteResult> future = new DriveFuture<>(mExecutor);
+        return submit(future, mModel.deleteItems(items, new GoogleApiModel.DeleteCallback() {
+            @Override
+            public void callback(DeleteResult result) {
+                future.set(result);
+            }
+        }));
+    }
+
+    // a null value deletes the property
+    public DriveFuture<Metadata> updateMetadata(DriveId assetID, Map<String, String> metaInfo){
+        final DriveFuture<Metadata> future = new DriveFuture<>(mExecutor);
+        return submit(future, mModel.updateMetadata(assetID, metaInfo, metadataCallback(future)));
+    }
+
+    public DriveFuture<Metadata> getMeta(DriveId assetID){
+        final DriveFuture<Metadata> future = new DriveFuture<>(mExecutor);
+        return submit(future, mModel.getMeta(assetID, metadataCallback(future)));
+    }
+
+    //////////////////// private helper ////////////////////////
+
+    // the model makes no call, and so never calls back, while disconnected
+    private static <T> DriveFuture<T> submit(DriveFuture<T> future, GoogleApiModel.GoogleApiStatus status){
+        if (status==GoogleApiModel.GoogleApiStatus.DISCONNECTED){
+            future.setException(new DriveException(new Status(CommonStatusCodes.NETWORK_ERROR, "disconnected")));
+        }
+        return future;
+    }
+
+    private static GoogleApiModel.ListFolderCallback folderCallback(final DriveFuture<GoogleApiModel.FolderInfo> future){
+        return new GoogleApiModel.ListFolderCallback() {
+            @Override
+            public void callback(GoogleApiModel.FolderInfo info) {
+                if (info==null || info.failed){
+                    future.setException(new DriveException(new Status(CommonStatusCodes.NETWORK_ERROR, "listing failed")));
+                }else{
+                    future.set(info);
+                }
+            }
+        };
+    }
+
+    private static GoogleApiModel.CreateItemCallback createCallback(final DriveFuture<GoogleApiModel.ItemInfo> future){
+        return new GoogleApiModel.CreateItemCallback() {
+            @Override
+            public void callback(boolean success, GoogleApiModel.ItemInfo newItem, DriveId existingID) {
+                if (success){
+                    future.set(newItem);
+                }else if (existingID!=null){
+                    future.setException(new DriveException(new Status(CommonStatusCodes.ERROR, "name in use"), existingID));
+                }else{
+                    future.setException(new DriveException(new Status(CommonStatusCodes.ERROR, "create failed")));
+                }
+            }
+        };
+    }
+
+    private static GoogleApiModel.TransferCallback transferCallback(final DriveFuture<Long> future){
+        return new GoogleApiModel.TransferCallback() {
+            @Override
+            public void callback(boolean success, long bytes) {
+                if (success){
+                    future.set(bytes);
+                }else{
+                    future.setException(transferFailed(bytes));
+                }
+            }
+        };
+    }
+
+    private static DriveException transferFailed(long bytes){
+        return new DriveException(new Status(CommonStatusCodes.ERROR, bytes<0 ? "can't open file" : "transfer failed"));
+    }
+
+    private static GoogleApiModel.WriteTxtFileCallback writeCallback(final DriveFuture<Metadata> future){
+        return new GoogleApiModel.WriteTxtFileCallback() {
+            @Override
+            public void callback(boolean success, Metadata newMeta) {
+                if (success){
+                    future.set(newMeta);
+                }else{
+                    future.setException(new DriveException(new Status(CommonStatusCodes.ERROR, "write failed")));
+                }
+            }
+        };
+    }
+
+    private static ResultCallback<DriveResource.MetadataResult> metadataCallback(final DriveFuture<Metadata> future){
+        return new ResultCallback<DriveResource.MetadataResult>() {
+            @Override
+            public void onResult(@NonNull DriveResource.MetadataResult metadataResult) {
+                if (metadataResult.getStatus().isSuccess()){
+                    future.set(metadataResult.getMetadata());
+                }else{
+                    future.setException(new DriveException(metadataResult.getStatus()));
+                }
+            }
+        };
+    }
+}
@@ -4,7 +4,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentSender;
 import android.os.Bundle;
-import android.os.ParcelFileDescriptor;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.app.FragmentActivity;
@@ -21,35 +20,45 @@ import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.common.api.ResultCallback;
 import com.google.android.gms.common.api.Status;
 import com.google.android.gms.drive.Drive;
-import com.google.android.gms.drive.DriveApi;
-import com.google.android.gms.drive.DriveApi.DriveContentsResult;
-import com.google.android.gms.drive.DriveContents;
 import com.google.android.gms.drive.DriveFile;
 import com.google.android.gms.drive.DriveFolder;
 import com.google.android.gms.drive.DriveId;
 import com.google.android.gms.drive.DriveResource;
 import com.google.android.gms.drive.Metadata;
-import com.google.android.gms.drive.MetadataBuffer;
 import com.google.android.gms.drive.MetadataChangeSet;
 import com.google.android.gms.drive.metadata.CustomPropertyKey;
 import com.google.android.gms.plus.Plus;
 
-import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Observable;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import timber.log.Timber;
@@ -71,25 +80,75 @@ public class GoogleApiModel extends Observable implements GoogleApiClient.Connec
     public static final int REQUEST_CODE_CREATOR = 2;
     public static final int REQUEST_CODE_RESOLUTION = 3;
     public static final int REQUEST_CODE_SIGNIN = 4;
+    public static final int DEFAULT_TREE_WALK_CONCURRENCY = 8;
+    public static final int DEFAULT_DELETE_PARALLELISM = 8;
+    public static final long DEFAULT_NAME_INDEX_TIMEOUT_MILLIS = 60000;
+    // charset of readTxtFile/writeTxtFile unless one is given
+    public static final Charset TEXT_CHARSET = StandardCharsets.UTF_8;
+    private static final int TEXT_BUFFER_CHARS = 8*1024;
+    private static final int NAME_INDEX_FOLDERS = 64;
     protected Context mParentContext = null;
     protected FragmentActivity mResolutionActivity = null;
     protected DriveFolder mAppRootFolder;
+    protected final DriveBackend mBackend;
+    protected final String mAppRootName;
 
     private String mIdToken;
     private String mUserEmail;
     private String mDisplayName;
-    private CountDownLatch writeCountDown;
+    // creates, ordered per parent folder
+    private final KeyedSerialQueue<DriveId> mWrites = new KeyedSerialQueue<>();
+    private final FolderNameIndex mNameIndex = new FolderNameIndex(NAME_INDEX_FOLDERS, DEFAULT_NAME_INDEX_TIMEOUT_MILLIS);
+    // a subclass still overriding nameCompare gets its conflicts from a fresh listing, not from mNameIndex
+    private final boolean mCustomNameCompare = overridesNameCompare(getClass());
+    protected final DriveEventBus mEventBus = new DriveEventBus();
+    protected volatile MetricsRegistry mMetrics = MetricsRegistry.NONE;
+    private volatile FolderCache mFolderCache = null;
+    private volatile boolean mPipelinedListing = true;
+    private volatile int mTreeWalkConcurrency = DEFAULT_TREE_WALK_CONCURRENCY;
+    private volatile int mDeleteParallelism = DEFAULT_DELETE_PARALLELISM;
+    private volatile int mDeleteBatchSize = 1;
 
     protected GoogleApiStatus mCurrentApiStatus = GoogleApiStatus.DISCONNECTED;
 
     public static class ItemInfo {
         public Metadata meta;
         public String readableTitle;
+        // set while the readable title has not been decoded yet, see getReadableTitle()
+        volatile TitleDecoder titleDecoder;
+
+        // readableTitle, decoded on first access for lazily decoded listings
+        public String getReadableTitle(){
+            if (titleDecoder!=null){
+                synchronized (this){
+                    if (titleDecoder!=null){
+                        readableTitle = titleDecoder.decode(meta);
+                        titleDecoder = null;
+                    }
+                }
+            }
+            return readableTitle;
+        }
     }
     public static class FolderInfo {
         public DriveFolder parentFolder;
         public DriveFolder folder;
         public ItemInfo items[];
+        // the listing failed, items is empty
+        boolean failed;
+
+        // decode the readable titles of items[from, to) ahead of use
+        public void prefetchTitles(int from, int to){
+            if (items==null) return;
+            for (int i=Math.max(from, 0); i<Math.min(to, items.length); i++){
+                items[i].getReadableTitle();
+            }
+        }
+    }
+
+    // turns an item's metadata into its readable title
+    interface TitleDecoder {
+        String decode(Metadata meta);
     }
 
     public static class AssetNode{
@@ -117,7 +176,17 @@ public class GoogleApiModel extends Observable implements GoogleApiClient.Connec
                 .addApi(Drive.API)
                 .addApi(Plus.API)
                 .addApi(AppIndex.API).build();
-        
+        // every Drive call goes through the scheduler, see getRequestScheduler(), and is metered
+        // once it leaves it, see setMetricsRegistry()
+        mBackend = new SchedulingDriveBackend(new MeteredDriveBackend(new GoogleDriveBackend(mGoogleApiClient)));
+        mAppRootName = mParentContext.getString(R.string.app_name);
+    }
+
+    // runs against the given backend without Google sign in, e.g. InMemoryDriveBackend
+    public GoogleApiModel(String tag, String appRootName, DriveBackend backend){
+        mTAG=tag;
+        mBackend = backend;
+        mAppRootName = appRootName;
     }
 
     /////////////////// public API that I will keep////////////////
@@ -126,12 +195,20 @@ public class GoogleApiModel extends Observable implements GoogleApiClient.Connec
     }
 
     public void open(){
+        if (mGoogleApiClient==null){
+            connect();
+            return;
+        }
         Intent signInIntent = Auth.GoogleSignInApi.getSignInIntent(mGoogleApiClient);
         Timber.tag(mTAG).i("signing into Google.");
         mResolutionActivity.startActivityForResult(signInIntent, REQUEST_CODE_SIGNIN);
     }
 
     public void connect(){
+        if (mGoogleApiClient==null){
+            onConnected(null);
+            return;
+        }
         if (!mGoogleApiClient.isConnectionCallbacksRegistered(this))
             mGoogleApiClient.registerConnectionCallbacks(this);
         if (!mGoogleApiClient.isConnectionFailedListenerRegistered(this))
@@ -156,51 +233,27 @@ public class GoogleApiModel extends Observable implements GoogleApiClient.Connec
     }
 
     public void close()   {
-        // can not re-enter
-        initCountDown();
-        if (mGoogleApiClient.isConnected()) {
-            Auth.GoogleSignInApi.signOut(mGoogleApiClient).setResultCallback(
-                    new ResultCallback<Status>() {
-                        @Override
-                        public void onResult(Status status) {
-                            writeCountDown.countDown();
-                            if (status.isSuccess()) {
-                                mIdToken=null;
-                            }
-                            mGoogleApiClient.disconnect();
-                            mCurrentApiStatus=GoogleApiStatus.DISCONNECTED;
-                            selfNotify();
-                        }
-                    });
-        }else{
-            writeCountDown.countDown();
-        }
+        // let creates in flight finish first
+        mWrites.whenIdle(new Runnable() {
+            @Override
+            public void run() {
+                disconnect();
+            }
+        });
     }
 
     public void signOut(){
-        // can not re-enter
-        initCountDown();
-        try {
-            Auth.GoogleSignInApi.revokeAccess(mGoogleApiClient).setResultCallback(
-                    new ResultCallback<Status>() {
-                        @Override
-                        public void onResult(Status status) {
-                            writeCountDown.countDown();
-                            if (status.isSuccess()) {
-                            } else {
-                            }
-                            mGoogleApiClient.disconnect();
-                            mCurrentApiStatus = GoogleApiStatus.DISCONNECTED;
-                            selfNotify();
-                        }
-                    });
-        }catch (Exception e){
-            writeCountDown.countDown();
-        }
+        // let creates in flight finish first
+        mWrites.whenIdle(new Runnable() {
+            @Override
+            public void run() {
+                revokeAccess();
+            }
+        });
     }
 
     public GoogleApiStatus getStatus(){
-        if (mCurrentApiStatus==null || !mGoogleApiClient.isConnected()) mCurrentApiStatus=GoogleApiStatus.DISCONNECTED;
+        if (mCurrentApiStatus==null || !mBackend.isConnected()) mCurrentApiStatus=GoogleApiStatus.DISCONNECTED;
         return mCurrentApiStatus;
     }
 
@@ -209,23 +262,19 @@ public class GoogleApiModel extends Observable implements GoogleApiClient.Connec
     }
     public GoogleApiStatus listParent(DriveFolder assetID, final ListParentCallback callbackInstance){
         if (mCurrentApiStatus==GoogleApiStatus.DISCONNECTED) return mCurrentApiStatus;
-        assetID.getDriveId().asDriveResource().listParents(mGoogleApiClient).
-                setResultCallback(new ResultCallback<DriveApi.MetadataBufferResult>() {
+        mBackend.listParents(assetID.getDriveId(), new DriveBackend.Callback<List<Metadata>>() {
                     @Override
-                    public void onResult(DriveApi.MetadataBufferResult result) {
-                        if (!result.getStatus().isSuccess()) {
+                    public void onResult(Status status, List<Metadata> parents) {
+                        if (!status.isSuccess()) {
                             if (callbackInstance!=null) callbackInstance.callback(null);
                             return;
                         }
-                        MetadataBuffer buffer = result.getMetadataBuffer();
-                        if (buffer.getCount()>0){
+                        if (parents.size()>0){
                             // have parents. return the first parent.
-                            if (callbackInstance!=null) callbackInstance.callback(buffer.get(0).getDriveId().asDriveFolder());
+                            if (callbackInstance!=null) callbackInstance.callback(parents.get(0).getDriveId().asDriveFolder());
                         }else{
                             if (callbackInstance!=null) callbackInstance.callback(null);
                         }
-                        buffer.release();
-                        result.release();
                     }
                 });
         return mCurrentApiStatus;
@@ -234,222 +283,190 @@ public class GoogleApiModel extends Observable implements GoogleApiClient.Connec
     public interface ListFolderCallback {
         void callback(FolderInfo info);
     }
+    public interface DeleteCallback {
+        void callback(DeleteResult result);
+    }
     public class ListFolderCallbackNull implements ListFolderCallback {
         @Override
         public void callback(FolderInfo info) {
             // do nothing
         }
     }
-    public GoogleApiStatus listFolder(DriveFolder assetID, final ListFolderCallback callbackInstance) {
+    public GoogleApiStatus listFolder(DriveFolder assetID, ListFolderCallback callbackInstance) {
+        return listFolder(assetID, true, callbackInstance);
+    }
+    // withParent false skips the parent lookup, FolderInfo.parentFolder is null then
+    public GoogleApiStatus listFolder(final DriveFolder assetID, final boolean withParent, final ListFolderCallback callbackInstance) {
         if (mCurrentApiStatus==GoogleApiStatus.DISCONNECTED) return mCurrentApiStatus;
-        final FolderInfo currentFolder = new FolderInfo();
-        currentFolder.folder = assetID;
-        // list parents first
-        listParent(assetID, new ListParentCallback() {
-            @Override
-            public void callback(DriveFolder parent) {
-                currentFolder.parentFolder = parent;
-                // then list children
-                currentFolder.folder.listChildren(mGoogleApiClient)
-                        .setResultCallback(new ResultCallback<DriveApi.MetadataBufferResult>() {
-                            @Override
-                            public void onResult(DriveApi.MetadataBufferResult result) {
-                                if (!result.getStatus().isSuccess()) {
-                                    currentFolder.items = new ItemInfo[0];
-                                    if (callbackInstance!=null) callbackInstance.callback(currentFolder);
-                                    return;
-                                }
-                                MetadataBuffer buffer = result.getMetadataBuffer();
-                                if (buffer.getCount()>0){
-                                    currentFolder.items = new ItemInfo[buffer.getCount()];
-                                    for (int i=0; i<buffer.getCount(); i++){
-                                        currentFolder.items[i] = new ItemInfo();
-                                        currentFolder.items[i].meta=buffer.get(i).freeze();
-                                        currentFolder.items[i].readableTitle = currentFolder.items[i].meta.getTitle();
-                                    }
-                                    if (callbackInstance!=null) callbackInstance.callback(currentFolder);
-                                }else{
-                                    currentFolder.items = new ItemInfo[0];
-                                    if (callbackInstance!=null) callbackInstance.callback(currentFolder);
-                                }
-                                buffer.release();
-                                result.release();
-                            }
-                        });
-            }
-        });
+        final FolderCache cache = mFolderCache;
+        final FolderCache.Entry cached = cache==null ? null : cache.get(assetID.getDriveId());
+        if (cached==null || cache.needsRevalidation(cached)){
+            // listed again in full: a folder's modified date does not change with its children's metadata
+            listFolderFromDrive(assetID, withParent, callbackInstance);
+        }else{
+            deliverCachedFolder(assetID, withParent, cached, callbackInstance);
+        }
         return mCurrentApiStatus;
     }
 
+    // true (the default) asks for a folder's parent and children at the same time,
+    // false waits for the parent before listing the children
+    public void setPipelinedListing(boolean pipelined){
+        mPipelinedListing = pipelined;
+    }
+
+    // keep folder listings in this cache, null (the default) always lists from Drive
+    public void setFolderCache(FolderCache cache){
+        mFolderCache = cache;
+    }
+
+    public FolderCache getFolderCache(){
+        return mFolderCache;
+    }
+
     public GoogleApiStatus listAllFolder(DriveFolder assetID, final ListFolderCallback callbackInstance) {
         if (mCurrentApiStatus==GoogleApiStatus.DISCONNECTED) return mCurrentApiStatus;
-        final ArrayList<ItemInfo> output = new ArrayList<>();
-        listFolder(assetID, new ListFolderCallback() {
+        final ConcurrentLinkedQueue<ItemInfo> output = new ConcurrentLinkedQueue<>();
+        walkFolderTree(assetID, new FolderTreeWalker.Visitor() {
             @Override
-            public void callback(FolderInfo info) {
-                output.addAll(Arrays.asList (info.items));
-                ArrayList<ItemInfo> subFolders = new ArrayList<>();
-                for (ItemInfo item : info.items) {
-                    if (item.meta.isFolder()) {
-                        subFolders.add(item);
-                    }
-                }
-                if (subFolders.size()>0){
-                    final AtomicInteger count = new AtomicInteger(0);
-                    final int totalSubfolders = subFolders.size();
-                    for (ItemInfo folder : subFolders){
-                        listAllFolder(folder.meta.getDriveId().asDriveFolder(), new ListFolderCallback() {
-                            @Override
-                            public void callback(FolderInfo info) {
-                                output.addAll(Arrays.asList (info.items));
-                                if (count.incrementAndGet()==totalSubfolders){
-                                    // all folders listed
-                                    FolderInfo callbackInfo = new FolderInfo();
-                                    callbackInfo.items = new ItemInfo[output.size()];
-                                    callbackInfo.items = output.toArray(callbackInfo.items);
-                                    callbackInstance.callback(callbackInfo);
-                                }
-                            }
-                        });
-                    }
-                }else{
-                    FolderInfo callbackInfo = new FolderInfo();
-                    callbackInfo.items = new ItemInfo[output.size()];
-                    callbackInfo.items = output.toArray(callbackInfo.items);
-                    callbackInstance.callback(callbackInfo);
-                }
+            public void onFolder(FolderTreeWalker walk, FolderInfo info) {
+                output.addAll(Arrays.asList(info.items));
+            }
+
+            @Override
+            public void onComplete(FolderTreeWalker walk) {
+                // all folders listed
+                FolderInfo callbackInfo = new FolderInfo();
+                callbackInfo.items = output.toArray(new ItemInfo[output.size()]);
+                callbackInstance.callback(callbackInfo);
             }
         });
         return mCurrentApiStatus;
     }
 
+    // hands every folder of the tree to the visitor as soon as it is listed, instead of
+    // collecting the whole tree first.  Returns null when disconnected.
+    public FolderTreeWalker walkFolderTree(DriveFolder assetID, FolderTreeWalker.Visitor visitor){
+        if (mCurrentApiStatus==GoogleApiStatus.DISCONNECTED) return null;
+        FolderTreeWalker walk = new FolderTreeWalker(this, mTreeWalkConcurrency, visitor);
+        walk.start(assetID);
+        return walk;
+    }
+
+    // number of folder listings a tree walk (listAllFolder) keeps in flight
+    public void setTreeWalkConcurrency(int maxInFlight){
+        mTreeWalkConcurrency = Math.max(maxInFlight, 1);
+    }
+
+    public interface CreateItemCallback {
+        // success: newItem is the created item as Drive reports it, read back without listing its folder.
+        // A created item that could not be read back is reported with only what the create set on it
+        // (id, title, mime type, properties), without dates.
+        // Otherwise existingID is the item already using the name, or null when the create failed.
+        void callback(boolean success, ItemInfo newItem, DriveId existingID);
+    }
     public GoogleApiStatus createFolderInFolder(final String name, final DriveFolder assetID, final boolean gotoFolder,
                                                 final Map<String, String> metaInfo, final ListFolderCallback callbackInstance){
         if (mCurrentApiStatus==GoogleApiStatus.DISCONNECTED) return mCurrentApiStatus;
-        // can not re-entry
-        initCountDown();
-        // check for naming conflict
-        listFolder(assetID, new ListFolderCallback() {
+        enqueueCreate(name, assetID, true, metaInfo, new CreateItemCallback() {
             @Override
-            public void callback(FolderInfo info) {
-                for (int i=0; i<info.items.length; i++){
-                    if (nameCompare(name, info.items[i].meta, metaInfo) && info.items[i].meta.isFolder()){
-                        // naming conflict !!
-                        writeCountDown.countDown();
-                        if (gotoFolder){
-                            // list conflicted folder
-                            listFolder(info.items[i].meta.getDriveId().asDriveFolder(), callbackInstance);
-                        }else{
-                            // list current folder again
-                            listFolder(assetID, callbackInstance);
-                        }
-                        return;
+            public void callback(boolean success, ItemInfo newItem, DriveId existingID) {
+                if (success){
+                    if (gotoFolder){
+                        // a new folder is empty, nothing to list
+                        DriveFolder newFolder = newItem.meta.getDriveId().asDriveFolder();
+                        List<Metadata> noChildren = Collections.emptyList();
+                        FolderCache cache = mFolderCache;
+                        if (cache!=null) cache.put(newFolder.getDriveId(), true, assetID.getDriveId(), noChildren);
+                        deliverFolder(newFolder, assetID.getDriveId(), noChildren, callbackInstance);
+                    }else{
+                        // list current folder again, answered from the patched cache if there is one
+                        listFolder(assetID, callbackInstance);
                     }
-                }
-                // no conflict if it gets to here
-                MetadataChangeSet.Builder builder = new MetadataChangeSet.Builder();
-                builder.setTitle(name);
-                if (metaInfo!=null){
-                    for (Map.Entry<String, String> entry : metaInfo.entrySet()){
-                        CustomPropertyKey propertyKey = new CustomPropertyKey(entry.getKey(), CustomPropertyKey.PUBLIC);
-                        builder.setCustomProperty(propertyKey, entry.getValue());
+                }else if (existingID!=null){
+                    // naming conflict !!
+                    if (gotoFolder){
+                        // list conflicted folder
+                        listFolder(existingID.asDriveFolder(), callbackInstance);
+                    }else{
+                        // list current folder again
+                        listFolder(assetID, callbackInstance);
                     }
+                }else{
+                    if (callbackInstance!=null) callbackInstance.callback(null);
                 }
-                MetadataChangeSet changeSet = builder.build();
-
-                assetID.createFolder(mGoogleApiClient, changeSet)
-                        .setResultCallback(new ResultCallback<DriveFolder.DriveFolderResult>() {
-                            @Override
-                            public void onResult(@NonNull DriveFolder.DriveFolderResult result) {
-                                writeCountDown.countDown();
-                                if (!result.getStatus().isSuccess()) {
-                                    if (callbackInstance!=null) callbackInstance.callback(null);
-                                    return;
-                                }else{
-                                    if (gotoFolder){
-                                        // list newly created folder
-                                        listFolder(result.getDriveFolder(), callbackInstance);
-                                    }else{
-                                        // list current folder again
-                                        listFolder(assetID, callbackInstance);
-                                    }
-                                }
-                    }
-                });
             }
         });
         return mCurrentApiStatus;
     }
+    // creates the folder and reports it without listing anything afterwards
+    public GoogleApiStatus createFolder(String name, DriveFolder assetID, Map<String, String> metaInfo,
+                                        CreateItemCallback callbackInstance){
+        if (mCurrentApiStatus==GoogleApiStatus.DISCONNECTED) return mCurrentApiStatus;
+        enqueueCreate(name, assetID, true, metaInfo, callbackInstance);
+        return mCurrentApiStatus;
+    }
     public GoogleApiStatus createFolderInFolder(final String name, final DriveFolder assetID, final boolean gotoFolder,
                                                 final ListFolderCallback callbackInstance)   {
         return createFolderInFolder(name, assetID, gotoFolder, null, callbackInstance);
     }
+    // creates the folders of names, nested in order, and lists the innermost one
     public GoogleApiStatus createFolderListInFolder(final Deque<String> names, final DriveFolder assetID,
                                                     final ListFolderCallback callbackInstance){
         if (names.size()==0 || mCurrentApiStatus==GoogleApiStatus.DISCONNECTED) return mCurrentApiStatus;
-        if (names.size()==1){
-            return createFolderInFolder(names.pop(), assetID, true, null, callbackInstance);
-        }else{
-            String currentName = names.pop();
-            return createFolderInFolder(currentName, assetID, true, null, new ListFolderCallback() {
-                @Override
-                public void callback(FolderInfo info) {
-                    if (info!=null) {
-                        createFolderListInFolder(names, info.folder, callbackInstance);
-                    }
+        final List<String> path = new ArrayList<>(names);
+        names.clear();
+        return createFolderPaths(assetID, Collections.singletonList(path), new FolderPathsCallback() {
+            @Override
+            public void callback(Map<List<String>, DriveFolder> folders) {
+                DriveFolder folder = folders.get(path);
+                if (folder==null){
+                    if (callbackInstance!=null) callbackInstance.callback(null);
+                }else{
+                    listFolder(folder, callbackInstance);
                 }
-            });
-        }
+            }
+        });
+    }
+
+    public interface FolderPathsCallback {
+        // the folder at the end of every requested path, null where it could not be created
+        void callback(Map<List<String>, DriveFolder> folders);
+    }
+    // makes sure every path (a list of folder names below assetID) exists.  Existing folders
+    // are found through the name index, only the missing ones are created, and paths in
+    // different folders are worked on concurrently.
+    public GoogleApiStatus createFolderPaths(DriveFolder assetID, Collection<List<String>> paths,
+                                             FolderPathsCallback callbackInstance){
+        if (mCurrentApiStatus==GoogleApiStatus.DISCONNECTED) return mCurrentApiStatus;
+        new FolderPathBuilder(this, paths, callbackInstance).start(assetID);
+        return mCurrentApiStatus;
     }
 
     public GoogleApiStatus createTxtFileInFolder(final String fileName, final DriveFolder assetID,
                                       final Map<String, String> metaInfo, final ListFolderCallback callbackInstance)   {
         if (mCurrentApiStatus==GoogleApiStatus.DISCONNECTED) return mCurrentApiStatus;
-        // can not re-entry
-        initCountDown();
-        // check for naming conflict
-        listFolder(assetID, new ListFolderCallback() {
+        enqueueCreate(fileName, assetID, false, metaInfo, new CreateItemCallback() {
             @Override
-                public void callback(FolderInfo info) {
-                for (int i = 0; i < info.items.length; i++) {
-                    if (nameCompare(fileName, info.items[i].meta, metaInfo) && !info.items[i].meta.isFolder()) {
-                        // naming conflict !!
-                        Timber.tag(mTAG).w("createTxtFileInFolder(): naming conflict!");
-                        writeCountDown.countDown();
-                        if (callbackInstance != null) callbackInstance.callback(info);
-                        return;
-                    }
-                }
-                // no conflict if it gets to here
-                MetadataChangeSet.Builder builder = new MetadataChangeSet.Builder();
-                builder.setTitle(fileName);
-                builder.setMimeType("text/plain");
-                if (metaInfo!=null){
-                    for (Map.Entry<String, String> entry : metaInfo.entrySet()){
-                        CustomPropertyKey propertyKey = new CustomPropertyKey(entry.getKey(), CustomPropertyKey.PUBLIC);
-                        builder.setCustomProperty(propertyKey, entry.getValue());
-                    }
+            public void callback(boolean success, ItemInfo newItem, DriveId existingID) {
+                if (success || existingID!=null){
+                    if (!success) Timber.tag(mTAG).w("createTxtFileInFolder(): naming conflict!");
+                    // list current folder again, answered from the patched cache if there is one
+                    listFolder(assetID, callbackInstance);
+                }else{
+                    if (callbackInstance!=null) callbackInstance.callback(null);
                 }
-                MetadataChangeSet changeSet = builder.build();
-
-                assetID.createFile(mGoogleApiClient, changeSet, null)
-                        .setResultCallback(new ResultCallback<DriveFolder.DriveFileResult>() {
-                            @Override
-                            public void onResult(DriveFolder.DriveFileResult result) {
-                                writeCountDown.countDown();
-                                if (!result.getStatus().isSuccess()) {
-                                    if (callbackInstance!=null) callbackInstance.callback(null);
-                                    return;
-                                }else{
-                                    // list current folder again
-                                    listFolder(assetID, callbackInstance);
-                                }
-                            }
-                        });
             }
         });
         return mCurrentApiStatus;
     }
+    // creates the file and reports it without listing anything afterwards
+    public GoogleApiStatus createTxtFile(String fileName, DriveFolder assetID, Map<String, String> metaInfo,
+                                         CreateItemCallback callbackInstance){
+        if (mCurrentApiStatus==GoogleApiStatus.DISCONNECTED) return mCurrentApiStatus;
+        enqueueCreate(fileName, assetID, false, metaInfo, callbackInstance);
+        return mCurrentApiStatus;
+    }
     public GoogleApiStatus createTxtFileInFolder(final String fileName, final DriveFolder assetID, final ListFolderCallback callbackInstance){
         return createTxtFileInFolder(fileName, assetID, null, callbackInstance);
     }
@@ -457,38 +474,74 @@ public class GoogleApiModel extends Observable implements GoogleApiClient.Connec
     public interface ReadTxtFileCallback {
         void callback(String fileContent);
     }
-    public GoogleApiStatus readTxtFile(final ItemInfo assetInfo, final ReadTxtFileCallback callbackInstance){
+    public GoogleApiStatus readTxtFile(ItemInfo assetInfo, ReadTxtFileCallback callbackInstance){
+        return readTxtFile(assetInfo, TEXT_CHARSET, callbackInstance);
+    }
+    // reads the whole file as text in charset, line breaks included
+    public GoogleApiStatus readTxtFile(final ItemInfo assetInfo, final Charset charset, final ReadTxtFileCallback callbackInstance){
         if (mCurrentApiStatus==GoogleApiStatus.DISCONNECTED) return mCurrentApiStatus;
-        String assetID = assetInfo.meta.getDriveId().encodeToString();
-        final DriveFile file = DriveId.decodeFromString(assetID).asDriveFile();
-        file.open(mGoogleApiClient, DriveFile.MODE_READ_ONLY, null)
-                .setResultCallback(new ResultCallback<DriveContentsResult>() {
-                    @Override
-                    public void onResult(DriveContentsResult result) {
-                        if (!result.getStatus().isSuccess()) {
-                            // display an error saying file can't be opened
-                            return;
-                        }
-                        // DriveContents object contains pointers
-                        // to the actual byte stream
-                        DriveContents contents = result.getDriveContents();
-                        BufferedReader reader = new BufferedReader(new InputStreamReader(contents.getInputStream()));
-                        StringBuilder builder = new StringBuilder();
-                        String line;
-                        try {
-                            while ((line = reader.readLine()) != null) {
-                                builder.append(line);
-                            }
-                        } catch (IOException e) {
-                            Timber.tag(mTAG).e(e, "exception!");
-                        }
-                        String contentsAsString = builder.toString();
-                        contents.discard(mGoogleApiClient);
-                        if (callbackInstance!=null) {
-                            callbackInstance.callback(contentsAsString);
-                        }
-                    }
-                });
+        final StringBuilder builder = new StringBuilder();
+        readContents(assetInfo, new ContentSink() {
+            @Override
+            public long readFrom(DriveBackend.Contents contents) throws IOException {
+                Reader reader = new InputStreamReader(contents.getInputStream(), charset);
+                char[] buffer = new char[TEXT_BUFFER_CHARS];
+                int read;
+                while ((read = reader.read(buffer))!=-1) {
+                    builder.append(buffer, 0, read);
+                }
+                return builder.length();
+            }
+        }, new TransferCallback() {
+            @Override
+            public void callback(boolean success, long bytes) {
+                // the callback has no way to report it, so only log that the file can't be opened
+                if (bytes<0){
+                    Timber.tag(mTAG).e("reading %s failed, can't open it", assetInfo.meta.getDriveId());
+                    return;
+                }
+                if (callbackInstance!=null) {
+                    callbackInstance.callback(builder.toString());
+                }
+            }
+        });
+        return mCurrentApiStatus;
+    }
+
+    public interface TransferCallback {
+        // bytes is the number of bytes transferred, -1 when the file could not be opened
+        void callback(boolean success, long bytes);
+    }
+    // streams the file's contents into sink, straight from the contents' file when the backend
+    // has one, otherwise through a pooled buffer.  sink is not closed.
+    public GoogleApiStatus readFile(ItemInfo assetInfo, final WritableByteChannel sink, TransferCallback callbackInstance){
+        if (mCurrentApiStatus==GoogleApiStatus.DISCONNECTED) return mCurrentApiStatus;
+        readContents(assetInfo, new ContentSink() {
+            @Override
+            public long readFrom(DriveBackend.Contents contents) throws IOException {
+                return FileTransfer.copy(contentsSource(contents), sink);
+            }
+        }, callbackInstance);
+        return mCurrentApiStatus;
+    }
+    public GoogleApiStatus readFile(ItemInfo assetInfo, OutputStream sink, TransferCallback callbackInstance){
+        return readFile(assetInfo, Channels.newChannel(sink), callbackInstance);
+    }
+    // downloads the file's contents into target, replacing it.  target is only touched once
+    // the contents are open; with a file backed backend the kernel copies file to file.
+    public GoogleApiStatus readFile(ItemInfo assetInfo, final File target, TransferCallback callbackInstance){
+        if (mCurrentApiStatus==GoogleApiStatus.DISCONNECTED) return mCurrentApiStatus;
+        readContents(assetInfo, new ContentSink() {
+            @Override
+            public long readFrom(DriveBackend.Contents contents) throws IOException {
+                FileOutputStream targetStream = new FileOutputStream(target);
+                try {
+                    return FileTransfer.copy(contentsSource(contents), targetStream.getChannel());
+                } finally {
+                    targetStream.close();
+                }
+            }
+        }, callbackInstance);
         return mCurrentApiStatus;
     }
 
@@ -498,95 +551,116 @@ public class GoogleApiModel extends Observable implements GoogleApiClient.Connec
     public GoogleApiStatus writeTxtFile(final ItemInfo assetInfo, final String contentStr, final WriteTxtFileCallback callbackInstance){
         return writeTxtFile(assetInfo, contentStr, callbackInstance, null);
     }
-    public GoogleApiStatus writeTxtFile(final ItemInfo assetInfo, final String contentStr, final WriteTxtFileCallback callbackInstance, final Map<String, String> metaInfo){
+    public GoogleApiStatus writeTxtFile(ItemInfo assetInfo, String contentStr, WriteTxtFileCallback callbackInstance, Map<String, String> metaInfo){
+        return writeTxtFile(assetInfo, contentStr, TEXT_CHARSET, callbackInstance, metaInfo);
+    }
+    public GoogleApiStatus writeTxtFile(ItemInfo assetInfo, String contentStr, Charset charset,
+                                        WriteTxtFileCallback callbackInstance, Map<String, String> metaInfo){
         if (mCurrentApiStatus==GoogleApiStatus.DISCONNECTED) return mCurrentApiStatus;
-        final DriveId assetID = assetInfo.meta.getDriveId();
-        DriveFile file = assetID.asDriveFile();
-        file.open(mGoogleApiClient, DriveFile.MODE_WRITE_ONLY, null).setResultCallback(new ResultCallback<DriveContentsResult>() {
+        final byte[] content = contentStr.getBytes(charset);
+        writeContents(assetInfo, new ContentSource() {
             @Override
-            public void onResult(DriveContentsResult result) {
-                if (!result.getStatus().isSuccess()) {
-                    // Handle error
-                    return;
+            public long writeTo(DriveBackend.Contents contents) throws IOException {
+                WritableByteChannel fileChannel = contentsSink(contents);
+                ByteBuffer buffer = ByteBuffer.wrap(content);
+                while (buffer.hasRemaining()){
+                    fileChannel.write(buffer);
                 }
-                DriveContents driveContents = result.getDriveContents();
-                try{
-                    ParcelFileDescriptor parcelFileDescriptor = driveContents.getParcelFileDescriptor();
-                    FileOutputStream fileOutputStream = new FileOutputStream(parcelFileDescriptor
-                            .getFileDescriptor());
-                    Writer writer = new OutputStreamWriter(fileOutputStream);
-                    writer.write(contentStr);
-                    writer.flush();
-                    writer.close();
-                    fileOutputStream.close();
-                } catch (IOException e) {
-                    Timber.tag(mTAG).e(e, "exception!");
-                }
-                MetadataChangeSet.Builder builder = new MetadataChangeSet.Builder()
-                        .setLastViewedByMeDate(new Date());
-                if (metaInfo!=null){
-                    for (Map.Entry<String, String> entry : metaInfo.entrySet()){
-                        CustomPropertyKey propertyKey = new CustomPropertyKey(entry.getKey(), CustomPropertyKey.PUBLIC);
-                        builder.setCustomProperty(propertyKey, entry.getValue());
-                    }
-                }
-                MetadataChangeSet changeSet = builder.build();
-
-                if (mGoogleApiClient==null){
-                }else if (mGoogleApiClient.isConnected()==false){
-                }else {
-                    driveContents.commit(mGoogleApiClient, changeSet).setResultCallback(new ResultCallback<Status>() {
-                        @Override
-                        public void onResult(final Status result) {
-                            getMeta(assetID, new ResultCallback<DriveResource.MetadataResult>() {
-                                @Override
-                                public void onResult(@NonNull DriveResource.MetadataResult metadataResult) {
-                                    if (callbackInstance != null) {
-                                        callbackInstance.callback(result.isSuccess(), metadataResult.getMetadata());
-                                    }
-                                }
-                            });
-                        }
-                    });
+                fileChannel.close();
+                return content.length;
+            }
+        }, metaInfo, callbackInstance);
+        return mCurrentApiStatus;
+    }
+    // replaces the file's contents with everything source produces, through a pooled buffer
+    // unless source is a FileChannel.  source is not closed.
+    public GoogleApiStatus writeFile(ItemInfo assetInfo, final ReadableByteChannel source, Map<String, String> metaInfo,
+                                     WriteTxtFileCallback callbackInstance){
+        if (mCurrentApiStatus==GoogleApiStatus.DISCONNECTED) return mCurrentApiStatus;
+        writeContents(assetInfo, new ContentSource() {
+            @Override
+            public long writeTo(DriveBackend.Contents contents) throws IOException {
+                WritableByteChannel fileChannel = contentsSink(contents);
+                long written = FileTransfer.copy(source, fileChannel);
+                fileChannel.close();
+                return written;
+            }
+        }, metaInfo, callbackInstance);
+        return mCurrentApiStatus;
+    }
+    public GoogleApiStatus writeFile(ItemInfo assetInfo, InputStream source, Map<String, String> metaInfo,
+                                     WriteTxtFileCallback callbackInstance){
+        return writeFile(assetInfo, Channels.newChannel(source), metaInfo, callbackInstance);
+    }
+    // uploads source as the file's contents.  mapped reads source through a read only mapping
+    // instead of transferTo, for sinks the kernel can't transfer into.
+    public GoogleApiStatus writeFile(ItemInfo assetInfo, final File source, final boolean mapped, Map<String, String> metaInfo,
+                                     WriteTxtFileCallback callbackInstance){
+        if (mCurrentApiStatus==GoogleApiStatus.DISCONNECTED) return mCurrentApiStatus;
+        writeContents(assetInfo, new ContentSource() {
+            @Override
+            public long writeTo(DriveBackend.Contents contents) throws IOException {
+                FileInputStream sourceStream = new FileInputStream(source);
+                try {
+                    WritableByteChannel fileChannel = contentsSink(contents);
+                    long written = mapped ? FileTransfer.copyMapped(sourceStream.getChannel(), fileChannel)
+                            : FileTransfer.copy(sourceStream.getChannel(), fileChannel);
+                    fileChannel.close();
+                    return written;
+                } finally {
+                    sourceStream.close();
                 }
             }
-        });
+        }, metaInfo, callbackInstance);
         return mCurrentApiStatus;
     }
 
-    public GoogleApiStatus deleteItem(DriveId assetID, ResultCallback<Status> callbackInstance){
+    public GoogleApiStatus deleteItem(final DriveId assetID, final ResultCallback<Status> callbackInstance){
         if (mCurrentApiStatus==GoogleApiStatus.DISCONNECTED) return mCurrentApiStatus;
-        DriveResource driveResource= assetID.asDriveResource();
-        driveResource.delete(mGoogleApiClient).setResultCallback(callbackInstance);
+        mBackend.delete(assetID, new DriveBackend.Callback<Void>() {
+            @Override
+            public void onResult(Status status, Void nothing) {
+                itemChanged(assetID);
+                if (status.isSuccess()) mNameIndex.removed(assetID);
+                if (callbackInstance!=null) callbackInstance.onResult(status);
+            }
+        });
         return mCurrentApiStatus;
     }
+    // reports SUCCESS, or the status of the first item that could not be deleted
     public GoogleApiStatus deleteMultipleItems(final Deque<DriveId> items, final ResultCallback<Status> callbackInstance){
+        return deleteItems(items, new DeleteCallback() {
+            @Override
+            public void callback(DeleteResult result) {
+                callbackInstance.onResult(result.getStatus());
+            }
+        });
+    }
+    // deletes with up to setDeleteParallelism() calls in flight; failures do not stop the rest
+    public GoogleApiStatus deleteItems(Collection<DriveId> items, final DeleteCallback callbackInstance){
         if (mCurrentApiStatus==GoogleApiStatus.DISCONNECTED) return mCurrentApiStatus;
-        if (items.size()==0) {
-            callbackInstance.onResult(new Status(0));
-            return mCurrentApiStatus;
-        }
-        DriveId assetID = items.pop();
-        deleteItem(assetID, new ResultCallback<Status>() {
+        new BatchDeleter(mBackend, items, mDeleteParallelism, mDeleteBatchSize, new BatchDeleter.Callback() {
             @Override
-            public void onResult(@NonNull Status status) {
-                if (!status.isSuccess()){
-                    callbackInstance.onResult(status);
-                }else {
-                    if (items.size() == 0) {
-                        //end case
-                        callbackInstance.onResult(status);
-                    } else {
-                        deleteMultipleItems(items, callbackInstance);
-                    }
+            public void onDeleted(DeleteResult result) {
+                for (DriveId assetID : result.getDeleted()){
+                    itemChanged(assetID);
+                    mNameIndex.removed(assetID);
                 }
+                callbackInstance.callback(result);
             }
-        });
+        }).start();
         return mCurrentApiStatus;
     }
+    public void setDeleteParallelism(int maxInFlight){
+        mDeleteParallelism = Math.max(maxInFlight, 1);
+    }
+    // items per delete call, used when the backend implements DriveBackend.BatchDelete
+    public void setDeleteBatchSize(int batchSize){
+        mDeleteBatchSize = Math.max(batchSize, 1);
+    }
     public GoogleApiStatus deleteEverythingInAppRoot(final ResultCallback<Status> callbackInstance){
         if (mCurrentApiStatus==GoogleApiStatus.DISCONNECTED) return mCurrentApiStatus;
-        listFolder(mAppRootFolder, new ListFolderCallback() {
+        listFolder(mAppRootFolder, false, new ListFolderCallback() {
             @Override
             public void callback(FolderInfo info) {
                 if (info.items!=null && info.items.length>0){
@@ -604,7 +678,7 @@ public class GoogleApiModel extends Observable implements GoogleApiClient.Connec
     }
     public GoogleApiStatus deleteAllFolderInAppRoot(final ResultCallback<Status> callbackInstance){
         if (mCurrentApiStatus==GoogleApiStatus.DISCONNECTED) return mCurrentApiStatus;
-        listFolder(mAppRootFolder, new ListFolderCallback() {
+        listFolder(mAppRootFolder, false, new ListFolderCallback() {
             @Override
             public void callback(FolderInfo info) {
                 if (info.items!=null){
@@ -621,7 +695,7 @@ public class GoogleApiModel extends Observable implements GoogleApiClient.Connec
     }
     public GoogleApiStatus deleteEverything(final ResultCallback<Status> callbackInstance){
         if (mCurrentApiStatus==GoogleApiStatus.DISCONNECTED) return mCurrentApiStatus;
-        listFolder(Drive.DriveApi.getRootFolder(mGoogleApiClient),
+        listFolder(mBackend.getRootFolder(), false,
                 new ListFolderCallback() {
             @Override
             public void callback(FolderInfo info) {
@@ -639,23 +713,38 @@ public class GoogleApiModel extends Observable implements GoogleApiClient.Connec
         return mCurrentApiStatus;
     }
 
-    public GoogleApiStatus updateMetadata(DriveId assetID, Map<String, String> metaInfo, final ResultCallback<DriveResource.MetadataResult> callback){
+    public GoogleApiStatus updateMetadata(final DriveId assetID, Map<String, String> metaInfo, final ResultCallback<DriveResource.MetadataResult> callback){
         if (mCurrentApiStatus==GoogleApiStatus.DISCONNECTED) return mCurrentApiStatus;
         MetadataChangeSet.Builder changeSetBuilder = new MetadataChangeSet.Builder();
         if (metaInfo!=null){
             for (Map.Entry<String, String> entry : metaInfo.entrySet()){
                 CustomPropertyKey propertyKey = new CustomPropertyKey(entry.getKey(), CustomPropertyKey.PUBLIC);
-                changeSetBuilder.setCustomProperty(propertyKey, entry.getValue());
+                // a null value deletes the property
+                if (entry.getValue()==null){
+                    changeSetBuilder.deleteCustomProperty(propertyKey);
+                }else{
+                    changeSetBuilder.setCustomProperty(propertyKey, entry.getValue());
+                }
             }
         }
         MetadataChangeSet changeSet = changeSetBuilder.build();
-        assetID.asDriveResource().updateMetadata(mGoogleApiClient, changeSet).setResultCallback(callback);
+        mBackend.updateMetadata(assetID, changeSet, new MetadataResultCallback(callback){
+            @Override
+            public void onResult(Status status, Metadata metadata) {
+                if (status.isSuccess() && metadata!=null){
+                    itemUpdated(metadata);
+                }else{
+                    itemChanged(assetID);
+                }
+                super.onResult(status, metadata);
+            }
+        });
         return mCurrentApiStatus;
     }
 
     public GoogleApiStatus getMeta(DriveId assetID, ResultCallback<DriveResource.MetadataResult> resultCallback){
         if (mCurrentApiStatus==GoogleApiStatus.DISCONNECTED) return mCurrentApiStatus;
-        assetID.asDriveResource().getMetadata(mGoogleApiClient).setResultCallback(resultCallback);
+        mBackend.getMetadata(assetID, new MetadataResultCallback(resultCallback));
         return mCurrentApiStatus;
     }
 
@@ -664,7 +753,41 @@ public class GoogleApiModel extends Observable implements GoogleApiClient.Connec
     }
 
     public DriveFolder getRootFolder(){
-        return Drive.DriveApi.getRootFolder(mGoogleApiClient);
+        return mBackend.getRootFolder();
+    }
+
+    // status, folder and item changes, write completions and re-key progress, see DriveEvent
+    public DriveEventBus getEventBus(){
+        return mEventBus;
+    }
+
+    // the scheduler the Drive calls go through, for tuning its limits; null when the backend
+    // given to the constructor is not a SchedulingDriveBackend
+    public SchedulingDriveBackend getRequestScheduler(){
+        return mBackend instanceof SchedulingDriveBackend ? (SchedulingDriveBackend) mBackend : null;
+    }
+
+    // where Drive call, transfer and (in GoogleApiModelSecure) crypto metrics go; null for none.
+    // Drive calls are only metered when the backend is, or wraps, a MeteredDriveBackend
+    public void setMetricsRegistry(MetricsRegistry metrics){
+        mMetrics = metrics==null ? MetricsRegistry.NONE : metrics;
+        DriveBackend backend = mBackend instanceof SchedulingDriveBackend ? ((SchedulingDriveBackend) mBackend).getBackend() : mBackend;
+        if (backend instanceof MeteredDriveBackend) ((MeteredDriveBackend) backend).setMetricsRegistry(mMetrics);
+    }
+
+    public MetricsRegistry getMetricsRegistry(){
+        return mMetrics;
+    }
+
+    // the contents of the item meta describes as a WriteBehindQueue journal may keep them on disk,
+    // null when they must not be kept; GoogleApiModelSecure seals encrypted items' contents
+    byte[] sealJournalContent(Metadata meta, byte[] content){
+        return content;
+    }
+
+    // reverses sealJournalContent(), null when it can't
+    byte[] openJournalContent(Metadata meta, byte[] sealed){
+        return sealed;
     }
 
     /////// get info APIs
@@ -683,9 +806,8 @@ public class GoogleApiModel extends Observable implements GoogleApiClient.Connec
     //////////////////////////////////// Protected methods   /////////////////////////////////////////
 
     protected void initAppRoot(final ListFolderCallback callbackInstance)   {
-        final DriveFolder driveRoot = Drive.DriveApi.getRootFolder(mGoogleApiClient);
-        String name = mParentContext.getString(R.string.app_name);
-        createFolderInFolder(name, driveRoot, true, new ListFolderCallback() {
+        final DriveFolder driveRoot = mBackend.getRootFolder();
+        createFolderInFolder(mAppRootName, driveRoot, true, new ListFolderCallback() {
             @Override
             public void callback(FolderInfo info) {
                 mAppRootFolder = info.folder;
@@ -696,11 +818,25 @@ public class GoogleApiModel extends Observable implements GoogleApiClient.Connec
         });
     }
 
+    // readable form of a title about to be created, compared against the listed items' readable titles.
     // override this if you want put encryption data in folder title
+    protected String readableName(String name, Map<String, String> metaInfo){
+        return name;
+    }
+
+    // the old override point, still honored: when a subclass overrides it, every create lists its folder
+    // and asks this for each listed item, bypassing the name index.  Override readableName instead.
+    @Deprecated
     protected boolean nameCompare(String name, Metadata item, Map<String, String> metaInfo){
         return item.getTitle().equals(name);
     }
 
+    // how long a folder's item names are trusted for conflict checks without listing it again.
+    // 0 lists the folder on every create.
+    public void setNameIndexTimeout(long millis){
+        mNameIndex.setTimeout(millis);
+    }
+
     ////////////////// callbacks //////////////////
 
     @Override
@@ -723,7 +859,7 @@ public class GoogleApiModel extends Observable implements GoogleApiClient.Connec
     @Override
     public void onConnected(@Nullable Bundle bundle) {
         Timber.tag(mTAG).i("connected.");
-        if (mGoogleApiClient.isConnected()) {
+        if (mBackend.isConnected()) {
             mCurrentApiStatus = GoogleApiStatus.CONNECTED_UNINITIALIZED;
 //            Drive.DriveApi.requestSync(mGoogleApiClient).setResultCallback(new ResultCallback<Status>() {
 //                @Override
@@ -746,23 +882,521 @@ public class GoogleApiModel extends Observable implements GoogleApiClient.Connec
 
     //////////////////// protected helper ////////////////////////
 
-    protected synchronized void selfNotify(){
-        setChanged();
-        notifyObservers(mCurrentApiStatus);
-        clearChanged();
+    // publishes the status on the event bus, then tells Observers as before
+    protected void selfNotify(){
+        GoogleApiStatus status = mCurrentApiStatus;
+        mEventBus.publish(new DriveEvent.StatusChanged(status));
+        synchronized (this){
+            setChanged();
+            notifyObservers(status);
+            clearChanged();
+        }
     }
 
     //////////////////// private helper ////////////////////////
 
-    private synchronized void initCountDown()   {
-        if (writeCountDown!=null) {
+    // parent and children results of one listing, delivered when both have arrived
+    private class FolderListing {
+        final DriveFolder folder;
+        final boolean withParent;
+        final ListFolderCallback callbackInstance;
+        final AtomicInteger pending;
+        volatile DriveId parentID;
+        volatile List<Metadata> children;
+
+        FolderListing(DriveFolder folder, boolean withParent, ListFolderCallback callbackInstance){
+            this.folder = folder;
+            this.withParent = withParent;
+            this.callbackInstance = callbackInstance;
+            this.pending = new AtomicInteger(withParent ? 2 : 1);
+        }
+
+        void listParent(){
+            GoogleApiModel.this.listParent(folder, new ListParentCallback() {
+                @Override
+                public void callback(DriveFolder parent) {
+                    parentID = parent==null ? null : parent.getDriveId();
+                    arrived();
+                }
+            });
+        }
+
+        void listChildren(){
+            mBackend.listChildren(folder, new DriveBackend.Callback<List<Metadata>>() {
+                @Override
+                public void onResult(Status status, List<Metadata> result) {
+                    if (status.isSuccess()) children = result;
+                    arrived();
+                }
+            });
+        }
+
+        private void arrived(){
+            if (pending.decrementAndGet()!=0) return;
+            if (children==null){
+                // listing failed, nothing to cache
+                deliverFolder(folder, parentID, null, callbackInstance);
+                return;
+            }
+            FolderCache cache = mFolderCache;
+            if (cache!=null) cache.put(folder.getDriveId(), withParent, parentID, children);
+            deliverFolder(folder, parentID, children, callbackInstance);
+        }
+    }
+
+    private void listFolderFromDrive(DriveFolder assetID, boolean withParent, ListFolderCallback callbackInstance){
+        final FolderListing listing = new FolderListing(assetID, withParent, callbackInstance);
+        if (!withParent){
+            listing.listChildren();
+        }else if (mPipelinedListing){
+            listing.listParent();
+            listing.listChildren();
+        }else{
+            // list parents first, then children
+            listParent(assetID, new ListParentCallback() {
+                @Override
+                public void callback(DriveFolder parent) {
+                    listing.parentID = parent==null ? null : parent.getDriveId();
+                    listing.pending.decrementAndGet();
+                    listing.listChildren();
+                }
+            });
+        }
+    }
+
+    private void deliverCachedFolder(final DriveFolder assetID, boolean withParent, final FolderCache.Entry cached,
+                                     final ListFolderCallback callbackInstance){
+        if (!withParent || cached.parentKnown){
+            deliverFolder(assetID, cached.parentId, cached.children, callbackInstance);
+            return;
+        }
+        // cached without its parent, only the parent is missing
+        listParent(assetID, new ListParentCallback() {
+            @Override
+            public void callback(DriveFolder parent) {
+                DriveId parentID = parent==null ? null : parent.getDriveId();
+                FolderCache cache = mFolderCache;
+                if (cache!=null) cache.put(assetID.getDriveId(), true, parentID, cached.children, cached.listedAt);
+                deliverFolder(assetID, parentID, cached.children, callbackInstance);
+            }
+        });
+    }
+
+    // fills opened contents, returns the number of bytes written
+    interface ContentSource {
+        long writeTo(DriveBackend.Contents contents) throws IOException;
+    }
+    // drains opened contents, returns the number of bytes read
+    interface ContentSink {
+        long readFrom(DriveBackend.Contents contents) throws IOException;
+    }
+
+    // the contents' file when the backend has one, otherwise its stream
+    private static ReadableByteChannel contentsSource(DriveBackend.Contents contents){
+        FileChannel channel = contents.getChannel();
+        return channel!=null ? channel : Channels.newChannel(contents.getInputStream());
+    }
+    private static WritableByteChannel contentsSink(DriveBackend.Contents contents){
+        FileChannel channel = contents.getChannel();
+        return channel!=null ? channel : Channels.newChannel(contents.getOutputStream());
+    }
+
+    // a read is timed as "transfer.read" from open to done, its copy alone as "transfer.read.copy"
+    private void readContents(ItemInfo assetInfo, final ContentSink sink, final TransferCallback callbackInstance){
+        DriveFile file = assetInfo.meta.getDriveId().asDriveFile();
+        final MetricsRegistry metrics = mMetrics;
+        final long start = System.nanoTime();
+        metrics.inFlight("transfer.read", 1);
+        mBackend.open(file, DriveFile.MODE_READ_ONLY, new DriveBackend.Callback<DriveBackend.Contents>() {
+            @Override
+            public void onResult(Status status, DriveBackend.Contents contents) {
+                if (!status.isSuccess()) {
+                    readCompleted(metrics, start, false, 0);
+                    if (callbackInstance!=null) callbackInstance.callback(false, -1);
+                    return;
+                }
+                boolean success = true;
+                long bytes = 0;
+                long copyStart = System.nanoTime();
+                try {
+                    bytes = sink.readFrom(contents);
+                } catch (IOException e) {
+                    Timber.tag(mTAG).e(e, "exception!");
+                    success = false;
+                }
+                metrics.recordLatency("transfer.read.copy", System.nanoTime()-copyStart, success);
+                mBackend.discard(contents);
+                readCompleted(metrics, start, success, bytes);
+                if (callbackInstance!=null) callbackInstance.callback(success, bytes);
+            }
+        });
+    }
+
+    private void writeContents(final ItemInfo assetInfo, final ContentSource source, final Map<String, String> metaInfo,
+                               final WriteTxtFileCallback callbackInstance){
+        final DriveId assetID = assetInfo.meta.getDriveId();
+        DriveFile file = assetID.asDriveFile();
+        final MetricsRegistry metrics = mMetrics;
+        final long start = System.nanoTime();
+        metrics.inFlight("transfer.write", 1);
+        mBackend.open(file, DriveFile.MODE_WRITE_ONLY, new DriveBackend.Callback<DriveBackend.Contents>() {
+            @Override
+            public void onResult(Status status, DriveBackend.Contents driveContents) {
+                if (!status.isSuccess()) {
+                    Timber.tag(mTAG).e("writing %s failed, can't open it: %s", assetID, status.getStatusCode());
+                    writeCompleted(metrics, start, assetID, false, -1, null, callbackInstance);
+                    return;
+                }
+                final long fileSize;
+                long copyStart = System.nanoTime();
+                try{
+                    fileSize = source.writeTo(driveContents);
+                    metrics.recordLatency("transfer.write.copy", System.nanoTime()-copyStart, true);
+                } catch (IOException e) {
+                    metrics.recordLatency("transfer.write.copy", System.nanoTime()-copyStart, false);
+                    Timber.tag(mTAG).e(e, "exception!");
+                    // do not commit partial contents
+                    mBackend.discard(driveContents);
+                    writeCompleted(metrics, start, assetID, false, 0, assetInfo.meta, callbackInstance);
+                    return;
+                }
+                MetadataChangeSet.Builder builder = new MetadataChangeSet.Builder()
+                        .setLastViewedByMeDate(new Date());
+                if (metaInfo!=null){
+                    for (Map.Entry<String, String> entry : metaInfo.entrySet()){
+                        CustomPropertyKey propertyKey = new CustomPropertyKey(entry.getKey(), CustomPropertyKey.PUBLIC);
+                        // a null value deletes the property, as in updateMetadata()
+                        if (entry.getValue()==null){
+                            builder.deleteCustomProperty(propertyKey);
+                        }else{
+                            builder.setCustomProperty(propertyKey, entry.getValue());
+                        }
+                    }
+                }
+                final MetadataChangeSet changeSet = builder.build();
+
+                if (mBackend.isConnected()==false){
+                    // lost the connection while writing, report it rather than leave the write hanging
+                    mBackend.discard(driveContents);
+                    writeCompleted(metrics, start, assetID, false, 0, assetInfo.meta, callbackInstance);
+                }else {
+                    mBackend.commit(driveContents, changeSet, new DriveBackend.Callback<Metadata>() {
+                        @Override
+                        public void onResult(Status result, Metadata newMeta) {
+                            if (!result.isSuccess()){
+                                itemChanged(assetID);
+                                writeCompleted(metrics, start, assetID, false, fileSize, assetInfo.meta, callbackInstance);
+                                return;
+                            }
+                            // Drive's own record of the committed item, as the commit reported it
+                            if (newMeta!=null){
+                                itemUpdated(newMeta);
+                            }else{
+                                itemChanged(assetID);
+                            }
+                            writeCompleted(metrics, start, assetID, true, fileSize, newMeta, callbackInstance);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    private void enqueueCreate(final String name, final DriveFolder assetID, final boolean folder,
+                               final Map<String, String> metaInfo, final CreateItemCallback callbackInstance){
+        // one create per folder at a time, so the conflict check stays valid until the create is done
+        mWrites.enqueue(assetID.getDriveId(), new KeyedSerialQueue.Job() {
+            @Override
+            public void run(final Runnable done) {
+                createItem(name, assetID, folder, metaInfo, callbackInstance, done);
+            }
+        });
+    }
+
+    private void createItem(final String name, final DriveFolder assetID, final boolean folder,
+                            final Map<String, String> metaInfo, final CreateItemCallback callbackInstance,
+                            final Runnable done){
+        final String readableName = readableName(name, metaInfo);
+        FolderNameIndex.Names names = mCustomNameCompare ? null : mNameIndex.get(assetID.getDriveId());
+        if (names!=null){
+            createUnlessNamed(names.find(readableName, folder), readableName, name, assetID, folder, metaInfo,
+                    callbackInstance, done);
+            return;
+        }
+        // names not known, check for naming conflict in a fresh listing
+        final AtomicBoolean listed = new AtomicBoolean(false);
+        GoogleApiStatus listStatus = listFolder(assetID, false, new ListFolderCallback() {
+            @Override
+            public void callback(FolderInfo info) {
+                if (!listed.compareAndSet(false, true)) return;
+                if (info==null || info.failed){
+                    // a partial listing can not rule out a conflict
+                    done.run();
+                    if (callbackInstance!=null) callbackInstance.callback(false, null, null);
+                    return;
+                }
+                FolderNameIndex.Names names = indexNames(assetID, info);
+                DriveId conflict = mCustomNameCompare ? comparedConflict(name, info, folder, metaInfo)
+                        : names.find(readableName, folder);
+                createUnlessNamed(conflict, readableName, name, assetID, folder, metaInfo, callbackInstance, done);
+            }
+        });
+        if (listStatus==GoogleApiStatus.DISCONNECTED && listed.compareAndSet(false, true)){
+            // disconnected while queued behind another create, the caller was already told it started
+            done.run();
+            if (callbackInstance!=null) callbackInstance.callback(false, null, null);
+        }
+    }
+
+    // the values a create set on an item that could not be read back; Drive's dates are unknown
+    private static Metadata createdMetadata(DriveId itemID, String name, boolean folder, Map<String, String> metaInfo){
+        SnapshotMetadata.Fields fields = new SnapshotMetadata.Fields();
+        fields.driveId = itemID;
+        fields.title = name;
+        fields.mimeType = folder ? DriveFolder.MIME_TYPE : "text/plain";
+        fields.folder = folder;
+        Map<CustomPropertyKey, String> properties = new HashMap<>();
+        if (metaInfo!=null){
+            for (Map.Entry<String, String> entry : metaInfo.entrySet()){
+                properties.put(new CustomPropertyKey(entry.getKey(), CustomPropertyKey.PUBLIC), entry.getValue());
+            }
+        }
+        fields.properties = properties;
+        return new SnapshotMetadata(fields);
+    }
+
+    // conflict is the listed item of that name and kind, or null
+    private void createUnlessNamed(DriveId conflict, final String readableName, final String name,
+                                   final DriveFolder assetID, final boolean folder, final Map<String, String> metaInfo,
+                                   final CreateItemCallback callbackInstance, final Runnable done){
+        if (conflict!=null){
+            // naming conflict !!
+            done.run();
+            if (callbackInstance!=null) callbackInstance.callback(false, null, conflict);
+            return;
+        }
+        // no conflict if it gets to here
+        MetadataChangeSet.Builder builder = new MetadataChangeSet.Builder();
+        builder.setTitle(name);
+        if (!folder) builder.setMimeType("text/plain");
+        if (metaInfo!=null){
+            for (Map.Entry<String, String> entry : metaInfo.entrySet()){
+                CustomPropertyKey propertyKey = new CustomPropertyKey(entry.getKey(), CustomPropertyKey.PUBLIC);
+                builder.setCustomProperty(propertyKey, entry.getValue());
+            }
+        }
+        final MetadataChangeSet changeSet = builder.build();
+
+        DriveBackend.Callback<DriveResource> created = new DriveBackend.Callback<DriveResource>() {
+            @Override
+            public void onResult(Status status, final DriveResource newItem) {
+                if (!status.isSuccess()) {
+                    done.run();
+                    if (callbackInstance!=null) callbackInstance.callback(false, null, null);
+                    return;
+                }
+                // index the new name before the next create in this folder runs
+                mNameIndex.added(assetID.getDriveId(), readableName, newItem.getDriveId(), folder);
+                // a new folder is empty, creates in it need not list it
+                if (folder) mNameIndex.put(newItem.getDriveId(), mNameIndex.namesOf(null));
+                done.run();
+                // one read of the new item instead of listing its folder again
+                mBackend.getMetadata(newItem.getDriveId(), new DriveBackend.Callback<Metadata>() {
+                    @Override
+                    public void onResult(Status status, Metadata newMeta) {
+                        ItemInfo info = new ItemInfo();
+                        info.readableTitle = readableName;
+                        if (!status.isSuccess() || newMeta==null){
+                            // created, but not readable right now: report what the create set
+                            Timber.tag(mTAG).w("reading created %s failed: %s", newItem.getDriveId(), status.getStatusCode());
+                            folderChanged(assetID);
+                            info.meta = createdMetadata(newItem.getDriveId(), name, folder, metaInfo);
+                        }else{
+                            info.meta = newMeta;
+                            childAdded(assetID, newMeta);
+                        }
+                        if (callbackInstance!=null) callbackInstance.callback(true, info, null);
+                    }
+                });
+            }
+        };
+        if (folder){
+            mBackend.createFolder(assetID, changeSet, new ResourceCallback<DriveFolder>(created));
+        }else{
+            mBackend.createFile(assetID, changeSet, new ResourceCallback<DriveFile>(created));
+        }
+    }
+
+    // children null delivers an empty, failed listing
+    private void deliverFolder(DriveFolder assetID, DriveId parentID, List<Metadata> children, ListFolderCallback callbackInstance){
+        FolderInfo currentFolder = new FolderInfo();
+        currentFolder.failed = children==null;
+        if (children==null) children = Collections.emptyList();
+        currentFolder.folder = assetID;
+        currentFolder.parentFolder = parentID==null ? null : parentID.asDriveFolder();
+        currentFolder.items = new ItemInfo[children.size()];
+        for (int i=0; i<children.size(); i++){
+            currentFolder.items[i] = new ItemInfo();
+            currentFolder.items[i].meta=children.get(i);
+            currentFolder.items[i].readableTitle = currentFolder.items[i].meta.getTitle();
+        }
+        if (callbackInstance!=null) callbackInstance.callback(currentFolder);
+    }
+
+    private void disconnect(){
+        if (mGoogleApiClient==null){
+            mCurrentApiStatus=GoogleApiStatus.DISCONNECTED;
+            selfNotify();
+        }else if (mGoogleApiClient.isConnected()) {
+            Auth.GoogleSignInApi.signOut(mGoogleApiClient).setResultCallback(
+                    new ResultCallback<Status>() {
+                        @Override
+                        public void onResult(Status status) {
+                            if (status.isSuccess()) {
+                                mIdToken=null;
+                            }
+                            mGoogleApiClient.disconnect();
+                            mCurrentApiStatus=GoogleApiStatus.DISCONNECTED;
+                            selfNotify();
+                        }
+                    });
+        }
+    }
+
+    private void revokeAccess(){
+        if (mGoogleApiClient==null){
+            mCurrentApiStatus=GoogleApiStatus.DISCONNECTED;
+            selfNotify();
+            return;
+        }
+        try {
+            Auth.GoogleSignInApi.revokeAccess(mGoogleApiClient).setResultCallback(
+                    new ResultCallback<Status>() {
+                        @Override
+                        public void onResult(Status status) {
+                            if (status.isSuccess()) {
+                            } else {
+                            }
+                            mGoogleApiClient.disconnect();
+                            mCurrentApiStatus = GoogleApiStatus.DISCONNECTED;
+                            selfNotify();
+                        }
+                    });
+        }catch (Exception e){
+            Timber.tag(mTAG).e(e, "exception!");
+        }
+    }
+
+    // the first listed item nameCompare matches, for subclasses overriding it
+    @SuppressWarnings("deprecation")
+    private DriveId comparedConflict(String name, FolderInfo info, boolean folder, Map<String, String> metaInfo){
+        for (ItemInfo item : info.items){
+            if (item.meta.isFolder()==folder && nameCompare(name, item.meta, metaInfo)) return item.meta.getDriveId();
+        }
+        return null;
+    }
+
+    private static boolean overridesNameCompare(Class<?> type){
+        for (Class<?> c = type; c!=GoogleApiModel.class; c = c.getSuperclass()){
             try {
-                writeCountDown.await();
-            } catch (InterruptedException e) {
-                Timber.tag(mTAG).e(e, "exception!");
+                c.getDeclaredMethod("nameCompare", String.class, Metadata.class, Map.class);
+                return true;
+            } catch (NoSuchMethodException e) {
+                // not declared here, try the superclass
             }
         }
-        writeCountDown = new CountDownLatch(1);
+        return false;
+    }
+
+    // names of a folder's listed items, indexed unless the listing failed
+    private FolderNameIndex.Names indexNames(DriveFolder folder, FolderInfo info){
+        FolderNameIndex.Names names = mNameIndex.namesOf(info.items);
+        if (!info.failed) mNameIndex.put(folder.getDriveId(), names);
+        return names;
+    }
+
+    // drop cached listings this change makes stale
+    private void itemChanged(DriveId assetID){
+        FolderCache cache = mFolderCache;
+        if (cache!=null) cache.onItemChanged(assetID);
+        if (mEventBus.hasSubscribers(DriveEvent.ItemChanged.class)){
+            mEventBus.publish(new DriveEvent.ItemChanged(assetID, null));
+        }
+    }
+    // folder has a child the cache can't be patched with
+    private void folderChanged(DriveFolder folder){
+        FolderCache cache = mFolderCache;
+        if (cache!=null) cache.invalidate(folder.getDriveId());
+    }
+    // the model created child in folder: patch the cached listing rather than listing again
+    private void childAdded(DriveFolder folder, Metadata child){
+        FolderCache cache = mFolderCache;
+        if (cache!=null) cache.onChildAdded(folder.getDriveId(), child);
+        if (mEventBus.hasSubscribers(DriveEvent.FolderChanged.class)){
+            mEventBus.publish(new DriveEvent.FolderChanged(folder.getDriveId()));
+        }
+    }
+    // the model changed an item and knows its new metadata
+    private void itemUpdated(Metadata item){
+        FolderCache cache = mFolderCache;
+        if (cache!=null) cache.onItemUpdated(item);
+        if (mEventBus.hasSubscribers(DriveEvent.ItemChanged.class)){
+            mEventBus.publish(new DriveEvent.ItemChanged(item.getDriveId(), item));
+        }
+    }
+    private static void readCompleted(MetricsRegistry metrics, long start, boolean success, long bytes){
+        metrics.inFlight("transfer.read", -1);
+        metrics.recordLatency("transfer.read", System.nanoTime()-start, success);
+        if (success) metrics.count("transfer.read.bytes", bytes);
+    }
+    private void writeCompleted(MetricsRegistry metrics, long start, DriveId assetID, boolean success, long bytes,
+                                Metadata newMeta, WriteTxtFileCallback callbackInstance){
+        metrics.inFlight("transfer.write", -1);
+        metrics.recordLatency("transfer.write", System.nanoTime()-start, success);
+        if (success) metrics.count("transfer.write.bytes", bytes);
+        if (mEventBus.hasSubscribers(DriveEvent.WriteCompleted.class)){
+            mEventBus.publish(new DriveEvent.WriteCompleted(assetID, success, bytes, newMeta));
+        }
+        if (callbackInstance!=null) callbackInstance.callback(success, newMeta);
+    }
+
+    // hands a created folder or file on as a DriveResource
+    private static class ResourceCallback<T extends DriveResource> implements DriveBackend.Callback<T> {
+        private final DriveBackend.Callback<DriveResource> mCallback;
+
+        ResourceCallback(DriveBackend.Callback<DriveResource> callback){
+            mCallback = callback;
+        }
+
+        @Override
+        public void onResult(Status status, T result) {
+            mCallback.onResult(status, result);
+        }
+    }
+
+    // adapts backend metadata results to the public ResultCallback API
+    private static class MetadataResultCallback implements DriveBackend.Callback<Metadata> {
+        private final ResultCallback<DriveResource.MetadataResult> mCallback;
+
+        MetadataResultCallback(ResultCallback<DriveResource.MetadataResult> callback){
+            mCallback = callback;
+        }
+
+        @Override
+        public void onResult(final Status status, final Metadata metadata) {
+            if (mCallback==null) return;
+            mCallback.onResult(new DriveResource.MetadataResult() {
+                @Override
+                public Metadata getMetadata() {
+                    return metadata;
+                }
+
+                @Override
+                public Status getStatus() {
+                    return status;
+                }
+            });
+        }
     }
 
 }
@@ -2,24 +2,49 @@ package swordriver.com.googledrivemodule;
 
 import android.content.Context;
 import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
 import android.support.v4.app.FragmentActivity;
 import android.util.Base64;
 
+import com.google.android.gms.common.api.CommonStatusCodes;
 import com.google.android.gms.common.api.ResultCallback;
-import com.google.android.gms.drive.Drive;
+import com.google.android.gms.common.api.Status;
 import com.google.android.gms.drive.DriveFolder;
+import com.google.android.gms.drive.DriveId;
 import com.google.android.gms.drive.DriveResource;
 import com.google.android.gms.drive.Metadata;
 import com.google.android.gms.drive.metadata.CustomPropertyKey;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.crypto.BadPaddingException;
@@ -29,7 +54,7 @@ import javax.crypto.KeyGenerator;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -45,18 +70,66 @@ import timber.log.Timber;
  *  - "asset_name_iv": IV for the asset name.  The actual encrypted name is just the name of the asset
  *  - "validation_text": A random text string served to validate the encryption key
  *  - "validation_text_iv: IV for validation_text string
- *  - "cipher_text_iv": IV for the content of the file
+ *  - "cipher_text_iv": IV for the content of the file, when it is one base64 encoded message
+ *  - "content_format": "gcm-stream-1" when the content is segmented AES-GCM, see StreamingGcm
+ *  - "rekey_old_salt", "rekey_old_key", "rekey_old_key_iv": on the app root while a password
+ *    change is unfinished, the old key encryption key wrapped with the new one
  */
 
 public class GoogleApiModelSecure extends GoogleApiModel {
 
     private final int ITERATIONS = 10000;
     private final int KEYLENGTH = 256;
+    private final int GCM_TAG_LENGTH = 128;
+    private final int DERIVED_KEY_CACHE_SIZE = 16;
+    private final int DATA_KEY_CACHE_SIZE = 256;
+    private final int MIN_TITLES_PER_DECRYPT_TASK = 16;
+    private static final CustomPropertyKey ASSET_NAME_IV_KEY =
+            new CustomPropertyKey(SecureProperties.ASSET_NAME_IV.toString(), CustomPropertyKey.PUBLIC);
+    private static final long DEFAULT_DATA_KEY_TIMEOUT_MILLIS = 60*1000;
+    // first byte of journaled contents, see sealJournalContent()
+    private static final byte JOURNAL_CLEAR = 0;
+    private static final byte JOURNAL_SEALED = 1;
+    private static final int JOURNAL_BUFFER_BYTES = 8*1024;
+    public static final int DEFAULT_REKEY_PARALLELISM = 8;
+    public static final int DEFAULT_REKEY_ATTEMPTS = 5;
+    public static final long DEFAULT_REKEY_BACKOFF_MILLIS = 500;
     private final String RANDOM_VALIDATION_STRING="random validation string";
     private SecretKey mKeyEncryptionKey=null;  // must never be stored, and should be cleared on timeout.
     private String mPasswordString=null; // must never be stored, and should be cleared on timeout.
     private byte[] mSalt;               // should be the same for every asset
+    // salt -> key encryption key derived from mPasswordString.  Cleared whenever the password changes.
+    private final Map<String, SecretKey> mDerivedKeys = new LinkedHashMap<String, SecretKey>(DERIVED_KEY_CACHE_SIZE, 0.75f, true){
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SecretKey> eldest) {
+            return size()>DERIVED_KEY_CACHE_SIZE;
+        }
+    };
+    // the key encryption key a password change moves items off, kept apart from mDerivedKeys so
+    // other salts can't evict it while items still need it.  Guarded by mDerivedKeys.
+    private String mOldSalt;
+    private SecretKey mOldKeyEncryptionKey;
     private SecureRandom secureRandom;
+    private volatile Executor mDecryptExecutor = null;
+    private volatile int mDecryptParallelism = 1;
+    private volatile boolean mLazyTitles = false;
+    private volatile int mContentSegmentSize = StreamingGcm.DEFAULT_SEGMENT_SIZE;
+    private final AtomicBoolean mRekeying = new AtomicBoolean(false);
+    private volatile int mRekeyParallelism = DEFAULT_REKEY_PARALLELISM;
+    private volatile int mRekeyAttempts = DEFAULT_REKEY_ATTEMPTS;
+    private volatile long mRekeyBackoffMillis = DEFAULT_REKEY_BACKOFF_MILLIS;
+    private final TitleDecoder mTitleDecoder = new TitleDecoder() {
+        @Override
+        public String decode(Metadata meta) {
+            if (mPasswordString==null) return meta.getTitle();
+            Map<String, String> encryptInfo = toEncryptInfo(meta.getCustomProperties());
+            return decryptAssetString(meta.getDriveId(), meta.getTitle(),
+                    encryptInfo.get(SecureProperties.ASSET_NAME_IV.toString()), encryptInfo);
+        }
+    };
+    // unwrapped per asset encryption keys, so listing, reading then writing an asset unwraps once
+    private final ExpiringLruCache<DataKeyId, SecretKey> mDataKeys =
+            new ExpiringLruCache<>(DATA_KEY_CACHE_SIZE, DEFAULT_DATA_KEY_TIMEOUT_MILLIS);
 
     private Metadata mPasswordValidationData = null;
 
@@ -69,7 +142,11 @@ public class GoogleApiModelSecure extends GoogleApiModel {
         CIPHER_TEXT_IV("cipher_text_iv"),
         VALIDATION_TEXT("validation_text"),
         VALIDATION_TEXT_IV("validation_text_iv"),
-        SALT("salt");
+        SALT("salt"),
+        CONTENT_FORMAT("content_format"),
+        REKEY_OLD_SALT("rekey_old_salt"),
+        REKEY_OLD_KEY("rekey_old_key"),
+        REKEY_OLD_KEY_IV("rekey_old_key_iv");
 
         private String value;
         private SecureProperties(String value){this.value=value;}
@@ -78,38 +155,111 @@ public class GoogleApiModelSecure extends GoogleApiModel {
         public String toString(){return this.value;}
     }
 
+    // a file opened on the first write, so a read failing before any clear bytes leaves it as it was
+    private static class TargetChannel implements WritableByteChannel {
+        private final File mTarget;
+        private FileOutputStream mStream = null;
+        private boolean mClosed = false;
+
+        TargetChannel(File target){
+            mTarget = target;
+        }
+
+        synchronized FileChannel channel() throws IOException {
+            if (mClosed) throw new ClosedChannelException();
+            if (mStream==null) mStream = new FileOutputStream(mTarget);
+            return mStream.getChannel();
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return channel().write(src);
+        }
+
+        @Override
+        public synchronized boolean isOpen() {
+            return !mClosed;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            mClosed = true;
+            if (mStream!=null) mStream.close();
+        }
+    }
+
+    // an asset's wrapped encryption key.  assetID is null for names that are not on Drive yet.
+    private static class DataKeyId {
+        final DriveId assetID;
+        final String wrappedKey;
+
+        DataKeyId(DriveId assetID, String wrappedKey){
+            this.assetID = assetID;
+            this.wrappedKey = wrappedKey;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof DataKeyId)) return false;
+            DataKeyId other = (DataKeyId) o;
+            return wrappedKey.equals(other.wrappedKey)
+                    && (assetID==null ? other.assetID==null : assetID.equals(other.assetID));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31*wrappedKey.hashCode() + (assetID==null ? 0 : assetID.hashCode());
+        }
+    }
+
     public GoogleApiModelSecure(Context callerContext, FragmentActivity resolutionActivity, String tag, String serverClientID){
         super(callerContext, resolutionActivity, tag, serverClientID);
         secureRandom = new SecureRandom();
     }
 
+    public GoogleApiModelSecure(String tag, String appRootName, DriveBackend backend){
+        super(tag, appRootName, backend);
+        secureRandom = new SecureRandom();
+    }
+
     @Override
-    public GoogleApiStatus listFolder(DriveFolder assetID, final ListFolderCallback callbackInstance){
-        return super.listFolder(assetID, new ListFolderCallback() {
+    public GoogleApiStatus listFolder(DriveFolder assetID, boolean withParent, final ListFolderCallback callbackInstance){
+        return super.listFolder(assetID, withParent, new ListFolderCallback() {
             @Override
             public void callback(FolderInfo info) {
-                if (info.items!=null && mPasswordString!=null){
-                    for (ItemInfo item : info.items) {
-                        Map<CustomPropertyKey, String> properties = item.meta.getCustomProperties();
-                        if (properties.get(new CustomPropertyKey(SecureProperties.ASSET_NAME_IV.toString(), CustomPropertyKey.PUBLIC)) == null){
-                        } else {
-                            // decrypt drive asset name
-                            Map<String, String> encryptInfo = new HashMap<>();
-                            for (Map.Entry<CustomPropertyKey, String> entry : properties.entrySet()) {
-                                String key = entry.getKey().getKey();
-                                String value = entry.getValue();
-                                encryptInfo.put(key, value);
-                            }
-                            String clearTitle = decryptAssetString(item.meta.getTitle(), encryptInfo.get(SecureProperties.ASSET_NAME_IV.toString()), encryptInfo);
-                            item.readableTitle = clearTitle;
-                        }
-                    }
+                if (info.items!=null && mPasswordString!=null && mLazyTitles){
+                    deferTitles(info.items);
+                    callbackInstance.callback(info);
+                }else if (info.items!=null && mPasswordString!=null){
+                    decryptTitles(info, callbackInstance);
+                }else{
+                    callbackInstance.callback(info);
                 }
-                callbackInstance.callback(info);
             }
         });
     }
 
+    // when on, listFolder calls back before decrypting titles.  Each ItemInfo decrypts its title
+    // on the first getReadableTitle(), or ahead of time through FolderInfo.prefetchTitles().
+    // Until then the readableTitle field still holds the encrypted title.
+    public void setLazyTitleDecryption(boolean lazy){
+        mLazyTitles = lazy;
+    }
+
+    // decrypt listed titles on this executor, using up to parallelism tasks per folder.
+    // The list callback then runs on the executor thread that finishes last.  null decrypts
+    // on the Drive callback thread.
+    public void setDecryptExecutor(Executor executor, int parallelism){
+        mDecryptExecutor = executor;
+        mDecryptParallelism = parallelism;
+    }
+
+    // plaintext bytes per authenticated segment of encrypted file contents.  Memory use of an
+    // encrypted transfer is about twice this; the format records it, so reads need no setting.
+    public void setContentSegmentSize(int bytes){
+        mContentSegmentSize = bytes;
+    }
+
     @Override
     public GoogleApiStatus createTxtFileInFolder(final String fileName, final DriveFolder assetID,
                                       final Map<String, String> metaInfo, final ListFolderCallback callbackInstance){
@@ -121,60 +271,228 @@ public class GoogleApiModelSecure extends GoogleApiModel {
     }
 
     @Override
-    public GoogleApiStatus readTxtFile(final ItemInfo assetInfo, final ReadTxtFileCallback callbackInstance){
+    public GoogleApiStatus createTxtFile(String fileName, DriveFolder assetID, Map<String, String> metaInfo,
+                                         CreateItemCallback callbackInstance){
         if (mCurrentApiStatus!=GoogleApiStatus.INITIALIZED) return mCurrentApiStatus;
-        return super.readTxtFile(assetInfo, new ReadTxtFileCallback() {
-            @Override
-            public void callback(String fileContent) {
-                Map<CustomPropertyKey, String> properties = assetInfo.meta.getCustomProperties();
-                String cipherIV = (String) properties.get(new CustomPropertyKey(SecureProperties.CIPHER_TEXT_IV.toString(), CustomPropertyKey.PUBLIC));
-                if (cipherIV == null || fileContent.length()==0) {
-                    callbackInstance.callback(fileContent);
-                }else{
-                    Timber.tag(mTAG).v("Read text (encrypted): %s", fileContent);
-                    Map<String, String> encryptInfo = new HashMap<>();
-                    for (Map.Entry<CustomPropertyKey, String> entry : properties.entrySet()) {
-                        String key = entry.getKey().getKey();
-                        String value = entry.getValue();
-                        encryptInfo.put(key, value);
-                        Timber.tag(mTAG).v("Read Key: %s, Value: %s", key, value);
-                    }
-                    String clearFileContent = decryptAssetString(fileContent, encryptInfo.get(SecureProperties.CIPHER_TEXT_IV.toString()), encryptInfo);
-                    Timber.tag(mTAG).v("Read text (clear): %s", clearFileContent);
-                    callbackInstance.callback(clearFileContent);
+        Map<String, String> cipherData = encryptAssetName(fileName);
+        String encryptedName = cipherData.remove(SecureProperties.ASSET_NAME.toString());
+        if (metaInfo!=null) cipherData.putAll(metaInfo);
+        return super.createTxtFile(encryptedName, assetID, cipherData, callbackInstance);
+    }
+
+    @Override
+    public GoogleApiStatus readTxtFile(final ItemInfo assetInfo, final Charset charset, final ReadTxtFileCallback callbackInstance){
+        if (mCurrentApiStatus!=GoogleApiStatus.INITIALIZED) return mCurrentApiStatus;
+        if (isStreamEncrypted(assetInfo)){
+            final ByteArrayOutputStream clearFileContent = new ByteArrayOutputStream();
+            return readFile(assetInfo, clearFileContent, new TransferCallback() {
+                @Override
+                public void callback(boolean success, long bytes) {
+                    if (bytes<0 || callbackInstance==null) return;
+                    callbackInstance.callback(success ? new String(clearFileContent.toByteArray(), charset) : null);
                 }
+            });
+        }
+        Map<CustomPropertyKey, String> properties = assetInfo.meta.getCustomProperties();
+        String cipherIV = (String) properties.get(new CustomPropertyKey(SecureProperties.CIPHER_TEXT_IV.toString(), CustomPropertyKey.PUBLIC));
+        if (cipherIV == null) {
+            // clear content
+            return super.readTxtFile(assetInfo, charset, callbackInstance);
+        }
+        // written before the streaming format, cipher text is stored base64 encoded
+        return readBase64Contents(assetInfo, new ContentsCallback() {
+            @Override
+            public void callback(byte[] clearFileContent) {
+                if (callbackInstance==null) return;
+                callbackInstance.callback(clearFileContent==null ? null : new String(clearFileContent, charset));
             }
         });
     }
 
     @Override
-    public GoogleApiStatus writeTxtFile(final ItemInfo assetInfo, final String contentStr, final WriteTxtFileCallback callbackInstance, final Map<String, String> metaInfo) {
+    public GoogleApiStatus writeTxtFile(final ItemInfo assetInfo, final String contentStr, final Charset charset,
+                                        final WriteTxtFileCallback callbackInstance, final Map<String, String> metaInfo) {
         if (mCurrentApiStatus!=GoogleApiStatus.INITIALIZED) return mCurrentApiStatus;
         Timber.tag(mTAG).v("Writting text (clear): %s", contentStr);
-        Map<CustomPropertyKey, String> properties = assetInfo.meta.getCustomProperties();
-        String encryptedEncryptionKey = (String) properties.get(new CustomPropertyKey(SecureProperties.ENCRYPTION_KEY.toString(), CustomPropertyKey.PUBLIC));
-        if (encryptedEncryptionKey == null) {
+        if (!isEncrypted(assetInfo)) {
             // clear content
-            return super.writeTxtFile(assetInfo, contentStr, callbackInstance, metaInfo);
-        } else {
-            // encrypt the content first
-            Map<String, String> encryptInfo = new HashMap<>();
-            for (Map.Entry<CustomPropertyKey, String> entry : properties.entrySet()) {
-                String key = entry.getKey().getKey();
-                String value = entry.getValue();
-                Timber.tag(mTAG).v("Writting Key: %s, Value: %s", key, value);
-                encryptInfo.put(key, value);
+            return super.writeTxtFile(assetInfo, contentStr, charset, callbackInstance, metaInfo);
+        }
+        return writeFile(assetInfo, new ByteArrayInputStream(contentStr.getBytes(charset)), metaInfo, callbackInstance);
+    }
+
+    // an encrypted item's queued contents stay encrypted on disk, in the item's own key and the
+    // format its Drive copy uses, so the journal does not undo encryption at rest
+    @Override
+    byte[] sealJournalContent(Metadata meta, byte[] content){
+        if (!isEncrypted(meta)){
+            return prefixed(JOURNAL_CLEAR, content);
+        }
+        SecretKey encryptionKey = journalKey(meta);
+        if (encryptionKey==null) return null;
+        try {
+            ReadableByteChannel cipherSource = StreamingGcm.encrypting(Channels.newChannel(new ByteArrayInputStream(content)),
+                    encryptionKey, mContentSegmentSize, secureRandom);
+            ByteArrayOutputStream sealed = new ByteArrayOutputStream(content.length + 64);
+            sealed.write(JOURNAL_SEALED);
+            ByteBuffer buffer = ByteBuffer.allocate(JOURNAL_BUFFER_BYTES);
+            while (cipherSource.read(buffer)>=0){
+                buffer.flip();
+                sealed.write(buffer.array(), 0, buffer.limit());
+                buffer.clear();
+            }
+            return sealed.toByteArray();
+        } catch (IOException e) {
+            Timber.tag(mTAG).e(e, "exception!");
+            return null;
+        }
+    }
+
+    @Override
+    byte[] openJournalContent(Metadata meta, byte[] sealed){
+        if (sealed.length==0) return null;
+        if (sealed[0]==JOURNAL_CLEAR){
+            byte[] content = new byte[sealed.length-1];
+            System.arraycopy(sealed, 1, content, 0, content.length);
+            return content;
+        }
+        SecretKey encryptionKey = isEncrypted(meta) ? journalKey(meta) : null;
+        if (encryptionKey==null) return null;
+        ByteArrayOutputStream content = new ByteArrayOutputStream(sealed.length);
+        StreamingGcm.DecryptingChannel clearSink = StreamingGcm.decrypting(Channels.newChannel(content), encryptionKey);
+        try {
+            clearSink.write(ByteBuffer.wrap(sealed, 1, sealed.length-1));
+            clearSink.finish();
+        } catch (IOException e) {
+            Timber.tag(mTAG).e(e, "exception!");
+            return null;
+        }
+        return content.toByteArray();
+    }
+
+    // encrypted assets are decrypted a segment at a time into sink
+    @Override
+    public GoogleApiStatus readFile(final ItemInfo assetInfo, final WritableByteChannel sink, final TransferCallback callbackInstance){
+        if (mCurrentApiStatus!=GoogleApiStatus.INITIALIZED) return mCurrentApiStatus;
+        if (!isEncrypted(assetInfo)) return super.readFile(assetInfo, sink, callbackInstance);
+        if (!isStreamEncrypted(assetInfo)){
+            if (!assetInfo.meta.getCustomProperties().containsKey(
+                    new CustomPropertyKey(SecureProperties.CIPHER_TEXT_IV.toString(), CustomPropertyKey.PUBLIC))){
+                // never written, nothing to decrypt
+                return super.readFile(assetInfo, sink, callbackInstance);
+            }
+            // the older single message format, small enough to decrypt in memory
+            return readBase64Contents(assetInfo, new ContentsCallback() {
+                @Override
+                public void callback(byte[] clearFileContent) {
+                    boolean success = clearFileContent!=null;
+                    try {
+                        ByteBuffer buffer = ByteBuffer.wrap(success ? clearFileContent : new byte[0]);
+                        while (buffer.hasRemaining()){
+                            sink.write(buffer);
+                        }
+                    } catch (IOException e) {
+                        Timber.tag(mTAG).e(e, "exception!");
+                        success = false;
+                    }
+                    if (callbackInstance!=null) callbackInstance.callback(success, success ? clearFileContent.length : 0);
+                }
+            });
+        }
+        SecretKey encryptionKey = unwrapDataKey(assetInfo.meta.getDriveId(), toEncryptInfo(assetInfo.meta.getCustomProperties()));
+        if (encryptionKey==null){
+            if (callbackInstance!=null) callbackInstance.callback(false, 0);
+            return mCurrentApiStatus;
+        }
+        final StreamingGcm.DecryptingChannel clearSink = StreamingGcm.decrypting(sink, encryptionKey, mMetrics);
+        return super.readFile(assetInfo, clearSink, new TransferCallback() {
+            @Override
+            public void callback(boolean success, long bytes) {
+                long clearBytes = 0;
+                if (success){
+                    try {
+                        // authenticates the last segment, so truncated contents fail here
+                        clearBytes = clearSink.finish();
+                    } catch (IOException e) {
+                        Timber.tag(mTAG).e(e, "exception!");
+                        success = false;
+                    }
+                }
+                if (callbackInstance!=null) callbackInstance.callback(success, success ? clearBytes : bytes);
+            }
+        });
+    }
+
+    // encrypted assets are encrypted a segment at a time as source is read
+    @Override
+    public GoogleApiStatus writeFile(ItemInfo assetInfo, ReadableByteChannel source, Map<String, String> metaInfo,
+                                     WriteTxtFileCallback callbackInstance){
+        if (mCurrentApiStatus!=GoogleApiStatus.INITIALIZED) return mCurrentApiStatus;
+        if (!isEncrypted(assetInfo)) return super.writeFile(assetInfo, source, metaInfo, callbackInstance);
+        SecretKey encryptionKey = unwrapDataKey(assetInfo.meta.getDriveId(), toEncryptInfo(assetInfo.meta.getCustomProperties()));
+        ReadableByteChannel cipherSource = null;
+        if (encryptionKey!=null){
+            try {
+                cipherSource = StreamingGcm.encrypting(source, encryptionKey, mContentSegmentSize, secureRandom, mMetrics);
+            } catch (IOException e) {
+                Timber.tag(mTAG).e(e, "exception!");
             }
-            String encryptedFileContent = encryptAssetString(contentStr, encryptInfo);
-            if (metaInfo!=null) encryptInfo.putAll(metaInfo);
-            for (Map.Entry<String, String> entry : encryptInfo.entrySet()) {
-                String key = entry.getKey();
-                String value = entry.getValue();
-                Timber.tag(mTAG).v("Writting Key: %s, Value: %s", key, value);
+        }
+        if (cipherSource==null){
+            if (callbackInstance!=null) callbackInstance.callback(false, assetInfo.meta);
+            return mCurrentApiStatus;
+        }
+        Map<String, String> encryptInfo = new HashMap<>();
+        if (metaInfo!=null) encryptInfo.putAll(metaInfo);
+        encryptInfo.put(SecureProperties.CONTENT_FORMAT.toString(), StreamingGcm.FORMAT);
+        return super.writeFile(assetInfo, cipherSource, encryptInfo, callbackInstance);
+    }
+
+    @Override
+    public GoogleApiStatus readFile(ItemInfo assetInfo, File target, final TransferCallback callbackInstance){
+        if (mCurrentApiStatus!=GoogleApiStatus.INITIALIZED) return mCurrentApiStatus;
+        if (!isEncrypted(assetInfo)) return super.readFile(assetInfo, target, callbackInstance);
+        // like the base class, target is only touched once there is something to put in it
+        final TargetChannel targetChannel = new TargetChannel(target);
+        return readFile(assetInfo, targetChannel, new TransferCallback() {
+            @Override
+            public void callback(boolean success, long bytes) {
+                if (success){
+                    try {
+                        // empty contents still replace target
+                        targetChannel.channel();
+                    } catch (IOException e) {
+                        Timber.tag(mTAG).e(e, "exception!");
+                        success = false;
+                    }
+                }
+                closeQuietly(targetChannel);
+                if (callbackInstance!=null) callbackInstance.callback(success, bytes);
             }
-            Timber.tag(mTAG).v("Writting text (encrypted): %s", encryptedFileContent);
-            return super.writeTxtFile(assetInfo, encryptedFileContent, callbackInstance, encryptInfo);
+        });
+    }
+
+    // encrypting reads the whole file anyway, so mapped makes no difference for encrypted assets
+    @Override
+    public GoogleApiStatus writeFile(final ItemInfo assetInfo, File source, boolean mapped, Map<String, String> metaInfo,
+                                     final WriteTxtFileCallback callbackInstance){
+        if (mCurrentApiStatus!=GoogleApiStatus.INITIALIZED) return mCurrentApiStatus;
+        if (!isEncrypted(assetInfo)) return super.writeFile(assetInfo, source, mapped, metaInfo, callbackInstance);
+        final FileInputStream sourceStream;
+        try {
+            sourceStream = new FileInputStream(source);
+        } catch (IOException e) {
+            Timber.tag(mTAG).e(e, "exception!");
+            if (callbackInstance!=null) callbackInstance.callback(false, assetInfo.meta);
+            return mCurrentApiStatus;
         }
+        return writeFile(assetInfo, sourceStream.getChannel(), metaInfo, new WriteTxtFileCallback() {
+            @Override
+            public void callback(boolean success, Metadata newMeta) {
+                closeQuietly(sourceStream);
+                if (callbackInstance!=null) callbackInstance.callback(success, newMeta);
+            }
+        });
     }
 
     @Override
@@ -187,10 +505,27 @@ public class GoogleApiModelSecure extends GoogleApiModel {
         return super.createFolderInFolder(encryptedName, assetID, gotoFolder, cipherData, callbackInstance);
     }
 
+    @Override
+    public GoogleApiStatus createFolder(String name, DriveFolder assetID, Map<String, String> metaInfo,
+                                        CreateItemCallback callbackInstance){
+        if (mCurrentApiStatus!=GoogleApiStatus.INITIALIZED) return mCurrentApiStatus;
+        Map<String, String> cipherData = encryptAssetName(name);
+        String encryptedName = cipherData.remove(SecureProperties.ASSET_NAME.toString());
+        if (metaInfo!=null) cipherData.putAll(metaInfo);
+        return super.createFolder(encryptedName, assetID, cipherData, callbackInstance);
+    }
+
+    @Override
+    public GoogleApiStatus createFolderPaths(DriveFolder assetID, Collection<List<String>> paths,
+                                             FolderPathsCallback callbackInstance){
+        if (mCurrentApiStatus!=GoogleApiStatus.INITIALIZED) return mCurrentApiStatus;
+        return super.createFolderPaths(assetID, paths, callbackInstance);
+    }
+
     @Override
     protected void initAppRoot(final ListFolderCallback callbackInstance){
-        final DriveFolder driveRoot = Drive.DriveApi.getRootFolder(mGoogleApiClient);
-        final String name = mParentContext.getString(R.string.app_name);
+        final DriveFolder driveRoot = mBackend.getRootFolder();
+        final String name = mAppRootName;
         super.createFolderInFolder(name, driveRoot, false, null, new ListFolderCallback(){
             @Override
             public void callback(FolderInfo info) {
@@ -198,7 +533,7 @@ public class GoogleApiModelSecure extends GoogleApiModel {
 
                 if (info.items.length!=0) {
                     for (ItemInfo item : info.items) {
-                        if (item.readableTitle.equals(name) && item.meta.isFolder()) {
+                        if (item.getReadableTitle().equals(name) && item.meta.isFolder()) {
                             mAppRootFolder = item.meta.getDriveId().asDriveFolder();
                             Map<CustomPropertyKey, String> properties = item.meta.getCustomProperties();
                             String validationString = (String) properties.get(new CustomPropertyKey(SecureProperties.VALIDATION_TEXT.toString(), CustomPropertyKey.PUBLIC));
@@ -233,6 +568,8 @@ public class GoogleApiModelSecure extends GoogleApiModel {
         mPasswordString=password;
         mKeyEncryptionKey=null;
         mSalt=null;
+        clearDerivedKeys();
+        mDataKeys.clear();
         if (password.equals("")) return false;
 
         if (mPasswordValidationData ==null){
@@ -261,6 +598,8 @@ public class GoogleApiModelSecure extends GoogleApiModel {
         }else{
             // validate password
             if (passwordValidation()){
+                // items an unfinished password change has not reached are still readable
+                if (hasPendingPasswordChange()) unwrapJournalKey();
                 mCurrentApiStatus=GoogleApiStatus.INITIALIZED;
                 selfNotify();
                 return true;
@@ -268,6 +607,7 @@ public class GoogleApiModelSecure extends GoogleApiModel {
                 mPasswordString=null;
                 mKeyEncryptionKey=null;
                 mSalt=null;
+                clearDerivedKeys();
                 return false;
             }
         }
@@ -277,93 +617,133 @@ public class GoogleApiModelSecure extends GoogleApiModel {
         mPasswordString=null;
         mSalt=null;
         mKeyEncryptionKey=null;
+        clearDerivedKeys();
+        mDataKeys.clear();
         mCurrentApiStatus=GoogleApiStatus.CONNECTED_UNINITIALIZED;
     }
 
+    public interface ChangePasswordCallback {
+        // done counts re-keyed items and items that needed nothing; found grows while the
+        // folder tree is still being walked
+        void onProgress(int done, int failed, int found);
+        void onComplete(RekeyResult result);
+    }
+
     public GoogleApiStatus changePassword(final String newPassword, final ListFolderCallback callback){
-        if (mCurrentApiStatus!=GoogleApiStatus.INITIALIZED) return mCurrentApiStatus;
-        final ListFolderCallback finishCallback = new ListFolderCallback() {
+        return changePassword(newPassword, new ChangePasswordCallback() {
             @Override
-            public void callback(FolderInfo info) {
-                // change the password validation data of app root.  Then list folder again.
-                Map<String, String> cipherData = encryptValidationString(RANDOM_VALIDATION_STRING);
-                updateMetadata(mAppRootFolder.getDriveId(), cipherData, new ResultCallback<DriveResource.MetadataResult>() {
-                    @Override
-                    public void onResult(@NonNull DriveResource.MetadataResult metadataResult) {
-                        if (metadataResult.getStatus().isSuccess()) {
-                            Timber.tag(mTAG).e("Updated the password validation data.");
-                            mPasswordValidationData = metadataResult.getMetadata();
-                        } else {
-                            // ERROR: shouldn't fail.
-                            Timber.tag(mTAG).e("Update meta data failed for password validation data!!! Unrecoverable!");
-                        }
-                        listAllFolder(mAppRootFolder, new ListFolderCallback() {
-                            @Override
-                            public void callback(FolderInfo info) {
-                                callback.callback(info);
-                            }
-                        });
-                    }
-                });
+            public void onProgress(int done, int failed, int found) {
             }
-        };
-        listAllFolder(mAppRootFolder, new ListFolderCallback() {
+
             @Override
-            public void callback(final FolderInfo info) {
-                Timber.tag(mTAG).v("listed all items (%d) in app root", info.items.length);
-                // back up old master key
-                final SecretKey currentKeyEncryptionKey = mKeyEncryptionKey;
-                // generate new salt and key
-                mPasswordString = newPassword;
-                generateSalt();
-                convertPassToKey(newPassword);  // no turning back if this fails!
-
-                if (info.items.length > 0) {
-                    final AtomicInteger count = new AtomicInteger(0);
-                    final int totalItems = info.items.length;
-                    for (ItemInfo item : info.items) {
-                        Timber.tag(mTAG).v("changing password on item: %s", item.readableTitle);
-                        Map<String, String> propertiesMap = new HashMap<String, String>();
-                        for (Map.Entry<CustomPropertyKey, String> entry : item.meta.getCustomProperties().entrySet()){
-                            propertiesMap.put(entry.getKey().getKey(), entry.getValue());
-                        }
-                        if (propertiesMap.get(SecureProperties.ENCRYPTION_KEY.toString())==null
-                                || propertiesMap.get(SecureProperties.ENCRYPTION_KEY_IV.toString())==null){
-                            // clear content
-                            continue;
-                        }
-                        // decrypt the encryption key using current master key
-                        byte[] keyIV = Base64.decode(propertiesMap.get(SecureProperties.ENCRYPTION_KEY_IV.toString()), Base64.URL_SAFE);
-                        byte[] encryptionKeyBytes = decryptStringToData(propertiesMap.get(SecureProperties.ENCRYPTION_KEY.toString()),
-                                currentKeyEncryptionKey, keyIV);
-                        // re-encrypt the encryption key using the new key encryption key.
-                        Map<String, String> newEncryptedKencryptionKeyValues = encryptThenBase64(encryptionKeyBytes, mKeyEncryptionKey);
-                        // update the meta data with new "encryption_key", "encryption_key_iv", and "salt
-                        propertiesMap.put(SecureProperties.ENCRYPTION_KEY_IV.toString(),
-                                newEncryptedKencryptionKeyValues.get(SecureProperties.CIPHER_TEXT_IV.toString()));
-                        propertiesMap.put(SecureProperties.ENCRYPTION_KEY.toString(),
-                                newEncryptedKencryptionKeyValues.get(SecureProperties.CIPHER_TEXT.toString()));
-                        propertiesMap.put(SecureProperties.SALT.toString(),
-                                Base64.encodeToString(mSalt, Base64.URL_SAFE));
-                        updateMetadata(item.meta.getDriveId(), propertiesMap, new ResultCallback<DriveResource.MetadataResult>() {
-                            @Override
-                            public void onResult(@NonNull DriveResource.MetadataResult metadataResult) {
-                                if (metadataResult.getStatus().isSuccess()){
-                                    if (count.incrementAndGet()==totalItems){
-                                        // all items updated.
-                                        finishCallback.callback(info);
-                                    }
-                                }else{
-                                    // unrecoverable error
-                                    Timber.tag(mTAG).e("Update meta data failed!!! Unrecoverable!");
-                                }
-                            }
-                        });
-                    }
+            public void onComplete(RekeyResult result) {
+                if (!result.isSuccess()){
+                    Timber.tag(mTAG).e("Re-keying failed for %d items, resume the password change", result.getFailed().size());
+                }
+                listAllFolder(mAppRootFolder, callback);
+            }
+        });
+    }
+
+    // Re-wraps every asset key under a key derived from newPassword, rekeyParallelism items at a
+    // time.  The app root's validation data switches to the new password first, together with
+    // a journal holding the old key encryption key wrapped under the new one.  If the change is
+    // interrupted or some items fail, setPassword(newPassword) still unlocks everything and
+    // resumePasswordChange() finishes the job.  The journal is removed once every item is done.
+    public GoogleApiStatus changePassword(final String newPassword, ChangePasswordCallback callbackInstance){
+        if (mCurrentApiStatus!=GoogleApiStatus.INITIALIZED) return mCurrentApiStatus;
+        final ChangePasswordCallback callback = publishingProgress(callbackInstance);
+        if (hasPendingPasswordChange() || !mRekeying.compareAndSet(false, true)){
+            refuseChange(callbackInstance, "Another password change has to finish first.");
+            return mCurrentApiStatus;
+        }
+        final String oldPassword;
+        final byte[] oldSalt;
+        final SecretKey oldKeyEncryptionKey;
+        final Map<String, String> cipherData;
+        synchronized (this) {
+            oldPassword = mPasswordString;
+            oldSalt = mSalt;
+            oldKeyEncryptionKey = mKeyEncryptionKey;
+            // generate new salt and key
+            mPasswordString = newPassword;
+            clearDerivedKeys();
+            mDataKeys.clear();
+            generateSalt();
+            convertPassToKey(newPassword);
+            // items not re-keyed yet stay readable meanwhile
+            pinOldKeyEncryptionKey(oldSalt, oldKeyEncryptionKey);
+
+            cipherData = encryptValidationString(RANDOM_VALIDATION_STRING);
+            Map<String, String> wrappedOldKey = encryptThenBase64(oldKeyEncryptionKey.getEncoded(), mKeyEncryptionKey);
+            cipherData.put(SecureProperties.REKEY_OLD_SALT.toString(), encodeBase64(oldSalt));
+            cipherData.put(SecureProperties.REKEY_OLD_KEY.toString(), wrappedOldKey.get(SecureProperties.CIPHER_TEXT.toString()));
+            cipherData.put(SecureProperties.REKEY_OLD_KEY_IV.toString(), wrappedOldKey.get(SecureProperties.CIPHER_TEXT_IV.toString()));
+        }
+        GoogleApiStatus status = updateMetadata(mAppRootFolder.getDriveId(), cipherData, new ResultCallback<DriveResource.MetadataResult>() {
+            @Override
+            public void onResult(@NonNull DriveResource.MetadataResult metadataResult) {
+                if (metadataResult.getStatus().isSuccess()) {
+                    Timber.tag(mTAG).v("Updated the password validation data.");
+                    mPasswordValidationData = metadataResult.getMetadata();
+                    rekey(callback);
+                }else{
+                    // nothing was re-keyed yet, the old password still holds
+                    Timber.tag(mTAG).e("Update meta data failed for password validation data!");
+                    restorePassword(oldPassword, oldSalt, oldKeyEncryptionKey);
+                    RekeyResult result = new RekeyResult();
+                    result.failed(mAppRootFolder.getDriveId(), metadataResult.getStatus());
+                    mRekeying.set(false);
+                    callback.onComplete(result);
                 }
             }
         });
-        return  mCurrentApiStatus;
+        if (status==GoogleApiStatus.DISCONNECTED){
+            restorePassword(oldPassword, oldSalt, oldKeyEncryptionKey);
+            mRekeying.set(false);
+        }
+        return status;
+    }
+
+    // an earlier password change left items on the old key
+    public boolean hasPendingPasswordChange(){
+        Metadata validationData = mPasswordValidationData;
+        return validationData!=null && validationData.getCustomProperties().containsKey(
+                new CustomPropertyKey(SecureProperties.REKEY_OLD_KEY.toString(), CustomPropertyKey.PUBLIC));
+    }
+
+    // re-keys what an interrupted or partly failed password change left behind.  Needs the
+    // new password to be set.
+    public GoogleApiStatus resumePasswordChange(ChangePasswordCallback callbackInstance){
+        if (mCurrentApiStatus!=GoogleApiStatus.INITIALIZED) return mCurrentApiStatus;
+        ChangePasswordCallback callback = publishingProgress(callbackInstance);
+        if (!hasPendingPasswordChange()){
+            callback.onComplete(new RekeyResult());
+            return mCurrentApiStatus;
+        }
+        if (!mRekeying.compareAndSet(false, true)){
+            refuseChange(callbackInstance, "The password change is already running.");
+            return mCurrentApiStatus;
+        }
+        rekey(callback);
+        return mCurrentApiStatus;
+    }
+
+    // metadata updates kept in flight while re-keying
+    public void setRekeyParallelism(int parallelism){
+        mRekeyParallelism = parallelism;
+    }
+
+    // attempts per item, and the delay before the first retry, doubled for every further one
+    public void setRekeyRetries(int maxAttempts, long backoffMillis){
+        mRekeyAttempts = maxAttempts;
+        mRekeyBackoffMillis = backoffMillis;
+    }
+
+    // how long an unwrapped asset key stays cached, 0 disables the cache
+    public void setDataKeyCacheTimeout(long millis){
+        mDataKeys.setTimeout(millis);
+        if (millis<=0) mDataKeys.clear();
     }
 
     public void clearPasswordValidationData(){
@@ -371,32 +751,136 @@ public class GoogleApiModelSecure extends GoogleApiModel {
     }
     //////////////////////// protected helper ///////////////////
 
-    @Override
-    protected boolean nameCompare(String name, Metadata item, Map<String, String> metaInfo){
-        Map<CustomPropertyKey, String> properties = item.getCustomProperties();
-//        String encryptedEncryptionKey = (String) properties.get(new CustomPropertyKey(SecureProperties.ENCRYPTION_KEY.toString(), CustomPropertyKey.PUBLIC));
-//        if (encryptedEncryptionKey==null) {
-        if(properties.get(new CustomPropertyKey(SecureProperties.ASSET_NAME_IV.toString(), CustomPropertyKey.PUBLIC))==null){
-            return item.getTitle().equals(name);
-        }else{
-            // decrypt drive asset name
-            Map<String, String> encryptInfo = new HashMap<>();
-            for (Map.Entry<CustomPropertyKey, String> entry : properties.entrySet()) {
-                String key = entry.getKey().getKey();
-                String value = entry.getValue();
-                encryptInfo.put(key, value);
-            }
-            String clearTitle = decryptAssetString(item.getTitle(), encryptInfo.get(SecureProperties.ASSET_NAME_IV.toString()), encryptInfo);
-
-            // decrypt input name
-            String clearInputTitle = decryptAssetString(name, metaInfo.get(SecureProperties.ASSET_NAME_IV.toString()), metaInfo);
+    // override these to run on a plain JVM, where android.util.Base64 is not available
+    protected String encodeBase64(byte[] input){
+        return Base64.encodeToString(input, Base64.URL_SAFE);
+    }
+    protected byte[] decodeBase64(String input){
+        return Base64.decode(input, Base64.URL_SAFE);
+    }
 
-            return clearTitle.equals(clearInputTitle);
+    @Override
+    protected String readableName(String name, Map<String, String> metaInfo){
+        if (metaInfo==null || metaInfo.get(SecureProperties.ASSET_NAME_IV.toString())==null){
+            return name;
         }
+        // decrypt input name
+        return decryptAssetString(name, metaInfo.get(SecureProperties.ASSET_NAME_IV.toString()), metaInfo);
     }
 
     //////////////////////// private helper /////////////////////
 
+    private void decryptTitles(final FolderInfo info, final ListFolderCallback callbackInstance){
+        final ItemInfo[] items = info.items;
+        Executor executor = mDecryptExecutor;
+        int parallelism = Math.min(mDecryptParallelism, items.length/MIN_TITLES_PER_DECRYPT_TASK);
+        if (executor==null || parallelism<2){
+            decryptTitles(items, 0, items.length);
+            callbackInstance.callback(info);
+            return;
+        }
+        final int chunk = (items.length + parallelism - 1)/parallelism;
+        final AtomicInteger remaining = new AtomicInteger((items.length + chunk - 1)/chunk);
+        for (int start=0; start<items.length; start+=chunk){
+            final int from = start;
+            final int to = Math.min(start+chunk, items.length);
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        decryptTitles(items, from, to);
+                    } finally {
+                        if (remaining.decrementAndGet()==0) callbackInstance.callback(info);
+                    }
+                }
+            };
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.run();
+            }
+        }
+    }
+    private void deferTitles(ItemInfo[] items){
+        for (ItemInfo item : items){
+            if (item.meta.getCustomProperties().get(ASSET_NAME_IV_KEY) != null){
+                item.titleDecoder = mTitleDecoder;
+            }
+        }
+    }
+    private void decryptTitles(ItemInfo[] items, int from, int to){
+        for (int i=from; i<to; i++){
+            ItemInfo item = items[i];
+            Map<CustomPropertyKey, String> properties = item.meta.getCustomProperties();
+            if (properties.get(ASSET_NAME_IV_KEY) != null){
+                // decrypt drive asset name
+                item.readableTitle = mTitleDecoder.decode(item.meta);
+            }
+        }
+    }
+    private interface ContentsCallback {
+        void callback(byte[] clearFileContent);
+    }
+    // decrypts contents written as one base64 encoded message, null on failure
+    private GoogleApiStatus readBase64Contents(final ItemInfo assetInfo, final ContentsCallback callbackInstance){
+        return super.readTxtFile(assetInfo, StandardCharsets.US_ASCII, new ReadTxtFileCallback() {
+            @Override
+            public void callback(String fileContent) {
+                if (fileContent.length()==0) {
+                    callbackInstance.callback(new byte[0]);
+                    return;
+                }
+                Timber.tag(mTAG).v("Read text (encrypted): %s", fileContent);
+                Map<String, String> encryptInfo = toEncryptInfo(assetInfo.meta.getCustomProperties());
+                callbackInstance.callback(decryptAssetBytes(assetInfo.meta.getDriveId(), fileContent,
+                        encryptInfo.get(SecureProperties.CIPHER_TEXT_IV.toString()), encryptInfo));
+            }
+        });
+    }
+    private static boolean isStreamEncrypted(ItemInfo assetInfo){
+        return StreamingGcm.FORMAT.equals(assetInfo.meta.getCustomProperties().get(
+                new CustomPropertyKey(SecureProperties.CONTENT_FORMAT.toString(), CustomPropertyKey.PUBLIC)));
+    }
+    private static void closeQuietly(Closeable closeable){
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // nothing left to do with it
+        }
+    }
+    // the data key of meta's item, null without a password or when it can't be unwrapped
+    private SecretKey journalKey(Metadata meta){
+        synchronized (this){
+            if (mKeyEncryptionKey==null) return null;
+        }
+        try {
+            return unwrapDataKey(meta.getDriveId(), toEncryptInfo(meta.getCustomProperties()));
+        } catch (RuntimeException e) {
+            Timber.tag(mTAG).e(e, "exception!");
+            return null;
+        }
+    }
+    private static byte[] prefixed(byte prefix, byte[] content){
+        byte[] prefixed = new byte[content.length+1];
+        prefixed[0] = prefix;
+        System.arraycopy(content, 0, prefixed, 1, content.length);
+        return prefixed;
+    }
+    private static boolean isEncrypted(ItemInfo assetInfo){
+        return isEncrypted(assetInfo.meta);
+    }
+    private static boolean isEncrypted(Metadata meta){
+        return meta.getCustomProperties().containsKey(
+                new CustomPropertyKey(SecureProperties.ENCRYPTION_KEY.toString(), CustomPropertyKey.PUBLIC));
+    }
+    private static Map<String, String> toEncryptInfo(Map<CustomPropertyKey, String> properties){
+        Map<String, String> encryptInfo = new HashMap<>(properties.size()*2);
+        for (Map.Entry<CustomPropertyKey, String> entry : properties.entrySet()) {
+            encryptInfo.put(entry.getKey().getKey(), entry.getValue());
+        }
+        return encryptInfo;
+    }
+
     // validate password
     private boolean passwordValidation(){
         Map<CustomPropertyKey, String> properties = mPasswordValidationData.getCustomProperties();
@@ -424,11 +908,197 @@ public class GoogleApiModelSecure extends GoogleApiModel {
         secureRandom.nextBytes(mSalt);
     }
     private void convertPassToKey(String password){
-        KeySpec keySpec = new PBEKeySpec(password.toCharArray(), mSalt,
+        mKeyEncryptionKey = deriveKey(password, mSalt);
+        synchronized (mDerivedKeys) {
+            mDerivedKeys.put(encodeBase64(mSalt), mKeyEncryptionKey);
+        }
+    }
+    // key encryption key for an asset salt, derived at most once per salt and password
+    private SecretKey keyEncryptionKeyFor(String saltStr){
+        synchronized (mDerivedKeys) {
+            if (mSalt==null){
+                // first salt seen since the password was set becomes the current one
+                mSalt = decodeBase64(saltStr);
+                convertPassToKey(mPasswordString);
+                return mKeyEncryptionKey;
+            }
+            if (saltStr.equals(mOldSalt)) return mOldKeyEncryptionKey;
+            SecretKey key = mDerivedKeys.get(saltStr);
+            if (key==null){
+                key = deriveKey(mPasswordString, decodeBase64(saltStr));
+                mDerivedKeys.put(saltStr, key);
+            }
+            return key;
+        }
+    }
+    private void clearDerivedKeys(){
+        synchronized (mDerivedKeys) {
+            mDerivedKeys.clear();
+            mOldSalt = null;
+            mOldKeyEncryptionKey = null;
+        }
+    }
+    private void rememberKeyEncryptionKey(byte[] salt, SecretKey key){
+        synchronized (mDerivedKeys) {
+            mDerivedKeys.put(encodeBase64(salt), key);
+        }
+    }
+    // until every item is re-keyed, see clearDerivedKeys()
+    private void pinOldKeyEncryptionKey(byte[] salt, SecretKey key){
+        synchronized (mDerivedKeys) {
+            mOldSalt = encodeBase64(salt);
+            mOldKeyEncryptionKey = key;
+        }
+    }
+    private synchronized void restorePassword(String password, byte[] salt, SecretKey keyEncryptionKey){
+        mPasswordString = password;
+        clearDerivedKeys();
+        mDataKeys.clear();
+        mSalt = salt;
+        mKeyEncryptionKey = keyEncryptionKey;
+        rememberKeyEncryptionKey(salt, keyEncryptionKey);
+    }
+
+    //////////////////// re-keying ////////////////////////
+
+    // makes the old key encryption key in the journal usable again, so items a password change
+    // has not reached yet can be read.  false when there is no journal or it can't be unwrapped.
+    private boolean unwrapJournalKey(){
+        Metadata validationData = mPasswordValidationData;
+        if (validationData==null) return false;
+        Map<String, String> journal = toEncryptInfo(validationData.getCustomProperties());
+        String oldSalt = journal.get(SecureProperties.REKEY_OLD_SALT.toString());
+        String oldKey = journal.get(SecureProperties.REKEY_OLD_KEY.toString());
+        String oldKeyIV = journal.get(SecureProperties.REKEY_OLD_KEY_IV.toString());
+        if (oldSalt==null || oldKey==null || oldKeyIV==null) return false;
+        byte[] oldKeyBytes = decryptStringToData(oldKey, keyEncryptionKeyFor(journal.get(SecureProperties.SALT.toString())),
+                decodeBase64(oldKeyIV));
+        if (oldKeyBytes==null) return false;
+        pinOldKeyEncryptionKey(decodeBase64(oldSalt), new SecretKeySpec(oldKeyBytes, "AES"));
+        return true;
+    }
+
+    // callback, also publishing every step as a DriveEvent.RekeyProgress
+    // a change that could not start fails at once, against the app root like a failed validation data update.
+    // Not published, the change that is running will publish its own result.
+    private void refuseChange(ChangePasswordCallback callback, String reason){
+        Timber.tag(mTAG).e(reason);
+        RekeyResult result = new RekeyResult();
+        result.failed(mAppRootFolder.getDriveId(), new Status(CommonStatusCodes.ERROR, reason));
+        callback.onComplete(result);
+    }
+
+    private ChangePasswordCallback publishingProgress(final ChangePasswordCallback callback){
+        return new ChangePasswordCallback() {
+            private volatile int mDone, mFailed, mFound;
+
+            @Override
+            public void onProgress(int done, int failed, int found) {
+                mDone = done;
+                mFailed = failed;
+                mFound = found;
+                if (mEventBus.hasSubscribers(DriveEvent.RekeyProgress.class)){
+                    mEventBus.publish(new DriveEvent.RekeyProgress(done, failed, found, null));
+                }
+                callback.onProgress(done, failed, found);
+            }
+
+            @Override
+            public void onComplete(RekeyResult result) {
+                mEventBus.publish(new DriveEvent.RekeyProgress(mDone, mFailed, mFound, result));
+                callback.onComplete(result);
+            }
+        };
+    }
+
+    private void rekey(final ChangePasswordCallback callback){
+        if (!unwrapJournalKey()){
+            Timber.tag(mTAG).e("Password change journal can't be read!");
+        }
+        final String newSalt;
+        final SecretKey newKeyEncryptionKey;
+        synchronized (this) {
+            newSalt = encodeBase64(mSalt);
+            newKeyEncryptionKey = mKeyEncryptionKey;
+        }
+        Rekeyer.KeyWrapper wrapper = new Rekeyer.KeyWrapper() {
+            @Override
+            public Map<String, String> rewrap(ItemInfo item) throws GeneralSecurityException {
+                Map<String, String> propertiesMap = toEncryptInfo(item.meta.getCustomProperties());
+                String wrappedKey = propertiesMap.get(SecureProperties.ENCRYPTION_KEY.toString());
+                String wrappedKeyIV = propertiesMap.get(SecureProperties.ENCRYPTION_KEY_IV.toString());
+                String salt = propertiesMap.get(SecureProperties.SALT.toString());
+                if (wrappedKey==null || wrappedKeyIV==null || salt==null || newSalt.equals(salt)){
+                    // clear content, or re-keyed already
+                    return null;
+                }
+                // decrypt the encryption key using the key encryption key it was wrapped with
+                byte[] encryptionKeyBytes = decryptStringToData(wrappedKey, keyEncryptionKeyFor(salt), decodeBase64(wrappedKeyIV));
+                if (encryptionKeyBytes==null){
+                    throw new GeneralSecurityException("can't unwrap the key of " + item.meta.getDriveId());
+                }
+                // re-encrypt the encryption key using the new key encryption key.
+                Map<String, String> newWrappedKey = encryptThenBase64(encryptionKeyBytes, newKeyEncryptionKey);
+                Map<String, String> changes = new HashMap<>();
+                changes.put(SecureProperties.ENCRYPTION_KEY_IV.toString(),
+                        newWrappedKey.get(SecureProperties.CIPHER_TEXT_IV.toString()));
+                changes.put(SecureProperties.ENCRYPTION_KEY.toString(),
+                        newWrappedKey.get(SecureProperties.CIPHER_TEXT.toString()));
+                changes.put(SecureProperties.SALT.toString(), newSalt);
+                return changes;
+            }
+        };
+        new Rekeyer(this, wrapper, mRekeyParallelism, mRekeyAttempts, mRekeyBackoffMillis, new Rekeyer.Callback() {
+            @Override
+            public void onProgress(int done, int failed, int found) {
+                callback.onProgress(done, failed, found);
+            }
+
+            @Override
+            public void onComplete(final RekeyResult result) {
+                if (!result.isSuccess()){
+                    // keep the journal, resumePasswordChange() picks up the rest
+                    mRekeying.set(false);
+                    callback.onComplete(result);
+                    return;
+                }
+                Map<String, String> journal = new HashMap<>();
+                journal.put(SecureProperties.REKEY_OLD_SALT.toString(), null);
+                journal.put(SecureProperties.REKEY_OLD_KEY.toString(), null);
+                journal.put(SecureProperties.REKEY_OLD_KEY_IV.toString(), null);
+                GoogleApiStatus status = updateMetadata(mAppRootFolder.getDriveId(), journal, new ResultCallback<DriveResource.MetadataResult>() {
+                    @Override
+                    public void onResult(@NonNull DriveResource.MetadataResult metadataResult) {
+                        if (metadataResult.getStatus().isSuccess()) {
+                            mPasswordValidationData = metadataResult.getMetadata();
+                            // every item is on the new key now
+                            synchronized (mDerivedKeys) {
+                                mOldSalt = null;
+                                mOldKeyEncryptionKey = null;
+                            }
+                        }else{
+                            // harmless, the next resume finds nothing left to re-key
+                            Timber.tag(mTAG).e("Removing the password change journal failed.");
+                        }
+                        mRekeying.set(false);
+                        callback.onComplete(result);
+                    }
+                });
+                if (status==GoogleApiStatus.DISCONNECTED){
+                    mRekeying.set(false);
+                    callback.onComplete(result);
+                }
+            }
+        }).start(mAppRootFolder);
+    }
+    // timed as "crypto.derive_key", by far the slowest crypto step
+    private SecretKey deriveKey(String password, byte[] salt){
+        long start = System.nanoTime();
+        KeySpec keySpec = new PBEKeySpec(password.toCharArray(), salt,
                 ITERATIONS, KEYLENGTH);
         SecretKeyFactory keyFactory = null;
         try {
-            keyFactory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+            keyFactory = CryptoPool.pbkdf2KeyFactory();
         } catch (NoSuchAlgorithmException e) {
             Timber.tag(mTAG).e(e, "exception!");
             //TODO: need to notify user
@@ -440,18 +1110,20 @@ public class GoogleApiModelSecure extends GoogleApiModel {
             Timber.tag(mTAG).e(e, "exception!");
             //TODO: need to notify user
         }
-        mKeyEncryptionKey = new SecretKeySpec(keyBytes, "AES");
+        mMetrics.recordLatency("crypto.derive_key", System.nanoTime()-start, keyBytes.length>0);
+        return new SecretKeySpec(keyBytes, "AES");
     }
 
-    // general encryption
+    // general encryption, timed as "crypto.encrypt"
     private Map<String, String> encryptThenBase64(byte[] input, SecretKey key){
+        long start = System.nanoTime();
         //Map<String, String> values = new HashMap<String, String>();
         Map<String, String> values = new HashMap<String, String>();
 
         // create cipher
         Cipher cipher = null;
         try {
-            cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher = CryptoPool.gcmCipher();
         } catch (NoSuchAlgorithmException e) {
             Timber.tag(mTAG).e(e, "exception!");
             // TODO: notify user
@@ -461,8 +1133,8 @@ public class GoogleApiModelSecure extends GoogleApiModel {
         }
         final byte[] iv = new byte[cipher.getBlockSize()];
         secureRandom.nextBytes(iv);
-        String ivString=Base64.encodeToString(iv, Base64.URL_SAFE);
-        IvParameterSpec ivParams = new IvParameterSpec(iv);
+        String ivString=encodeBase64(iv);
+        GCMParameterSpec ivParams = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
         try {
             cipher.init(Cipher.ENCRYPT_MODE, key, ivParams);
         } catch (InvalidKeyException e) {
@@ -483,7 +1155,8 @@ public class GoogleApiModelSecure extends GoogleApiModel {
             Timber.tag(mTAG).e(e, "exception!");
             // TODO: notify user
         }
-        final String encryptedText = Base64.encodeToString(ciphertext, Base64.URL_SAFE);
+        mMetrics.recordLatency("crypto.encrypt", System.nanoTime()-start, ciphertext!=null);
+        final String encryptedText = encodeBase64(ciphertext);
 
         values.put(SecureProperties.CIPHER_TEXT.toString(), encryptedText);
         values.put(SecureProperties.CIPHER_TEXT_IV.toString(), ivString);
@@ -493,16 +1166,16 @@ public class GoogleApiModelSecure extends GoogleApiModel {
     private Map<String, String> encryptStringThenBase64(String input, SecretKey key){
         return encryptThenBase64(input.getBytes(), key);
     }
-    private Map<String, String> encryptAssetName(String name){
+    @VisibleForTesting
+    Map<String, String> encryptAssetName(String name){
         // generate encryption key
         KeyGenerator keyGen = null;
         try {
-            keyGen = KeyGenerator.getInstance("AES");
+            keyGen = CryptoPool.aesKeyGenerator(KEYLENGTH);
         } catch (NoSuchAlgorithmException e) {
             Timber.tag(mTAG).e(e, "exception!");
             //TODO: notify user then exit
         }
-        keyGen.init(KEYLENGTH);
         SecretKey secretKey = keyGen.generateKey();
 
         // encrypt name and get IV
@@ -516,7 +1189,7 @@ public class GoogleApiModelSecure extends GoogleApiModel {
         assetInfo.put(SecureProperties.ASSET_NAME_IV.toString(), cipherAndIV.get(SecureProperties.CIPHER_TEXT_IV.toString()));
         assetInfo.put(SecureProperties.ENCRYPTION_KEY.toString(), encryptedEncryptionKeyandIV.get(SecureProperties.CIPHER_TEXT.toString()));
         assetInfo.put(SecureProperties.ENCRYPTION_KEY_IV.toString(), encryptedEncryptionKeyandIV.get(SecureProperties.CIPHER_TEXT_IV.toString()));
-        assetInfo.put(SecureProperties.SALT.toString(), Base64.encodeToString(mSalt, Base64.URL_SAFE));
+        assetInfo.put(SecureProperties.SALT.toString(), encodeBase64(mSalt));
 
         return assetInfo;
     }
@@ -526,40 +1199,43 @@ public class GoogleApiModelSecure extends GoogleApiModel {
         cipherData.put(SecureProperties.VALIDATION_TEXT_IV.toString(), cipherData.remove(SecureProperties.ASSET_NAME_IV.toString()));
         return cipherData;
     }
-    private String encryptAssetString(String clearAssetString, Map<String, String> encryptInfo){
-        // check the salt
-        String saltStr = encryptInfo.get(SecureProperties.SALT.toString());
-        if (!Base64.encodeToString(mSalt, Base64.URL_SAFE).equals(saltStr)){
-            // salt changed, regenerate master key encryption key
-            mSalt = Base64.decode(saltStr, Base64.URL_SAFE);
-            convertPassToKey(mPasswordString);
-        }
-        // decrypt the encryption key using master key
-        byte[] keyIV = Base64.decode(encryptInfo.get(SecureProperties.ENCRYPTION_KEY_IV.toString()), Base64.URL_SAFE);
-        byte[] encryptionKeyBytes = decryptStringToData(encryptInfo.get(SecureProperties.ENCRYPTION_KEY.toString()), mKeyEncryptionKey, keyIV);
-        SecretKey encryptionKey = new SecretKeySpec(encryptionKeyBytes, "AES");
 
-        // encrypt the asset string and get IV
-        Map<String, String> cipherAndIV = encryptStringThenBase64(clearAssetString, encryptionKey);
-
-        // add the asset IV to the encryptInfo map
-        encryptInfo.put(SecureProperties.CIPHER_TEXT_IV.toString(), cipherAndIV.get(SecureProperties.CIPHER_TEXT_IV.toString()));
+    // the asset encryption key, unwrapped with the master key encryption key unless it is cached
+    private SecretKey unwrapDataKey(DriveId assetID, Map<String, String> encryptInfo){
+        String wrappedKey = encryptInfo.get(SecureProperties.ENCRYPTION_KEY.toString());
+        DataKeyId dataKeyId = new DataKeyId(assetID, wrappedKey);
+        SecretKey encryptionKey = mDataKeys.get(dataKeyId);
+        if (encryptionKey!=null){
+            mMetrics.count("crypto.data_key.hits", 1);
+            return encryptionKey;
+        }
+        mMetrics.count("crypto.data_key.misses", 1);
 
-        // return the encrypted string
-        return cipherAndIV.get(SecureProperties.CIPHER_TEXT.toString());
+        // master key encryption key for the asset salt
+        SecretKey keyEncryptionKey = keyEncryptionKeyFor(encryptInfo.get(SecureProperties.SALT.toString()));
+        // decrypt the encryption key using master key
+        byte[] keyIV = decodeBase64(encryptInfo.get(SecureProperties.ENCRYPTION_KEY_IV.toString()));
+        byte[] encryptionKeyBytes = decryptStringToData(wrappedKey, keyEncryptionKey, keyIV);
+        if (encryptionKeyBytes==null){
+            return null;
+        }
+        encryptionKey = new SecretKeySpec(encryptionKeyBytes, "AES");
+        mDataKeys.put(dataKeyId, encryptionKey);
+        return encryptionKey;
     }
 
-    // general decryption
+    // general decryption, timed as "crypto.decrypt"
     private byte[] decryptData(byte[] input, SecretKey key, byte[] iv){
+        long start = System.nanoTime();
         Cipher cipher = null;
         try {
-            cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher = CryptoPool.gcmCipher();
         } catch (NoSuchAlgorithmException e) {
             Timber.tag(mTAG).e(e, "exception!");
         } catch (NoSuchPaddingException e) {
             Timber.tag(mTAG).e(e, "exception!");
         }
-        IvParameterSpec ivParams = new IvParameterSpec(iv);
+        GCMParameterSpec ivParams = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
         try {
             cipher.init(Cipher.DECRYPT_MODE, key, ivParams);
         } catch (InvalidKeyException e) {
@@ -575,32 +1251,34 @@ public class GoogleApiModelSecure extends GoogleApiModel {
         } catch (BadPaddingException e) {
             Timber.tag(mTAG).e(e, "exception!");
         }
+        mMetrics.recordLatency("crypto.decrypt", System.nanoTime()-start, plaintext!=null);
         return plaintext;
     }
     private byte[] decryptStringToData(String input, SecretKey key, byte[] iv){
-        return decryptData(Base64.decode(input, Base64.URL_SAFE), key, iv);
+        return decryptData(decodeBase64(input), key, iv);
     }
     private String decryptStringToString(String input, SecretKey key, byte[] iv){
         return new String(decryptStringToData(input, key, iv));
     }
-    private String decryptAssetString(String encryptedString, String iv, Map<String, String> encryptInfo){
-        // check the salt
-        String saltStr = encryptInfo.get(SecureProperties.SALT.toString());
-        if (mSalt==null || !Base64.encodeToString(mSalt, Base64.URL_SAFE).equals(saltStr)){
-            // salt changed, regenerate master key encryption key
-            mSalt = Base64.decode(saltStr, Base64.URL_SAFE);
-            convertPassToKey(mPasswordString);
+    @VisibleForTesting
+    String decryptAssetString(String encryptedString, String iv, Map<String, String> encryptInfo){
+        return decryptAssetString(null, encryptedString, iv, encryptInfo);
+    }
+    private byte[] decryptAssetBytes(DriveId assetID, String encryptedString, String iv, Map<String, String> encryptInfo){
+        SecretKey encryptionKey = unwrapDataKey(assetID, encryptInfo);
+        if (encryptionKey==null){
+            return null;
         }
-        // decrypt the encryption key using master key
-        byte[] keyIV = Base64.decode(encryptInfo.get(SecureProperties.ENCRYPTION_KEY_IV.toString()), Base64.URL_SAFE);
-        byte[] encryptionKeyBytes = decryptStringToData(encryptInfo.get(SecureProperties.ENCRYPTION_KEY.toString()), mKeyEncryptionKey, keyIV);
-        if (encryptionKeyBytes==null){
+        return decryptStringToData(encryptedString, encryptionKey, decodeBase64(iv));
+    }
+    private String decryptAssetString(DriveId assetID, String encryptedString, String iv, Map<String, String> encryptInfo){
+        SecretKey encryptionKey = unwrapDataKey(assetID, encryptInfo);
+        if (encryptionKey==null){
             return null;
         }
-        SecretKey encryptionKey = new SecretKeySpec(encryptionKeyBytes, "AES");
 
         // decrypt the name
-        byte[] assetStringIV=Base64.decode(iv, Base64.URL_SAFE);
+        byte[] assetStringIV=decodeBase64(iv);
         String assetString = decryptStringToString(encryptedString, encryptionKey, assetStringIV);
         return assetString;
     }
@@ -0,0 +1,229 @@
+package swordriver.com.googledrivemodule;
+
+import android.os.ParcelFileDescriptor;
+import android.support.annotation.NonNull;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.drive.Drive;
+import com.google.android.gms.drive.DriveApi;
+import com.google.android.gms.drive.DriveContents;
+import com.google.android.gms.drive.DriveFile;
+import com.google.android.gms.drive.DriveFolder;
+import com.google.android.gms.drive.DriveId;
+import com.google.android.gms.drive.DriveResource;
+import com.google.android.gms.drive.Metadata;
+import com.google.android.gms.drive.MetadataBuffer;
+import com.google.android.gms.drive.MetadataChangeSet;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * DriveBackend on top of the Google Play services Drive API.
+ */
+public class GoogleDriveBackend implements DriveBackend {
+
+    private final GoogleApiClient mGoogleApiClient;
+
+    public GoogleDriveBackend(GoogleApiClient googleApiClient){
+        mGoogleApiClient = googleApiClient;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mGoogleApiClient!=null && mGoogleApiClient.isConnected();
+    }
+
+    @Override
+    public DriveFolder getRootFolder() {
+        return Drive.DriveApi.getRootFolder(mGoogleApiClient);
+    }
+
+    @Override
+    public void listParents(DriveId assetID, final Callback<List<Metadata>> callback) {
+        assetID.asDriveResource().listParents(mGoogleApiClient)
+                .setResultCallback(new ResultCallback<DriveApi.MetadataBufferResult>() {
+                    @Override
+                    public void onResult(@NonNull DriveApi.MetadataBufferResult result) {
+                        deliverBuffer(result, callback);
+                    }
+                });
+    }
+
+    @Override
+    public void listChildren(DriveFolder folder, final Callback<List<Metadata>> callback) {
+        folder.listChildren(mGoogleApiClient)
+                .setResultCallback(new ResultCallback<DriveApi.MetadataBufferResult>() {
+                    @Override
+                    public void onResult(@NonNull DriveApi.MetadataBufferResult result) {
+                        deliverBuffer(result, callback);
+                    }
+                });
+    }
+
+    @Override
+    public void createFolder(DriveFolder parent, MetadataChangeSet changeSet, final Callback<DriveFolder> callback) {
+        parent.createFolder(mGoogleApiClient, changeSet)
+                .setResultCallback(new ResultCallback<DriveFolder.DriveFolderResult>() {
+                    @Override
+                    public void onResult(@NonNull DriveFolder.DriveFolderResult result) {
+                        callback.onResult(result.getStatus(),
+                                result.getStatus().isSuccess() ? result.getDriveFolder() : null);
+                    }
+                });
+    }
+
+    @Override
+    public void createFile(DriveFolder parent, MetadataChangeSet changeSet, final Callback<DriveFile> callback) {
+        parent.createFile(mGoogleApiClient, changeSet, null)
+                .setResultCallback(new ResultCallback<DriveFolder.DriveFileResult>() {
+                    @Override
+                    public void onResult(@NonNull DriveFolder.DriveFileResult result) {
+                        callback.onResult(result.getStatus(),
+                                result.getStatus().isSuccess() ? result.getDriveFile() : null);
+                    }
+                });
+    }
+
+    @Override
+    public void open(DriveFile file, int mode, final Callback<Contents> callback) {
+        file.open(mGoogleApiClient, mode, null)
+                .setResultCallback(new ResultCallback<DriveApi.DriveContentsResult>() {
+                    @Override
+                    public void onResult(@NonNull DriveApi.DriveContentsResult result) {
+                        if (!result.getStatus().isSuccess()) {
+                            callback.onResult(result.getStatus(), null);
+                            return;
+                        }
+                        callback.onResult(result.getStatus(), new GoogleContents(result.getDriveContents()));
+                    }
+                });
+    }
+
+    @Override
+    // Play services' commit only reports a status.  The metadata is read from its local store,
+    // which the commit has just updated, so no request goes to the server for it.
+    public void commit(Contents contents, MetadataChangeSet changeSet, final Callback<Metadata> callback) {
+        final DriveId assetID = contents.getDriveId();
+        ((GoogleContents) contents).mDriveContents.commit(mGoogleApiClient, changeSet)
+                .setResultCallback(new ResultCallback<Status>() {
+                    @Override
+                    public void onResult(@NonNull final Status status) {
+                        if (!status.isSuccess()){
+                            callback.onResult(status, null);
+                            return;
+                        }
+                        getMetadata(assetID, new Callback<Metadata>() {
+                            @Override
+                            public void onResult(Status metaStatus, Metadata meta) {
+                                // committed either way
+                                callback.onResult(status, metaStatus.isSuccess() ? meta : null);
+                            }
+                        });
+                    }
+                });
+    }
+
+    @Override
+    public void discard(Contents contents) {
+        ((GoogleContents) contents).mDriveContents.discard(mGoogleApiClient);
+    }
+
+    @Override
+    public void delete(DriveId assetID, final Callback<Void> callback) {
+        assetID.asDriveResource().delete(mGoogleApiClient)
+                .setResultCallback(new ResultCallback<Status>() {
+                    @Override
+                    public void onResult(@NonNull Status status) {
+                        callback.onResult(status, null);
+                    }
+                });
+    }
+
+    @Override
+    public void updateMetadata(DriveId assetID, MetadataChangeSet changeSet, final Callback<Metadata> callback) {
+        assetID.asDriveResource().updateMetadata(mGoogleApiClient, changeSet)
+                .setResultCallback(new ResultCallback<DriveResource.MetadataResult>() {
+                    @Override
+                    public void onResult(@NonNull DriveResource.MetadataResult result) {
+                        callback.onResult(result.getStatus(), result.getMetadata());
+                    }
+                });
+    }
+
+    @Override
+    public void getMetadata(DriveId assetID, final Callback<Metadata> callback) {
+        assetID.asDriveResource().getMetadata(mGoogleApiClient)
+                .setResultCallback(new ResultCallback<DriveResource.MetadataResult>() {
+                    @Override
+                    public void onResult(@NonNull DriveResource.MetadataResult result) {
+                        callback.onResult(result.getStatus(), result.getMetadata());
+                    }
+                });
+    }
+
+    //////////////////// private helper ////////////////////////
+
+    private static void deliverBuffer(DriveApi.MetadataBufferResult result, Callback<List<Metadata>> callback){
+        if (!result.getStatus().isSuccess()) {
+            callback.onResult(result.getStatus(), Collections.<Metadata>emptyList());
+            return;
+        }
+        MetadataBuffer buffer = result.getMetadataBuffer();
+        List<Metadata> items = new ArrayList<>(buffer.getCount());
+        for (int i=0; i<buffer.getCount(); i++){
+            items.add(buffer.get(i).freeze());
+        }
+        buffer.release();
+        result.release();
+        callback.onResult(result.getStatus(), items);
+    }
+
+    private static class GoogleContents implements Contents {
+        private final DriveContents mDriveContents;
+
+        GoogleContents(DriveContents driveContents){
+            mDriveContents = driveContents;
+        }
+
+        @Override
+        public DriveId getDriveId() {
+            return mDriveContents.getDriveId();
+        }
+
+        @Override
+        public int getMode() {
+            return mDriveContents.getMode();
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return mDriveContents.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            // write through the descriptor, so the whole file is replaced
+            ParcelFileDescriptor parcelFileDescriptor = mDriveContents.getParcelFileDescriptor();
+            return new FileOutputStream(parcelFileDescriptor.getFileDescriptor());
+        }
+
+        @Override
+        public FileChannel getChannel() {
+            ParcelFileDescriptor parcelFileDescriptor = mDriveContents.getParcelFileDescriptor();
+            if (parcelFileDescriptor==null) return null;
+            if (mDriveContents.getMode()==DriveFile.MODE_READ_ONLY){
+                return new FileInputStream(parcelFileDescriptor.getFileDescriptor()).getChannel();
+            }
+            return new FileOutputStream(parcelFileDescriptor.getFileDescriptor()).getChannel();
+        }
+    }
+}
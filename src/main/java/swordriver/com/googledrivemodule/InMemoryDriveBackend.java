@@ -0,0 +1,498 @@
+package swordriver.com.googledrivemodule;
+
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.drive.DriveFile;
+import com.google.android.gms.drive.DriveFolder;
+import com.google.android.gms.drive.DriveId;
+import com.google.android.gms.drive.DriveStatusCodes;
+import com.google.android.gms.drive.Metadata;
+import com.google.android.gms.drive.MetadataChangeSet;
+import com.google.android.gms.drive.metadata.CustomPropertyKey;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * DriveBackend that keeps the whole drive in memory.
+ * Latency and failures can be configured per operation, so the model can be measured
+ * repeatably on a plain JVM.
+ *
+ * Without latency, callbacks run on the calling thread.  With latency, they run on the
+ * callback scheduler, which is single threaded by default like the Play services main thread.
+ */
+public class InMemoryDriveBackend implements DriveBackend, DriveBackend.BatchDelete {
+
+    private static final String ROOT_TITLE = "My Drive";
+
+    private final ScheduledExecutorService mScheduler;
+    private final Map<String, Node> mNodes = new HashMap<>();
+    private final Node mRoot;
+    private final AtomicLong mNextId = new AtomicLong(1);
+    private final Random mRandom = new Random(0);
+
+    private final Map<Operation, Long> mLatencyMillis = new EnumMap<>(Operation.class);
+    private final Map<Operation, Double> mFailureRate = new EnumMap<>(Operation.class);
+    private final Map<Operation, Integer> mFailNext = new EnumMap<>(Operation.class);
+    private final Map<Operation, AtomicLong> mCallCount = new EnumMap<>(Operation.class);
+    private volatile boolean mConnected = true;
+    private volatile File mContentDirectory = null;
+
+    public InMemoryDriveBackend(){
+        this(Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "InMemoryDriveBackend");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }));
+    }
+
+    public InMemoryDriveBackend(ScheduledExecutorService callbackScheduler){
+        mScheduler = callbackScheduler;
+        for (Operation op : Operation.values()){
+            mCallCount.put(op, new AtomicLong(0));
+        }
+        mRoot = newNode(null, ROOT_TITLE, DriveFolder.MIME_TYPE, true);
+    }
+
+    /////////////////// configuration ////////////////
+
+    public synchronized void setLatency(long millis){
+        for (Operation op : Operation.values()){
+            mLatencyMillis.put(op, millis);
+        }
+    }
+
+    public synchronized void setLatency(Operation op, long millis){
+        mLatencyMillis.put(op, millis);
+    }
+
+    // probability in [0, 1] that a call of this type fails
+    public synchronized void setFailureRate(Operation op, double rate){
+        mFailureRate.put(op, rate);
+    }
+
+    // make the next count calls of this type fail
+    public synchronized void failNext(Operation op, int count){
+        mFailNext.put(op, count);
+    }
+
+    // opened contents are staged in files under directory, like Play services does, so
+    // Contents.getChannel() has a file to give.  null keeps them in memory.
+    public void setContentDirectory(File directory){
+        mContentDirectory = directory;
+    }
+
+    public void setConnected(boolean connected){
+        mConnected = connected;
+    }
+
+    public long getCallCount(Operation op){
+        return mCallCount.get(op).get();
+    }
+
+    public void resetCallCounts(){
+        for (AtomicLong count : mCallCount.values()){
+            count.set(0);
+        }
+    }
+
+    /////////////////// DriveBackend ////////////////
+
+    @Override
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    @Override
+    public DriveFolder getRootFolder() {
+        return mRoot.driveId.asDriveFolder();
+    }
+
+    @Override
+    public void listParents(final DriveId assetID, Callback<List<Metadata>> callback) {
+        dispatch(Operation.LIST_PARENTS, callback, Collections.<Metadata>emptyList(), new Task<List<Metadata>>() {
+            @Override
+            public List<Metadata> run() {
+                Node node = requireNode(assetID);
+                if (node.parent==null) return Collections.emptyList();
+                return Collections.<Metadata>singletonList(node.parent.snapshot());
+            }
+        });
+    }
+
+    @Override
+    public void listChildren(final DriveFolder folder, Callback<List<Metadata>> callback) {
+        dispatch(Operation.LIST_CHILDREN, callback, Collections.<Metadata>emptyList(), new Task<List<Metadata>>() {
+            @Override
+            public List<Metadata> run() {
+                Node node = requireNode(folder.getDriveId());
+                List<Metadata> items = new ArrayList<>(node.children.size());
+                for (Node child : node.children.values()){
+                    items.add(child.snapshot());
+                }
+                return items;
+            }
+        });
+    }
+
+    @Override
+    public void createFolder(final DriveFolder parent, final MetadataChangeSet changeSet, Callback<DriveFolder> callback) {
+        dispatch(Operation.CREATE_FOLDER, callback, null, new Task<DriveFolder>() {
+            @Override
+            public DriveFolder run() {
+                Node node = newNode(requireNode(parent.getDriveId()), changeSet.getTitle(), DriveFolder.MIME_TYPE, true);
+                node.apply(changeSet);
+                return node.driveId.asDriveFolder();
+            }
+        });
+    }
+
+    @Override
+    public void createFile(final DriveFolder parent, final MetadataChangeSet changeSet, Callback<DriveFile> callback) {
+        dispatch(Operation.CREATE_FILE, callback, null, new Task<DriveFile>() {
+            @Override
+            public DriveFile run() {
+                Node node = newNode(requireNode(parent.getDriveId()), changeSet.getTitle(), changeSet.getMimeType(), false);
+                node.apply(changeSet);
+                return node.driveId.asDriveFile();
+            }
+        });
+    }
+
+    @Override
+    public void open(final DriveFile file, final int mode, Callback<Contents> callback) {
+        dispatch(Operation.OPEN, callback, null, new Task<Contents>() {
+            @Override
+            public Contents run() {
+                Node node = requireNode(file.getDriveId());
+                InMemoryContents contents = new InMemoryContents(node.driveId, mode, node.content);
+                File directory = mContentDirectory;
+                if (directory!=null) contents.stage(directory);
+                return contents;
+            }
+        });
+    }
+
+    @Override
+    public void commit(final Contents contents, final MetadataChangeSet changeSet, Callback<Metadata> callback) {
+        dispatch(Operation.COMMIT, callback, null, new Task<Metadata>() {
+            @Override
+            public Metadata run() {
+                Node node = requireNode(contents.getDriveId());
+                InMemoryContents memoryContents = (InMemoryContents) contents;
+                if (memoryContents.output!=null){
+                    node.content = memoryContents.output.toByteArray();
+                }else if (memoryContents.file!=null && memoryContents.mode!=DriveFile.MODE_READ_ONLY){
+                    node.content = memoryContents.readFile();
+                }
+                memoryContents.release();
+                if (changeSet!=null) node.apply(changeSet);
+                node.modified = new Date();
+                return node.snapshot();
+            }
+        });
+    }
+
+    @Override
+    public void discard(Contents contents) {
+        // nothing was written back
+        ((InMemoryContents) contents).release();
+    }
+
+    @Override
+    public void delete(final DriveId assetID, Callback<Void> callback) {
+        dispatch(Operation.DELETE, callback, null, new Task<Void>() {
+            @Override
+            public Void run() {
+                removeNode(requireNode(assetID));
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void deleteAll(final List<DriveId> assetIDs, Callback<Map<DriveId, Status>> callback) {
+        dispatch(Operation.DELETE_BATCH, callback, null, new Task<Map<DriveId, Status>>() {
+            @Override
+            public Map<DriveId, Status> run() {
+                Map<DriveId, Status> statuses = new HashMap<>();
+                for (DriveId assetID : assetIDs){
+                    Node node = assetID==null ? null : mNodes.get(assetID.getResourceId());
+                    if (node==null){
+                        statuses.put(assetID, new Status(DriveStatusCodes.DRIVE_RESOURCE_NOT_AVAILABLE));
+                    }else{
+                        removeNode(node);
+                        statuses.put(assetID, new Status(CommonStatusCodes.SUCCESS));
+                    }
+                }
+                return statuses;
+            }
+        });
+    }
+
+    @Override
+    public void updateMetadata(final DriveId assetID, final MetadataChangeSet changeSet, Callback<Metadata> callback) {
+        dispatch(Operation.UPDATE_METADATA, callback, null, new Task<Metadata>() {
+            @Override
+            public Metadata run() {
+                Node node = requireNode(assetID);
+                node.apply(changeSet);
+                node.modified = new Date();
+                return node.snapshot();
+            }
+        });
+    }
+
+    @Override
+    public void getMetadata(final DriveId assetID, Callback<Metadata> callback) {
+        dispatch(Operation.GET_METADATA, callback, null, new Task<Metadata>() {
+            @Override
+            public Metadata run() {
+                return requireNode(assetID).snapshot();
+            }
+        });
+    }
+
+    //////////////////// private helper ////////////////////////
+
+    private interface Task<T> {
+        T run();
+    }
+
+    private static class NotFoundException extends RuntimeException {
+    }
+
+    private <T> void dispatch(final Operation op, final Callback<T> callback, final T failureValue, final Task<T> task){
+        mCallCount.get(op).incrementAndGet();
+        final boolean fail;
+        final long latency;
+        synchronized (this) {
+            fail = shouldFail(op);
+            Long millis = mLatencyMillis.get(op);
+            latency = millis==null ? 0 : millis;
+        }
+        Runnable delivery = new Runnable() {
+            @Override
+            public void run() {
+                if (fail || !mConnected){
+                    callback.onResult(new Status(CommonStatusCodes.NETWORK_ERROR), failureValue);
+                    return;
+                }
+                T result;
+                try {
+                    synchronized (InMemoryDriveBackend.this) {
+                        result = task.run();
+                    }
+                } catch (NotFoundException e) {
+                    callback.onResult(new Status(DriveStatusCodes.DRIVE_RESOURCE_NOT_AVAILABLE), failureValue);
+                    return;
+                }
+                callback.onResult(new Status(CommonStatusCodes.SUCCESS), result);
+            }
+        };
+        if (latency<=0){
+            delivery.run();
+        }else{
+            mScheduler.schedule(delivery, latency, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private boolean shouldFail(Operation op){
+        Integer failNext = mFailNext.get(op);
+        if (failNext!=null && failNext>0){
+            mFailNext.put(op, failNext-1);
+            return true;
+        }
+        Double rate = mFailureRate.get(op);
+        return rate!=null && mRandom.nextDouble()<rate;
+    }
+
+    private Node newNode(Node parent, String title, String mimeType, boolean folder){
+        long id = mNextId.getAndIncrement();
+        Node node = new Node();
+        node.resourceId = "mem-" + id;
+        node.driveId = new DriveId(node.resourceId, id, -1,
+                folder ? DriveId.RESOURCE_TYPE_FOLDER : DriveId.RESOURCE_TYPE_FILE);
+        node.parent = parent;
+        node.title = title;
+        node.mimeType = mimeType;
+        node.folder = folder;
+        node.created = new Date();
+        node.modified = node.created;
+        mNodes.put(node.resourceId, node);
+        if (parent!=null) {
+            parent.children.put(node.resourceId, node);
+            parent.modified = node.created;
+        }
+        return node;
+    }
+
+    private Node requireNode(DriveId assetID){
+        Node node = assetID==null ? null : mNodes.get(assetID.getResourceId());
+        if (node==null) throw new NotFoundException();
+        return node;
+    }
+
+    private void removeNode(Node node){
+        if (node.parent!=null) {
+            node.parent.children.remove(node.resourceId);
+            node.parent.modified = new Date();
+        }
+        removeTree(node);
+    }
+
+    private void removeTree(Node node){
+        mNodes.remove(node.resourceId);
+        for (Node child : node.children.values()){
+            removeTree(child);
+        }
+    }
+
+    private static class Node {
+        String resourceId;
+        DriveId driveId;
+        Node parent;
+        String title;
+        String mimeType;
+        boolean folder;
+        Date created;
+        Date modified;
+        byte[] content = new byte[0];
+        final Map<CustomPropertyKey, String> properties = new HashMap<>();
+        final Map<String, Node> children = new LinkedHashMap<>();
+
+        void apply(MetadataChangeSet changeSet){
+            if (changeSet.getTitle()!=null) title = changeSet.getTitle();
+            if (changeSet.getMimeType()!=null && !folder) mimeType = changeSet.getMimeType();
+            for (Map.Entry<CustomPropertyKey, String> entry : changeSet.getCustomPropertyChangeMap().entrySet()){
+                if (entry.getValue()==null){
+                    properties.remove(entry.getKey());
+                }else{
+                    properties.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        Metadata snapshot(){
+            return new SnapshotMetadata(driveId, title, mimeType, folder, created, modified,
+                    content.length, new HashMap<>(properties));
+        }
+    }
+
+    private static class InMemoryContents implements Contents {
+        final DriveId driveId;
+        final int mode;
+        final byte[] input;
+        ByteArrayOutputStream output;
+        // staged copy of the contents, null when they are kept in memory
+        File file;
+        FileChannel channel;
+
+        InMemoryContents(DriveId driveId, int mode, byte[] input){
+            this.driveId = driveId;
+            this.mode = mode;
+            this.input = input;
+        }
+
+        @Override
+        public DriveId getDriveId() {
+            return driveId;
+        }
+
+        @Override
+        public int getMode() {
+            return mode;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(input);
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            output = new ByteArrayOutputStream();
+            return output;
+        }
+
+        @Override
+        public synchronized FileChannel getChannel() {
+            if (file==null) return null;
+            if (channel==null){
+                try {
+                    channel = mode==DriveFile.MODE_READ_ONLY ? new FileInputStream(file).getChannel()
+                            : new FileOutputStream(file).getChannel();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return channel;
+        }
+
+        void stage(File directory){
+            try {
+                file = File.createTempFile("contents", null, directory);
+                if (mode==DriveFile.MODE_READ_ONLY){
+                    FileOutputStream out = new FileOutputStream(file);
+                    try {
+                        out.write(input);
+                    } finally {
+                        out.close();
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        byte[] readFile(){
+            try {
+                RandomAccessFile in = new RandomAccessFile(file, "r");
+                try {
+                    byte[] content = new byte[(int) in.length()];
+                    in.readFully(content);
+                    return content;
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        synchronized void release(){
+            if (file==null) return;
+            try {
+                if (channel!=null) channel.close();
+            } catch (IOException e) {
+                // the staged file goes away regardless
+            }
+            file.delete();
+        }
+    }
+}
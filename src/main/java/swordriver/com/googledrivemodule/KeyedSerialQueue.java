@@ -0,0 +1,121 @@
+package swordriver.com.googledrivemodule;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs asynchronous jobs one at a time per key, and jobs of different keys side by side.
+ * A job holds its key until it calls done, from any thread; nobody blocks while waiting.
+ */
+class KeyedSerialQueue<K> {
+
+    interface Job {
+        // must call done exactly once when finished, also on failure
+        void run(Runnable done);
+    }
+
+    // queued jobs of one key, the head is the one running; guarded by the KeyedSerialQueue
+    private static class KeyQueue {
+        final Deque<Job> jobs = new ArrayDeque<>();
+        // the head's run() is still on the stack of the thread that started it
+        boolean starting = false;
+        // the head called done before its run() returned; that thread starts the next job
+        boolean finishedEarly = false;
+    }
+
+    private final Map<K, KeyQueue> mQueues = new HashMap<>();
+    private final List<Runnable> mIdleActions = new ArrayList<>();
+
+    void enqueue(K key, Job job){
+        KeyQueue queue;
+        boolean runNow;
+        synchronized (this){
+            queue = mQueues.get(key);
+            if (queue==null){
+                queue = new KeyQueue();
+                mQueues.put(key, queue);
+            }
+            queue.jobs.add(job);
+            runNow = queue.jobs.size()==1;
+        }
+        if (runNow) runFrom(key, queue);
+    }
+
+    // runs action once no job of any key is queued or running
+    void whenIdle(Runnable action){
+        synchronized (this){
+            if (!mQueues.isEmpty()){
+                mIdleActions.add(action);
+                return;
+            }
+        }
+        action.run();
+    }
+
+    synchronized boolean isIdle(){
+        return mQueues.isEmpty();
+    }
+
+    //////////////////// private helper ////////////////////////
+
+    // runs the head of queue, and the jobs after it for as long as they finish before their run() returns,
+    // in a loop, so a long queue of synchronous jobs does not recurse
+    private void runFrom(final K key, final KeyQueue queue){
+        while (true){
+            Job job;
+            synchronized (this){
+                job = queue.jobs.peek();
+                queue.starting = true;
+                queue.finishedEarly = false;
+            }
+            final AtomicBoolean finished = new AtomicBoolean(false);
+            job.run(new Runnable() {
+                @Override
+                public void run() {
+                    if (finished.compareAndSet(false, true)) finished(key, queue);
+                }
+            });
+            synchronized (this){
+                queue.starting = false;
+                // done comes later, and starts the next job then
+                if (!queue.finishedEarly) return;
+            }
+            if (!advance(key, queue)) return;
+        }
+    }
+
+    private void finished(K key, KeyQueue queue){
+        synchronized (this){
+            if (queue.starting){
+                queue.finishedEarly = true;
+                return;
+            }
+        }
+        if (advance(key, queue)) runFrom(key, queue);
+    }
+
+    // drops the finished head, false when no job of key is left
+    private boolean advance(K key, KeyQueue queue){
+        List<Runnable> idleActions = null;
+        synchronized (this){
+            queue.jobs.poll();
+            if (!queue.jobs.isEmpty()) return true;
+            mQueues.remove(key);
+            if (mQueues.isEmpty() && !mIdleActions.isEmpty()){
+                idleActions = new ArrayList<>(mIdleActions);
+                mIdleActions.clear();
+            }
+        }
+        if (idleActions!=null){
+            for (Runnable action : idleActions){
+                action.run();
+            }
+        }
+        return false;
+    }
+}
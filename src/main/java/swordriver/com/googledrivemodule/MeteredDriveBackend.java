@@ -0,0 +1,154 @@
+package swordriver.com.googledrivemodule;
+
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.drive.DriveFile;
+import com.google.android.gms.drive.DriveFolder;
+import com.google.android.gms.drive.DriveId;
+import com.google.android.gms.drive.Metadata;
+import com.google.android.gms.drive.MetadataChangeSet;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A DriveBackend reporting every call of the backend it wraps to a MetricsRegistry: latency and
+ * success as "drive.<operation>" (e.g. "drive.list_children"), the calls in flight under the
+ * same name, and the items listings return as "drive.list_children.items".
+ *
+ * With no registry set every call goes straight through.
+ */
+public class MeteredDriveBackend implements DriveBackend, DriveBackend.BatchDelete {
+
+    private static final Map<Operation, String> NAMES = new EnumMap<>(Operation.class);
+    static {
+        for (Operation op : Operation.values()){
+            NAMES.put(op, "drive." + op.name().toLowerCase(Locale.US));
+        }
+    }
+
+    private final DriveBackend mBackend;
+    private volatile MetricsRegistry mMetrics;
+
+    public MeteredDriveBackend(DriveBackend backend){
+        this(backend, MetricsRegistry.NONE);
+    }
+
+    public MeteredDriveBackend(DriveBackend backend, MetricsRegistry metrics){
+        mBackend = backend;
+        mMetrics = metrics==null ? MetricsRegistry.NONE : metrics;
+    }
+
+    public DriveBackend getBackend(){
+        return mBackend;
+    }
+
+    public void setMetricsRegistry(MetricsRegistry metrics){
+        mMetrics = metrics==null ? MetricsRegistry.NONE : metrics;
+    }
+
+    static String metricName(Operation op){
+        return NAMES.get(op);
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mBackend.isConnected();
+    }
+
+    @Override
+    public DriveFolder getRootFolder() {
+        return mBackend.getRootFolder();
+    }
+
+    @Override
+    public void listParents(DriveId assetID, Callback<List<Metadata>> callback) {
+        mBackend.listParents(assetID, metered(Operation.LIST_PARENTS, callback));
+    }
+
+    @Override
+    public void listChildren(DriveFolder folder, final Callback<List<Metadata>> callback) {
+        final MetricsRegistry metrics = mMetrics;
+        if (metrics==MetricsRegistry.NONE){
+            mBackend.listChildren(folder, callback);
+            return;
+        }
+        mBackend.listChildren(folder, metered(Operation.LIST_CHILDREN, new Callback<List<Metadata>>() {
+            @Override
+            public void onResult(Status status, List<Metadata> children) {
+                // how big listings are, for sizing the folder cache
+                if (status.isSuccess() && children!=null) metrics.count(NAMES.get(Operation.LIST_CHILDREN) + ".items", children.size());
+                callback.onResult(status, children);
+            }
+        }));
+    }
+
+    @Override
+    public void createFolder(DriveFolder parent, MetadataChangeSet changeSet, Callback<DriveFolder> callback) {
+        mBackend.createFolder(parent, changeSet, metered(Operation.CREATE_FOLDER, callback));
+    }
+
+    @Override
+    public void createFile(DriveFolder parent, MetadataChangeSet changeSet, Callback<DriveFile> callback) {
+        mBackend.createFile(parent, changeSet, metered(Operation.CREATE_FILE, callback));
+    }
+
+    @Override
+    public void open(DriveFile file, int mode, Callback<Contents> callback) {
+        mBackend.open(file, mode, metered(Operation.OPEN, callback));
+    }
+
+    @Override
+    public void commit(Contents contents, MetadataChangeSet changeSet, Callback<Metadata> callback) {
+        mBackend.commit(contents, changeSet, metered(Operation.COMMIT, callback));
+    }
+
+    @Override
+    public void discard(Contents contents) {
+        mBackend.discard(contents);
+    }
+
+    @Override
+    public void delete(DriveId assetID, Callback<Void> callback) {
+        mBackend.delete(assetID, metered(Operation.DELETE, callback));
+    }
+
+    // one call when the wrapped backend deletes in batches, otherwise a delete per item
+    @Override
+    public void deleteAll(List<DriveId> assetIDs, Callback<Map<DriveId, Status>> callback) {
+        if (mBackend instanceof BatchDelete){
+            ((BatchDelete) mBackend).deleteAll(assetIDs, metered(Operation.DELETE_BATCH, callback));
+        }else{
+            BatchDeleter.deleteEach(this, assetIDs, callback);
+        }
+    }
+
+    @Override
+    public void updateMetadata(DriveId assetID, MetadataChangeSet changeSet, Callback<Metadata> callback) {
+        mBackend.updateMetadata(assetID, changeSet, metered(Operation.UPDATE_METADATA, callback));
+    }
+
+    @Override
+    public void getMetadata(DriveId assetID, Callback<Metadata> callback) {
+        mBackend.getMetadata(assetID, metered(Operation.GET_METADATA, callback));
+    }
+
+    //////////////////// private helper ////////////////////////
+
+    private <T> Callback<T> metered(Operation op, final Callback<T> callback){
+        final MetricsRegistry metrics = mMetrics;
+        if (metrics==MetricsRegistry.NONE) return callback;
+        final String name = NAMES.get(op);
+        final long start = System.nanoTime();
+        metrics.inFlight(name, 1);
+        return new Callback<T>() {
+            @Override
+            public void onResult(Status status, T result) {
+                metrics.inFlight(name, -1);
+                metrics.recordLatency(name, System.nanoTime()-start, status.isSuccess());
+                callback.onResult(status, result);
+            }
+        };
+    }
+}
@@ -0,0 +1,34 @@
+package swordriver.com.googledrivemodule;
+
+/**
+ * Where GoogleApiModel, GoogleApiModelSecure and MeteredDriveBackend report their metrics.
+ * Implement it to forward to the app's metrics or tracing library, or use SimpleMetricsRegistry.
+ *
+ * Names are dotted, e.g. "drive.list_children", "transfer.write.bytes", "crypto.derive_key".
+ * Calls come from any thread and must not block.
+ */
+public interface MetricsRegistry {
+
+    // a call or step of name finished after nanos; success false counts it as an error
+    void recordLatency(String name, long nanos, boolean success);
+
+    // adds amount to the counter name, e.g. bytes transferred or cache hits
+    void count(String name, long amount);
+
+    // the number of calls of name running changed by delta
+    void inFlight(String name, int delta);
+
+    MetricsRegistry NONE = new MetricsRegistry() {
+        @Override
+        public void recordLatency(String name, long nanos, boolean success) {
+        }
+
+        @Override
+        public void count(String name, long amount) {
+        }
+
+        @Override
+        public void inFlight(String name, int delta) {
+        }
+    };
+}
@@ -0,0 +1,54 @@
+package swordriver.com.googledrivemodule;
+
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.drive.DriveId;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Outcome of a password change: how many items were re-keyed or needed nothing, and the
+ * failure status of the rest.  Failed items keep their old key until the change is resumed.
+ */
+public class RekeyResult {
+
+    private int mRekeyed = 0;
+    private int mSkipped = 0;
+    private final Map<DriveId, Status> mFailed = new LinkedHashMap<>();
+
+    synchronized void rekeyed(){
+        mRekeyed++;
+    }
+
+    synchronized void skipped(){
+        mSkipped++;
+    }
+
+    synchronized void failed(DriveId assetID, Status status){
+        mFailed.put(assetID, status);
+    }
+
+    public synchronized int getRekeyed(){
+        return mRekeyed;
+    }
+
+    // unencrypted, already re-keyed by an earlier run, or deleted meanwhile
+    public synchronized int getSkipped(){
+        return mSkipped;
+    }
+
+    public synchronized Map<DriveId, Status> getFailed(){
+        return Collections.unmodifiableMap(new LinkedHashMap<>(mFailed));
+    }
+
+    public synchronized boolean isSuccess(){
+        return mFailed.isEmpty();
+    }
+
+    // SUCCESS, or the status of the first failed item
+    public synchronized Status getStatus(){
+        if (mFailed.isEmpty()) return new Status(0);
+        return mFailed.values().iterator().next();
+    }
+}
@@ -0,0 +1,271 @@
+package swordriver.com.googledrivemodule;
+
+import android.support.annotation.NonNull;
+
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.drive.DriveFolder;
+import com.google.android.gms.drive.DriveResource;
+import com.google.android.gms.drive.DriveStatusCodes;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Re-wraps the asset key of every item under a folder tree, with at most parallelism metadata
+ * updates in flight.  Items are re-keyed as the walk lists them; the walk pauses while too many
+ * are waiting.  A failed update is retried up to maxAttempts times with exponential backoff and
+ * jitter, and a failed item does not stop the others.  The callback runs exactly once.
+ *
+ * Each item records the salt of the key its asset key is wrapped with, so an item re-keyed by
+ * an earlier, interrupted run needs nothing and is skipped.
+ */
+class Rekeyer implements FolderTreeWalker.Visitor {
+
+    interface KeyWrapper {
+        // properties to update on item, null when it needs no re-keying
+        Map<String, String> rewrap(GoogleApiModel.ItemInfo item) throws GeneralSecurityException;
+    }
+
+    interface Callback {
+        // done counts re-keyed and skipped items; found grows as the walk goes on
+        void onProgress(int done, int failed, int found);
+        void onComplete(RekeyResult result);
+    }
+
+    private static ScheduledExecutorService sRetryScheduler;
+
+    private final GoogleApiModel mModel;
+    private final KeyWrapper mWrapper;
+    private final int mParallelism;
+    private final int mMaxAttempts;
+    private final long mBackoffMillis;
+    private final Callback mCallback;
+    private final RekeyResult mResult = new RekeyResult();
+    private final Random mRandom = new Random();
+
+    private static class Job {
+        final GoogleApiModel.ItemInfo item;
+        int attempts = 0;
+
+        Job(GoogleApiModel.ItemInfo item){
+            this.item = item;
+        }
+    }
+
+    // guarded by this
+    private final Deque<Job> mPending = new ArrayDeque<>();
+    private int mInFlight = 0;
+    private int mBackingOff = 0;
+    private int mFound = 0;
+    private int mDone = 0;
+    private int mFailed = 0;
+    private FolderTreeWalker mWalk = null;
+    private boolean mWalkDone = false;
+
+    private final AtomicInteger mDrainRequests = new AtomicInteger(0);
+    private final AtomicBoolean mCompleted = new AtomicBoolean(false);
+
+    Rekeyer(GoogleApiModel model, KeyWrapper wrapper, int parallelism, int maxAttempts, long backoffMillis,
+            Callback callback){
+        mModel = model;
+        mWrapper = wrapper;
+        mParallelism = Math.max(parallelism, 1);
+        mMaxAttempts = Math.max(maxAttempts, 1);
+        mBackoffMillis = backoffMillis;
+        mCallback = callback;
+    }
+
+    // a bulk job, interactive calls go first when the backend schedules calls
+    void start(final DriveFolder root){
+        SchedulingDriveBackend.runWithPriority(SchedulingDriveBackend.Priority.BULK, new Runnable() {
+            @Override
+            public void run() {
+                FolderTreeWalker walk = mModel.walkFolderTree(root, Rekeyer.this);
+                if (walk==null){
+                    mResult.failed(root.getDriveId(), new Status(CommonStatusCodes.NETWORK_ERROR));
+                    complete();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onFolder(FolderTreeWalker walk, GoogleApiModel.FolderInfo info) {
+        synchronized (this){
+            mWalk = walk;
+            if (info.failed || info.items==null){
+                // whatever is below stays on the old key until the change is resumed
+                mFailed++;
+                mResult.failed(info.folder.getDriveId(), new Status(CommonStatusCodes.NETWORK_ERROR));
+                return;
+            }
+            for (GoogleApiModel.ItemInfo item : info.items){
+                mPending.add(new Job(item));
+                mFound++;
+            }
+            // backpressure, keep listing ahead of the updates by a few windows only
+            if (mPending.size()>4*mParallelism) walk.pause();
+        }
+        drain();
+    }
+
+    @Override
+    public void onComplete(FolderTreeWalker walk) {
+        synchronized (this){
+            mWalkDone = true;
+        }
+        finishIfDone();
+    }
+
+    //////////////////// private helper ////////////////////////
+
+    private void drain(){
+        if (mDrainRequests.getAndIncrement()!=0) return;
+        do {
+            Job next;
+            while ((next = nextJob())!=null){
+                rekey(next);
+            }
+            resumeWalk();
+        } while (mDrainRequests.decrementAndGet()!=0);
+    }
+
+    private synchronized Job nextJob(){
+        if (mInFlight>=mParallelism || mPending.isEmpty()) return null;
+        mInFlight++;
+        return mPending.poll();
+    }
+
+    private void resumeWalk(){
+        FolderTreeWalker walk;
+        synchronized (this){
+            walk = mWalk!=null && mWalk.isPaused() && mPending.size()<=2*mParallelism ? mWalk : null;
+        }
+        if (walk!=null) walk.resume();
+    }
+
+    private void rekey(final Job job){
+        Map<String, String> properties;
+        try {
+            properties = mWrapper.rewrap(job.item);
+        } catch (GeneralSecurityException e) {
+            // the asset key can't be unwrapped, retrying won't help
+            onJobDone(job, new Status(CommonStatusCodes.DEVELOPER_ERROR, e.getMessage()), false);
+            return;
+        }
+        if (properties==null){
+            onJobDone(job, null, false);
+            return;
+        }
+        job.attempts++;
+        GoogleApiModel.GoogleApiStatus status = mModel.updateMetadata(job.item.meta.getDriveId(), properties,
+                new ResultCallback<DriveResource.MetadataResult>() {
+            @Override
+            public void onResult(@NonNull DriveResource.MetadataResult metadataResult) {
+                Status result = metadataResult.getStatus();
+                if (result.getStatusCode()==DriveStatusCodes.DRIVE_RESOURCE_NOT_AVAILABLE){
+                    // deleted meanwhile, nothing left to re-key
+                    onJobDone(job, null, false);
+                }else{
+                    onJobDone(job, result, !result.isSuccess());
+                }
+            }
+        });
+        if (status==GoogleApiModel.GoogleApiStatus.DISCONNECTED){
+            // no callback will come
+            onJobDone(job, new Status(CommonStatusCodes.NETWORK_ERROR), true);
+        }
+    }
+
+    // status null means skipped
+    private void onJobDone(final Job job, Status status, boolean retryable){
+        boolean retry = retryable && job.attempts<mMaxAttempts;
+        int done, failed, found;
+        synchronized (this){
+            mInFlight--;
+            if (retry){
+                mBackingOff++;
+            }else if (status==null){
+                mDone++;
+                mResult.skipped();
+            }else if (status.isSuccess()){
+                mDone++;
+                mResult.rekeyed();
+            }else{
+                mFailed++;
+                mResult.failed(job.item.meta.getDriveId(), status);
+            }
+            done = mDone;
+            failed = mFailed;
+            found = mFound;
+        }
+        if (retry){
+            retryScheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (Rekeyer.this){
+                        mBackingOff--;
+                        mPending.addFirst(job);
+                    }
+                    SchedulingDriveBackend.runWithPriority(SchedulingDriveBackend.Priority.BULK, new Runnable() {
+                        @Override
+                        public void run() {
+                            drain();
+                        }
+                    });
+                }
+            }, backoff(job.attempts), TimeUnit.MILLISECONDS);
+        }else{
+            mCallback.onProgress(done, failed, found);
+        }
+        drain();
+        finishIfDone();
+    }
+
+    // exponential in the attempts made, jittered to between half and all of it
+    private long backoff(int attempts){
+        long delay = mBackoffMillis << Math.min(attempts-1, 16);
+        double jitter;
+        synchronized (mRandom){
+            jitter = 0.5 + 0.5*mRandom.nextDouble();
+        }
+        return (long) (delay*jitter);
+    }
+
+    private void finishIfDone(){
+        boolean finished;
+        synchronized (this){
+            finished = mWalkDone && mPending.isEmpty() && mInFlight==0 && mBackingOff==0;
+        }
+        if (finished) complete();
+    }
+
+    private void complete(){
+        if (mCompleted.compareAndSet(false, true)) mCallback.onComplete(mResult);
+    }
+
+    private static synchronized ScheduledExecutorService retryScheduler(){
+        if (sRetryScheduler==null){
+            sRetryScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Rekeyer retry");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sRetryScheduler;
+    }
+}
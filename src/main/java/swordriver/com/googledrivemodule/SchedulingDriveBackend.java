@@ -0,0 +1,460 @@
+package swordriver.com.googledrivemodule;
+
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.drive.DriveFile;
+import com.google.android.gms.drive.DriveFolder;
+import com.google.android.gms.drive.DriveId;
+import com.google.android.gms.drive.DriveStatusCodes;
+import com.google.android.gms.drive.Metadata;
+import com.google.android.gms.drive.MetadataChangeSet;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A DriveBackend that sends every call of the backend it wraps through one scheduler:
+ *  - at most setMaxInFlight() calls of each operation at a time
+ *  - a token bucket limiting calls per second overall, see setRateLimit()
+ *  - waiting calls start in priority order, INTERACTIVE before NORMAL before BULK
+ *  - calls that can safely run twice (everything but creates and commits) are retried on
+ *    network, timeout and rate limit errors, with exponential backoff and jitter.  A retried
+ *    delete that finds the item gone reports success, the failed attempt deleted it.
+ *
+ * A call takes the priority of the thread making it, see runWithPriority().  Callbacks run with
+ * the priority of their call, so the follow-up calls of a listing or a write keep it.
+ */
+public class SchedulingDriveBackend implements DriveBackend, DriveBackend.BatchDelete {
+
+    public enum Priority {
+        INTERACTIVE,
+        NORMAL,
+        BULK
+    }
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+    public static final int DEFAULT_ATTEMPTS = 4;
+    public static final long DEFAULT_BACKOFF_MILLIS = 250;
+    // the longest a single backoff grows to
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+
+    private static final ThreadLocal<Priority> sPriority = new ThreadLocal<>();
+    private static ScheduledExecutorService sTimer;
+
+    private final DriveBackend mBackend;
+    private final Random mRandom = new Random();
+    private final AtomicInteger mDrainRequests = new AtomicInteger(0);
+
+    // guarded by this
+    private final Map<Priority, Deque<Request<?>>> mWaiting = new EnumMap<>(Priority.class);
+    private final Map<Operation, Integer> mInFlight = new EnumMap<>(Operation.class);
+    private final Map<Operation, Integer> mMaxInFlight = new HashMap<>();
+    private int mDefaultMaxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private double mRatePerSecond = 0;
+    private double mBurst = 0;
+    private double mTokens = 0;
+    private long mTokensAt = 0;
+    private boolean mWakeScheduled = false;
+    private int mMaxAttempts = DEFAULT_ATTEMPTS;
+    private long mBackoffMillis = DEFAULT_BACKOFF_MILLIS;
+
+    // one call, run again on a retryable failure
+    private abstract class Request<T> {
+        final Operation op;
+        final Priority priority;
+        final boolean idempotent;
+        final Callback<T> callback;
+        int attempts = 0;
+
+        Request(Operation op, boolean idempotent, Callback<T> callback){
+            this.op = op;
+            this.priority = currentPriority();
+            this.idempotent = idempotent;
+            this.callback = callback;
+        }
+
+        abstract void call(Callback<T> done);
+
+        void start(){
+            attempts++;
+            call(new Callback<T>() {
+                @Override
+                public void onResult(Status status, T result) {
+                    onDone(Request.this, status, result);
+                }
+            });
+        }
+    }
+
+    public SchedulingDriveBackend(DriveBackend backend){
+        mBackend = backend;
+        for (Priority priority : Priority.values()){
+            mWaiting.put(priority, new ArrayDeque<Request<?>>());
+        }
+        for (Operation op : Operation.values()){
+            mInFlight.put(op, 0);
+        }
+    }
+
+    // the priority calls made on this thread get, NORMAL unless set through runWithPriority()
+    public static Priority currentPriority(){
+        Priority priority = sPriority.get();
+        return priority==null ? Priority.NORMAL : priority;
+    }
+
+    // runs task with every Drive call it makes, and their follow-ups, at priority
+    public static void runWithPriority(Priority priority, Runnable task){
+        Priority previous = sPriority.get();
+        sPriority.set(priority);
+        try {
+            task.run();
+        } finally {
+            if (previous==null){
+                sPriority.remove();
+            }else{
+                sPriority.set(previous);
+            }
+        }
+    }
+
+    public DriveBackend getBackend(){
+        return mBackend;
+    }
+
+    // calls in flight for every operation without a limit of its own
+    public synchronized void setMaxInFlight(int maxInFlight){
+        mDefaultMaxInFlight = Math.max(maxInFlight, 1);
+    }
+
+    public synchronized void setMaxInFlight(Operation op, int maxInFlight){
+        mMaxInFlight.put(op, Math.max(maxInFlight, 1));
+    }
+
+    // calls per second overall, with bursts of up to burst calls; 0 (the default) for no limit
+    public void setRateLimit(double perSecond, int burst){
+        synchronized (this){
+            mRatePerSecond = Math.max(perSecond, 0);
+            mBurst = Math.max(burst, 1);
+            mTokens = mBurst;
+            mTokensAt = System.nanoTime();
+        }
+        drain();
+    }
+
+    // maxAttempts 1 turns retrying off
+    public synchronized void setRetries(int maxAttempts, long backoffMillis){
+        mMaxAttempts = Math.max(maxAttempts, 1);
+        mBackoffMillis = Math.max(backoffMillis, 0);
+    }
+
+    // calls waiting for a slot or a token
+    public synchronized int getWaitingCount(){
+        int count = 0;
+        for (Deque<Request<?>> waiting : mWaiting.values()){
+            count += waiting.size();
+        }
+        return count;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mBackend.isConnected();
+    }
+
+    @Override
+    public DriveFolder getRootFolder() {
+        return mBackend.getRootFolder();
+    }
+
+    @Override
+    public void listParents(final DriveId assetID, Callback<List<Metadata>> callback) {
+        submit(new Request<List<Metadata>>(Operation.LIST_PARENTS, true, callback) {
+            @Override
+            void call(Callback<List<Metadata>> done) {
+                mBackend.listParents(assetID, done);
+            }
+        });
+    }
+
+    @Override
+    public void listChildren(final DriveFolder folder, Callback<List<Metadata>> callback) {
+        submit(new Request<List<Metadata>>(Operation.LIST_CHILDREN, true, callback) {
+            @Override
+            void call(Callback<List<Metadata>> done) {
+                mBackend.listChildren(folder, done);
+            }
+        });
+    }
+
+    // a failed create may still have created the item, so it is never retried
+    @Override
+    public void createFolder(final DriveFolder parent, final MetadataChangeSet changeSet, Callback<DriveFolder> callback) {
+        submit(new Request<DriveFolder>(Operation.CREATE_FOLDER, false, callback) {
+            @Override
+            void call(Callback<DriveFolder> done) {
+                mBackend.createFolder(parent, changeSet, done);
+            }
+        });
+    }
+
+    @Override
+    public void createFile(final DriveFolder parent, final MetadataChangeSet changeSet, Callback<DriveFile> callback) {
+        submit(new Request<DriveFile>(Operation.CREATE_FILE, false, callback) {
+            @Override
+            void call(Callback<DriveFile> done) {
+                mBackend.createFile(parent, changeSet, done);
+            }
+        });
+    }
+
+    @Override
+    public void open(final DriveFile file, final int mode, Callback<Contents> callback) {
+        submit(new Request<Contents>(Operation.OPEN, true, callback) {
+            @Override
+            void call(Callback<Contents> done) {
+                mBackend.open(file, mode, done);
+            }
+        });
+    }
+
+    // the contents are used up by the first attempt, so a commit is never retried
+    @Override
+    public void commit(final Contents contents, final MetadataChangeSet changeSet, Callback<Metadata> callback) {
+        submit(new Request<Metadata>(Operation.COMMIT, false, callback) {
+            @Override
+            void call(Callback<Metadata> done) {
+                mBackend.commit(contents, changeSet, done);
+            }
+        });
+    }
+
+    // local, nothing to schedule
+    @Override
+    public void discard(Contents contents) {
+        mBackend.discard(contents);
+    }
+
+    @Override
+    public void delete(final DriveId assetID, Callback<Void> callback) {
+        submit(new Request<Void>(Operation.DELETE, true, callback) {
+            @Override
+            void call(final Callback<Void> done) {
+                final boolean retried = attempts>1;
+                mBackend.delete(assetID, new Callback<Void>() {
+                    @Override
+                    public void onResult(Status status, Void nothing) {
+                        done.onResult(retried ? deletedBefore(status) : status, nothing);
+                    }
+                });
+            }
+        });
+    }
+
+    // one call when the wrapped backend deletes in batches, otherwise a delete per item
+    @Override
+    public void deleteAll(final List<DriveId> assetIDs, final Callback<Map<DriveId, Status>> callback) {
+        if (mBackend instanceof BatchDelete){
+            submit(new Request<Map<DriveId, Status>>(Operation.DELETE_BATCH, true, callback) {
+                @Override
+                void call(final Callback<Map<DriveId, Status>> done) {
+                    final boolean retried = attempts>1;
+                    ((BatchDelete) mBackend).deleteAll(assetIDs, new Callback<Map<DriveId, Status>>() {
+                        @Override
+                        public void onResult(Status status, Map<DriveId, Status> statuses) {
+                            if (!retried || statuses==null){
+                                done.onResult(status, statuses);
+                                return;
+                            }
+                            Map<DriveId, Status> settled = new HashMap<>();
+                            for (Map.Entry<DriveId, Status> entry : statuses.entrySet()){
+                                settled.put(entry.getKey(), deletedBefore(entry.getValue()));
+                            }
+                            done.onResult(status, settled);
+                        }
+                    });
+                }
+            });
+            return;
+        }
+        BatchDeleter.deleteEach(this, assetIDs, callback);
+    }
+
+    @Override
+    public void updateMetadata(final DriveId assetID, final MetadataChangeSet changeSet, Callback<Metadata> callback) {
+        submit(new Request<Metadata>(Operation.UPDATE_METADATA, true, callback) {
+            @Override
+            void call(Callback<Metadata> done) {
+                mBackend.updateMetadata(assetID, changeSet, done);
+            }
+        });
+    }
+
+    @Override
+    public void getMetadata(final DriveId assetID, Callback<Metadata> callback) {
+        submit(new Request<Metadata>(Operation.GET_METADATA, true, callback) {
+            @Override
+            void call(Callback<Metadata> done) {
+                mBackend.getMetadata(assetID, done);
+            }
+        });
+    }
+
+    //////////////////// private helper ////////////////////////
+
+    private void submit(Request<?> request){
+        synchronized (this){
+            mWaiting.get(request.priority).add(request);
+        }
+        drain();
+    }
+
+    private void drain(){
+        if (mDrainRequests.getAndIncrement()!=0) return;
+        do {
+            Request<?> next;
+            while ((next = nextRequest())!=null){
+                start(next);
+            }
+        } while (mDrainRequests.decrementAndGet()!=0);
+    }
+
+    private static void start(final Request<?> request){
+        runWithPriority(request.priority, new Runnable() {
+            @Override
+            public void run() {
+                request.start();
+            }
+        });
+    }
+
+    // the first waiting request, in priority order, whose operation has a free slot
+    private synchronized Request<?> nextRequest(){
+        for (Deque<Request<?>> waiting : mWaiting.values()){
+            Iterator<Request<?>> it = waiting.iterator();
+            while (it.hasNext()){
+                Request<?> request = it.next();
+                int inFlight = mInFlight.get(request.op);
+                if (inFlight>=maxInFlight(request.op)) continue;
+                if (!takeToken()) return null;
+                it.remove();
+                mInFlight.put(request.op, inFlight+1);
+                return request;
+            }
+        }
+        return null;
+    }
+
+    private int maxInFlight(Operation op){
+        Integer max = mMaxInFlight.get(op);
+        return max==null ? mDefaultMaxInFlight : max;
+    }
+
+    // false when the bucket is empty, a drain is then scheduled for when the next token is due
+    private boolean takeToken(){
+        if (mRatePerSecond<=0) return true;
+        long now = System.nanoTime();
+        mTokens = Math.min(mBurst, mTokens + (now-mTokensAt)*mRatePerSecond/1e9);
+        mTokensAt = now;
+        if (mTokens>=1){
+            mTokens -= 1;
+            return true;
+        }
+        if (!mWakeScheduled){
+            mWakeScheduled = true;
+            long waitNanos = (long) Math.ceil((1-mTokens)*1e9/mRatePerSecond);
+            timer().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (SchedulingDriveBackend.this){
+                        mWakeScheduled = false;
+                    }
+                    drain();
+                }
+            }, waitNanos, TimeUnit.NANOSECONDS);
+        }
+        return false;
+    }
+
+    private <T> void onDone(final Request<T> request, final Status status, final T result){
+        boolean retry;
+        long delay = 0;
+        synchronized (this){
+            mInFlight.put(request.op, mInFlight.get(request.op)-1);
+            retry = request.idempotent && isRetryable(status) && request.attempts<mMaxAttempts;
+            if (retry) delay = backoff(request.attempts);
+            if (status.getStatusCode()==DriveStatusCodes.DRIVE_RATE_LIMIT_EXCEEDED){
+                // Drive is over quota for everyone, not just this call
+                mTokens = 0;
+            }
+        }
+        if (retry){
+            timer().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (SchedulingDriveBackend.this){
+                        // ahead of the calls that came after it
+                        mWaiting.get(request.priority).addFirst(request);
+                    }
+                    drain();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }else{
+            runWithPriority(request.priority, new Runnable() {
+                @Override
+                public void run() {
+                    request.callback.onResult(status, result);
+                }
+            });
+        }
+        drain();
+    }
+
+    // an earlier attempt of a delete may have reached Drive before failing, its item is then gone
+    private static Status deletedBefore(Status status){
+        if (status==null || status.getStatusCode()!=DriveStatusCodes.DRIVE_RESOURCE_NOT_AVAILABLE) return status;
+        return new Status(CommonStatusCodes.SUCCESS);
+    }
+
+    private static boolean isRetryable(Status status){
+        switch (status.getStatusCode()){
+            case CommonStatusCodes.NETWORK_ERROR:
+            case CommonStatusCodes.TIMEOUT:
+            case CommonStatusCodes.INTERNAL_ERROR:
+            case DriveStatusCodes.DRIVE_RATE_LIMIT_EXCEEDED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // exponential in the attempts made, jittered to between half and all of it
+    private long backoff(int attempts){
+        long delay = Math.min(mBackoffMillis << Math.min(attempts-1, 16), MAX_BACKOFF_MILLIS);
+        return (long) (delay*(0.5 + 0.5*mRandom.nextDouble()));
+    }
+
+    private static synchronized ScheduledExecutorService timer(){
+        if (sTimer==null){
+            sTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "SchedulingDriveBackend");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sTimer;
+    }
+}
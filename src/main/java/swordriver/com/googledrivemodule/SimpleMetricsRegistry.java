@@ -0,0 +1,154 @@
+package swordriver.com.googledrivemodule;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A MetricsRegistry keeping everything in memory: per name a count, an error count, a latency
+ * histogram with power of two buckets (so percentiles are upper bounds, within a factor of
+ * two), and the current and highest number in flight; plus plain counters.
+ */
+public class SimpleMetricsRegistry implements MetricsRegistry {
+
+    private static final int BUCKETS = 64;
+
+    private static class Timer {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        // bucket i counts latencies below 2^i nanoseconds
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+    }
+
+    private final ConcurrentMap<String, Timer> mTimers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> mCounters = new ConcurrentHashMap<>();
+
+    @Override
+    public void recordLatency(String name, long nanos, boolean success) {
+        Timer timer = timer(name);
+        timer.count.incrementAndGet();
+        if (!success) timer.errors.incrementAndGet();
+        timer.totalNanos.addAndGet(nanos);
+        timer.buckets.incrementAndGet(Math.min(BUCKETS-1, 64-Long.numberOfLeadingZeros(Math.max(nanos, 0))));
+    }
+
+    @Override
+    public void count(String name, long amount) {
+        AtomicLong counter = mCounters.get(name);
+        if (counter==null){
+            mCounters.putIfAbsent(name, new AtomicLong());
+            counter = mCounters.get(name);
+        }
+        counter.addAndGet(amount);
+    }
+
+    @Override
+    public void inFlight(String name, int delta) {
+        Timer timer = timer(name);
+        int inFlight = timer.inFlight.addAndGet(delta);
+        int max;
+        while (inFlight>(max = timer.maxInFlight.get())){
+            if (timer.maxInFlight.compareAndSet(max, inFlight)) break;
+        }
+    }
+
+    // names with latencies or in flight counts, sorted
+    public List<String> getNames(){
+        List<String> names = new ArrayList<>(mTimers.keySet());
+        Collections.sort(names);
+        return names;
+    }
+
+    public long getCount(String name){
+        Timer timer = mTimers.get(name);
+        return timer==null ? 0 : timer.count.get();
+    }
+
+    public long getErrorCount(String name){
+        Timer timer = mTimers.get(name);
+        return timer==null ? 0 : timer.errors.get();
+    }
+
+    public long getMeanNanos(String name){
+        Timer timer = mTimers.get(name);
+        long count = timer==null ? 0 : timer.count.get();
+        return count==0 ? 0 : timer.totalNanos.get()/count;
+    }
+
+    // an upper bound for the latency percentile (0 to 100) of name, 0 when nothing was recorded
+    public long getPercentileNanos(String name, double percentile){
+        Timer timer = mTimers.get(name);
+        if (timer==null) return 0;
+        long[] buckets = new long[BUCKETS];
+        long total = 0;
+        for (int i=0; i<BUCKETS; i++){
+            buckets[i] = timer.buckets.get(i);
+            total += buckets[i];
+        }
+        if (total==0) return 0;
+        long rank = (long) Math.ceil(total*Math.min(Math.max(percentile, 0), 100)/100);
+        long seen = 0;
+        for (int i=0; i<BUCKETS; i++){
+            seen += buckets[i];
+            if (seen>=Math.max(rank, 1)) return i>=63 ? Long.MAX_VALUE : 1L<<i;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    public int getInFlight(String name){
+        Timer timer = mTimers.get(name);
+        return timer==null ? 0 : timer.inFlight.get();
+    }
+
+    public int getMaxInFlight(String name){
+        Timer timer = mTimers.get(name);
+        return timer==null ? 0 : timer.maxInFlight.get();
+    }
+
+    public long getCounter(String name){
+        AtomicLong counter = mCounters.get(name);
+        return counter==null ? 0 : counter.get();
+    }
+
+    public void reset(){
+        mTimers.clear();
+        mCounters.clear();
+    }
+
+    // one line per name, for logging
+    public String dump(){
+        StringBuilder out = new StringBuilder();
+        for (String name : getNames()){
+            out.append(String.format(Locale.US, "%s count=%d errors=%d mean=%.2fms p50<=%.2fms p99<=%.2fms inFlight=%d max=%d%n",
+                    name, getCount(name), getErrorCount(name), getMeanNanos(name)/1e6,
+                    getPercentileNanos(name, 50)/1e6, getPercentileNanos(name, 99)/1e6,
+                    getInFlight(name), getMaxInFlight(name)));
+        }
+        List<String> counters = new ArrayList<>(mCounters.keySet());
+        Collections.sort(counters);
+        for (String name : counters){
+            out.append(name).append('=').append(getCounter(name)).append(String.format(Locale.US, "%n"));
+        }
+        return out.toString();
+    }
+
+    //////////////////// private helper ////////////////////////
+
+    private Timer timer(String name){
+        Timer timer = mTimers.get(name);
+        if (timer==null){
+            mTimers.putIfAbsent(name, new Timer());
+            timer = mTimers.get(name);
+        }
+        return timer;
+    }
+}
@@ -0,0 +1,402 @@
+package swordriver.com.googledrivemodule;
+
+import com.google.android.gms.drive.DriveId;
+import com.google.android.gms.drive.Metadata;
+import com.google.android.gms.drive.metadata.CustomPropertyKey;
+import com.google.android.gms.drive.metadata.MetadataField;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable Metadata holding plain values, for metadata that does not come from Play services
+ * right now: InMemoryDriveBackend's items, FolderCache listings restored from disk and created
+ * items that could not be read back.
+ *
+ * Every public getter is backed by a value.  FolderCache writes Drive's own records with write()
+ * and restores them with read().  The model only fills one in itself for a created item Drive
+ * could not be asked about, with what the create set and no dates.
+ */
+class SnapshotMetadata extends Metadata {
+
+    // the values of one snapshot, filled in before the snapshot is built
+    static class Fields {
+        DriveId driveId;
+        String title;
+        String mimeType;
+        boolean folder;
+        Date created;
+        Date modified;
+        Date modifiedByMe;
+        Date lastViewedByMe;
+        Date sharedWithMe;
+        long fileSize;
+        long quotaBytesUsed;
+        String description;
+        String fileExtension;
+        String originalFilename;
+        String alternateLink;
+        String embedLink;
+        String webContentLink;
+        String webViewLink;
+        int contentAvailability;
+        boolean editable = true;
+        boolean explicitlyTrashed;
+        boolean inAppFolder;
+        boolean pinnable;
+        boolean pinned;
+        boolean restricted;
+        boolean shared;
+        boolean starred;
+        boolean trashable = true;
+        boolean trashed;
+        boolean viewed;
+        Map<CustomPropertyKey, String> properties = Collections.emptyMap();
+    }
+
+    private final Fields mFields;
+
+    SnapshotMetadata(DriveId driveId, String title, String mimeType, boolean folder, Date created,
+                     Date modified, long fileSize, Map<CustomPropertyKey, String> properties){
+        Fields fields = new Fields();
+        fields.driveId = driveId;
+        fields.title = title;
+        fields.mimeType = mimeType;
+        fields.folder = folder;
+        fields.created = created;
+        fields.modified = modified;
+        fields.modifiedByMe = modified;
+        fields.fileSize = fileSize;
+        fields.properties = properties;
+        mFields = copy(fields);
+    }
+
+    SnapshotMetadata(Fields fields){
+        mFields = copy(fields);
+    }
+
+    // every value of meta, for read()
+    static void write(DataOutputStream out, Metadata meta) throws IOException {
+        out.writeUTF(meta.getDriveId().encodeToString());
+        writeNullableUTF(out, meta.getTitle());
+        writeNullableUTF(out, meta.getMimeType());
+        out.writeBoolean(meta.isFolder());
+        writeDate(out, meta.getCreatedDate());
+        writeDate(out, meta.getModifiedDate());
+        writeDate(out, meta.getModifiedByMeDate());
+        writeDate(out, meta.getLastViewedByMeDate());
+        writeDate(out, meta.getSharedWithMeDate());
+        out.writeLong(meta.getFileSize());
+        out.writeLong(meta.getQuotaBytesUsed());
+        writeNullableUTF(out, meta.getDescription());
+        writeNullableUTF(out, meta.getFileExtension());
+        writeNullableUTF(out, meta.getOriginalFilename());
+        writeNullableUTF(out, meta.getAlternateLink());
+        writeNullableUTF(out, meta.getEmbedLink());
+        writeNullableUTF(out, meta.getWebContentLink());
+        writeNullableUTF(out, meta.getWebViewLink());
+        out.writeInt(meta.getContentAvailability());
+        int flags = (meta.isEditable() ? 1 : 0)
+                | (meta.isExplicitlyTrashed() ? 1<<1 : 0)
+                | (meta.isInAppFolder() ? 1<<2 : 0)
+                | (meta.isPinnable() ? 1<<3 : 0)
+                | (meta.isPinned() ? 1<<4 : 0)
+                | (meta.isRestricted() ? 1<<5 : 0)
+                | (meta.isShared() ? 1<<6 : 0)
+                | (meta.isStarred() ? 1<<7 : 0)
+                | (meta.isTrashable() ? 1<<8 : 0)
+                | (meta.isTrashed() ? 1<<9 : 0)
+                | (meta.isViewed() ? 1<<10 : 0);
+        out.writeInt(flags);
+        Map<CustomPropertyKey, String> properties = meta.getCustomProperties();
+        out.writeInt(properties==null ? 0 : properties.size());
+        if (properties!=null){
+            for (Map.Entry<CustomPropertyKey, String> property : properties.entrySet()){
+                out.writeUTF(property.getKey().getKey());
+                out.writeInt(property.getKey().getVisibility());
+                out.writeUTF(property.getValue());
+            }
+        }
+    }
+
+    static SnapshotMetadata read(DataInputStream in) throws IOException {
+        Fields fields = new Fields();
+        fields.driveId = DriveId.decodeFromString(in.readUTF());
+        fields.title = readNullableUTF(in);
+        fields.mimeType = readNullableUTF(in);
+        fields.folder = in.readBoolean();
+        fields.created = readDate(in);
+        fields.modified = readDate(in);
+        fields.modifiedByMe = readDate(in);
+        fields.lastViewedByMe = readDate(in);
+        fields.sharedWithMe = readDate(in);
+        fields.fileSize = in.readLong();
+        fields.quotaBytesUsed = in.readLong();
+        fields.description = readNullableUTF(in);
+        fields.fileExtension = readNullableUTF(in);
+        fields.originalFilename = readNullableUTF(in);
+        fields.alternateLink = readNullableUTF(in);
+        fields.embedLink = readNullableUTF(in);
+        fields.webContentLink = readNullableUTF(in);
+        fields.webViewLink = readNullableUTF(in);
+        fields.contentAvailability = in.readInt();
+        int flags = in.readInt();
+        fields.editable = (flags & 1)!=0;
+        fields.explicitlyTrashed = (flags & 1<<1)!=0;
+        fields.inAppFolder = (flags & 1<<2)!=0;
+        fields.pinnable = (flags & 1<<3)!=0;
+        fields.pinned = (flags & 1<<4)!=0;
+        fields.restricted = (flags & 1<<5)!=0;
+        fields.shared = (flags & 1<<6)!=0;
+        fields.starred = (flags & 1<<7)!=0;
+        fields.trashable = (flags & 1<<8)!=0;
+        fields.trashed = (flags & 1<<9)!=0;
+        fields.viewed = (flags & 1<<10)!=0;
+        int propertyCount = in.readInt();
+        Map<CustomPropertyKey, String> properties = new HashMap<>(propertyCount*2);
+        for (int p=0; p<propertyCount; p++){
+            String key = in.readUTF();
+            int visibility = in.readInt();
+            properties.put(new CustomPropertyKey(key, visibility), in.readUTF());
+        }
+        fields.properties = properties;
+        return new SnapshotMetadata(fields);
+    }
+
+    @Override
+    public DriveId getDriveId() {
+        return mFields.driveId;
+    }
+
+    @Override
+    public String getTitle() {
+        return mFields.title;
+    }
+
+    @Override
+    public String getMimeType() {
+        return mFields.mimeType;
+    }
+
+    @Override
+    public boolean isFolder() {
+        return mFields.folder;
+    }
+
+    @Override
+    public Date getCreatedDate() {
+        return copy(mFields.created);
+    }
+
+    @Override
+    public Date getModifiedDate() {
+        return copy(mFields.modified);
+    }
+
+    @Override
+    public Date getModifiedByMeDate() {
+        return copy(mFields.modifiedByMe);
+    }
+
+    @Override
+    public Date getLastViewedByMeDate() {
+        return copy(mFields.lastViewedByMe);
+    }
+
+    @Override
+    public Date getSharedWithMeDate() {
+        return copy(mFields.sharedWithMe);
+    }
+
+    @Override
+    public long getFileSize() {
+        return mFields.fileSize;
+    }
+
+    @Override
+    public long getQuotaBytesUsed() {
+        return mFields.quotaBytesUsed;
+    }
+
+    @Override
+    public String getDescription() {
+        return mFields.description;
+    }
+
+    @Override
+    public String getFileExtension() {
+        return mFields.fileExtension;
+    }
+
+    @Override
+    public String getOriginalFilename() {
+        return mFields.originalFilename;
+    }
+
+    @Override
+    public String getAlternateLink() {
+        return mFields.alternateLink;
+    }
+
+    @Override
+    public String getEmbedLink() {
+        return mFields.embedLink;
+    }
+
+    @Override
+    public String getWebContentLink() {
+        return mFields.webContentLink;
+    }
+
+    @Override
+    public String getWebViewLink() {
+        return mFields.webViewLink;
+    }
+
+    @Override
+    public int getContentAvailability() {
+        return mFields.contentAvailability;
+    }
+
+    @Override
+    public boolean isEditable() {
+        return mFields.editable;
+    }
+
+    @Override
+    public boolean isExplicitlyTrashed() {
+        return mFields.explicitlyTrashed;
+    }
+
+    @Override
+    public boolean isInAppFolder() {
+        return mFields.inAppFolder;
+    }
+
+    @Override
+    public boolean isPinnable() {
+        return mFields.pinnable;
+    }
+
+    @Override
+    public boolean isPinned() {
+        return mFields.pinned;
+    }
+
+    @Override
+    public boolean isRestricted() {
+        return mFields.restricted;
+    }
+
+    @Override
+    public boolean isShared() {
+        return mFields.shared;
+    }
+
+    @Override
+    public boolean isStarred() {
+        return mFields.starred;
+    }
+
+    @Override
+    public boolean isTrashable() {
+        return mFields.trashable;
+    }
+
+    @Override
+    public boolean isTrashed() {
+        return mFields.trashed;
+    }
+
+    @Override
+    public boolean isViewed() {
+        return mFields.viewed;
+    }
+
+    @Override
+    public Map<CustomPropertyKey, String> getCustomProperties() {
+        return mFields.properties;
+    }
+
+    @Override
+    public Metadata freeze() {
+        return this;
+    }
+
+    @Override
+    public boolean isDataValid() {
+        return true;
+    }
+
+    // the generic field accessor Play services' own Metadata implements its getters with; every
+    // getter is overridden above, so nothing reads a field through here
+    @Override
+    public <T> T zza(MetadataField<T> field) {
+        return null;
+    }
+
+    //////////////////// private helper ////////////////////////
+
+    private static Fields copy(Fields fields){
+        Fields copy = new Fields();
+        copy.driveId = fields.driveId;
+        copy.title = fields.title;
+        copy.mimeType = fields.mimeType;
+        copy.folder = fields.folder;
+        copy.created = copy(fields.created);
+        copy.modified = copy(fields.modified);
+        copy.modifiedByMe = copy(fields.modifiedByMe);
+        copy.lastViewedByMe = copy(fields.lastViewedByMe);
+        copy.sharedWithMe = copy(fields.sharedWithMe);
+        copy.fileSize = fields.fileSize;
+        copy.quotaBytesUsed = fields.quotaBytesUsed;
+        copy.description = fields.description;
+        copy.fileExtension = fields.fileExtension;
+        copy.originalFilename = fields.originalFilename;
+        copy.alternateLink = fields.alternateLink;
+        copy.embedLink = fields.embedLink;
+        copy.webContentLink = fields.webContentLink;
+        copy.webViewLink = fields.webViewLink;
+        copy.contentAvailability = fields.contentAvailability;
+        copy.editable = fields.editable;
+        copy.explicitlyTrashed = fields.explicitlyTrashed;
+        copy.inAppFolder = fields.inAppFolder;
+        copy.pinnable = fields.pinnable;
+        copy.pinned = fields.pinned;
+        copy.restricted = fields.restricted;
+        copy.shared = fields.shared;
+        copy.starred = fields.starred;
+        copy.trashable = fields.trashable;
+        copy.trashed = fields.trashed;
+        copy.viewed = fields.viewed;
+        copy.properties = Collections.unmodifiableMap(new HashMap<>(fields.properties));
+        return copy;
+    }
+
+    private static Date copy(Date date){
+        return date==null ? null : new Date(date.getTime());
+    }
+
+    private static void writeNullableUTF(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value!=null);
+        if (value!=null) out.writeUTF(value);
+    }
+
+    private static String readNullableUTF(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeDate(DataOutputStream out, Date date) throws IOException {
+        out.writeLong(date==null ? Long.MIN_VALUE : date.getTime());
+    }
+
+    private static Date readDate(DataInputStream in) throws IOException {
+        long time = in.readLong();
+        return time==Long.MIN_VALUE ? null : new Date(time);
+    }
+}
@@ -0,0 +1,293 @@
+package swordriver.com.googledrivemodule;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Segmented AES-GCM for file contents, encrypted and decrypted a segment at a time so memory
+ * use does not grow with the file.
+ *
+ * Layout: a header, then the segments, each segmentSize plaintext bytes (the last one possibly
+ * fewer, also none) followed by its tag.
+ *  - header: version (1 byte), segmentSize (4 bytes), salt (16 bytes), nonce prefix (7 bytes)
+ *  - segment key: HmacSHA256(asset key, salt), cut to the asset key length, so every write
+ *    encrypts under a fresh key
+ *  - segment IV: nonce prefix, segment index (4 bytes), 1 on the last segment else 0
+ *  - every segment authenticates the header as additional data
+ * Reordered, dropped or truncated segments fail authentication.
+ */
+class StreamingGcm {
+
+    static final String FORMAT = "gcm-stream-1";
+    static final int DEFAULT_SEGMENT_SIZE = 64*1024;
+
+    private static final byte VERSION = 1;
+    private static final int SALT_LENGTH = 16;
+    private static final int NONCE_PREFIX_LENGTH = 7;
+    private static final int HEADER_LENGTH = 1+4+SALT_LENGTH+NONCE_PREFIX_LENGTH;
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_LENGTH = 16;
+    // refuse headers asking for absurd buffers
+    private static final int MAX_SEGMENT_SIZE = 16*1024*1024;
+
+    private StreamingGcm(){
+    }
+
+    // ciphertext of everything plaintext produces; plaintext is not closed
+    static ReadableByteChannel encrypting(ReadableByteChannel plaintext, SecretKey key, int segmentSize,
+                                          SecureRandom random) throws IOException {
+        return encrypting(plaintext, key, segmentSize, random, MetricsRegistry.NONE);
+    }
+
+    // as above, timing each segment as "crypto.segment.encrypt" and counting its plaintext bytes
+    static ReadableByteChannel encrypting(ReadableByteChannel plaintext, SecretKey key, int segmentSize,
+                                          SecureRandom random, MetricsRegistry metrics) throws IOException {
+        return new EncryptingChannel(plaintext, key, segmentSize, random, metrics);
+    }
+
+    // accepts ciphertext and writes the plaintext to sink; finish() once all ciphertext is written
+    static DecryptingChannel decrypting(WritableByteChannel sink, SecretKey key){
+        return decrypting(sink, key, MetricsRegistry.NONE);
+    }
+
+    // as above, timing each segment as "crypto.segment.decrypt" and counting its plaintext bytes
+    static DecryptingChannel decrypting(WritableByteChannel sink, SecretKey key, MetricsRegistry metrics){
+        return new DecryptingChannel(sink, key, metrics);
+    }
+
+    //////////////////// channels ////////////////////////
+
+    private static class EncryptingChannel implements ReadableByteChannel {
+        private final ReadableByteChannel mSource;
+        private final Segments mSegments;
+        private final ByteBuffer mPlain;
+        private final ByteBuffer mCipher;
+        // first byte of the next segment, read to find out whether the current one is last
+        private final ByteBuffer mLookahead = ByteBuffer.allocate(1);
+        private boolean mLookaheadFull = false;
+        private boolean mDone = false;
+
+        EncryptingChannel(ReadableByteChannel source, SecretKey key, int segmentSize, SecureRandom random,
+                          MetricsRegistry metrics) throws IOException {
+            if (segmentSize<=0 || segmentSize>MAX_SEGMENT_SIZE) throw new IllegalArgumentException("segment size " + segmentSize);
+            mSource = source;
+            byte[] header = new byte[HEADER_LENGTH];
+            ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+            headerBuffer.put(VERSION).putInt(segmentSize);
+            byte[] saltAndPrefix = new byte[SALT_LENGTH+NONCE_PREFIX_LENGTH];
+            random.nextBytes(saltAndPrefix);
+            headerBuffer.put(saltAndPrefix);
+            mSegments = new Segments(key, header, Cipher.ENCRYPT_MODE, metrics);
+            mPlain = ByteBuffer.allocate(segmentSize);
+            mCipher = ByteBuffer.allocate(Math.max(segmentSize+TAG_LENGTH, HEADER_LENGTH));
+            mCipher.put(header);
+            mCipher.flip();
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!mCipher.hasRemaining()){
+                if (mDone) return -1;
+                nextSegment();
+            }
+            int count = Math.min(dst.remaining(), mCipher.remaining());
+            int limit = mCipher.limit();
+            mCipher.limit(mCipher.position()+count);
+            dst.put(mCipher);
+            mCipher.limit(limit);
+            return count;
+        }
+
+        private void nextSegment() throws IOException {
+            mPlain.clear();
+            if (mLookaheadFull){
+                mPlain.put(mLookahead.get(0));
+                mLookaheadFull = false;
+            }
+            boolean eof = false;
+            while (mPlain.hasRemaining()){
+                if (mSource.read(mPlain)<0){
+                    eof = true;
+                    break;
+                }
+            }
+            if (!eof){
+                mLookahead.clear();
+                int read;
+                do {
+                    read = mSource.read(mLookahead);
+                } while (read==0);
+                if (read<0){
+                    eof = true;
+                }else{
+                    mLookaheadFull = true;
+                }
+            }
+            mPlain.flip();
+            mCipher.clear();
+            mSegments.process(mPlain, mCipher, eof);
+            mCipher.flip();
+            mDone = eof;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return mSource.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSource.close();
+        }
+    }
+
+    static class DecryptingChannel implements WritableByteChannel {
+        private final WritableByteChannel mSink;
+        private final SecretKey mKey;
+        private final MetricsRegistry mMetrics;
+        private final ByteBuffer mHeader = ByteBuffer.allocate(HEADER_LENGTH);
+        private Segments mSegments;
+        private ByteBuffer mCipher;
+        private ByteBuffer mPlain;
+        private long mPlaintextLength = 0;
+        private boolean mOpen = true;
+
+        DecryptingChannel(WritableByteChannel sink, SecretKey key, MetricsRegistry metrics){
+            mSink = sink;
+            mKey = key;
+            mMetrics = metrics;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int written = src.remaining();
+            if (mSegments==null){
+                copy(src, mHeader);
+                if (mHeader.hasRemaining()) return written;
+                readHeader();
+            }
+            while (src.hasRemaining()){
+                if (!mCipher.hasRemaining()){
+                    // more ciphertext follows, so this segment is not the last one
+                    flushSegment(false);
+                }
+                copy(src, mCipher);
+            }
+            return written;
+        }
+
+        // decrypts the last segment, verifying nothing was cut off.  returns the plaintext length.
+        long finish() throws IOException {
+            if (mSegments==null) throw new IOException("encrypted contents end inside the header");
+            flushSegment(true);
+            mOpen = false;
+            return mPlaintextLength;
+        }
+
+        private void readHeader() throws IOException {
+            mHeader.flip();
+            byte version = mHeader.get();
+            int segmentSize = mHeader.getInt();
+            if (version!=VERSION) throw new IOException("unknown encrypted contents version " + version);
+            if (segmentSize<=0 || segmentSize>MAX_SEGMENT_SIZE) throw new IOException("bad segment size " + segmentSize);
+            mSegments = new Segments(mKey, mHeader.array(), Cipher.DECRYPT_MODE, mMetrics);
+            mCipher = ByteBuffer.allocate(segmentSize+TAG_LENGTH);
+            mPlain = ByteBuffer.allocate(segmentSize);
+        }
+
+        private void flushSegment(boolean last) throws IOException {
+            mCipher.flip();
+            if (mCipher.remaining()<TAG_LENGTH) throw new IOException("encrypted contents are truncated");
+            mPlain.clear();
+            mSegments.process(mCipher, mPlain, last);
+            mPlain.flip();
+            mPlaintextLength += mPlain.remaining();
+            while (mPlain.hasRemaining()){
+                mSink.write(mPlain);
+            }
+            mCipher.clear();
+        }
+
+        private static void copy(ByteBuffer src, ByteBuffer dst){
+            int count = Math.min(src.remaining(), dst.remaining());
+            int limit = src.limit();
+            src.limit(src.position()+count);
+            dst.put(src);
+            src.limit(limit);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return mOpen;
+        }
+
+        @Override
+        public void close() {
+            // the sink belongs to the caller
+            mOpen = false;
+        }
+    }
+
+    //////////////////// private helper ////////////////////////
+
+    // one cipher per stream, re-initialized with each segment's IV
+    private static class Segments {
+        private final Cipher mCipher;
+        private final SecretKey mSegmentKey;
+        private final byte[] mHeader;
+        private final int mMode;
+        private final MetricsRegistry mMetrics;
+        private final String mMetricName;
+        private final byte[] mIV = new byte[IV_LENGTH];
+        private int mIndex = 0;
+
+        Segments(SecretKey key, byte[] header, int mode, MetricsRegistry metrics) throws IOException {
+            mHeader = header;
+            mMode = mode;
+            mMetrics = metrics;
+            mMetricName = mode==Cipher.ENCRYPT_MODE ? "crypto.segment.encrypt" : "crypto.segment.decrypt";
+            System.arraycopy(header, HEADER_LENGTH-NONCE_PREFIX_LENGTH, mIV, 0, NONCE_PREFIX_LENGTH);
+            try {
+                // the stream keeps its cipher between segments, so it can't borrow the pooled one
+                mCipher = Cipher.getInstance(CryptoPool.GCM);
+                Mac mac = CryptoPool.hmacSha256();
+                mac.init(new SecretKeySpec(key.getEncoded(), CryptoPool.HMAC_SHA256));
+                mac.update(header, 1+4, SALT_LENGTH);
+                byte[] derived = mac.doFinal();
+                int keyLength = Math.min(key.getEncoded().length, derived.length);
+                mSegmentKey = new SecretKeySpec(derived, 0, keyLength, "AES");
+            } catch (GeneralSecurityException e) {
+                throw new IOException("can't set up segment cipher", e);
+            }
+        }
+
+        void process(ByteBuffer input, ByteBuffer output, boolean last) throws IOException {
+            ByteBuffer iv = ByteBuffer.wrap(mIV, NONCE_PREFIX_LENGTH, IV_LENGTH-NONCE_PREFIX_LENGTH);
+            iv.putInt(mIndex).put(last ? (byte) 1 : (byte) 0);
+            long start = System.nanoTime();
+            int inputBytes = input.remaining();
+            int outputStart = output.position();
+            try {
+                mCipher.init(mMode, mSegmentKey, new GCMParameterSpec(TAG_LENGTH*8, mIV));
+                mCipher.updateAAD(mHeader);
+                mCipher.doFinal(input, output);
+            } catch (GeneralSecurityException e) {
+                mMetrics.recordLatency(mMetricName, System.nanoTime()-start, false);
+                throw new IOException("segment " + mIndex + " failed authentication", e);
+            }
+            mMetrics.recordLatency(mMetricName, System.nanoTime()-start, true);
+            mMetrics.count(mMetricName + ".bytes", mMode==Cipher.ENCRYPT_MODE ? inputBytes : output.position()-outputStart);
+            mIndex++;
+        }
+    }
+}
@@ -0,0 +1,486 @@
+package swordriver.com.googledrivemodule;
+
+import android.support.annotation.NonNull;
+
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.drive.DriveId;
+import com.google.android.gms.drive.DriveResource;
+import com.google.android.gms.drive.DriveStatusCodes;
+import com.google.android.gms.drive.Metadata;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import timber.log.Timber;
+
+/**
+ * Text writes and metadata updates accepted at once, connected or not, and written to Drive in
+ * the background once the model is INITIALIZED.
+ *
+ * Changes to the same item coalesce while queued: the latest contents win and metadata updates
+ * merge key by key, so a burst of writes costs one open/commit with the metadata in the same
+ * commit.  Up to setFlushParallelism() items are written at a time.  The queue is kept in a
+ * journal file and survives a restart.  With a GoogleApiModelSecure the journal keeps an
+ * encrypted item's contents encrypted with the item's own key; a change whose contents can't be
+ * sealed that way (no password set) stays in memory only.
+ *
+ * A change that fails stays queued and is retried on the next flush(), which also runs when the
+ * model reports INITIALIZED again.  A change to an item that no longer exists is dropped.
+ */
+public class WriteBehindQueue {
+
+    public interface FlushListener {
+        // success false leaves the change queued, unless the item is gone
+        void onFlushed(DriveId assetID, boolean success, Metadata newMeta);
+    }
+
+    public static final int DEFAULT_FLUSH_PARALLELISM = 4;
+
+    private static final String TAG = "WriteBehindQueue";
+    private static final int FORMAT_VERSION = 2;
+    // journals before contents were sealed, read but no longer written
+    private static final int FORMAT_VERSION_CLEAR = 1;
+
+    // the queued change of one item
+    private static class Change {
+        // null when only metadata changes
+        String content;
+        String charset;
+        // contents restored from the journal, opened once the item has been looked up
+        byte[] sealed;
+        // a null value deletes the property
+        final Map<String, String> metaInfo = new LinkedHashMap<>();
+        // memory only, saves looking the item up again before a write
+        GoogleApiModel.ItemInfo asset;
+
+        Change copy(){
+            Change copy = new Change();
+            copy.content = content;
+            copy.charset = charset;
+            copy.sealed = sealed;
+            copy.metaInfo.putAll(metaInfo);
+            copy.asset = asset;
+            return copy;
+        }
+
+        void mergeNewer(Change newer){
+            if (newer.content!=null){
+                content = newer.content;
+                charset = newer.charset;
+                sealed = null;
+            }
+            metaInfo.putAll(newer.metaInfo);
+            if (newer.asset!=null) asset = newer.asset;
+        }
+    }
+
+    private final GoogleApiModel mModel;
+    private final File mJournal;
+    private final Executor mDiskExecutor;
+    private volatile int mFlushParallelism = DEFAULT_FLUSH_PARALLELISM;
+    private volatile FlushListener mListener;
+    private volatile DriveEventBus.Subscription mStatusSubscription;
+
+    // guarded by this
+    private final LinkedHashMap<DriveId, Change> mPending = new LinkedHashMap<>();
+    // changes being written, until Drive confirms them
+    private final Map<DriveId, Change> mFlushing = new HashMap<>();
+    // failed since the last flush(), not retried before the next one
+    private final Set<DriveId> mHeld = new HashSet<>();
+
+    private final AtomicInteger mDrainRequests = new AtomicInteger(0);
+    private final AtomicBoolean mJournalScheduled = new AtomicBoolean(false);
+
+    // journal null keeps the queue in memory only
+    public WriteBehindQueue(GoogleApiModel model, File journal){
+        mModel = model;
+        mJournal = journal;
+        mDiskExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (mJournal!=null) readJournal();
+    }
+
+    // follows the model's status and flushes what the journal held
+    public void start(){
+        mStatusSubscription = mModel.getEventBus().subscribe(DriveEvent.StatusChanged.class,
+                new DriveEventBus.Subscriber<DriveEvent.StatusChanged>() {
+            @Override
+            public void onEvent(DriveEvent.StatusChanged event) {
+                if (event.status==GoogleApiModel.GoogleApiStatus.INITIALIZED) flush();
+            }
+        });
+        flush();
+    }
+
+    public void stop(){
+        DriveEventBus.Subscription subscription = mStatusSubscription;
+        if (subscription!=null) subscription.cancel();
+    }
+
+    public void setFlushParallelism(int maxInFlight){
+        mFlushParallelism = Math.max(maxInFlight, 1);
+    }
+
+    public void setFlushListener(FlushListener listener){
+        mListener = listener;
+    }
+
+    public void writeTxtFile(GoogleApiModel.ItemInfo assetInfo, String contentStr, Map<String, String> metaInfo){
+        writeTxtFile(assetInfo, contentStr, GoogleApiModel.TEXT_CHARSET, metaInfo);
+    }
+
+    public void writeTxtFile(GoogleApiModel.ItemInfo assetInfo, String contentStr, Charset charset, Map<String, String> metaInfo){
+        Change change = new Change();
+        change.content = contentStr;
+        change.charset = charset.name();
+        if (metaInfo!=null) change.metaInfo.putAll(metaInfo);
+        change.asset = assetInfo;
+        enqueue(assetInfo.meta.getDriveId(), change);
+    }
+
+    public void updateMetadata(DriveId assetID, Map<String, String> metaInfo){
+        Change change = new Change();
+        change.metaInfo.putAll(metaInfo);
+        enqueue(assetID, change);
+    }
+
+    // the contents queued for assetID, newer than what Drive has; null when none are queued, and for
+    // contents restored from the journal until their item has been looked up on the first flush
+    public synchronized String getPendingText(DriveId assetID){
+        Change pending = mPending.get(assetID);
+        if (pending!=null && pending.content!=null) return pending.content;
+        Change flushing = mFlushing.get(assetID);
+        return flushing==null ? null : flushing.content;
+    }
+
+    // items with changes not yet confirmed by Drive
+    public synchronized int getPendingCount(){
+        int count = mPending.size();
+        for (DriveId assetID : mFlushing.keySet()){
+            if (!mPending.containsKey(assetID)) count++;
+        }
+        return count;
+    }
+
+    // writes everything queued, failed changes included, if the model is INITIALIZED
+    public void flush(){
+        synchronized (this){
+            mHeld.clear();
+        }
+        drain();
+    }
+
+    //////////////////// private helper ////////////////////////
+
+    private void enqueue(DriveId assetID, Change change){
+        synchronized (this){
+            Change pending = mPending.get(assetID);
+            if (pending==null){
+                mPending.put(assetID, change);
+            }else{
+                pending.mergeNewer(change);
+            }
+        }
+        scheduleJournal();
+        drain();
+    }
+
+    // background writes, interactive calls go first when the backend schedules calls
+    private void drain(){
+        if (mDrainRequests.getAndIncrement()!=0) return;
+        SchedulingDriveBackend.runWithPriority(SchedulingDriveBackend.Priority.BULK, new Runnable() {
+            @Override
+            public void run() {
+                do {
+                    Map.Entry<DriveId, Change> next;
+                    while ((next = nextChange())!=null){
+                        flushChange(next.getKey(), next.getValue());
+                    }
+                } while (mDrainRequests.decrementAndGet()!=0);
+            }
+        });
+    }
+
+    private synchronized Map.Entry<DriveId, Change> nextChange(){
+        if (mModel.getStatus()!=GoogleApiModel.GoogleApiStatus.INITIALIZED) return null;
+        if (mFlushing.size()>=mFlushParallelism) return null;
+        Iterator<Map.Entry<DriveId, Change>> it = mPending.entrySet().iterator();
+        while (it.hasNext()){
+            Map.Entry<DriveId, Change> entry = it.next();
+            // one write per item at a time, later changes wait for it
+            if (mFlushing.containsKey(entry.getKey()) || mHeld.contains(entry.getKey())) continue;
+            it.remove();
+            mFlushing.put(entry.getKey(), entry.getValue());
+            return entry;
+        }
+        return null;
+    }
+
+    private void flushChange(final DriveId assetID, final Change change){
+        // a refused call may still call back later, whichever comes first counts
+        final AtomicBoolean done = new AtomicBoolean(false);
+        GoogleApiModel.GoogleApiStatus status;
+        if (change.content==null && change.sealed==null){
+            status = mModel.updateMetadata(assetID, change.metaInfo, new ResultCallback<DriveResource.MetadataResult>() {
+                @Override
+                public void onResult(@NonNull DriveResource.MetadataResult metadataResult) {
+                    if (done.compareAndSet(false, true)) onFlushed(assetID, change, metadataResult.getStatus(), metadataResult.getMetadata());
+                }
+            });
+        }else if (change.asset!=null){
+            status = writeChange(assetID, change, done);
+        }else{
+            // queued before a restart, look the item up for its current metadata first
+            status = mModel.getMeta(assetID, new ResultCallback<DriveResource.MetadataResult>() {
+                @Override
+                public void onResult(@NonNull DriveResource.MetadataResult metadataResult) {
+                    if (!metadataResult.getStatus().isSuccess()){
+                        if (done.compareAndSet(false, true)) onFlushed(assetID, change, metadataResult.getStatus(), null);
+                        return;
+                    }
+                    Metadata meta = metadataResult.getMetadata();
+                    if (change.sealed!=null){
+                        byte[] content = mModel.openJournalContent(meta, change.sealed);
+                        if (content==null){
+                            Timber.tag(TAG).w("can not open the journaled contents of %s", assetID);
+                            if (done.compareAndSet(false, true)) onFlushed(assetID, change, null, null);
+                            return;
+                        }
+                        change.content = new String(content, Charset.forName(change.charset));
+                        change.sealed = null;
+                    }
+                    change.asset = new GoogleApiModel.ItemInfo();
+                    change.asset.meta = meta;
+                    GoogleApiModel.GoogleApiStatus writeStatus = writeChange(assetID, change, done);
+                    if (writeStatus!=GoogleApiModel.GoogleApiStatus.INITIALIZED && done.compareAndSet(false, true)){
+                        onFlushed(assetID, change, null, null);
+                    }
+                }
+            });
+        }
+        if (status!=GoogleApiModel.GoogleApiStatus.INITIALIZED && done.compareAndSet(false, true)){
+            onFlushed(assetID, change, null, null);
+        }
+    }
+
+    private GoogleApiModel.GoogleApiStatus writeChange(final DriveId assetID, final Change change, final AtomicBoolean done){
+        return mModel.writeTxtFile(change.asset, change.content, Charset.forName(change.charset),
+                new GoogleApiModel.WriteTxtFileCallback() {
+            @Override
+            public void callback(boolean success, Metadata newMeta) {
+                if (!done.compareAndSet(false, true)) return;
+                if (success){
+                    onFlushed(assetID, change, new Status(CommonStatusCodes.SUCCESS), newMeta);
+                }else{
+                    writeFailed(assetID, change);
+                }
+            }
+        }, change.metaInfo.isEmpty() ? null : change.metaInfo);
+    }
+
+    // a write reports no status, so whether the item is gone takes a look of its own
+    private void writeFailed(final DriveId assetID, final Change change){
+        final AtomicBoolean done = new AtomicBoolean(false);
+        GoogleApiModel.GoogleApiStatus status = mModel.getMeta(assetID, new ResultCallback<DriveResource.MetadataResult>() {
+            @Override
+            public void onResult(@NonNull DriveResource.MetadataResult metadataResult) {
+                if (!done.compareAndSet(false, true)) return;
+                Status status = metadataResult.getStatus();
+                boolean gone = status.getStatusCode()==DriveStatusCodes.DRIVE_RESOURCE_NOT_AVAILABLE;
+                onFlushed(assetID, change, gone ? status : new Status(CommonStatusCodes.INTERNAL_ERROR), null);
+            }
+        });
+        if (status!=GoogleApiModel.GoogleApiStatus.INITIALIZED && done.compareAndSet(false, true)){
+            onFlushed(assetID, change, null, null);
+        }
+    }
+
+    // status null means the model refused the call
+    private void onFlushed(DriveId assetID, Change change, Status status, Metadata newMeta){
+        boolean success = status!=null && status.isSuccess();
+        boolean gone = status!=null && status.getStatusCode()==DriveStatusCodes.DRIVE_RESOURCE_NOT_AVAILABLE;
+        synchronized (this){
+            mFlushing.remove(assetID);
+            if (!success && !gone){
+                // back in the queue under whatever was queued meanwhile
+                Change retry = change.copy();
+                Change newer = mPending.remove(assetID);
+                if (newer!=null) retry.mergeNewer(newer);
+                mPending.put(assetID, retry);
+                mHeld.add(assetID);
+            }else if (success && newMeta!=null){
+                // later writes of the item carry the metadata this one produced
+                Change newer = mPending.get(assetID);
+                if (newer!=null && newer.asset!=null){
+                    newer.asset = new GoogleApiModel.ItemInfo();
+                    newer.asset.meta = newMeta;
+                }
+            }
+        }
+        if (gone) Timber.tag(TAG).w("%s is gone, dropping its queued change", assetID);
+        scheduleJournal();
+        FlushListener listener = mListener;
+        if (listener!=null) listener.onFlushed(assetID, success, newMeta);
+        drain();
+    }
+
+    // rewrites the journal once for any number of changes made before the write starts
+    private void scheduleJournal(){
+        if (mJournal==null || !mJournalScheduled.compareAndSet(false, true)) return;
+        mDiskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mJournalScheduled.set(false);
+                writeJournal(snapshot());
+            }
+        });
+    }
+
+    // everything not confirmed by Drive, flushing changes merged with the ones queued after them
+    private synchronized Map<DriveId, Change> snapshot(){
+        Map<DriveId, Change> snapshot = new LinkedHashMap<>();
+        for (Map.Entry<DriveId, Change> entry : mFlushing.entrySet()){
+            snapshot.put(entry.getKey(), entry.getValue().copy());
+        }
+        for (Map.Entry<DriveId, Change> entry : mPending.entrySet()){
+            Change flushing = snapshot.get(entry.getKey());
+            if (flushing==null){
+                snapshot.put(entry.getKey(), entry.getValue().copy());
+            }else{
+                flushing.mergeNewer(entry.getValue());
+            }
+        }
+        return snapshot;
+    }
+
+    // format: version, change count, then per change id, contents flag, contents as
+    // GoogleApiModel.sealJournalContent() gives them and charset, and the metadata entries with a
+    // null flag each
+    private void writeJournal(Map<DriveId, Change> changes){
+        Map<DriveId, byte[]> sealed = new HashMap<>();
+        Iterator<Map.Entry<DriveId, Change>> it = changes.entrySet().iterator();
+        while (it.hasNext()){
+            Map.Entry<DriveId, Change> entry = it.next();
+            Change change = entry.getValue();
+            byte[] content = change.sealed;
+            if (change.content!=null){
+                content = change.asset==null ? null
+                        : mModel.sealJournalContent(change.asset.meta, change.content.getBytes(Charset.forName(change.charset)));
+                if (content==null){
+                    // its metadata is committed with the contents, so neither is kept
+                    Timber.tag(TAG).w("can not seal the contents of %s, kept in memory only", entry.getKey());
+                    it.remove();
+                    continue;
+                }
+            }
+            if (content!=null) sealed.put(entry.getKey(), content);
+        }
+        if (changes.isEmpty()){
+            if (mJournal.exists() && !mJournal.delete()) Timber.tag(TAG).w("can not delete %s", mJournal);
+            return;
+        }
+        File temp = new File(mJournal.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(changes.size());
+                for (Map.Entry<DriveId, Change> entry : changes.entrySet()){
+                    Change change = entry.getValue();
+                    out.writeUTF(entry.getKey().encodeToString());
+                    byte[] content = sealed.get(entry.getKey());
+                    out.writeBoolean(content!=null);
+                    if (content!=null){
+                        // writeUTF is limited to 64K
+                        out.writeInt(content.length);
+                        out.write(content);
+                        out.writeUTF(change.charset);
+                    }
+                    out.writeInt(change.metaInfo.size());
+                    for (Map.Entry<String, String> property : change.metaInfo.entrySet()){
+                        out.writeUTF(property.getKey());
+                        out.writeBoolean(property.getValue()!=null);
+                        if (property.getValue()!=null) out.writeUTF(property.getValue());
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(mJournal)){
+                Timber.tag(TAG).w("can not replace %s", mJournal);
+                temp.delete();
+            }
+        } catch (IOException e) {
+            Timber.tag(TAG).e(e, "exception!");
+            temp.delete();
+        }
+    }
+
+    private void readJournal(){
+        if (!mJournal.isFile()) return;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mJournal)));
+            try {
+                int version = in.readInt();
+                if (version!=FORMAT_VERSION && version!=FORMAT_VERSION_CLEAR){
+                    Timber.tag(TAG).w("unknown journal version, %s ignored", mJournal);
+                    return;
+                }
+                int count = in.readInt();
+                for (int i=0; i<count; i++){
+                    DriveId assetID = DriveId.decodeFromString(in.readUTF());
+                    Change change = new Change();
+                    if (in.readBoolean()){
+                        byte[] content = new byte[in.readInt()];
+                        in.readFully(content);
+                        if (version==FORMAT_VERSION){
+                            change.sealed = content;
+                        }else{
+                            change.content = new String(content, GoogleApiModel.TEXT_CHARSET);
+                        }
+                        change.charset = in.readUTF();
+                    }
+                    int propertyCount = in.readInt();
+                    for (int p=0; p<propertyCount; p++){
+                        String key = in.readUTF();
+                        change.metaInfo.put(key, in.readBoolean() ? in.readUTF() : null);
+                    }
+                    synchronized (this){
+                        mPending.put(assetID, change);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            // keep what was read, the rest is lost
+            Timber.tag(TAG).e(e, "exception!");
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package swordriver.com.googledrivemodule;
+
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.drive.DriveFile;
+import com.google.android.gms.drive.DriveId;
+import com.google.android.gms.drive.DriveStatusCodes;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * BatchDeleter against InMemoryDriveBackend, which supports batch deletes.
+ */
+public class BatchDeleterTest {
+
+    private static final int ITEMS = 9;
+
+    private ProbingBackend mBackend;
+    private GoogleApiModel mModel;
+    private List<DriveId> mItems;
+
+    @Before
+    public void setUp(){
+        mBackend = new ProbingBackend();
+        mModel = DriveFixtures.connectedModel(mBackend);
+        mItems = new ArrayList<>();
+        for (int i=0; i<ITEMS; i++){
+            DriveFile file = DriveFixtures.createFile(mBackend, mModel.getAppRootFolder(), "file-" + i, null);
+            mItems.add(file.getDriveId());
+        }
+        mBackend.resetCallCounts();
+    }
+
+    @Test
+    public void deletesEveryItemWithinTheParallelism(){
+        mBackend.setLatency(DriveBackend.Operation.DELETE, 20);
+        Outcome outcome = delete(mItems, 3, 1);
+
+        assertTrue(outcome.result.isSuccess());
+        assertEquals(ITEMS, outcome.result.getDeleted().size());
+        assertEquals(3, mBackend.maxInFlight.get());
+        assertEquals(0, DriveFixtures.listFolder(mModel, mModel.getAppRootFolder()).items.length);
+    }
+
+    @Test
+    public void batchesItemsWhenTheBackendCan(){
+        Outcome outcome = delete(mItems, 2, 4);
+
+        assertEquals(ITEMS, outcome.result.getDeleted().size());
+        // four, four, and a single item on its own
+        assertEquals(2, mBackend.getCallCount(DriveBackend.Operation.DELETE_BATCH));
+        assertEquals(1, mBackend.getCallCount(DriveBackend.Operation.DELETE));
+    }
+
+    @Test
+    public void failedItemsDoNotStopTheRest(){
+        mBackend.failNext(DriveBackend.Operation.DELETE, 2);
+        Outcome outcome = delete(mItems, 1, 1);
+
+        assertEquals(2, outcome.result.getFailed().size());
+        assertEquals(ITEMS-2, outcome.result.getDeleted().size());
+        assertFalse(outcome.result.isSuccess());
+        assertEquals(1, outcome.completions.get());
+    }
+
+    @Test
+    public void failedBatchCallFailsItsItems(){
+        mBackend.failNext(DriveBackend.Operation.DELETE_BATCH, 1);
+        Outcome outcome = delete(mItems.subList(0, 8), 1, 4);
+
+        assertEquals(4, outcome.result.getFailed().size());
+        assertEquals(4, outcome.result.getDeleted().size());
+    }
+
+    @Test
+    public void missingItemsAreReportedPerItem(){
+        DriveFixtures.delete(mBackend, mItems.get(0));
+        Outcome outcome = delete(mItems.subList(0, 4), 1, 4);
+
+        assertEquals(3, outcome.result.getDeleted().size());
+        Status status = outcome.result.getFailed().get(mItems.get(0));
+        assertEquals(DriveStatusCodes.DRIVE_RESOURCE_NOT_AVAILABLE, status.getStatusCode());
+    }
+
+    @Test
+    public void nothingToDeleteCompletesOnce(){
+        Outcome outcome = delete(Collections.<DriveId>emptyList(), 4, 4);
+
+        assertTrue(outcome.result.isSuccess());
+        assertEquals(1, outcome.completions.get());
+        assertEquals(0, mBackend.getCallCount(DriveBackend.Operation.DELETE));
+    }
+
+    @Test
+    public void deleteEachReportsEveryItem(){
+        DriveFixtures.delete(mBackend, mItems.get(0));
+        final AtomicReference<Map<DriveId, Status>> statuses = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        BatchDeleter.deleteEach(mBackend, mItems.subList(0, 3), new DriveBackend.Callback<Map<DriveId, Status>>() {
+            @Override
+            public void onResult(Status status, Map<DriveId, Status> result) {
+                statuses.set(result);
+                done.countDown();
+            }
+        });
+        DriveFixtures.await(done);
+
+        assertEquals(3, statuses.get().size());
+        assertFalse(statuses.get().get(mItems.get(0)).isSuccess());
+        assertTrue(statuses.get().get(mItems.get(1)).isSuccess());
+        assertTrue(statuses.get().get(mItems.get(2)).isSuccess());
+    }
+
+    //////////////////// private helper ////////////////////////
+
+    private static class Outcome {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger completions = new AtomicInteger(0);
+        volatile DeleteResult result;
+    }
+
+    private Outcome delete(List<DriveId> items, int parallelism, int batchSize){
+        final Outcome outcome = new Outcome();
+        new BatchDeleter(mBackend, items, parallelism, batchSize, new BatchDeleter.Callback() {
+            @Override
+            public void onDeleted(DeleteResult result) {
+                outcome.result = result;
+                outcome.completions.incrementAndGet();
+                outcome.done.countDown();
+            }
+        }).start();
+        DriveFixtures.await(outcome.done);
+        return outcome;
+    }
+
+    // tracks how many single deletes are outstanding at once
+    private static class ProbingBackend extends InMemoryDriveBackend {
+        final AtomicInteger inFlight = new AtomicInteger(0);
+        final AtomicInteger maxInFlight = new AtomicInteger(0);
+
+        @Override
+        public void delete(DriveId assetID, final Callback<Void> callback) {
+            int now = inFlight.incrementAndGet();
+            int max;
+            while ((max = maxInFlight.get())<now && !maxInFlight.compareAndSet(max, now)){
+                // raced, read again
+            }
+            super.delete(assetID, new Callback<Void>() {
+                @Override
+                public void onResult(Status status, Void nothing) {
+                    inFlight.decrementAndGet();
+                    callback.onResult(status, nothing);
+                }
+            });
+        }
+    }
+}
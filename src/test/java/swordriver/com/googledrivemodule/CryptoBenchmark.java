@@ -0,0 +1,124 @@
+package swordriver.com.googledrivemodule;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Asset name encryption and decryption, listing a folder of encrypted titles with every asset
+ * key unwrapped again, and changePassword over a folder of encrypted items.  pooled=false
+ * looks up Cipher, KeyGenerator and SecretKeyFactory instances again for every operation.
+ */
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class CryptoBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Unlocked {
+        @Param({"true", "false"})
+        public boolean pooled;
+
+        GoogleApiModelSecure model;
+        String encryptedName;
+        Map<String, String> encryptInfo;
+
+        @Setup(Level.Trial)
+        public void setUp(){
+            CryptoPool.setEnabled(pooled);
+            model = DriveFixtures.unlockedSecureModel(new InMemoryDriveBackend());
+            encryptInfo = model.encryptAssetName("benchmark asset name");
+            encryptedName = encryptInfo.remove("asset_name");
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Listing {
+        @Param({"1000"})
+        public int items;
+        @Param({"true", "false"})
+        public boolean pooled;
+
+        GoogleApiModelSecure model;
+
+        @Setup(Level.Trial)
+        public void setUp(){
+            CryptoPool.setEnabled(pooled);
+            InMemoryDriveBackend backend = new InMemoryDriveBackend();
+            model = DriveFixtures.unlockedSecureModel(backend);
+            DriveFixtures.seedEncryptedFiles(model, backend, model.getAppRootFolder(), items);
+            // two decrypts per title, the asset key and the title itself
+            model.setDataKeyCacheTimeout(0);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Rekey {
+        @Param({"1000"})
+        public int items;
+        @Param({"0", "5"})
+        public long latencyMillis;
+        // metadata updates in flight
+        @Param({"1", "8", "32"})
+        public int parallelism;
+
+        GoogleApiModelSecure model;
+
+        @Setup(Level.Invocation)
+        public void setUp(){
+            InMemoryDriveBackend backend = new InMemoryDriveBackend();
+            model = DriveFixtures.unlockedSecureModel(backend);
+            DriveFixtures.seedEncryptedFiles(model, backend, model.getAppRootFolder(), items);
+            backend.setLatency(latencyMillis);
+            model.setRekeyParallelism(parallelism);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Map<String, String> encryptAssetName(Unlocked state){
+        return state.model.encryptAssetName("benchmark asset name");
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public String decryptAssetString(Unlocked state){
+        // the model may add the content IV to the map, so hand it a copy
+        return state.model.decryptAssetString(state.encryptedName, state.encryptInfo.get("asset_name_iv"),
+                new HashMap<>(state.encryptInfo));
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public GoogleApiModel.FolderInfo listEncryptedFolder(Listing state){
+        DriveFixtures.BlockingListCallback callback = new DriveFixtures.BlockingListCallback();
+        state.model.listFolder(state.model.getAppRootFolder(), callback);
+        return callback.await();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 5)
+    public GoogleApiModel.FolderInfo changePassword(Rekey state){
+        DriveFixtures.BlockingListCallback callback = new DriveFixtures.BlockingListCallback();
+        state.model.changePassword("new " + DriveFixtures.PASSWORD, callback);
+        return callback.await();
+    }
+}
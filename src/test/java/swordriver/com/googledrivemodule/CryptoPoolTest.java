@@ -0,0 +1,143 @@
+package swordriver.com.googledrivemodule;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import static org.junit.Assert.*;
+
+/**
+ * CryptoPool's per thread instances, and that init() before every use is all a reused one needs.
+ */
+public class CryptoPoolTest {
+
+    private static final int TAG_BITS = 128;
+
+    private final SecureRandom mRandom = new SecureRandom();
+
+    @After
+    public void tearDown(){
+        CryptoPool.setEnabled(true);
+    }
+
+    @Test
+    public void sameThreadGetsTheSameInstances() throws Exception {
+        assertSame(CryptoPool.gcmCipher(), CryptoPool.gcmCipher());
+        assertSame(CryptoPool.aesKeyGenerator(256), CryptoPool.aesKeyGenerator(256));
+        assertSame(CryptoPool.pbkdf2KeyFactory(), CryptoPool.pbkdf2KeyFactory());
+        assertSame(CryptoPool.hmacSha256(), CryptoPool.hmacSha256());
+    }
+
+    @Test
+    public void otherThreadGetsItsOwnCipher() throws Exception {
+        final AtomicReference<Cipher> other = new AtomicReference<>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    other.set(CryptoPool.gcmCipher());
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        thread.start();
+        thread.join();
+
+        assertNotNull(other.get());
+        assertNotSame(CryptoPool.gcmCipher(), other.get());
+    }
+
+    @Test
+    public void disabledPoolLooksEveryInstanceUp() throws Exception {
+        CryptoPool.setEnabled(false);
+
+        assertNotSame(CryptoPool.gcmCipher(), CryptoPool.gcmCipher());
+        assertNotSame(CryptoPool.hmacSha256(), CryptoPool.hmacSha256());
+    }
+
+    @Test
+    public void keyGeneratorFollowsTheKeyLength() throws Exception {
+        assertEquals(32, CryptoPool.aesKeyGenerator(256).generateKey().getEncoded().length);
+        assertEquals(16, CryptoPool.aesKeyGenerator(128).generateKey().getEncoded().length);
+        assertEquals(32, CryptoPool.aesKeyGenerator(256).generateKey().getEncoded().length);
+    }
+
+    @Test
+    public void cipherWorksAgainAfterAFailedDecryption() throws Exception {
+        SecretKey key = CryptoPool.aesKeyGenerator(256).generateKey();
+        byte[] iv = iv();
+        byte[] sealed = encrypt(key, iv, "clear text");
+        sealed[0] ^= 1;
+
+        Cipher cipher = CryptoPool.gcmCipher();
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+        try {
+            cipher.doFinal(sealed);
+            fail("tampered data decrypted");
+        } catch (AEADBadTagException expected) {
+        }
+        sealed[0] ^= 1;
+
+        assertEquals("clear text", decrypt(key, iv, sealed));
+    }
+
+    @Test
+    public void cipherEncryptsAgainWithAFreshIV() throws Exception {
+        SecretKey key = CryptoPool.aesKeyGenerator(256).generateKey();
+        byte[] firstIV = iv();
+        byte[] secondIV = iv();
+        byte[] first = encrypt(key, firstIV, "first");
+        byte[] second = encrypt(key, secondIV, "second");
+
+        assertEquals("first", decrypt(key, firstIV, first));
+        assertEquals("second", decrypt(key, secondIV, second));
+    }
+
+    @Test
+    public void macIsResetByInit() throws Exception {
+        KeyGenerator keyGen = CryptoPool.aesKeyGenerator(256);
+        SecretKey key = keyGen.generateKey();
+        byte[] data = "data".getBytes(StandardCharsets.UTF_8);
+
+        CryptoPool.hmacSha256().init(key);
+        CryptoPool.hmacSha256().update("left over".getBytes(StandardCharsets.UTF_8));
+        CryptoPool.hmacSha256().init(key);
+        byte[] reused = CryptoPool.hmacSha256().doFinal(data);
+        CryptoPool.setEnabled(false);
+        Mac fresh = CryptoPool.hmacSha256();
+        fresh.init(key);
+
+        assertArrayEquals(fresh.doFinal(data), reused);
+    }
+
+    //////////////////// private helper ////////////////////////
+
+    private byte[] iv(){
+        byte[] iv = new byte[12];
+        mRandom.nextBytes(iv);
+        return iv;
+    }
+
+    private static byte[] encrypt(SecretKey key, byte[] iv, String text) throws Exception {
+        Cipher cipher = CryptoPool.gcmCipher();
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+        return cipher.doFinal(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decrypt(SecretKey key, byte[] iv, byte[] sealed) throws Exception {
+        Cipher cipher = CryptoPool.gcmCipher();
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+        return new String(cipher.doFinal(sealed), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,241 @@
+package swordriver.com.googledrivemodule;
+
+import com.google.android.gms.drive.DriveId;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * DriveEventBus delivery: on the publishing thread, on an executor in order with coalescing,
+ * and after cancel.
+ */
+public class DriveEventBusTest {
+
+    private DriveEventBus mBus;
+    private HeldExecutor mExecutor;
+
+    @Before
+    public void setUp(){
+        mBus = new DriveEventBus();
+        mExecutor = new HeldExecutor();
+    }
+
+    @Test
+    public void directSubscriberGetsEveryEventOfItsTypeAtOnce(){
+        Recorder<DriveEvent.WriteCompleted> writes = new Recorder<>();
+        mBus.subscribe(DriveEvent.WriteCompleted.class, writes);
+
+        mBus.publish(written(1));
+        mBus.publish(written(2));
+        mBus.publish(new DriveEvent.StatusChanged(GoogleApiModel.GoogleApiStatus.DISCONNECTED));
+
+        assertEquals(Arrays.asList(1L, 2L), bytes(writes.events));
+    }
+
+    @Test
+    public void lateSubscriberSeesOnlyTheLatestStatus(){
+        Recorder<DriveEvent.StatusChanged> statuses = new Recorder<>();
+        mBus.subscribe(DriveEvent.StatusChanged.class, statuses, mExecutor);
+
+        mBus.publish(new DriveEvent.StatusChanged(GoogleApiModel.GoogleApiStatus.DISCONNECTED));
+        mBus.publish(new DriveEvent.StatusChanged(GoogleApiModel.GoogleApiStatus.CONNECTED_UNINITIALIZED));
+        mBus.publish(new DriveEvent.StatusChanged(GoogleApiModel.GoogleApiStatus.INITIALIZED));
+        assertTrue(statuses.events.isEmpty());
+        mExecutor.runAll();
+
+        assertEquals(1, statuses.events.size());
+        assertEquals(GoogleApiModel.GoogleApiStatus.INITIALIZED, statuses.events.get(0).status);
+    }
+
+    @Test
+    public void eventsWithoutKeyAreNeverMerged(){
+        Recorder<DriveEvent.WriteCompleted> writes = new Recorder<>();
+        mBus.subscribe(DriveEvent.WriteCompleted.class, writes, mExecutor);
+
+        for (int i=0; i<3; i++){
+            mBus.publish(written(i));
+        }
+        // one drain delivers them all
+        assertEquals(1, mExecutor.size());
+        mExecutor.runAll();
+
+        assertEquals(Arrays.asList(0L, 1L, 2L), bytes(writes.events));
+    }
+
+    @Test
+    public void mergedEventKeepsItsPlaceInTheQueue(){
+        InMemoryDriveBackend backend = new InMemoryDriveBackend();
+        GoogleApiModel model = DriveFixtures.connectedModel(backend);
+        DriveId first = DriveFixtures.createFile(backend, model.getAppRootFolder(), "first", null).getDriveId();
+        DriveId second = DriveFixtures.createFile(backend, model.getAppRootFolder(), "second", null).getDriveId();
+        Recorder<DriveEvent.ItemChanged> items = new Recorder<>();
+        mBus.subscribe(DriveEvent.ItemChanged.class, items, mExecutor);
+
+        DriveEvent.ItemChanged latest = new DriveEvent.ItemChanged(first, null);
+        mBus.publish(new DriveEvent.ItemChanged(first, null));
+        mBus.publish(new DriveEvent.ItemChanged(second, null));
+        mBus.publish(latest);
+        mExecutor.runAll();
+
+        assertEquals(2, items.events.size());
+        assertSame(latest, items.events.get(0));
+        assertEquals(second, items.events.get(1).itemID);
+    }
+
+    @Test
+    public void eventsPublishedWhileDrainingAreDeliveredByTheSameRun(){
+        final Recorder<DriveEvent.WriteCompleted> writes = new Recorder<DriveEvent.WriteCompleted>() {
+            @Override
+            public void onEvent(DriveEvent.WriteCompleted event) {
+                super.onEvent(event);
+                if (event.bytes==0) mBus.publish(written(1));
+            }
+        };
+        mBus.subscribe(DriveEvent.WriteCompleted.class, writes, mExecutor);
+
+        mBus.publish(written(0));
+        mExecutor.runAll();
+
+        assertEquals(Arrays.asList(0L, 1L), bytes(writes.events));
+        assertEquals(0, mExecutor.size());
+    }
+
+    @Test
+    public void asyncSubscriberGetsEventsInPublishOrder() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final int count = 1000;
+            final CountDownLatch done = new CountDownLatch(1);
+            final Recorder<DriveEvent.WriteCompleted> writes = new Recorder<DriveEvent.WriteCompleted>() {
+                @Override
+                public void onEvent(DriveEvent.WriteCompleted event) {
+                    super.onEvent(event);
+                    if (event.bytes==count-1) done.countDown();
+                }
+            };
+            mBus.subscribe(DriveEvent.WriteCompleted.class, writes, executor);
+
+            for (int i=0; i<count; i++){
+                mBus.publish(written(i));
+            }
+            DriveFixtures.await(done);
+
+            List<Long> received = bytes(writes.events);
+            assertEquals(count, received.size());
+            for (int i=0; i<count; i++){
+                assertEquals(i, (long) received.get(i));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void cancelDropsQueuedEvents(){
+        Recorder<DriveEvent.WriteCompleted> writes = new Recorder<>();
+        DriveEventBus.Subscription subscription = mBus.subscribe(DriveEvent.WriteCompleted.class, writes, mExecutor);
+        mBus.publish(written(1));
+
+        subscription.cancel();
+        mBus.publish(written(2));
+        mExecutor.runAll();
+
+        assertTrue(writes.events.isEmpty());
+        assertFalse(mBus.hasSubscribers(DriveEvent.WriteCompleted.class));
+    }
+
+    @Test
+    public void cancelInsideDeliveryStopsTheRest(){
+        final List<DriveEventBus.Subscription> subscription = new ArrayList<>();
+        Recorder<DriveEvent.WriteCompleted> writes = new Recorder<DriveEvent.WriteCompleted>() {
+            @Override
+            public void onEvent(DriveEvent.WriteCompleted event) {
+                super.onEvent(event);
+                subscription.get(0).cancel();
+            }
+        };
+        subscription.add(mBus.subscribe(DriveEvent.WriteCompleted.class, writes, mExecutor));
+
+        mBus.publish(written(1));
+        mBus.publish(written(2));
+        mExecutor.runAll();
+
+        assertEquals(Collections.singletonList(1L), bytes(writes.events));
+    }
+
+    @Test
+    public void failingSubscriberDoesNotStopTheOthers(){
+        Recorder<DriveEvent.WriteCompleted> writes = new Recorder<>();
+        mBus.subscribe(DriveEvent.WriteCompleted.class, new DriveEventBus.Subscriber<DriveEvent.WriteCompleted>() {
+            @Override
+            public void onEvent(DriveEvent.WriteCompleted event) {
+                throw new IllegalStateException("subscriber failed");
+            }
+        });
+        mBus.subscribe(DriveEvent.WriteCompleted.class, writes);
+
+        mBus.publish(written(1));
+
+        assertEquals(1, writes.events.size());
+    }
+
+    //////////////////// private helper ////////////////////////
+
+    private static DriveEvent.WriteCompleted written(long bytes){
+        return new DriveEvent.WriteCompleted(null, true, bytes, null);
+    }
+
+    private static List<Long> bytes(List<DriveEvent.WriteCompleted> events){
+        List<Long> bytes = new ArrayList<>();
+        for (DriveEvent.WriteCompleted event : events){
+            bytes.add(event.bytes);
+        }
+        return bytes;
+    }
+
+    private static class Recorder<E extends DriveEvent> implements DriveEventBus.Subscriber<E> {
+        final List<E> events = Collections.synchronizedList(new ArrayList<E>());
+
+        @Override
+        public void onEvent(E event) {
+            events.add(event);
+        }
+    }
+
+    // runs what it was given only when told to
+    private static class HeldExecutor implements Executor {
+        private final List<Runnable> mTasks = new ArrayList<>();
+
+        @Override
+        public synchronized void execute(Runnable command) {
+            mTasks.add(command);
+        }
+
+        synchronized int size(){
+            return mTasks.size();
+        }
+
+        void runAll(){
+            while (true){
+                List<Runnable> tasks;
+                synchronized (this){
+                    if (mTasks.isEmpty()) return;
+                    tasks = new ArrayList<>(mTasks);
+                    mTasks.clear();
+                }
+                for (Runnable task : tasks) task.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package swordriver.com.googledrivemodule;
+
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.drive.DriveFile;
+import com.google.android.gms.drive.DriveFolder;
+import com.google.android.gms.drive.DriveId;
+import com.google.android.gms.drive.Metadata;
+import com.google.android.gms.drive.MetadataChangeSet;
+import com.google.android.gms.drive.metadata.CustomPropertyKey;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Builds drive content directly in an InMemoryDriveBackend and waits for model callbacks,
+ * for benchmarks and tests running on the host JVM.
+ */
+public class DriveFixtures {
+
+    public static final String APP_ROOT = "GoogleDriveModule";
+    public static final String PASSWORD = "benchmark password";
+    private static final long TIMEOUT_SECONDS = 60;
+
+    public static GoogleApiModel connectedModel(InMemoryDriveBackend backend){
+        GoogleApiModel model = new GoogleApiModel("bench", APP_ROOT, backend);
+        // without a GoogleApiClient, open() connects straight away and initializes the app root
+        model.open();
+        awaitStatus(model, GoogleApiModel.GoogleApiStatus.INITIALIZED, "app root was not initialized");
+        return model;
+    }
+
+    public static JvmGoogleApiModelSecure unlockedSecureModel(InMemoryDriveBackend backend){
+        return unlockedSecureModel(backend, PASSWORD);
+    }
+
+    public static JvmGoogleApiModelSecure unlockedSecureModel(InMemoryDriveBackend backend, String password){
+        JvmGoogleApiModelSecure model = lockedSecureModel(backend);
+        model.setPassword(password);
+        awaitStatus(model, GoogleApiModel.GoogleApiStatus.INITIALIZED, "password was not accepted");
+        return model;
+    }
+
+    // connected with its app root found, waiting for a password
+    public static JvmGoogleApiModelSecure lockedSecureModel(InMemoryDriveBackend backend){
+        JvmGoogleApiModelSecure model = new JvmGoogleApiModelSecure("bench", APP_ROOT, backend);
+        model.open();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (model.getAppRootFolder()==null){
+            if (System.nanoTime()>deadline) throw new IllegalStateException("app root was not initialized");
+            Thread.yield();
+        }
+        return model;
+    }
+
+    public static void awaitStatus(GoogleApiModel model, GoogleApiModel.GoogleApiStatus status, String message){
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (model.getStatus()!=status){
+            if (System.nanoTime()>deadline) throw new IllegalStateException(message);
+            Thread.yield();
+        }
+    }
+
+    // folders nested depth levels deep, fanout sub folders and files per folder
+    public static int seedTree(InMemoryDriveBackend backend, DriveFolder folder, int depth, int fanout){
+        int created = 0;
+        for (int i=0; i<fanout; i++){
+            createFile(backend, folder, "file-" + i, null);
+            created++;
+        }
+        if (depth==0) return created;
+        for (int i=0; i<fanout; i++){
+            DriveFolder child = createFolder(backend, folder, "folder-" + i, null);
+            created += 1 + seedTree(backend, child, depth-1, fanout);
+        }
+        return created;
+    }
+
+    public static List<DriveFile> seedEncryptedFiles(GoogleApiModelSecure model, InMemoryDriveBackend backend,
+                                                     DriveFolder folder, int count){
+        List<DriveFile> files = new ArrayList<>(count);
+        for (int i=0; i<count; i++){
+            Map<String, String> cipherData = model.encryptAssetName("encrypted-" + i);
+            String encryptedName = cipherData.remove("asset_name");
+            files.add(createFile(backend, folder, encryptedName, cipherData));
+        }
+        return files;
+    }
+
+    public static DriveFolder createFolder(InMemoryDriveBackend backend, DriveFolder parent, String title,
+                                           Map<String, String> properties){
+        final AtomicReference<DriveFolder> result = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        backend.createFolder(parent, changeSet(title, properties), new DriveBackend.Callback<DriveFolder>() {
+            @Override
+            public void onResult(Status status, DriveFolder folder) {
+                result.set(folder);
+                done.countDown();
+            }
+        });
+        await(done);
+        return result.get();
+    }
+
+    public static DriveFile createFile(InMemoryDriveBackend backend, DriveFolder parent, String title,
+                                       Map<String, String> properties){
+        final AtomicReference<DriveFile> result = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        backend.createFile(parent, changeSet(title, properties), new DriveBackend.Callback<DriveFile>() {
+            @Override
+            public void onResult(Status status, DriveFile file) {
+                result.set(file);
+                done.countDown();
+            }
+        });
+        await(done);
+        return result.get();
+    }
+
+    // an empty text file created through the model, so its ItemInfo is what callers get
+    public static GoogleApiModel.ItemInfo createTxtFile(GoogleApiModel model, DriveFolder parent, String name){
+        final AtomicReference<GoogleApiModel.ItemInfo> result = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        model.createTxtFile(name, parent, null, new GoogleApiModel.CreateItemCallback() {
+            @Override
+            public void callback(boolean success, GoogleApiModel.ItemInfo newItem, DriveId existingID) {
+                result.set(newItem);
+                done.countDown();
+            }
+        });
+        await(done);
+        if (result.get()==null) throw new IllegalStateException("file was not created");
+        return result.get();
+    }
+
+    public static GoogleApiModel.FolderInfo listFolder(GoogleApiModel model, DriveFolder folder){
+        BlockingListCallback callback = new BlockingListCallback();
+        if (model.listFolder(folder, callback)!=GoogleApiModel.GoogleApiStatus.INITIALIZED){
+            throw new IllegalStateException("model is not initialized");
+        }
+        return callback.await();
+    }
+
+    // changes properties of an item behind the model's back, as another device would
+    public static Metadata updateProperties(InMemoryDriveBackend backend, DriveId itemID, Map<String, String> properties){
+        return updateMetadata(backend, itemID, changeSet(null, properties));
+    }
+
+    public static Metadata rename(InMemoryDriveBackend backend, DriveId itemID, String title){
+        return updateMetadata(backend, itemID, changeSet(title, null));
+    }
+
+    public static Metadata getMetadata(DriveBackend backend, DriveId itemID){
+        final AtomicReference<Metadata> result = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        backend.getMetadata(itemID, new DriveBackend.Callback<Metadata>() {
+            @Override
+            public void onResult(Status status, Metadata metadata) {
+                result.set(metadata);
+                done.countDown();
+            }
+        });
+        await(done);
+        return result.get();
+    }
+
+    // the whole file as text, null when it can't be read
+    public static String readTxtFile(GoogleApiModel model, GoogleApiModel.ItemInfo info){
+        final AtomicReference<String> result = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        model.readTxtFile(info, new GoogleApiModel.ReadTxtFileCallback() {
+            @Override
+            public void callback(String fileContent) {
+                result.set(fileContent);
+                done.countDown();
+            }
+        });
+        await(done);
+        return result.get();
+    }
+
+    // the stored bytes of a file, as Drive keeps them
+    public static byte[] readContents(final InMemoryDriveBackend backend, DriveId fileID){
+        final AtomicReference<byte[]> result = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        backend.open(fileID.asDriveFile(), DriveFile.MODE_READ_ONLY, new DriveBackend.Callback<DriveBackend.Contents>() {
+            @Override
+            public void onResult(Status status, DriveBackend.Contents contents) {
+                try {
+                    if (status.isSuccess()){
+                        InputStream in = contents.getInputStream();
+                        ByteArrayOutputStream content = new ByteArrayOutputStream();
+                        byte[] buffer = new byte[8192];
+                        int read;
+                        while ((read = in.read(buffer))>=0){
+                            content.write(buffer, 0, read);
+                        }
+                        result.set(content.toByteArray());
+                        backend.discard(contents);
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        await(done);
+        if (result.get()==null) throw new IllegalStateException("contents were not read");
+        return result.get();
+    }
+
+    // replaces the stored bytes and sets properties behind the model's back, as another device
+    // or an older version of the app would
+    public static Metadata writeContents(final InMemoryDriveBackend backend, final DriveId fileID, final byte[] content,
+                                         final Map<String, String> properties){
+        final CountDownLatch done = new CountDownLatch(1);
+        backend.open(fileID.asDriveFile(), DriveFile.MODE_WRITE_ONLY, new DriveBackend.Callback<DriveBackend.Contents>() {
+            @Override
+            public void onResult(Status status, DriveBackend.Contents contents) {
+                if (!status.isSuccess()){
+                    done.countDown();
+                    return;
+                }
+                try {
+                    contents.getOutputStream().write(content);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                backend.commit(contents, changeSet(null, properties), new DriveBackend.Callback<Metadata>() {
+                    @Override
+                    public void onResult(Status status, Metadata result) {
+                        done.countDown();
+                    }
+                });
+            }
+        });
+        await(done);
+        return getMetadata(backend, fileID);
+    }
+
+    // deletes an item behind the model's back, as another device would
+    public static void delete(InMemoryDriveBackend backend, DriveId itemID){
+        final CountDownLatch done = new CountDownLatch(1);
+        backend.delete(itemID, new DriveBackend.Callback<Void>() {
+            @Override
+            public void onResult(Status status, Void result) {
+                done.countDown();
+            }
+        });
+        await(done);
+    }
+
+    public static void await(CountDownLatch latch){
+        try {
+            if (!latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)){
+                throw new IllegalStateException("timed out waiting for callback");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Metadata updateMetadata(InMemoryDriveBackend backend, DriveId itemID, MetadataChangeSet changeSet){
+        final AtomicReference<Metadata> result = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        backend.updateMetadata(itemID, changeSet, new DriveBackend.Callback<Metadata>() {
+            @Override
+            public void onResult(Status status, Metadata metadata) {
+                result.set(metadata);
+                done.countDown();
+            }
+        });
+        await(done);
+        return result.get();
+    }
+
+    private static MetadataChangeSet changeSet(String title, Map<String, String> properties){
+        MetadataChangeSet.Builder builder = new MetadataChangeSet.Builder();
+        if (title!=null) builder.setTitle(title).setMimeType("text/plain");
+        if (properties!=null){
+            for (Map.Entry<String, String> entry : properties.entrySet()){
+                builder.setCustomProperty(new CustomPropertyKey(entry.getKey(), CustomPropertyKey.PUBLIC), entry.getValue());
+            }
+        }
+        return builder.build();
+    }
+
+    public static class BlockingListCallback implements GoogleApiModel.ListFolderCallback {
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile GoogleApiModel.FolderInfo mInfo;
+
+        @Override
+        public void callback(GoogleApiModel.FolderInfo info) {
+            mInfo = info;
+            mDone.countDown();
+        }
+
+        public GoogleApiModel.FolderInfo await(){
+            DriveFixtures.await(mDone);
+            return mInfo;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package swordriver.com.googledrivemodule;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * DriveFuture's completion, continuations, allOf, withTimeout and cancel, plus one chain through
+ * GoogleApiFutures against InMemoryDriveBackend.
+ */
+public class DriveFutureTest {
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @Test
+    public void completesOnce() throws Exception {
+        DriveFuture<String> future = new DriveFuture<>(DriveFuture.DIRECT);
+
+        assertFalse(future.isDone());
+        assertTrue(future.set("first"));
+        assertFalse(future.set("second"));
+        assertFalse(future.setException(new IllegalStateException()));
+        assertFalse(future.cancel(true));
+        assertTrue(future.isDone());
+        assertEquals("first", future.get());
+        assertNull(future.getFailure());
+    }
+
+    @Test
+    public void listenersRunOnceCompletedOrAtOnceWhenAlreadyDone(){
+        final AtomicInteger runs = new AtomicInteger();
+        Runnable listener = new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        };
+        DriveFuture<String> future = new DriveFuture<>(null);
+        future.addListener(listener);
+        assertEquals(0, runs.get());
+
+        future.set("value");
+        assertEquals(1, runs.get());
+        future.addListener(listener);
+        assertEquals(2, runs.get());
+    }
+
+    @Test
+    public void listenersRunOnTheirExecutor(){
+        final AtomicInteger executed = new AtomicInteger();
+        Executor counting = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                executed.incrementAndGet();
+                command.run();
+            }
+        };
+        DriveFuture<String> future = new DriveFuture<>(counting);
+        future.then(new DriveFuture.Transform<String, Integer>() {
+            @Override
+            public Integer apply(String value) {
+                return value.length();
+            }
+        });
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, DriveFuture.DIRECT);
+
+        future.set("value");
+        assertEquals(1, executed.get());
+    }
+
+    @Test
+    public void thenTransformsTheValue() throws Exception {
+        DriveFuture<String> future = new DriveFuture<>(DriveFuture.DIRECT);
+        DriveFuture<Integer> length = future.then(new DriveFuture.Transform<String, Integer>() {
+            @Override
+            public Integer apply(String value) {
+                return value.length();
+            }
+        });
+
+        future.set("value");
+        assertEquals(5, (int) length.get());
+    }
+
+    @Test
+    public void thenPassesFailuresOn() throws Exception {
+        final AtomicInteger applied = new AtomicInteger();
+        DriveFuture<Integer> length = DriveFuture.<String>failed(new IllegalStateException("failed"), null)
+                .then(new DriveFuture.Transform<String, Integer>() {
+                    @Override
+                    public Integer apply(String value) {
+                        applied.incrementAndGet();
+                        return value.length();
+                    }
+                });
+
+        assertEquals(0, applied.get());
+        assertFailedWith(IllegalStateException.class, length);
+    }
+
+    @Test
+    public void throwingTransformFailsTheNextFuture() throws Exception {
+        DriveFuture<Integer> length = DriveFuture.completed("value", null)
+                .then(new DriveFuture.Transform<String, Integer>() {
+                    @Override
+                    public Integer apply(String value) throws Exception {
+                        throw new IOException("transform");
+                    }
+                });
+
+        assertFailedWith(IOException.class, length);
+    }
+
+    @Test
+    public void thenAsyncWaitsForTheChainedFuture() throws Exception {
+        final DriveFuture<Integer> inner = new DriveFuture<>(null);
+        DriveFuture<Integer> chained = DriveFuture.completed("value", null)
+                .thenAsync(new DriveFuture.AsyncTransform<String, Integer>() {
+                    @Override
+                    public DriveFuture<Integer> apply(String value) {
+                        return inner;
+                    }
+                });
+
+        assertFalse(chained.isDone());
+        inner.set(7);
+        assertEquals(7, (int) chained.get());
+    }
+
+    @Test
+    public void allOfKeepsTheInputOrder() throws Exception {
+        DriveFuture<String> first = new DriveFuture<>(null);
+        DriveFuture<String> second = new DriveFuture<>(null);
+        DriveFuture<List<String>> all = DriveFuture.allOf(null, first, second);
+
+        second.set("b");
+        assertFalse(all.isDone());
+        first.set("a");
+        assertEquals(Arrays.asList("a", "b"), all.get());
+    }
+
+    @Test
+    public void allOfFailsWithTheFirstFailure() throws Exception {
+        DriveFuture<String> first = new DriveFuture<>(null);
+        DriveFuture<String> second = new DriveFuture<>(null);
+        DriveFuture<List<String>> all = DriveFuture.allOf(null, first, second);
+
+        second.setException(new IllegalStateException("second"));
+        assertTrue(all.isDone());
+        first.set("a");
+        assertFailedWith(IllegalStateException.class, all);
+    }
+
+    @Test
+    public void allOfNothingIsDoneAtOnce() throws Exception {
+        DriveFuture<List<String>> all = DriveFuture.allOf(Collections.<DriveFuture<String>>emptyList(), null);
+
+        assertTrue(all.get().isEmpty());
+    }
+
+    @Test
+    public void withTimeoutFailsALateFuture() throws Exception {
+        DriveFuture<String> slow = new DriveFuture<>(null);
+        DriveFuture<String> bounded = slow.withTimeout(20, TimeUnit.MILLISECONDS);
+
+        assertFailedWith(TimeoutException.class, bounded);
+        // only the waiting stopped
+        assertFalse(slow.isDone());
+        slow.set("late");
+        assertEquals("late", slow.get());
+        assertTrue(bounded.getFailure() instanceof TimeoutException);
+    }
+
+    @Test
+    public void withTimeoutPassesAnEarlyValue() throws Exception {
+        DriveFuture<String> fast = new DriveFuture<>(null);
+        DriveFuture<String> bounded = fast.withTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        fast.set("early");
+        assertEquals("early", bounded.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void cancelFailsTheFutureAndItsContinuations() throws Exception {
+        DriveFuture<String> future = new DriveFuture<>(null);
+        DriveFuture<Integer> length = future.then(new DriveFuture.Transform<String, Integer>() {
+            @Override
+            public Integer apply(String value) {
+                return value.length();
+            }
+        });
+
+        assertTrue(future.cancel(false));
+        assertTrue(future.isCancelled());
+        assertFalse(future.set("value"));
+        try {
+            future.get();
+            fail("cancelled future returned a value");
+        } catch (CancellationException expected) {
+        }
+        assertTrue(length.isCancelled());
+    }
+
+    @Test
+    public void getWithTimeoutGivesUpOnARunningFuture() throws Exception {
+        DriveFuture<String> future = new DriveFuture<>(null);
+        try {
+            future.get(10, TimeUnit.MILLISECONDS);
+            fail("running future returned a value");
+        } catch (TimeoutException expected) {
+        }
+    }
+
+    @Test
+    public void futuresChainModelCalls() throws Exception {
+        InMemoryDriveBackend backend = new InMemoryDriveBackend();
+        backend.setLatency(5);
+        final GoogleApiModel model = DriveFixtures.connectedModel(backend);
+        final GoogleApiFutures futures = new GoogleApiFutures(model, null);
+        final CountDownLatch done = new CountDownLatch(1);
+
+        DriveFuture<String> read = futures.createTxtFile("file", model.getAppRootFolder(), null)
+                .thenAsync(new DriveFuture.AsyncTransform<GoogleApiModel.ItemInfo, String>() {
+                    @Override
+                    public DriveFuture<String> apply(GoogleApiModel.ItemInfo info) {
+                        return futures.readTxtFile(info);
+                    }
+                });
+        read.addListener(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        DriveFixtures.await(done);
+
+        assertEquals("", read.get());
+        assertEquals(1, DriveFixtures.listFolder(model, model.getAppRootFolder()).items.length);
+    }
+
+    //////////////////// private helper ////////////////////////
+
+    private static void assertFailedWith(Class<? extends Throwable> type, DriveFuture<?> future) throws Exception {
+        try {
+            future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            fail("future did not fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() + " is no " + type.getSimpleName(), type.isInstance(e.getCause()));
+        }
+    }
+}
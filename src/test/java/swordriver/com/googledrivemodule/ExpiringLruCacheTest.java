@@ -0,0 +1,81 @@
+package swordriver.com.googledrivemodule;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * ExpiringLruCache, the data key cache of GoogleApiModelSecure.
+ */
+public class ExpiringLruCacheTest {
+
+    @Test
+    public void keepsWhatWasPut(){
+        ExpiringLruCache<String, String> cache = new ExpiringLruCache<>(4, 60*1000);
+        cache.put("a", "1");
+        cache.put("a", "2");
+
+        assertEquals("2", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsed(){
+        ExpiringLruCache<String, String> cache = new ExpiringLruCache<>(2, 60*1000);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        // a is now more recent than b
+        cache.get("a");
+        cache.put("c", "3");
+
+        assertEquals("1", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals("3", cache.get("c"));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void entriesExpire() throws Exception {
+        ExpiringLruCache<String, String> cache = new ExpiringLruCache<>(4, 20);
+        cache.put("a", "1");
+        Thread.sleep(50);
+
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void longerTimeoutAppliesToLaterPuts() throws Exception {
+        ExpiringLruCache<String, String> cache = new ExpiringLruCache<>(4, 20);
+        cache.setTimeout(60*1000);
+        cache.put("a", "1");
+        Thread.sleep(50);
+
+        assertEquals("1", cache.get("a"));
+    }
+
+    @Test
+    public void noTimeoutCachesNothing(){
+        ExpiringLruCache<String, String> cache = new ExpiringLruCache<>(4, 0);
+        cache.put("a", "1");
+
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void removeAndClearWipe(){
+        ExpiringLruCache<String, String> cache = new ExpiringLruCache<>(4, 60*1000);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("c", "3");
+
+        cache.remove("a");
+        assertNull(cache.get("a"));
+        assertEquals(2, cache.size());
+        cache.clear();
+        assertNull(cache.get("b"));
+        assertEquals(0, cache.size());
+    }
+}
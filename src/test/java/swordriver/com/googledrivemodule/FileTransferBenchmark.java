@@ -0,0 +1,189 @@
+package swordriver.com.googledrivemodule;
+
+import com.google.android.gms.drive.Metadata;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * File contents written and read back through the streaming readFile/writeFile against the
+ * String based readTxtFile/writeTxtFile, and uploaded from and downloaded to local files,
+ * in the clear and through GoogleApiModelSecure's segmented encryption.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class FileTransferBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Asset {
+        @Param({"65536", "4194304"})
+        public int size;
+        // true stages opened contents in files, so transfers can go file to file
+        @Param({"false", "true"})
+        public boolean staged;
+        @Param({"false", "true"})
+        public boolean mapped;
+        @Param({"false", "true"})
+        public boolean encrypted;
+
+        GoogleApiModel model;
+        GoogleApiModel.ItemInfo item;
+        byte[] content;
+        String text;
+        File directory;
+        File local;
+        File download;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            directory = Files.createTempDirectory("transfer").toFile();
+            InMemoryDriveBackend backend = new InMemoryDriveBackend();
+            if (staged) backend.setContentDirectory(directory);
+            model = encrypted ? DriveFixtures.unlockedSecureModel(backend) : DriveFixtures.connectedModel(backend);
+            item = DriveFixtures.createTxtFile(model, model.getAppRootFolder(), "transfer");
+            content = new byte[size];
+            Arrays.fill(content, (byte) 'x');
+            text = new String(content, GoogleApiModel.TEXT_CHARSET);
+            BlockingWriteCallback callback = new BlockingWriteCallback();
+            model.writeFile(item, new ByteArrayInputStream(content), null, callback);
+            item.meta = callback.await();
+            local = new File(directory, "local");
+            download = new File(directory, "download");
+            Files.write(local.toPath(), content);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown(){
+            local.delete();
+            download.delete();
+            directory.delete();
+        }
+    }
+
+    @Benchmark
+    public Metadata writeFile(Asset asset){
+        BlockingWriteCallback callback = new BlockingWriteCallback();
+        asset.model.writeFile(asset.item, new ByteArrayInputStream(asset.content), null, callback);
+        return callback.await();
+    }
+
+    @Benchmark
+    public Metadata writeTxtFile(Asset asset){
+        BlockingWriteCallback callback = new BlockingWriteCallback();
+        asset.model.writeTxtFile(asset.item, asset.text, callback);
+        return callback.await();
+    }
+
+    @Benchmark
+    public long readFile(Asset asset){
+        final AtomicLong result = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(1);
+        asset.model.readFile(asset.item, new DiscardingChannel(), new GoogleApiModel.TransferCallback() {
+            @Override
+            public void callback(boolean success, long bytes) {
+                result.set(bytes);
+                done.countDown();
+            }
+        });
+        DriveFixtures.await(done);
+        return result.get();
+    }
+
+    @Benchmark
+    public Metadata uploadFile(Asset asset){
+        BlockingWriteCallback callback = new BlockingWriteCallback();
+        asset.model.writeFile(asset.item, asset.local, asset.mapped, null, callback);
+        return callback.await();
+    }
+
+    @Benchmark
+    public long downloadFile(Asset asset){
+        final AtomicLong result = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(1);
+        asset.model.readFile(asset.item, asset.download, new GoogleApiModel.TransferCallback() {
+            @Override
+            public void callback(boolean success, long bytes) {
+                result.set(bytes);
+                done.countDown();
+            }
+        });
+        DriveFixtures.await(done);
+        return result.get();
+    }
+
+    @Benchmark
+    public String readTxtFile(Asset asset){
+        final AtomicReference<String> result = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        asset.model.readTxtFile(asset.item, new GoogleApiModel.ReadTxtFileCallback() {
+            @Override
+            public void callback(String fileContent) {
+                result.set(fileContent);
+                done.countDown();
+            }
+        });
+        DriveFixtures.await(done);
+        return result.get();
+    }
+
+    static class BlockingWriteCallback implements GoogleApiModel.WriteTxtFileCallback {
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile Metadata mMeta;
+
+        @Override
+        public void callback(boolean success, Metadata newMeta) {
+            mMeta = newMeta;
+            mDone.countDown();
+        }
+
+        Metadata await(){
+            DriveFixtures.await(mDone);
+            return mMeta;
+        }
+    }
+
+    // counts and drops everything written to it
+    static class DiscardingChannel implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer src) {
+            int written = src.remaining();
+            src.position(src.limit());
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package swordriver.com.googledrivemodule;
+
+import com.google.android.gms.drive.DriveFile;
+import com.google.android.gms.drive.DriveFolder;
+import com.google.android.gms.drive.Metadata;
+import com.google.android.gms.drive.metadata.CustomPropertyKey;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * FolderCache behind GoogleApiModel.listFolder, against InMemoryDriveBackend.
+ */
+public class FolderCacheTest {
+
+    private static final CustomPropertyKey TAG_KEY = new CustomPropertyKey("tag", CustomPropertyKey.PUBLIC);
+
+    private InMemoryDriveBackend mBackend;
+    private GoogleApiModel mModel;
+    private DriveFolder mFolder;
+    private DriveFile mFile;
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        mBackend = new InMemoryDriveBackend();
+        mModel = DriveFixtures.connectedModel(mBackend);
+        mFolder = DriveFixtures.createFolder(mBackend, mModel.getAppRootFolder(), "folder", null);
+        mFile = DriveFixtures.createFile(mBackend, mFolder, "file", Collections.singletonMap("tag", "a"));
+        mDirectory = File.createTempFile("folder-cache", "");
+        mDirectory.delete();
+    }
+
+    @After
+    public void tearDown(){
+        File[] files = mDirectory.listFiles();
+        if (files!=null){
+            for (File file : files) file.delete();
+        }
+        mDirectory.delete();
+    }
+
+    @Test
+    public void warmListingMakesNoBackendCalls(){
+        mModel.setFolderCache(new FolderCache(16));
+        DriveFixtures.listFolder(mModel, mFolder);
+        mBackend.resetCallCounts();
+
+        GoogleApiModel.FolderInfo info = DriveFixtures.listFolder(mModel, mFolder);
+
+        assertEquals(1, info.items.length);
+        assertEquals(0, totalCalls());
+    }
+
+    @Test
+    public void revalidationSeesChildMetadataChangedElsewhere(){
+        FolderCache cache = new FolderCache(16);
+        cache.setRevalidateAfter(0);
+        mModel.setFolderCache(cache);
+        DriveFixtures.listFolder(mModel, mFolder);
+
+        // the folder's own metadata stays the same
+        DriveFixtures.updateProperties(mBackend, mFile.getDriveId(), Collections.singletonMap("tag", "b"));
+        DriveFixtures.rename(mBackend, mFile.getDriveId(), "renamed");
+        GoogleApiModel.FolderInfo info = DriveFixtures.listFolder(mModel, mFolder);
+
+        assertEquals("renamed", info.items[0].meta.getTitle());
+        assertEquals("b", info.items[0].meta.getCustomProperties().get(TAG_KEY));
+    }
+
+    @Test
+    public void defaultRevalidationIsFinite(){
+        assertTrue(FolderCache.DEFAULT_REVALIDATE_AFTER_MILLIS>0);
+        FolderCache cache = new FolderCache(16);
+        cache.put(mFolder.getDriveId(), true, null, Collections.<Metadata>emptyList(),
+                System.currentTimeMillis()-FolderCache.DEFAULT_REVALIDATE_AFTER_MILLIS);
+        assertTrue(cache.needsRevalidation(cache.get(mFolder.getDriveId())));
+    }
+
+    @Test
+    public void diskEntriesOfAnEarlierRunAreListedAgain() throws Exception {
+        FolderCache first = new FolderCache(16, mDirectory);
+        first.setRevalidateAfter(FolderCache.NEVER);
+        mModel.setFolderCache(first);
+        DriveFixtures.listFolder(mModel, mFolder);
+        File[] files = awaitFiles();
+        // written by a run that ended a while ago
+        for (File file : files) assertTrue(file.setLastModified(System.currentTimeMillis()-60*1000));
+        DriveFixtures.updateProperties(mBackend, mFile.getDriveId(), Collections.singletonMap("tag", "b"));
+
+        FolderCache second = new FolderCache(16, mDirectory);
+        second.setRevalidateAfter(FolderCache.NEVER);
+        mModel.setFolderCache(second);
+        mBackend.resetCallCounts();
+        GoogleApiModel.FolderInfo info = DriveFixtures.listFolder(mModel, mFolder);
+
+        assertEquals("b", info.items[0].meta.getCustomProperties().get(TAG_KEY));
+        assertTrue(mBackend.getCallCount(DriveBackend.Operation.LIST_CHILDREN)>0);
+    }
+
+    @Test
+    public void diskEntriesKeepEveryMetadataField() throws Exception {
+        FolderCache first = new FolderCache(16, mDirectory);
+        mModel.setFolderCache(first);
+        GoogleApiModel.FolderInfo listed = DriveFixtures.listFolder(mModel, mFolder);
+        awaitFiles();
+
+        FolderCache second = new FolderCache(16, mDirectory);
+        FolderCache.Entry restored = second.get(mFolder.getDriveId());
+
+        assertNotNull(restored);
+        Metadata expected = listed.items[0].meta;
+        Metadata actual = restored.children.get(0);
+        assertEquals(expected.getDriveId(), actual.getDriveId());
+        assertEquals(expected.getTitle(), actual.getTitle());
+        assertEquals(expected.getModifiedDate(), actual.getModifiedDate());
+        assertEquals(expected.getCustomProperties(), actual.getCustomProperties());
+        // getters the model never uses still answer
+        assertEquals(expected.isStarred(), actual.isStarred());
+        assertEquals(expected.getLastViewedByMeDate(), actual.getLastViewedByMeDate());
+        assertEquals(expected.getAlternateLink(), actual.getAlternateLink());
+    }
+
+    @Test
+    public void invalidatedListingIsNotReadBackFromDisk(){
+        HeldExecutor disk = new HeldExecutor();
+        FolderCache cache = new FolderCache(16, mDirectory, disk);
+        cache.setRevalidateAfter(FolderCache.NEVER);
+        cache.put(mFolder.getDriveId(), true, null, Collections.singletonList(
+                DriveFixtures.getMetadata(mBackend, mFile.getDriveId())));
+        disk.runAll();
+        assertEquals(1, mDirectory.listFiles().length);
+
+        // the file's delete has not run yet
+        cache.invalidate(mFolder.getDriveId());
+        assertNull(cache.get(mFolder.getDriveId()));
+
+        disk.runAll();
+        assertNull(cache.get(mFolder.getDriveId()));
+    }
+
+    @Test
+    public void evictedListingIsReadBackFromDisk(){
+        HeldExecutor disk = new HeldExecutor();
+        FolderCache cache = new FolderCache(1, mDirectory, disk);
+        cache.setRevalidateAfter(FolderCache.NEVER);
+        cache.put(mFolder.getDriveId(), true, null, Collections.singletonList(
+                DriveFixtures.getMetadata(mBackend, mFile.getDriveId())));
+        cache.put(mModel.getAppRootFolder().getDriveId(), true, null, Collections.<Metadata>emptyList());
+        disk.runAll();
+
+        FolderCache.Entry entry = cache.get(mFolder.getDriveId());
+
+        assertNotNull(entry);
+        assertEquals(mFile.getDriveId(), entry.children.get(0).getDriveId());
+        assertFalse(cache.needsRevalidation(entry));
+    }
+
+    //////////////////// private helper ////////////////////////
+
+    // runs the cache's disk work only when told to
+    private static class HeldExecutor implements Executor {
+        private final List<Runnable> mTasks = new ArrayList<>();
+
+        @Override
+        public synchronized void execute(Runnable command) {
+            mTasks.add(command);
+        }
+
+        void runAll(){
+            List<Runnable> tasks;
+            synchronized (this){
+                tasks = new ArrayList<>(mTasks);
+                mTasks.clear();
+            }
+            for (Runnable task : tasks) task.run();
+        }
+    }
+
+    private File[] awaitFiles() throws InterruptedException {
+        long deadline = System.currentTimeMillis()+10000;
+        while (System.currentTimeMillis()<deadline){
+            File[] files = mDirectory.listFiles();
+            if (files!=null && files.length>0 && !files[0].getName().endsWith(".tmp")) return files;
+            Thread.sleep(10);
+        }
+        throw new AssertionError("listing was not written to disk");
+    }
+
+    private long totalCalls(){
+        long calls = 0;
+        for (DriveBackend.Operation op : DriveBackend.Operation.values()){
+            calls += mBackend.getCallCount(op);
+        }
+        return calls;
+    }
+}
@@ -0,0 +1,102 @@
+package swordriver.com.googledrivemodule;
+
+import com.google.android.gms.drive.DriveFolder;
+import com.google.android.gms.drive.DriveId;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * GoogleApiModel.createFolderPaths against InMemoryDriveBackend.
+ */
+public class FolderPathBuilderTest {
+
+    private static final List<String> AB = Arrays.asList("a", "b");
+    private static final List<String> AC = Arrays.asList("a", "c");
+    private static final List<String> D = Arrays.asList("d");
+
+    @Test
+    public void createsMissingFoldersOnceAndReusesThem(){
+        InMemoryDriveBackend backend = new InMemoryDriveBackend();
+        GoogleApiModel model = DriveFixtures.connectedModel(backend);
+        backend.resetCallCounts();
+
+        Map<List<String>, DriveFolder> created = createFolderPaths(model, Arrays.asList(AB, AC, D));
+        // a, b, c and d, the shared prefix once
+        assertEquals(4, backend.getCallCount(DriveBackend.Operation.CREATE_FOLDER));
+        assertNotNull(created.get(AB));
+        assertNotNull(created.get(AC));
+        assertNotNull(created.get(D));
+        backend.resetCallCounts();
+
+        Map<List<String>, DriveFolder> found = createFolderPaths(model, Arrays.asList(AB, AC, D));
+        assertEquals(0, backend.getCallCount(DriveBackend.Operation.CREATE_FOLDER));
+        assertEquals(idsOf(created), idsOf(found));
+    }
+
+    @Test
+    public void refusedCreatesFailTheirPaths() throws Exception {
+        InMemoryDriveBackend backend = new InMemoryDriveBackend();
+        // refuses "a", yet still calls back later, as a model changing state midway can
+        GoogleApiModel model = new GoogleApiModel("bench", DriveFixtures.APP_ROOT, backend){
+            @Override
+            public GoogleApiStatus createFolder(String name, DriveFolder assetID, Map<String, String> metaInfo,
+                                                CreateItemCallback callbackInstance) {
+                GoogleApiStatus status = super.createFolder(name, assetID, metaInfo, callbackInstance);
+                return "a".equals(name) ? GoogleApiStatus.CONNECTED_UNINITIALIZED : status;
+            }
+        };
+        model.open();
+        DriveFixtures.awaitStatus(model, GoogleApiModel.GoogleApiStatus.INITIALIZED, "app root was not initialized");
+        backend.setLatency(DriveBackend.Operation.CREATE_FOLDER, 20);
+        final AtomicInteger callbacks = new AtomicInteger(0);
+
+        Map<List<String>, DriveFolder> folders = createFolderPaths(model, Arrays.asList(AB, D), callbacks);
+        // the late callback for "a" arrives meanwhile
+        Thread.sleep(100);
+
+        assertNull(folders.get(AB));
+        assertNotNull(folders.get(D));
+        assertEquals(1, callbacks.get());
+    }
+
+    //////////////////// private helper ////////////////////////
+
+    private static Map<List<String>, DriveFolder> createFolderPaths(GoogleApiModel model, Collection<List<String>> paths){
+        return createFolderPaths(model, paths, new AtomicInteger(0));
+    }
+
+    private static Map<List<String>, DriveFolder> createFolderPaths(GoogleApiModel model, Collection<List<String>> paths,
+                                                                    final AtomicInteger callbacks){
+        final AtomicReference<Map<List<String>, DriveFolder>> result = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        model.createFolderPaths(model.getAppRootFolder(), paths, new GoogleApiModel.FolderPathsCallback() {
+            @Override
+            public void callback(Map<List<String>, DriveFolder> folders) {
+                callbacks.incrementAndGet();
+                result.set(folders);
+                done.countDown();
+            }
+        });
+        DriveFixtures.await(done);
+        return result.get();
+    }
+
+    private static Map<List<String>, DriveId> idsOf(Map<List<String>, DriveFolder> folders){
+        Map<List<String>, DriveId> ids = new HashMap<>();
+        for (Map.Entry<List<String>, DriveFolder> entry : folders.entrySet()){
+            ids.put(entry.getKey(), entry.getValue()==null ? null : entry.getValue().getDriveId());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,228 @@
+package swordriver.com.googledrivemodule;
+
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.drive.DriveFolder;
+import com.google.android.gms.drive.DriveId;
+import com.google.android.gms.drive.Metadata;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * FolderTreeWalker over a seeded tree on InMemoryDriveBackend.
+ */
+public class FolderTreeWalkerTest {
+
+    private static final int DEPTH = 2;
+    private static final int FANOUT = 3;
+    // the root and every folder below it
+    private static final int FOLDERS = 1 + FANOUT + FANOUT*FANOUT;
+
+    private ProbingBackend mBackend;
+    private GoogleApiModel mModel;
+    private int mItems;
+
+    @Before
+    public void setUp(){
+        mBackend = new ProbingBackend();
+        mModel = DriveFixtures.connectedModel(mBackend);
+        mItems = DriveFixtures.seedTree(mBackend, mModel.getAppRootFolder(), DEPTH, FANOUT);
+    }
+
+    @Test
+    public void visitsEveryFolderOnce(){
+        Recorder recorder = new Recorder();
+        mModel.walkFolderTree(mModel.getAppRootFolder(), recorder);
+        DriveFixtures.await(recorder.completed);
+
+        assertEquals(FOLDERS, recorder.folders.size());
+        assertEquals(FOLDERS, new HashSet<>(recorder.folders).size());
+        assertEquals(mItems, recorder.items.get());
+        assertEquals(1, recorder.completions.get());
+    }
+
+    @Test
+    public void walksBreadthFirst(){
+        mModel.setTreeWalkConcurrency(1);
+        final Map<DriveId, Integer> depths = new ConcurrentHashMap<>();
+        depths.put(mModel.getAppRootFolder().getDriveId(), 0);
+        final List<Integer> visited = Collections.synchronizedList(new ArrayList<Integer>());
+        Recorder recorder = new Recorder() {
+            @Override
+            public void onFolder(FolderTreeWalker walk, GoogleApiModel.FolderInfo info) {
+                int depth = depths.get(info.folder.getDriveId());
+                visited.add(depth);
+                for (GoogleApiModel.ItemInfo item : info.items){
+                    if (item.meta.isFolder()) depths.put(item.meta.getDriveId(), depth+1);
+                }
+                super.onFolder(walk, info);
+            }
+        };
+        mModel.walkFolderTree(mModel.getAppRootFolder(), recorder);
+        DriveFixtures.await(recorder.completed);
+
+        assertEquals(FOLDERS, visited.size());
+        for (int i=1; i<visited.size(); i++){
+            assertTrue("depths " + visited, visited.get(i-1)<=visited.get(i));
+        }
+    }
+
+    @Test
+    public void keepsListingsInFlightWithinTheLimit(){
+        mBackend.setLatency(DriveBackend.Operation.LIST_CHILDREN, 20);
+        mModel.setTreeWalkConcurrency(2);
+        Recorder recorder = new Recorder();
+        mModel.walkFolderTree(mModel.getAppRootFolder(), recorder);
+        DriveFixtures.await(recorder.completed);
+
+        assertEquals(FOLDERS, recorder.folders.size());
+        assertEquals(2, mBackend.maxInFlight.get());
+    }
+
+    @Test
+    public void failedListingsStillComplete(){
+        mBackend.failNext(DriveBackend.Operation.LIST_CHILDREN, 1);
+        Recorder recorder = new Recorder();
+        mModel.walkFolderTree(mModel.getAppRootFolder(), recorder);
+        DriveFixtures.await(recorder.completed);
+
+        // the root failed, nothing below it is known
+        assertEquals(1, recorder.completions.get());
+        assertEquals(0, recorder.items.get());
+    }
+
+    @Test
+    public void listAllFolderCollectsTheWholeTree(){
+        DriveFixtures.BlockingListCallback callback = new DriveFixtures.BlockingListCallback();
+        mModel.listAllFolder(mModel.getAppRootFolder(), callback);
+
+        assertEquals(mItems, callback.await().items.length);
+    }
+
+    @Test
+    public void pausedWalkListsNothingNewUntilResumed() throws Exception {
+        mModel.setTreeWalkConcurrency(1);
+        final CountDownLatch paused = new CountDownLatch(1);
+        Recorder recorder = new Recorder() {
+            @Override
+            public void onFolder(FolderTreeWalker walk, GoogleApiModel.FolderInfo info) {
+                if (folders.isEmpty()){
+                    walk.pause();
+                    paused.countDown();
+                }
+                super.onFolder(walk, info);
+            }
+        };
+        FolderTreeWalker walk = mModel.walkFolderTree(mModel.getAppRootFolder(), recorder);
+        DriveFixtures.await(paused);
+        // would have listed everything by now
+        Thread.sleep(100);
+
+        assertTrue(walk.isPaused());
+        assertEquals(1, recorder.folders.size());
+        assertEquals(1, recorder.completed.getCount());
+
+        walk.resume();
+        DriveFixtures.await(recorder.completed);
+        assertEquals(FOLDERS, recorder.folders.size());
+    }
+
+    @Test
+    public void cancelledWalkStopsAndCompletesOnce() throws Exception {
+        mModel.setTreeWalkConcurrency(1);
+        Recorder recorder = new Recorder() {
+            @Override
+            public void onFolder(FolderTreeWalker walk, GoogleApiModel.FolderInfo info) {
+                super.onFolder(walk, info);
+                if (folders.size()==2) walk.cancel();
+            }
+        };
+        mModel.walkFolderTree(mModel.getAppRootFolder(), recorder);
+        DriveFixtures.await(recorder.completed);
+        Thread.sleep(100);
+
+        assertEquals(2, recorder.folders.size());
+        assertEquals(1, recorder.completions.get());
+    }
+
+    @Test
+    public void cancelWaitsForListingsInFlight() throws Exception {
+        mBackend.setLatency(DriveBackend.Operation.LIST_CHILDREN, 100);
+        mBackend.resetCallCounts();
+        Recorder recorder = new Recorder();
+        FolderTreeWalker walk = mModel.walkFolderTree(mModel.getAppRootFolder(), recorder);
+        walk.cancel();
+
+        assertTrue(walk.isCancelled());
+        // the root listing is still out
+        assertEquals(1, recorder.completed.getCount());
+        DriveFixtures.await(recorder.completed);
+        Thread.sleep(200);
+        assertEquals(0, recorder.folders.size());
+        assertEquals(1, recorder.completions.get());
+        assertEquals(1, mBackend.getCallCount(DriveBackend.Operation.LIST_CHILDREN));
+    }
+
+    @Test
+    public void disconnectedModelRefusesTheWalk(){
+        mBackend.setConnected(false);
+        mModel.close();
+        DriveFixtures.awaitStatus(mModel, GoogleApiModel.GoogleApiStatus.DISCONNECTED, "model did not disconnect");
+
+        assertNull(mModel.walkFolderTree(mModel.getAppRootFolder(), new Recorder()));
+    }
+
+    //////////////////// private helper ////////////////////////
+
+    static class Recorder implements FolderTreeWalker.Visitor {
+        final CountDownLatch completed = new CountDownLatch(1);
+        final List<DriveId> folders = Collections.synchronizedList(new ArrayList<DriveId>());
+        final AtomicInteger items = new AtomicInteger(0);
+        final AtomicInteger completions = new AtomicInteger(0);
+
+        @Override
+        public void onFolder(FolderTreeWalker walk, GoogleApiModel.FolderInfo info) {
+            folders.add(info.folder.getDriveId());
+            items.addAndGet(info.items.length);
+        }
+
+        @Override
+        public void onComplete(FolderTreeWalker walk) {
+            completions.incrementAndGet();
+            completed.countDown();
+        }
+    }
+
+    // tracks how many folder listings are outstanding at once
+    static class ProbingBackend extends InMemoryDriveBackend {
+        final AtomicInteger inFlight = new AtomicInteger(0);
+        final AtomicInteger maxInFlight = new AtomicInteger(0);
+
+        @Override
+        public void listChildren(DriveFolder folder, final Callback<List<Metadata>> callback) {
+            int now = inFlight.incrementAndGet();
+            int max;
+            while ((max = maxInFlight.get())<now && !maxInFlight.compareAndSet(max, now)){
+                // raced, read again
+            }
+            super.listChildren(folder, new Callback<List<Metadata>>() {
+                @Override
+                public void onResult(Status status, List<Metadata> result) {
+                    inFlight.decrementAndGet();
+                    callback.onResult(status, result);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package swordriver.com.googledrivemodule;
+
+import com.google.android.gms.drive.DriveFile;
+import com.google.android.gms.drive.Metadata;
+import com.google.common.io.BaseEncoding;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Password changes of GoogleApiModelSecure against InMemoryDriveBackend: re-keying, resuming an
+ * interrupted change and reading items the change has not reached yet.
+ */
+public class GoogleApiModelSecureTest {
+
+    private static final String NEW_PASSWORD = "new password";
+    private static final int FILES = 6;
+
+    private InMemoryDriveBackend mBackend;
+    private GoogleApiModelSecure mModel;
+    private List<DriveFile> mFiles;
+
+    @Before
+    public void setUp(){
+        mBackend = new InMemoryDriveBackend();
+        mModel = DriveFixtures.unlockedSecureModel(mBackend);
+        mModel.setRekeyParallelism(1);
+        mModel.setRekeyRetries(1, 0);
+        mFiles = DriveFixtures.seedEncryptedFiles(mModel, mBackend, mModel.getAppRootFolder(), FILES);
+    }
+
+    @Test
+    public void changeRekeysEveryItem(){
+        Completion completion = new Completion();
+        assertEquals(GoogleApiModel.GoogleApiStatus.INITIALIZED, mModel.changePassword(NEW_PASSWORD, completion));
+        DriveFixtures.await(completion.done);
+
+        assertTrue(completion.result.isSuccess());
+        assertEquals(FILES, completion.result.getRekeyed());
+        assertFalse(mModel.hasPendingPasswordChange());
+        assertReadable(DriveFixtures.unlockedSecureModel(mBackend, NEW_PASSWORD));
+    }
+
+    @Test
+    public void interruptedChangeResumesWhereItStopped(){
+        // two items fail once the change is under way
+        final AtomicBoolean interrupted = new AtomicBoolean(false);
+        Completion first = new Completion() {
+            @Override
+            public void onProgress(int done, int failed, int found) {
+                if (interrupted.compareAndSet(false, true)){
+                    mBackend.failNext(DriveBackend.Operation.UPDATE_METADATA, 2);
+                }
+            }
+        };
+        mModel.changePassword(NEW_PASSWORD, first);
+        DriveFixtures.await(first.done);
+        assertEquals(2, first.result.getFailed().size());
+        assertEquals(FILES-2, first.result.getRekeyed());
+        assertTrue(mModel.hasPendingPasswordChange());
+
+        // a later run of the app, unlocked with the new password
+        GoogleApiModelSecure restarted = DriveFixtures.unlockedSecureModel(mBackend, NEW_PASSWORD);
+        assertTrue(restarted.hasPendingPasswordChange());
+        // items still on the old key read through the journal meanwhile
+        assertReadable(restarted);
+        mBackend.resetCallCounts();
+        Completion resumed = new Completion();
+        restarted.resumePasswordChange(resumed);
+        DriveFixtures.await(resumed.done);
+
+        assertTrue(resumed.result.isSuccess());
+        assertEquals(2, resumed.result.getRekeyed());
+        assertEquals(FILES-2, resumed.result.getSkipped());
+        // two items and the journal removal
+        assertEquals(3, mBackend.getCallCount(DriveBackend.Operation.UPDATE_METADATA));
+        assertFalse(restarted.hasPendingPasswordChange());
+        assertEquals(1, resumed.completions.get());
+        assertReadable(DriveFixtures.unlockedSecureModel(mBackend, NEW_PASSWORD));
+    }
+
+    @Test
+    public void changeWhileAnotherIsPendingFailsAtOnce(){
+        final AtomicBoolean interrupted = new AtomicBoolean(false);
+        Completion first = new Completion() {
+            @Override
+            public void onProgress(int done, int failed, int found) {
+                if (interrupted.compareAndSet(false, true)){
+                    mBackend.failNext(DriveBackend.Operation.UPDATE_METADATA, 1);
+                }
+            }
+        };
+        mModel.changePassword(NEW_PASSWORD, first);
+        DriveFixtures.await(first.done);
+        assertTrue(mModel.hasPendingPasswordChange());
+
+        Completion second = new Completion();
+        assertEquals(GoogleApiModel.GoogleApiStatus.INITIALIZED, mModel.changePassword("third password", second));
+        DriveFixtures.await(second.done);
+
+        assertFalse(second.result.isSuccess());
+        assertEquals(0, second.result.getRekeyed());
+        assertTrue(mModel.hasPendingPasswordChange());
+    }
+
+    @Test
+    public void oldKeyOutlivesManyOtherSalts(){
+        // items wrapped under salts of neither password, listed before the real ones, push
+        // every derived key out of the cache while the change runs
+        SecureRandom random = new SecureRandom();
+        InMemoryDriveBackend backend = new InMemoryDriveBackend();
+        GoogleApiModelSecure model = DriveFixtures.unlockedSecureModel(backend);
+        model.setRekeyParallelism(1);
+        model.setRekeyRetries(1, 0);
+        Set<String> foreign = new HashSet<>();
+        for (int i=0; i<20; i++){
+            Map<String, String> properties = new HashMap<>();
+            properties.put("encryption_key", base64(random, 32));
+            properties.put("encryption_key_iv", base64(random, 16));
+            properties.put("salt", base64(random, 16));
+            foreign.add(DriveFixtures.createFile(backend, model.getAppRootFolder(), "foreign-" + i, properties)
+                    .getDriveId().encodeToString());
+        }
+        List<DriveFile> files = DriveFixtures.seedEncryptedFiles(model, backend, model.getAppRootFolder(), FILES);
+
+        Completion completion = new Completion();
+        model.changePassword(NEW_PASSWORD, completion);
+        DriveFixtures.await(completion.done);
+
+        assertEquals(FILES, completion.result.getRekeyed());
+        assertEquals(foreign.size(), completion.result.getFailed().size());
+        for (DriveFile file : files){
+            assertFalse(completion.result.getFailed().containsKey(file.getDriveId()));
+        }
+    }
+
+    @Test
+    public void failedReadLeavesTargetFileAlone() throws Exception {
+        GoogleApiModel.ItemInfo info = DriveFixtures.listFolder(mModel, mModel.getAppRootFolder()).items[0];
+        File target = File.createTempFile("secure-read", "");
+        try {
+            Files.write(target.toPath(), "keep".getBytes(StandardCharsets.UTF_8));
+            mBackend.failNext(DriveBackend.Operation.OPEN, 1);
+            assertFalse(readFile(info, target));
+            assertEquals("keep", new String(Files.readAllBytes(target.toPath()), StandardCharsets.UTF_8));
+
+            // the seeded files have no contents yet
+            assertTrue(readFile(info, target));
+            assertEquals(0, target.length());
+        } finally {
+            target.delete();
+        }
+    }
+
+    @Test
+    public void readTxtFileWithoutCallback(){
+        GoogleApiModel.ItemInfo info = DriveFixtures.listFolder(mModel, mModel.getAppRootFolder()).items[0];
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<Metadata> written = new AtomicReference<>();
+        mModel.writeTxtFile(info, "secret", new GoogleApiModel.WriteTxtFileCallback() {
+            @Override
+            public void callback(boolean success, Metadata newMeta) {
+                written.set(newMeta);
+                done.countDown();
+            }
+        });
+        DriveFixtures.await(done);
+        info.meta = written.get();
+
+        // delivered on this thread by the in-memory backend, so a throwing callback would fail here
+        assertEquals(GoogleApiModel.GoogleApiStatus.INITIALIZED, mModel.readTxtFile(info, null));
+        assertEquals("secret", DriveFixtures.readTxtFile(mModel, info));
+    }
+
+    //////////////////// private helper ////////////////////////
+
+    private boolean readFile(GoogleApiModel.ItemInfo info, File target){
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicBoolean result = new AtomicBoolean(false);
+        mModel.readFile(info, target, new GoogleApiModel.TransferCallback() {
+            @Override
+            public void callback(boolean success, long bytes) {
+                result.set(success);
+                done.countDown();
+            }
+        });
+        DriveFixtures.await(done);
+        return result.get();
+    }
+
+    private static class Completion implements GoogleApiModelSecure.ChangePasswordCallback {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger completions = new AtomicInteger(0);
+        volatile RekeyResult result;
+
+        @Override
+        public void onProgress(int done, int failed, int found) {
+        }
+
+        @Override
+        public void onComplete(RekeyResult result) {
+            this.result = result;
+            completions.incrementAndGet();
+            done.countDown();
+        }
+    }
+
+    // every seeded file decrypts its name with model's password
+    private void assertReadable(GoogleApiModelSecure model){
+        GoogleApiModel.FolderInfo info = DriveFixtures.listFolder(model, model.getAppRootFolder());
+        List<String> titles = new ArrayList<>();
+        for (GoogleApiModel.ItemInfo item : info.items){
+            titles.add(item.getReadableTitle());
+        }
+        for (int i=0; i<mFiles.size(); i++){
+            assertTrue(titles + " lacks encrypted-" + i, titles.contains("encrypted-" + i));
+        }
+    }
+
+    private static String base64(SecureRandom random, int length){
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return BaseEncoding.base64Url().encode(bytes);
+    }
+}
@@ -0,0 +1,83 @@
+package swordriver.com.googledrivemodule;
+
+import com.google.android.gms.drive.DriveFolder;
+import com.google.android.gms.drive.DriveId;
+import com.google.android.gms.drive.Metadata;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips of GoogleApiModel's creates and writes, against InMemoryDriveBackend.
+ */
+public class GoogleApiModelTest {
+
+    private InMemoryDriveBackend mBackend;
+    private GoogleApiModel mModel;
+    private DriveFolder mFolder;
+
+    @Before
+    public void setUp(){
+        mBackend = new InMemoryDriveBackend();
+        mModel = DriveFixtures.connectedModel(mBackend);
+        mFolder = mModel.getAppRootFolder();
+    }
+
+    @Test
+    public void writeReportsTheCommittedMetadataWithoutReadingItBack(){
+        GoogleApiModel.ItemInfo info = DriveFixtures.createTxtFile(mModel, mFolder, "file");
+        mBackend.resetCallCounts();
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicBoolean result = new AtomicBoolean(false);
+        final AtomicReference<Metadata> written = new AtomicReference<>();
+
+        mModel.writeTxtFile(info, "contents", new GoogleApiModel.WriteTxtFileCallback() {
+            @Override
+            public void callback(boolean success, Metadata newMeta) {
+                result.set(success);
+                written.set(newMeta);
+                done.countDown();
+            }
+        });
+        DriveFixtures.await(done);
+
+        assertTrue(result.get());
+        assertEquals(info.meta.getDriveId(), written.get().getDriveId());
+        assertEquals(8, written.get().getFileSize());
+        assertEquals(1, mBackend.getCallCount(DriveBackend.Operation.OPEN));
+        assertEquals(1, mBackend.getCallCount(DriveBackend.Operation.COMMIT));
+        assertEquals(0, mBackend.getCallCount(DriveBackend.Operation.GET_METADATA));
+    }
+
+    @Test
+    public void createdItemThatCanNotBeReadBackIsStillReportedCreated(){
+        mBackend.failNext(DriveBackend.Operation.GET_METADATA, 1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicBoolean result = new AtomicBoolean(false);
+        final AtomicReference<GoogleApiModel.ItemInfo> created = new AtomicReference<>();
+
+        mModel.createTxtFile("file", mFolder, null, new GoogleApiModel.CreateItemCallback() {
+            @Override
+            public void callback(boolean success, GoogleApiModel.ItemInfo newItem, DriveId existingID) {
+                result.set(success);
+                created.set(newItem);
+                done.countDown();
+            }
+        });
+        DriveFixtures.await(done);
+
+        assertTrue(result.get());
+        GoogleApiModel.ItemInfo[] listed = DriveFixtures.listFolder(mModel, mFolder).items;
+        assertEquals(1, listed.length);
+        assertEquals(listed[0].meta.getDriveId(), created.get().meta.getDriveId());
+        assertEquals("file", created.get().meta.getTitle());
+        assertFalse(created.get().meta.isFolder());
+        assertNull(created.get().meta.getModifiedDate());
+    }
+}
@@ -0,0 +1,31 @@
+package swordriver.com.googledrivemodule;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * GoogleApiModelSecure for the host JVM, where android.util.Base64 is only a stub.
+ * Produces the same text as Base64.URL_SAFE: 76 character lines, each ended by a newline.
+ */
+public class JvmGoogleApiModelSecure extends GoogleApiModelSecure {
+
+    private static final BaseEncoding URL_SAFE = BaseEncoding.base64Url();
+
+    public JvmGoogleApiModelSecure(String tag, String appRootName, DriveBackend backend){
+        super(tag, appRootName, backend);
+    }
+
+    @Override
+    protected String encodeBase64(byte[] input){
+        String encoded = URL_SAFE.encode(input);
+        StringBuilder builder = new StringBuilder(encoded.length() + encoded.length()/76 + 1);
+        for (int i=0; i<encoded.length(); i+=76){
+            builder.append(encoded, i, Math.min(i+76, encoded.length())).append('\n');
+        }
+        return builder.toString();
+    }
+
+    @Override
+    protected byte[] decodeBase64(String input){
+        return URL_SAFE.decode(input.replace("\n", ""));
+    }
+}
@@ -0,0 +1,265 @@
+package swordriver.com.googledrivemodule;
+
+import com.google.android.gms.drive.DriveFolder;
+import com.google.android.gms.drive.DriveId;
+import com.google.android.gms.drive.Metadata;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * KeyedSerialQueue on its own, and the per folder ordering of creates it gives GoogleApiModel.
+ */
+public class KeyedSerialQueueTest {
+
+    private final KeyedSerialQueue<String> mQueue = new KeyedSerialQueue<>();
+    private final List<String> mStarted = Collections.synchronizedList(new ArrayList<String>());
+
+    @Test
+    public void jobsOfOneKeyRunInOrderOneAtATime(){
+        HeldJob first = new HeldJob("first");
+        HeldJob second = new HeldJob("second");
+        HeldJob third = new HeldJob("third");
+        mQueue.enqueue("a", first);
+        mQueue.enqueue("a", second);
+        mQueue.enqueue("a", third);
+        assertEquals(Collections.singletonList("first"), mStarted);
+
+        first.done.run();
+        assertEquals(2, mStarted.size());
+        second.done.run();
+        third.done.run();
+
+        assertEquals(Arrays.asList("first", "second", "third"), mStarted);
+        assertTrue(mQueue.isIdle());
+    }
+
+    @Test
+    public void jobsOfDifferentKeysRunSideBySide(){
+        HeldJob a = new HeldJob("a");
+        HeldJob b = new HeldJob("b");
+        mQueue.enqueue("a", a);
+        mQueue.enqueue("b", b);
+
+        assertEquals(2, mStarted.size());
+        assertFalse(mQueue.isIdle());
+    }
+
+    @Test
+    public void doneTwiceStartsOnlyTheNextJob(){
+        HeldJob first = new HeldJob("first");
+        mQueue.enqueue("a", first);
+        mQueue.enqueue("a", new HeldJob("second"));
+        mQueue.enqueue("a", new HeldJob("third"));
+
+        first.done.run();
+        first.done.run();
+
+        assertEquals(2, mStarted.size());
+    }
+
+    @Test
+    public void doneFromAnotherThreadStartsTheNextJob() throws Exception {
+        final HeldJob first = new HeldJob("first");
+        final CountDownLatch secondStarted = new CountDownLatch(1);
+        mQueue.enqueue("a", first);
+        mQueue.enqueue("a", new KeyedSerialQueue.Job() {
+            @Override
+            public void run(Runnable done) {
+                secondStarted.countDown();
+                done.run();
+            }
+        });
+        Thread thread = new Thread(first.done);
+        thread.start();
+        thread.join();
+
+        DriveFixtures.await(secondStarted);
+        assertTrue(mQueue.isIdle());
+    }
+
+    @Test
+    public void whenIdleWaitsForEveryKey(){
+        final AtomicInteger idle = new AtomicInteger(0);
+        Runnable countIdle = new Runnable() {
+            @Override
+            public void run() {
+                idle.incrementAndGet();
+            }
+        };
+        mQueue.whenIdle(countIdle);
+        assertEquals(1, idle.get());
+
+        HeldJob a = new HeldJob("a");
+        HeldJob b = new HeldJob("b");
+        mQueue.enqueue("a", a);
+        mQueue.enqueue("b", b);
+        mQueue.whenIdle(countIdle);
+        a.done.run();
+        assertEquals(1, idle.get());
+        b.done.run();
+        assertEquals(2, idle.get());
+    }
+
+    @Test
+    public void longQueueOfSynchronousJobsDoesNotRecurse(){
+        HeldJob first = new HeldJob("first");
+        mQueue.enqueue("a", first);
+        final AtomicInteger ran = new AtomicInteger(0);
+        for (int i=0; i<100000; i++){
+            mQueue.enqueue("a", new KeyedSerialQueue.Job() {
+                @Override
+                public void run(Runnable done) {
+                    ran.incrementAndGet();
+                    done.run();
+                }
+            });
+        }
+
+        first.done.run();
+
+        assertEquals(100000, ran.get());
+        assertTrue(mQueue.isIdle());
+    }
+
+    @Test
+    public void queuedCreateFailsWhenTheModelDisconnectsMeanwhile(){
+        InMemoryDriveBackend backend = new InMemoryDriveBackend();
+        GoogleApiModel model = DriveFixtures.connectedModel(backend);
+        // every create lists its folder
+        model.setNameIndexTimeout(0);
+        backend.setLatency(DriveBackend.Operation.CREATE_FILE, 100);
+        DriveFolder folder = model.getAppRootFolder();
+        final CountDownLatch done = new CountDownLatch(2);
+        final List<Boolean> results = Collections.synchronizedList(new ArrayList<Boolean>());
+        GoogleApiModel.CreateItemCallback callback = new GoogleApiModel.CreateItemCallback() {
+            @Override
+            public void callback(boolean success, GoogleApiModel.ItemInfo newItem, DriveId existingID) {
+                results.add(success);
+                done.countDown();
+            }
+        };
+        assertEquals(GoogleApiModel.GoogleApiStatus.INITIALIZED, model.createTxtFile("first", folder, null, callback));
+        assertEquals(GoogleApiModel.GoogleApiStatus.INITIALIZED, model.createTxtFile("second", folder, null, callback));
+        backend.setConnected(false);
+        assertEquals(GoogleApiModel.GoogleApiStatus.DISCONNECTED, model.getStatus());
+
+        DriveFixtures.await(done);
+
+        assertEquals(2, results.size());
+        assertFalse(results.get(1));
+    }
+
+    @Test
+    public void concurrentCreatesOfOneNameMakeOneItem(){
+        InMemoryDriveBackend backend = new InMemoryDriveBackend();
+        GoogleApiModel model = DriveFixtures.connectedModel(backend);
+        backend.setLatency(DriveBackend.Operation.CREATE_FILE, 50);
+        DriveFolder folder = model.getAppRootFolder();
+        final CountDownLatch done = new CountDownLatch(2);
+        final AtomicInteger created = new AtomicInteger(0);
+        final AtomicReference<DriveId> conflict = new AtomicReference<>();
+        GoogleApiModel.CreateItemCallback callback = new GoogleApiModel.CreateItemCallback() {
+            @Override
+            public void callback(boolean success, GoogleApiModel.ItemInfo newItem, DriveId existingID) {
+                if (success) created.incrementAndGet();
+                if (existingID!=null) conflict.set(existingID);
+                done.countDown();
+            }
+        };
+        model.createTxtFile("same", folder, null, callback);
+        model.createTxtFile("same", folder, null, callback);
+        DriveFixtures.await(done);
+
+        assertEquals(1, created.get());
+        assertNotNull(conflict.get());
+        assertEquals(1, DriveFixtures.listFolder(model, folder).items.length);
+    }
+
+    @Test
+    public void createFailsWhenItsFolderCanNotBeListed(){
+        InMemoryDriveBackend backend = new InMemoryDriveBackend();
+        GoogleApiModel model = DriveFixtures.connectedModel(backend);
+        model.setNameIndexTimeout(0);
+        DriveFolder folder = model.getAppRootFolder();
+        DriveFixtures.createTxtFile(model, folder, "same");
+        backend.failNext(DriveBackend.Operation.LIST_CHILDREN, 1);
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<Boolean> result = new AtomicReference<>();
+        model.createTxtFile("same", folder, null, new GoogleApiModel.CreateItemCallback() {
+            @Override
+            public void callback(boolean success, GoogleApiModel.ItemInfo newItem, DriveId existingID) {
+                result.set(success);
+                done.countDown();
+            }
+        });
+        DriveFixtures.await(done);
+
+        assertFalse(result.get());
+        assertEquals(1, DriveFixtures.listFolder(model, folder).items.length);
+    }
+
+    @Test
+    public void overriddenNameCompareStillDecidesConflicts(){
+        InMemoryDriveBackend backend = new InMemoryDriveBackend();
+        GoogleApiModel model = new GoogleApiModel("bench", DriveFixtures.APP_ROOT, backend){
+            @Override
+            protected boolean nameCompare(String name, Metadata item, Map<String, String> metaInfo) {
+                return item.getTitle().equalsIgnoreCase(name);
+            }
+        };
+        model.open();
+        DriveFixtures.awaitStatus(model, GoogleApiModel.GoogleApiStatus.INITIALIZED, "app root was not initialized");
+        DriveFolder folder = model.getAppRootFolder();
+
+        assertNull(createTxtFile(model, "Same", folder));
+        DriveId conflict = createTxtFile(model, "same", folder);
+
+        assertNotNull(conflict);
+        assertEquals(1, DriveFixtures.listFolder(model, folder).items.length);
+    }
+
+    //////////////////// private helper ////////////////////////
+
+    // the conflicting item's id, or null when the file was created
+    private static DriveId createTxtFile(GoogleApiModel model, String name, DriveFolder folder){
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<DriveId> conflict = new AtomicReference<>();
+        model.createTxtFile(name, folder, null, new GoogleApiModel.CreateItemCallback() {
+            @Override
+            public void callback(boolean success, GoogleApiModel.ItemInfo newItem, DriveId existingID) {
+                conflict.set(existingID);
+                done.countDown();
+            }
+        });
+        DriveFixtures.await(done);
+        return conflict.get();
+    }
+
+    // records its start and holds its key until done is run
+    private class HeldJob implements KeyedSerialQueue.Job {
+        private final String mName;
+        volatile Runnable done;
+
+        HeldJob(String name){
+            mName = name;
+        }
+
+        @Override
+        public void run(Runnable done) {
+            this.done = done;
+            mStarted.add(mName);
+        }
+    }
+}
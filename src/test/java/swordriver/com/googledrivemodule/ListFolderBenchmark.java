@@ -0,0 +1,170 @@
+package swordriver.com.googledrivemodule;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * listAllFolder on a deep tree, listFolder against a slow backend with and without a cache,
+ * and GoogleApiModelSecure.listFolder on a folder of encrypted titles.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ListFolderBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Tree {
+        @Param({"3", "5"})
+        public int depth;
+        @Param({"4"})
+        public int fanout;
+        @Param({"0", "5"})
+        public long latencyMillis;
+        // listings kept in flight by the walk
+        @Param({"1", "8", "32"})
+        public int walkConcurrency;
+
+        GoogleApiModel model;
+
+        @Setup(Level.Trial)
+        public void setUp(){
+            InMemoryDriveBackend backend = new InMemoryDriveBackend();
+            model = DriveFixtures.connectedModel(backend);
+            DriveFixtures.seedTree(backend, model.getAppRootFolder(), depth, fanout);
+            backend.setLatency(latencyMillis);
+            model.setTreeWalkConcurrency(walkConcurrency);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class EncryptedFolder {
+        @Param({"100", "1000"})
+        public int items;
+        @Param({"0"})
+        public long latencyMillis;
+        // 1 decrypts on the callback thread, more fans out over a pool of that size
+        @Param({"1", "2", "4", "8"})
+        public int decryptThreads;
+        // 0 unwraps every asset key again on each listing
+        @Param({"0", "60000"})
+        public long dataKeyTimeoutMillis;
+        // true measures time to first callback, titles are decrypted on access
+        @Param({"false", "true"})
+        public boolean lazyTitles;
+
+        GoogleApiModelSecure model;
+        ExecutorService decryptPool;
+
+        @Setup(Level.Trial)
+        public void setUp(){
+            InMemoryDriveBackend backend = new InMemoryDriveBackend();
+            model = DriveFixtures.unlockedSecureModel(backend);
+            DriveFixtures.seedEncryptedFiles(model, backend, model.getAppRootFolder(), items);
+            backend.setLatency(latencyMillis);
+            model.setDataKeyCacheTimeout(dataKeyTimeoutMillis);
+            model.setLazyTitleDecryption(lazyTitles);
+            if (decryptThreads>1){
+                decryptPool = Executors.newFixedThreadPool(decryptThreads);
+                model.setDecryptExecutor(decryptPool, decryptThreads);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown(){
+            if (decryptPool!=null) decryptPool.shutdownNow();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class RemoteFolder {
+        @Param({"100"})
+        public int items;
+        @Param({"5"})
+        public long latencyMillis;
+        // false waits for the parent before listing the children
+        @Param({"true", "false"})
+        public boolean pipelined;
+
+        GoogleApiModel model;
+
+        @Setup(Level.Trial)
+        public void setUp(){
+            InMemoryDriveBackend backend = new InMemoryDriveBackend();
+            model = DriveFixtures.connectedModel(backend);
+            DriveFixtures.seedTree(backend, model.getAppRootFolder(), 0, items);
+            backend.setLatency(latencyMillis);
+            model.setPipelinedListing(pipelined);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class CachedFolder {
+        @Param({"1000"})
+        public int items;
+        @Param({"5"})
+        public long latencyMillis;
+
+        GoogleApiModel model;
+
+        @Setup(Level.Trial)
+        public void setUp(){
+            InMemoryDriveBackend backend = new InMemoryDriveBackend();
+            model = DriveFixtures.connectedModel(backend);
+            DriveFixtures.seedTree(backend, model.getAppRootFolder(), 0, items);
+            FolderCache cache = new FolderCache(64);
+            // a trial outlasts the default revalidation interval
+            cache.setRevalidateAfter(FolderCache.NEVER);
+            model.setFolderCache(cache);
+            backend.setLatency(latencyMillis);
+            // warm the cache, later listings make no backend calls
+            DriveFixtures.BlockingListCallback callback = new DriveFixtures.BlockingListCallback();
+            model.listFolder(model.getAppRootFolder(), callback);
+            callback.await();
+        }
+    }
+
+    @Benchmark
+    public GoogleApiModel.FolderInfo listAllFolder(Tree tree){
+        DriveFixtures.BlockingListCallback callback = new DriveFixtures.BlockingListCallback();
+        tree.model.listAllFolder(tree.model.getAppRootFolder(), callback);
+        return callback.await();
+    }
+
+    @Benchmark
+    public GoogleApiModel.FolderInfo listFolder(RemoteFolder folder){
+        DriveFixtures.BlockingListCallback callback = new DriveFixtures.BlockingListCallback();
+        folder.model.listFolder(folder.model.getAppRootFolder(), callback);
+        return callback.await();
+    }
+
+    @Benchmark
+    public GoogleApiModel.FolderInfo warmCacheListFolder(CachedFolder folder){
+        DriveFixtures.BlockingListCallback callback = new DriveFixtures.BlockingListCallback();
+        folder.model.listFolder(folder.model.getAppRootFolder(), callback);
+        return callback.await();
+    }
+
+    @Benchmark
+    public GoogleApiModel.FolderInfo secureListFolder(EncryptedFolder folder){
+        DriveFixtures.BlockingListCallback callback = new DriveFixtures.BlockingListCallback();
+        folder.model.listFolder(folder.model.getAppRootFolder(), callback);
+        return callback.await();
+    }
+}
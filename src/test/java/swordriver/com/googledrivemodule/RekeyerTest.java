@@ -0,0 +1,153 @@
+package swordriver.com.googledrivemodule;
+
+import com.google.android.gms.drive.metadata.CustomPropertyKey;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Rekeyer walking a tree on InMemoryDriveBackend, with a key wrapper that marks items instead
+ * of re-wrapping real keys.
+ */
+public class RekeyerTest {
+
+    private static final String MARK = "rekeyed";
+    private static final CustomPropertyKey MARK_KEY = new CustomPropertyKey(MARK, CustomPropertyKey.PUBLIC);
+
+    private InMemoryDriveBackend mBackend;
+    private GoogleApiModel mModel;
+    private int mItems;
+
+    @Before
+    public void setUp(){
+        mBackend = new InMemoryDriveBackend();
+        mModel = DriveFixtures.connectedModel(mBackend);
+        mItems = DriveFixtures.seedTree(mBackend, mModel.getAppRootFolder(), 2, 3);
+        mBackend.resetCallCounts();
+    }
+
+    @Test
+    public void rekeysEveryItemOnce(){
+        Outcome outcome = run(new MarkingWrapper(), 4, 1, 0);
+
+        assertTrue(outcome.result.isSuccess());
+        assertEquals(mItems, outcome.result.getRekeyed());
+        assertEquals(mItems, mBackend.getCallCount(DriveBackend.Operation.UPDATE_METADATA));
+        assertEquals(mItems, outcome.lastDone.get());
+    }
+
+    @Test
+    public void resumedRunSkipsItemsAlreadyRekeyed(){
+        // an interrupted run got some of the items
+        mBackend.failNext(DriveBackend.Operation.UPDATE_METADATA, 5);
+        Outcome interrupted = run(new MarkingWrapper(), 1, 1, 0);
+        assertEquals(5, interrupted.result.getFailed().size());
+        assertEquals(mItems-5, interrupted.result.getRekeyed());
+        mBackend.resetCallCounts();
+
+        Outcome resumed = run(new MarkingWrapper(), 4, 1, 0);
+
+        assertTrue(resumed.result.isSuccess());
+        assertEquals(5, resumed.result.getRekeyed());
+        assertEquals(mItems-5, resumed.result.getSkipped());
+        assertEquals(5, mBackend.getCallCount(DriveBackend.Operation.UPDATE_METADATA));
+    }
+
+    @Test
+    public void failedUpdatesAreRetriedWithBackoff(){
+        mBackend.failNext(DriveBackend.Operation.UPDATE_METADATA, 2);
+        long start = System.nanoTime();
+        Outcome outcome = run(new MarkingWrapper(), 1, 3, 100);
+        long elapsedMillis = (System.nanoTime()-start)/1000000;
+
+        assertTrue(outcome.result.isSuccess());
+        assertEquals(mItems, outcome.result.getRekeyed());
+        assertEquals(mItems+2, mBackend.getCallCount(DriveBackend.Operation.UPDATE_METADATA));
+        // other items go on meanwhile, so only the jittered first delay is certain
+        assertTrue("took " + elapsedMillis + "ms", elapsedMillis>=50);
+    }
+
+    @Test
+    public void itemsFailOnceAttemptsRunOut(){
+        mBackend.setFailureRate(DriveBackend.Operation.UPDATE_METADATA, 1.0);
+        Outcome outcome = run(new MarkingWrapper(), 4, 3, 0);
+
+        assertEquals(mItems, outcome.result.getFailed().size());
+        assertEquals(3*mItems, mBackend.getCallCount(DriveBackend.Operation.UPDATE_METADATA));
+    }
+
+    @Test
+    public void keysThatCanNotBeUnwrappedAreNotRetried(){
+        Outcome outcome = run(new Rekeyer.KeyWrapper() {
+            @Override
+            public Map<String, String> rewrap(GoogleApiModel.ItemInfo item) throws GeneralSecurityException {
+                throw new GeneralSecurityException("wrong key");
+            }
+        }, 4, 5, 1000);
+
+        assertEquals(mItems, outcome.result.getFailed().size());
+        assertEquals(0, mBackend.getCallCount(DriveBackend.Operation.UPDATE_METADATA));
+    }
+
+    @Test
+    public void completesExactlyOnce() throws Exception {
+        mBackend.failNext(DriveBackend.Operation.UPDATE_METADATA, 3);
+        Outcome outcome = run(new MarkingWrapper(), 8, 2, 10);
+        // late callbacks would arrive by now
+        Thread.sleep(200);
+        assertEquals(1, outcome.completions.get());
+
+        mBackend.setConnected(false);
+        mModel.close();
+        DriveFixtures.awaitStatus(mModel, GoogleApiModel.GoogleApiStatus.DISCONNECTED, "model did not disconnect");
+        Outcome refused = run(new MarkingWrapper(), 8, 2, 10);
+        Thread.sleep(200);
+        assertEquals(1, refused.completions.get());
+        assertFalse(refused.result.isSuccess());
+    }
+
+    //////////////////// private helper ////////////////////////
+
+    private static class Outcome {
+        final CountDownLatch completed = new CountDownLatch(1);
+        final AtomicInteger completions = new AtomicInteger(0);
+        final AtomicInteger lastDone = new AtomicInteger(0);
+        volatile RekeyResult result;
+    }
+
+    private Outcome run(Rekeyer.KeyWrapper wrapper, int parallelism, int maxAttempts, long backoffMillis){
+        final Outcome outcome = new Outcome();
+        new Rekeyer(mModel, wrapper, parallelism, maxAttempts, backoffMillis, new Rekeyer.Callback() {
+            @Override
+            public void onProgress(int done, int failed, int found) {
+                outcome.lastDone.set(done);
+            }
+
+            @Override
+            public void onComplete(RekeyResult result) {
+                outcome.result = result;
+                outcome.completions.incrementAndGet();
+                outcome.completed.countDown();
+            }
+        }).start(mModel.getAppRootFolder());
+        DriveFixtures.await(outcome.completed);
+        return outcome;
+    }
+
+    // marks every item, skipping marked ones the way real re-keying skips items on the new salt
+    private static class MarkingWrapper implements Rekeyer.KeyWrapper {
+        @Override
+        public Map<String, String> rewrap(GoogleApiModel.ItemInfo item) {
+            if (item.meta.getCustomProperties().containsKey(MARK_KEY)) return null;
+            return Collections.singletonMap(MARK, "yes");
+        }
+    }
+}
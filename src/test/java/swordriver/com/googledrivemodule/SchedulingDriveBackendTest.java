@@ -0,0 +1,280 @@
+package swordriver.com.googledrivemodule;
+
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.drive.DriveFile;
+import com.google.android.gms.drive.DriveFolder;
+import com.google.android.gms.drive.DriveId;
+import com.google.android.gms.drive.Metadata;
+import com.google.android.gms.drive.MetadataChangeSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * SchedulingDriveBackend in front of InMemoryDriveBackend.
+ */
+public class SchedulingDriveBackendTest {
+
+    private ProbingBackend mBackend;
+    private SchedulingDriveBackend mScheduler;
+    private DriveFolder mFolder;
+    private List<DriveId> mFiles;
+
+    @Before
+    public void setUp(){
+        mBackend = new ProbingBackend();
+        mScheduler = new SchedulingDriveBackend(mBackend);
+        mScheduler.setRetries(SchedulingDriveBackend.DEFAULT_ATTEMPTS, 1);
+        mFolder = mBackend.getRootFolder();
+        mFiles = new ArrayList<>();
+        for (int i=0; i<4; i++){
+            mFiles.add(DriveFixtures.createFile(mBackend, mFolder, "file-" + i, null).getDriveId());
+        }
+        mBackend.resetCallCounts();
+    }
+
+    @Test
+    public void keepsEachOperationWithinItsLimit(){
+        mBackend.setLatency(DriveBackend.Operation.GET_METADATA, 20);
+        mScheduler.setMaxInFlight(DriveBackend.Operation.GET_METADATA, 2);
+        Results<Metadata> results = new Results<>(8);
+        for (int i=0; i<8; i++){
+            mScheduler.getMetadata(mFiles.get(i%mFiles.size()), results.next("get"));
+        }
+        DriveFixtures.await(results.done);
+
+        assertEquals(8, results.successes.get());
+        assertEquals(2, mBackend.maxInFlight.get());
+    }
+
+    @Test
+    public void waitingCallsStartInPriorityOrder(){
+        mBackend.setLatency(DriveBackend.Operation.GET_METADATA, 50);
+        mScheduler.setMaxInFlight(DriveBackend.Operation.GET_METADATA, 1);
+        final Results<Metadata> results = new Results<>(4);
+        // takes the only slot, the rest wait
+        mScheduler.getMetadata(mFiles.get(0), results.next("first"));
+        call(SchedulingDriveBackend.Priority.BULK, results, "bulk");
+        call(SchedulingDriveBackend.Priority.NORMAL, results, "normal");
+        call(SchedulingDriveBackend.Priority.INTERACTIVE, results, "interactive");
+        DriveFixtures.await(results.done);
+
+        assertEquals(Arrays.asList("first", "interactive", "normal", "bulk"), results.order);
+    }
+
+    @Test
+    public void callbacksKeepTheirCallsPriority(){
+        final AtomicReference<SchedulingDriveBackend.Priority> seen = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        mBackend.setLatency(DriveBackend.Operation.GET_METADATA, 10);
+        SchedulingDriveBackend.runWithPriority(SchedulingDriveBackend.Priority.BULK, new Runnable() {
+            @Override
+            public void run() {
+                mScheduler.getMetadata(mFiles.get(0), new DriveBackend.Callback<Metadata>() {
+                    @Override
+                    public void onResult(Status status, Metadata result) {
+                        seen.set(SchedulingDriveBackend.currentPriority());
+                        done.countDown();
+                    }
+                });
+            }
+        });
+        DriveFixtures.await(done);
+
+        assertEquals(SchedulingDriveBackend.Priority.BULK, seen.get());
+    }
+
+    @Test
+    public void retriesCallsThatCanRunTwice(){
+        mBackend.failNext(DriveBackend.Operation.GET_METADATA, 2);
+        Results<Metadata> results = new Results<>(1);
+        mScheduler.getMetadata(mFiles.get(0), results.next("get"));
+        DriveFixtures.await(results.done);
+
+        assertEquals(1, results.successes.get());
+        assertEquals(3, mBackend.getCallCount(DriveBackend.Operation.GET_METADATA));
+    }
+
+    @Test
+    public void stopsRetryingOnceAttemptsRunOut(){
+        mScheduler.setRetries(2, 1);
+        mBackend.failNext(DriveBackend.Operation.GET_METADATA, 5);
+        Results<Metadata> results = new Results<>(1);
+        mScheduler.getMetadata(mFiles.get(0), results.next("get"));
+        DriveFixtures.await(results.done);
+
+        assertEquals(0, results.successes.get());
+        assertEquals(2, mBackend.getCallCount(DriveBackend.Operation.GET_METADATA));
+    }
+
+    @Test
+    public void neverRetriesCreates(){
+        mBackend.failNext(DriveBackend.Operation.CREATE_FILE, 1);
+        Results<DriveFile> results = new Results<>(1);
+        mScheduler.createFile(mFolder, new MetadataChangeSet.Builder().setTitle("new").build(), results.next("create"));
+        DriveFixtures.await(results.done);
+
+        assertEquals(0, results.successes.get());
+        assertEquals(1, mBackend.getCallCount(DriveBackend.Operation.CREATE_FILE));
+    }
+
+    @Test
+    public void rateLimitSpacesCallsOut(){
+        mScheduler.setRateLimit(20, 1);
+        Results<Metadata> results = new Results<>(5);
+        long start = System.nanoTime();
+        for (int i=0; i<5; i++){
+            mScheduler.getMetadata(mFiles.get(0), results.next("get"));
+        }
+        DriveFixtures.await(results.done);
+        long elapsedMillis = (System.nanoTime()-start)/1000000;
+
+        // one token up front, then one every 50ms
+        assertTrue("took " + elapsedMillis + "ms", elapsedMillis>=4*50-10);
+    }
+
+    @Test
+    public void retriedDeleteOfAnItemItAlreadyDeletedSucceeds(){
+        mBackend.loseNextDeleteReply();
+        Results<Void> results = new Results<>(1);
+        mScheduler.delete(mFiles.get(0), results.next("delete"));
+        DriveFixtures.await(results.done);
+
+        assertEquals(1, results.successes.get());
+        assertEquals(2, mBackend.getCallCount(DriveBackend.Operation.DELETE));
+    }
+
+    @Test
+    public void retriedBatchDeleteOfItemsItAlreadyDeletedSucceeds(){
+        mBackend.loseNextDeleteReply();
+        final AtomicReference<Map<DriveId, Status>> statuses = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        mScheduler.deleteAll(mFiles, new DriveBackend.Callback<Map<DriveId, Status>>() {
+            @Override
+            public void onResult(Status status, Map<DriveId, Status> result) {
+                statuses.set(result);
+                done.countDown();
+            }
+        });
+        DriveFixtures.await(done);
+
+        assertEquals(2, mBackend.getCallCount(DriveBackend.Operation.DELETE_BATCH));
+        for (DriveId file : mFiles){
+            assertTrue(statuses.get().get(file).isSuccess());
+        }
+    }
+
+    @Test
+    public void firstDeleteOfAMissingItemStillFails(){
+        DriveFixtures.delete(mBackend, mFiles.get(0));
+        Results<Void> results = new Results<>(1);
+        mScheduler.delete(mFiles.get(0), results.next("delete"));
+        DriveFixtures.await(results.done);
+
+        assertEquals(0, results.successes.get());
+    }
+
+    //////////////////// private helper ////////////////////////
+
+    private void call(SchedulingDriveBackend.Priority priority, final Results<Metadata> results, final String name){
+        SchedulingDriveBackend.runWithPriority(priority, new Runnable() {
+            @Override
+            public void run() {
+                mScheduler.getMetadata(mFiles.get(0), results.next(name));
+            }
+        });
+    }
+
+    // callbacks that record the order they came in and count successes
+    private static class Results<T> {
+        final CountDownLatch done;
+        final AtomicInteger successes = new AtomicInteger(0);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+        Results(int calls){
+            done = new CountDownLatch(calls);
+        }
+
+        DriveBackend.Callback<T> next(final String name){
+            return new DriveBackend.Callback<T>() {
+                @Override
+                public void onResult(Status status, T result) {
+                    if (status.isSuccess()) successes.incrementAndGet();
+                    order.add(name);
+                    done.countDown();
+                }
+            };
+        }
+    }
+
+    // tracks metadata reads in flight, and can lose the reply of a delete Drive carried out
+    private static class ProbingBackend extends InMemoryDriveBackend {
+        final AtomicInteger inFlight = new AtomicInteger(0);
+        final AtomicInteger maxInFlight = new AtomicInteger(0);
+        private volatile boolean mLoseDeleteReply = false;
+
+        void loseNextDeleteReply(){
+            mLoseDeleteReply = true;
+        }
+
+        @Override
+        public void getMetadata(DriveId assetID, final Callback<Metadata> callback) {
+            int now = inFlight.incrementAndGet();
+            int max;
+            while ((max = maxInFlight.get())<now && !maxInFlight.compareAndSet(max, now)){
+                // raced, read again
+            }
+            super.getMetadata(assetID, new Callback<Metadata>() {
+                @Override
+                public void onResult(Status status, Metadata result) {
+                    inFlight.decrementAndGet();
+                    callback.onResult(status, result);
+                }
+            });
+        }
+
+        @Override
+        public void delete(DriveId assetID, final Callback<Void> callback) {
+            final boolean lose = takeLoseDeleteReply();
+            super.delete(assetID, new Callback<Void>() {
+                @Override
+                public void onResult(Status status, Void nothing) {
+                    callback.onResult(lose ? new Status(CommonStatusCodes.NETWORK_ERROR) : status, nothing);
+                }
+            });
+        }
+
+        @Override
+        public void deleteAll(List<DriveId> assetIDs, final Callback<Map<DriveId, Status>> callback) {
+            final boolean lose = takeLoseDeleteReply();
+            super.deleteAll(assetIDs, new Callback<Map<DriveId, Status>>() {
+                @Override
+                public void onResult(Status status, Map<DriveId, Status> statuses) {
+                    if (lose){
+                        callback.onResult(new Status(CommonStatusCodes.NETWORK_ERROR), null);
+                    }else{
+                        callback.onResult(status, statuses);
+                    }
+                }
+            });
+        }
+
+        private synchronized boolean takeLoseDeleteReply(){
+            boolean lose = mLoseDeleteReply;
+            mLoseDeleteReply = false;
+            return lose;
+        }
+    }
+}
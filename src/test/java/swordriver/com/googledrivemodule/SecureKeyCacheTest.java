@@ -0,0 +1,151 @@
+package swordriver.com.googledrivemodule;
+
+import com.google.android.gms.drive.DriveFolder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * GoogleApiModelSecure's key caches, counted through a SimpleMetricsRegistry: the key encryption
+ * key derived per salt and the unwrapped per item data keys.
+ */
+public class SecureKeyCacheTest {
+
+    private static final int FILES = 4;
+
+    private InMemoryDriveBackend mBackend;
+    private GoogleApiModelSecure mModel;
+    private DriveFolder mFolder;
+    private SimpleMetricsRegistry mMetrics;
+
+    @Before
+    public void setUp(){
+        mBackend = new InMemoryDriveBackend();
+        mModel = DriveFixtures.unlockedSecureModel(mBackend);
+        mFolder = mModel.getAppRootFolder();
+        mMetrics = new SimpleMetricsRegistry();
+        mModel.setMetricsRegistry(mMetrics);
+    }
+
+    @Test
+    public void itemsUnderOneForeignSaltDeriveItsKeyOnce(){
+        seedForeignFiles(FILES);
+        mMetrics.reset();
+
+        assertEquals(titles(FILES), readableTitles());
+        assertEquals(1, mMetrics.getCount("crypto.derive_key"));
+    }
+
+    @Test
+    public void itemsUnderTheCurrentSaltDeriveNothing(){
+        DriveFixtures.seedEncryptedFiles(mModel, mBackend, mFolder, FILES);
+        mMetrics.reset();
+
+        assertEquals(titles(FILES), readableTitles());
+        assertEquals(0, mMetrics.getCount("crypto.derive_key"));
+    }
+
+    @Test
+    public void unlockingAgainDerivesAgain(){
+        seedForeignFiles(FILES);
+        readableTitles();
+
+        mModel.clearPassword();
+        mModel.setPassword(DriveFixtures.PASSWORD);
+        DriveFixtures.awaitStatus(mModel, GoogleApiModel.GoogleApiStatus.INITIALIZED, "password was not accepted");
+        mMetrics.reset();
+
+        assertEquals(titles(FILES), readableTitles());
+        assertEquals(1, mMetrics.getCount("crypto.derive_key"));
+    }
+
+    @Test
+    public void listingAgainUnwrapsNoDataKey(){
+        DriveFixtures.seedEncryptedFiles(mModel, mBackend, mFolder, FILES);
+        mMetrics.reset();
+
+        readableTitles();
+        assertEquals(0, mMetrics.getCounter("crypto.data_key.hits"));
+        assertEquals(FILES, mMetrics.getCounter("crypto.data_key.misses"));
+        readableTitles();
+        assertEquals(FILES, mMetrics.getCounter("crypto.data_key.hits"));
+        assertEquals(FILES, mMetrics.getCounter("crypto.data_key.misses"));
+    }
+
+    @Test
+    public void noTimeoutWipesAndStopsCachingDataKeys(){
+        DriveFixtures.seedEncryptedFiles(mModel, mBackend, mFolder, FILES);
+        readableTitles();
+        mModel.setDataKeyCacheTimeout(0);
+        mMetrics.reset();
+
+        assertEquals(titles(FILES), readableTitles());
+        assertEquals(titles(FILES), readableTitles());
+        assertEquals(0, mMetrics.getCounter("crypto.data_key.hits"));
+        assertEquals(2*FILES, mMetrics.getCounter("crypto.data_key.misses"));
+    }
+
+    @Test
+    public void expiredDataKeysAreUnwrappedAgain() throws Exception {
+        DriveFixtures.seedEncryptedFiles(mModel, mBackend, mFolder, FILES);
+        mModel.setDataKeyCacheTimeout(50);
+        readableTitles();
+        Thread.sleep(100);
+        mMetrics.reset();
+
+        assertEquals(titles(FILES), readableTitles());
+        assertEquals(0, mMetrics.getCounter("crypto.data_key.hits"));
+        assertEquals(FILES, mMetrics.getCounter("crypto.data_key.misses"));
+    }
+
+    @Test
+    public void lockingWipesDataKeys(){
+        DriveFixtures.seedEncryptedFiles(mModel, mBackend, mFolder, FILES);
+        readableTitles();
+
+        mModel.clearPassword();
+        mModel.setPassword(DriveFixtures.PASSWORD);
+        DriveFixtures.awaitStatus(mModel, GoogleApiModel.GoogleApiStatus.INITIALIZED, "password was not accepted");
+        mMetrics.reset();
+
+        assertEquals(titles(FILES), readableTitles());
+        assertEquals(0, mMetrics.getCounter("crypto.data_key.hits"));
+        assertEquals(FILES, mMetrics.getCounter("crypto.data_key.misses"));
+    }
+
+    //////////////////// private helper ////////////////////////
+
+    // named encrypted-0.., wrapped by another installation under the same password but its own salt
+    private void seedForeignFiles(int count){
+        GoogleApiModelSecure other = DriveFixtures.unlockedSecureModel(new InMemoryDriveBackend());
+        for (int i=0; i<count; i++){
+            Map<String, String> cipherData = other.encryptAssetName("encrypted-" + i);
+            String encryptedName = cipherData.remove("asset_name");
+            DriveFixtures.createFile(mBackend, mFolder, encryptedName, cipherData);
+        }
+    }
+
+    private List<String> readableTitles(){
+        List<String> titles = new ArrayList<>();
+        for (GoogleApiModel.ItemInfo item : DriveFixtures.listFolder(mModel, mFolder).items){
+            titles.add(item.getReadableTitle());
+        }
+        Collections.sort(titles);
+        return titles;
+    }
+
+    private static List<String> titles(int count){
+        List<String> titles = new ArrayList<>();
+        for (int i=0; i<count; i++){
+            titles.add("encrypted-" + i);
+        }
+        return titles;
+    }
+}
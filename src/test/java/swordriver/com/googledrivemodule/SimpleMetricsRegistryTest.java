@@ -0,0 +1,132 @@
+package swordriver.com.googledrivemodule;
+
+import com.google.android.gms.drive.DriveFile;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * SimpleMetricsRegistry's latency percentiles, counters and in flight counts, and the Drive calls
+ * MeteredDriveBackend records in it.
+ */
+public class SimpleMetricsRegistryTest {
+
+    private static final String NAME = "op";
+
+    private final SimpleMetricsRegistry mMetrics = new SimpleMetricsRegistry();
+
+    @Test
+    public void nothingRecordedIsZero(){
+        assertEquals(0, mMetrics.getCount(NAME));
+        assertEquals(0, mMetrics.getMeanNanos(NAME));
+        assertEquals(0, mMetrics.getPercentileNanos(NAME, 50));
+        assertEquals(0, mMetrics.getMaxInFlight(NAME));
+        assertEquals(0, mMetrics.getCounter(NAME));
+    }
+
+    @Test
+    public void percentilesArePowerOfTwoUpperBounds(){
+        // 90 fast calls below 1024ns, 10 slow ones below 2^20ns
+        for (int i=0; i<90; i++){
+            mMetrics.recordLatency(NAME, 1000, true);
+        }
+        for (int i=0; i<10; i++){
+            mMetrics.recordLatency(NAME, 1000000, true);
+        }
+
+        assertEquals(1024, mMetrics.getPercentileNanos(NAME, 50));
+        assertEquals(1024, mMetrics.getPercentileNanos(NAME, 90));
+        assertEquals(1L<<20, mMetrics.getPercentileNanos(NAME, 91));
+        assertEquals(1L<<20, mMetrics.getPercentileNanos(NAME, 100));
+        assertEquals(1024, mMetrics.getPercentileNanos(NAME, 0));
+    }
+
+    @Test
+    public void bucketUpperBoundIsExclusive(){
+        mMetrics.recordLatency(NAME, 1023, true);
+        assertEquals(1024, mMetrics.getPercentileNanos(NAME, 100));
+
+        mMetrics.recordLatency(NAME, 1024, true);
+        assertEquals(2048, mMetrics.getPercentileNanos(NAME, 100));
+    }
+
+    @Test
+    public void extremeLatenciesStayInRange(){
+        mMetrics.recordLatency(NAME, 0, true);
+        mMetrics.recordLatency(NAME, -5, true);
+        assertEquals(1, mMetrics.getPercentileNanos(NAME, 100));
+
+        mMetrics.recordLatency(NAME, Long.MAX_VALUE, true);
+        assertEquals(Long.MAX_VALUE, mMetrics.getPercentileNanos(NAME, 100));
+    }
+
+    @Test
+    public void outOfRangePercentilesAreClamped(){
+        mMetrics.recordLatency(NAME, 100, true);
+        mMetrics.recordLatency(NAME, 100000, true);
+
+        assertEquals(mMetrics.getPercentileNanos(NAME, 0), mMetrics.getPercentileNanos(NAME, -10));
+        assertEquals(mMetrics.getPercentileNanos(NAME, 100), mMetrics.getPercentileNanos(NAME, 200));
+    }
+
+    @Test
+    public void countsErrorsAndMean(){
+        mMetrics.recordLatency(NAME, 100, true);
+        mMetrics.recordLatency(NAME, 300, false);
+
+        assertEquals(2, mMetrics.getCount(NAME));
+        assertEquals(1, mMetrics.getErrorCount(NAME));
+        assertEquals(200, mMetrics.getMeanNanos(NAME));
+    }
+
+    @Test
+    public void inFlightKeepsItsHighestValue(){
+        mMetrics.inFlight(NAME, 1);
+        mMetrics.inFlight(NAME, 1);
+        mMetrics.inFlight(NAME, 1);
+        mMetrics.inFlight(NAME, -1);
+        mMetrics.inFlight(NAME, 1);
+        mMetrics.inFlight(NAME, -1);
+        mMetrics.inFlight(NAME, -1);
+
+        assertEquals(1, mMetrics.getInFlight(NAME));
+        assertEquals(3, mMetrics.getMaxInFlight(NAME));
+    }
+
+    @Test
+    public void countersAddUpAndResetClearsAll(){
+        mMetrics.count("items", 3);
+        mMetrics.count("items", 4);
+        mMetrics.recordLatency(NAME, 100, true);
+        assertEquals(7, mMetrics.getCounter("items"));
+        assertEquals(Arrays.asList(NAME), mMetrics.getNames());
+        assertTrue(mMetrics.dump().contains("items=7"));
+
+        mMetrics.reset();
+        assertEquals(0, mMetrics.getCounter("items"));
+        assertEquals(0, mMetrics.getCount(NAME));
+        assertTrue(mMetrics.getNames().isEmpty());
+    }
+
+    @Test
+    public void meteredBackendRecordsEveryCall(){
+        InMemoryDriveBackend backend = new InMemoryDriveBackend();
+        GoogleApiModel model = DriveFixtures.connectedModel(backend);
+        DriveFile file = DriveFixtures.createFile(backend, model.getAppRootFolder(), "file", null);
+        MeteredDriveBackend metered = new MeteredDriveBackend(backend, mMetrics);
+        String name = MeteredDriveBackend.metricName(DriveBackend.Operation.GET_METADATA);
+
+        DriveFixtures.getMetadata(metered, file.getDriveId());
+        backend.failNext(DriveBackend.Operation.GET_METADATA, 1);
+        DriveFixtures.getMetadata(metered, file.getDriveId());
+
+        assertEquals(2, mMetrics.getCount(name));
+        assertEquals(1, mMetrics.getErrorCount(name));
+        assertEquals(0, mMetrics.getInFlight(name));
+        assertEquals(1, mMetrics.getMaxInFlight(name));
+        assertTrue(mMetrics.getPercentileNanos(name, 100)>0);
+    }
+}
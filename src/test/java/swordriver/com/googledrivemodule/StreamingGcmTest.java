@@ -0,0 +1,236 @@
+package swordriver.com.googledrivemodule;
+
+import com.google.android.gms.drive.Metadata;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.*;
+
+/**
+ * StreamingGcm on its own, and encrypted contents written and read by GoogleApiModelSecure
+ * against InMemoryDriveBackend.
+ */
+public class StreamingGcmTest {
+
+    private static final int SEGMENT_SIZE = 16;
+    // version, segment size, salt and nonce prefix
+    private static final int HEADER_LENGTH = 1+4+16+7;
+    private static final int TAG_LENGTH = 16;
+
+    private final SecureRandom mRandom = new SecureRandom();
+    private SecretKey mKey;
+
+    @Before
+    public void setUp(){
+        byte[] key = new byte[16];
+        mRandom.nextBytes(key);
+        mKey = new SecretKeySpec(key, "AES");
+    }
+
+    @Test
+    public void roundTripsAtSegmentBoundaries() throws Exception {
+        int[] lengths = {0, 1, SEGMENT_SIZE-1, SEGMENT_SIZE, SEGMENT_SIZE+1, 3*SEGMENT_SIZE, 3*SEGMENT_SIZE+1};
+        for (int length : lengths){
+            byte[] plaintext = randomBytes(length);
+            byte[] ciphertext = encrypt(plaintext);
+
+            int segments = Math.max(1, (length+SEGMENT_SIZE-1)/SEGMENT_SIZE);
+            assertEquals("length " + length, HEADER_LENGTH + length + segments*TAG_LENGTH, ciphertext.length);
+            assertArrayEquals("length " + length, plaintext, decrypt(ciphertext, 7));
+            assertArrayEquals("length " + length, plaintext, decrypt(ciphertext, ciphertext.length+1));
+        }
+    }
+
+    @Test
+    public void tamperedHeaderFails() throws Exception {
+        byte[] ciphertext = encrypt(randomBytes(2*SEGMENT_SIZE));
+        // a salt byte: the header is authenticated with every segment
+        ciphertext[1+4+3] ^= 1;
+        assertDecryptFails(ciphertext);
+    }
+
+    @Test
+    public void tamperedSegmentFails() throws Exception {
+        byte[] ciphertext = encrypt(randomBytes(2*SEGMENT_SIZE));
+        ciphertext[HEADER_LENGTH + SEGMENT_SIZE+TAG_LENGTH + 2] ^= 1;
+        assertDecryptFails(ciphertext);
+    }
+
+    @Test
+    public void tamperedTagFails() throws Exception {
+        byte[] ciphertext = encrypt(randomBytes(2*SEGMENT_SIZE));
+        ciphertext[HEADER_LENGTH + SEGMENT_SIZE+TAG_LENGTH - 1] ^= 1;
+        assertDecryptFails(ciphertext);
+    }
+
+    @Test
+    public void reorderedSegmentsFail() throws Exception {
+        byte[] ciphertext = encrypt(randomBytes(3*SEGMENT_SIZE));
+        int segment = SEGMENT_SIZE+TAG_LENGTH;
+        byte[] first = Arrays.copyOfRange(ciphertext, HEADER_LENGTH, HEADER_LENGTH+segment);
+        System.arraycopy(ciphertext, HEADER_LENGTH+segment, ciphertext, HEADER_LENGTH, segment);
+        System.arraycopy(first, 0, ciphertext, HEADER_LENGTH+segment, segment);
+        assertDecryptFails(ciphertext);
+    }
+
+    @Test
+    public void truncationAtASegmentBoundaryFails() throws Exception {
+        byte[] ciphertext = encrypt(randomBytes(3*SEGMENT_SIZE+1));
+        int segment = SEGMENT_SIZE+TAG_LENGTH;
+        // every earlier segment authenticates on its own, only the last one says it is last
+        assertDecryptFails(Arrays.copyOf(ciphertext, HEADER_LENGTH + 3*segment));
+        assertDecryptFails(Arrays.copyOf(ciphertext, HEADER_LENGTH + segment));
+        assertDecryptFails(Arrays.copyOf(ciphertext, HEADER_LENGTH));
+        assertDecryptFails(Arrays.copyOf(ciphertext, HEADER_LENGTH-1));
+    }
+
+    @Test
+    public void wrongKeyFails() throws Exception {
+        byte[] ciphertext = encrypt(randomBytes(SEGMENT_SIZE));
+        byte[] key = new byte[16];
+        mRandom.nextBytes(key);
+        mKey = new SecretKeySpec(key, "AES");
+        assertDecryptFails(ciphertext);
+    }
+
+    @Test
+    public void modelRoundTripsAtSegmentBoundaries(){
+        InMemoryDriveBackend backend = new InMemoryDriveBackend();
+        GoogleApiModelSecure model = DriveFixtures.unlockedSecureModel(backend);
+        model.setContentSegmentSize(SEGMENT_SIZE);
+        GoogleApiModel.ItemInfo info = DriveFixtures.createTxtFile(model, model.getAppRootFolder(), "segments");
+        int[] lengths = {0, SEGMENT_SIZE, 3*SEGMENT_SIZE+1};
+        for (int length : lengths){
+            String text = randomText(length);
+            info.meta = writeTxtFile(model, info, text);
+
+            byte[] stored = DriveFixtures.readContents(backend, info.meta.getDriveId());
+            if (length>0) assertFalse(new String(stored, GoogleApiModel.TEXT_CHARSET).contains(text));
+            assertEquals(text, DriveFixtures.readTxtFile(model, info));
+        }
+    }
+
+    @Test
+    public void modelRefusesTamperedContents(){
+        InMemoryDriveBackend backend = new InMemoryDriveBackend();
+        GoogleApiModelSecure model = DriveFixtures.unlockedSecureModel(backend);
+        model.setContentSegmentSize(SEGMENT_SIZE);
+        GoogleApiModel.ItemInfo info = DriveFixtures.createTxtFile(model, model.getAppRootFolder(), "tampered");
+        info.meta = writeTxtFile(model, info, randomText(2*SEGMENT_SIZE));
+
+        byte[] stored = DriveFixtures.readContents(backend, info.meta.getDriveId());
+        stored[HEADER_LENGTH + 1] ^= 1;
+        info.meta = DriveFixtures.writeContents(backend, info.meta.getDriveId(), stored, null);
+
+        assertNull(DriveFixtures.readTxtFile(model, info));
+    }
+
+    @Test
+    public void legacyBase64ContentsStayReadable(){
+        InMemoryDriveBackend backend = new InMemoryDriveBackend();
+        GoogleApiModelSecure model = DriveFixtures.unlockedSecureModel(backend);
+        String text = "written before the streaming format";
+        // the name cipher text is the same message format the older contents used, in the
+        // item's own data key
+        Map<String, String> cipherData = model.encryptAssetName(text);
+        String cipherText = cipherData.remove("asset_name");
+        String cipherIV = cipherData.remove("asset_name_iv");
+        cipherData.put("cipher_text_iv", cipherIV);
+        Map<String, String> title = model.encryptAssetName("legacy");
+        GoogleApiModel.ItemInfo info = new GoogleApiModel.ItemInfo();
+        info.meta = DriveFixtures.writeContents(backend,
+                DriveFixtures.createFile(backend, model.getAppRootFolder(),
+                        title.get("asset_name"), null).getDriveId(),
+                cipherText.getBytes(GoogleApiModel.TEXT_CHARSET), cipherData);
+
+        assertEquals(text, DriveFixtures.readTxtFile(model, info));
+
+        // written again, it moves to the streaming format and still reads back
+        info.meta = writeTxtFile(model, info, text + ", now streamed");
+        assertFalse(new String(DriveFixtures.readContents(backend, info.meta.getDriveId()), GoogleApiModel.TEXT_CHARSET)
+                .equals(cipherText));
+        assertEquals(text + ", now streamed", DriveFixtures.readTxtFile(model, info));
+    }
+
+    //////////////////// private helper ////////////////////////
+
+    private byte[] encrypt(byte[] plaintext) throws IOException {
+        ReadableByteChannel cipherSource = StreamingGcm.encrypting(
+                Channels.newChannel(new ByteArrayInputStream(plaintext)), mKey, SEGMENT_SIZE, mRandom);
+        ByteArrayOutputStream ciphertext = new ByteArrayOutputStream();
+        // a small buffer, so reads stop inside the header and segments
+        ByteBuffer buffer = ByteBuffer.allocate(5);
+        while (cipherSource.read(buffer)>=0){
+            buffer.flip();
+            ciphertext.write(buffer.array(), 0, buffer.limit());
+            buffer.clear();
+        }
+        return ciphertext.toByteArray();
+    }
+
+    // writes the ciphertext chunk bytes at a time
+    private byte[] decrypt(byte[] ciphertext, int chunk) throws IOException {
+        ByteArrayOutputStream plaintext = new ByteArrayOutputStream();
+        StreamingGcm.DecryptingChannel clearSink = StreamingGcm.decrypting(Channels.newChannel(plaintext), mKey);
+        for (int offset=0; offset<ciphertext.length; offset+=chunk){
+            clearSink.write(ByteBuffer.wrap(ciphertext, offset, Math.min(chunk, ciphertext.length-offset)));
+        }
+        long length = clearSink.finish();
+        assertEquals(plaintext.size(), length);
+        return plaintext.toByteArray();
+    }
+
+    private void assertDecryptFails(byte[] ciphertext){
+        try {
+            decrypt(ciphertext, ciphertext.length+1);
+            fail("decrypted damaged contents");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private byte[] randomBytes(int length){
+        byte[] bytes = new byte[length];
+        mRandom.nextBytes(bytes);
+        return bytes;
+    }
+
+    private String randomText(int length){
+        StringBuilder builder = new StringBuilder(length);
+        for (int i=0; i<length; i++){
+            builder.append((char) ('a' + mRandom.nextInt(26)));
+        }
+        return builder.toString();
+    }
+
+    private static Metadata writeTxtFile(GoogleApiModel model, GoogleApiModel.ItemInfo info, String text){
+        final AtomicReference<Metadata> result = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        model.writeTxtFile(info, text, new GoogleApiModel.WriteTxtFileCallback() {
+            @Override
+            public void callback(boolean success, Metadata newMeta) {
+                result.set(newMeta);
+                done.countDown();
+            }
+        }, null);
+        DriveFixtures.await(done);
+        if (result.get()==null) throw new IllegalStateException("contents were not written");
+        return result.get();
+    }
+}
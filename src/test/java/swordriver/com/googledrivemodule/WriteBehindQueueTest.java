@@ -0,0 +1,144 @@
+package swordriver.com.googledrivemodule;
+
+import com.google.android.gms.drive.DriveId;
+import com.google.android.gms.drive.Metadata;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * WriteBehindQueue's journal and retries, against InMemoryDriveBackend.
+ */
+public class WriteBehindQueueTest {
+
+    private static final String SECRET = "the secret contents of a queued write";
+
+    private InMemoryDriveBackend mBackend;
+    private File mJournal;
+
+    @Before
+    public void setUp() throws Exception {
+        mBackend = new InMemoryDriveBackend();
+        mJournal = File.createTempFile("write-behind", ".journal");
+        mJournal.delete();
+    }
+
+    @After
+    public void tearDown(){
+        mJournal.delete();
+    }
+
+    @Test
+    public void secureJournalHoldsNoPlaintext() throws Exception {
+        GoogleApiModelSecure model = DriveFixtures.unlockedSecureModel(mBackend);
+        GoogleApiModel.ItemInfo info = DriveFixtures.createTxtFile(model, model.getAppRootFolder(), "secret");
+        mBackend.setFailureRate(DriveBackend.Operation.OPEN, 1.0);
+        WriteBehindQueue queue = new WriteBehindQueue(model, mJournal);
+        awaitFlushed(queue, info, SECRET);
+
+        byte[] journal = awaitJournal();
+
+        assertFalse(contains(journal, SECRET.getBytes(GoogleApiModel.TEXT_CHARSET)));
+    }
+
+    @Test
+    public void sealedJournalIsWrittenAfterARestart() throws Exception {
+        GoogleApiModelSecure model = DriveFixtures.unlockedSecureModel(mBackend);
+        GoogleApiModel.ItemInfo info = DriveFixtures.createTxtFile(model, model.getAppRootFolder(), "secret");
+        mBackend.setFailureRate(DriveBackend.Operation.OPEN, 1.0);
+        awaitFlushed(new WriteBehindQueue(model, mJournal), info, SECRET);
+        awaitJournal();
+        mBackend.setFailureRate(DriveBackend.Operation.OPEN, 0);
+
+        // a later run
+        WriteBehindQueue restored = new WriteBehindQueue(model, mJournal);
+        assertEquals(1, restored.getPendingCount());
+        FlushRecorder recorder = new FlushRecorder();
+        restored.setFlushListener(recorder);
+        restored.start();
+        DriveFixtures.await(recorder.flushed);
+
+        assertTrue(recorder.success.get());
+        info.meta = DriveFixtures.getMetadata(mBackend, info.meta.getDriveId());
+        assertEquals(SECRET, DriveFixtures.readTxtFile(model, info));
+        restored.stop();
+    }
+
+    @Test
+    public void changeToADeletedItemIsDropped(){
+        GoogleApiModel model = DriveFixtures.connectedModel(mBackend);
+        GoogleApiModel.ItemInfo info = DriveFixtures.createTxtFile(model, model.getAppRootFolder(), "deleted");
+        DriveFixtures.delete(mBackend, info.meta.getDriveId());
+        WriteBehindQueue queue = new WriteBehindQueue(model, null);
+        FlushRecorder recorder = new FlushRecorder();
+        queue.setFlushListener(recorder);
+
+        queue.writeTxtFile(info, "too late", null);
+        DriveFixtures.await(recorder.flushed);
+
+        assertFalse(recorder.success.get());
+        assertEquals(0, queue.getPendingCount());
+        assertNull(queue.getPendingText(info.meta.getDriveId()));
+    }
+
+    @Test
+    public void failedWriteToAnExistingItemStaysQueued(){
+        GoogleApiModel model = DriveFixtures.connectedModel(mBackend);
+        GoogleApiModel.ItemInfo info = DriveFixtures.createTxtFile(model, model.getAppRootFolder(), "kept");
+        mBackend.failNext(DriveBackend.Operation.OPEN, 1);
+        WriteBehindQueue queue = new WriteBehindQueue(model, null);
+
+        awaitFlushed(queue, info, "kept contents");
+
+        assertEquals(1, queue.getPendingCount());
+        assertEquals("kept contents", queue.getPendingText(info.meta.getDriveId()));
+    }
+
+    //////////////////// private helper ////////////////////////
+
+    private static void awaitFlushed(WriteBehindQueue queue, GoogleApiModel.ItemInfo info, String content){
+        FlushRecorder recorder = new FlushRecorder();
+        queue.setFlushListener(recorder);
+        queue.writeTxtFile(info, content, null);
+        DriveFixtures.await(recorder.flushed);
+        queue.setFlushListener(null);
+    }
+
+    private byte[] awaitJournal() throws Exception {
+        long deadline = System.currentTimeMillis()+10000;
+        while (System.currentTimeMillis()<deadline){
+            if (mJournal.length()>0) return Files.readAllBytes(mJournal.toPath());
+            Thread.sleep(10);
+        }
+        throw new AssertionError("journal was not written");
+    }
+
+    private static boolean contains(byte[] haystack, byte[] needle){
+        for (int i=0; i+needle.length<=haystack.length; i++){
+            int j = 0;
+            while (j<needle.length && haystack[i+j]==needle[j]) j++;
+            if (j==needle.length) return true;
+        }
+        return false;
+    }
+
+    private static class FlushRecorder implements WriteBehindQueue.FlushListener {
+        final CountDownLatch flushed = new CountDownLatch(1);
+        final AtomicBoolean success = new AtomicBoolean(false);
+
+        @Override
+        public void onFlushed(DriveId assetID, boolean success, Metadata newMeta) {
+            this.success.set(success);
+            flushed.countDown();
+        }
+    }
+}